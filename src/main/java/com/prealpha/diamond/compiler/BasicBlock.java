@@ -0,0 +1,115 @@
+/*
+ * BasicBlock.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * A maximal sequence of {@link Instruction}s in a {@link ControlFlowGraph} which is always entered at its first
+ * instruction and left from its last. The phi instructions of a block come before all of its other instructions, and
+ * the operands of each phi correspond, in order, to the predecessors of the block. Once complete, a block ends with
+ * exactly one terminator; the successors of a {@link Instruction.Opcode#BRANCH} are its true and false targets, and
+ * those of a {@link Instruction.Opcode#SWITCH} are its default target followed by the target for each case value.
+ */
+final class BasicBlock {
+    private final int index;
+
+    private final List<Instruction> instructions;
+
+    private final List<BasicBlock> predecessors;
+
+    private final List<BasicBlock> successors;
+
+    BasicBlock(int index) {
+        this.index = index;
+        instructions = Lists.newArrayList();
+        predecessors = Lists.newArrayList();
+        successors = Lists.newArrayList();
+    }
+
+    /**
+     * Returns the index of this block, which is unique within its graph and stable across the removal of other blocks.
+     *
+     * @return the index of this block
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public List<Instruction> getInstructions() {
+        return ImmutableList.copyOf(instructions);
+    }
+
+    public List<BasicBlock> getPredecessors() {
+        return ImmutableList.copyOf(predecessors);
+    }
+
+    public List<BasicBlock> getSuccessors() {
+        return ImmutableList.copyOf(successors);
+    }
+
+    /**
+     * Returns the last instruction of this block, if it is a terminator.
+     *
+     * @return the terminator of this block, or {@code null} if the block is still being built
+     */
+    public Instruction getTerminator() {
+        if (instructions.isEmpty()) {
+            return null;
+        }
+        Instruction last = instructions.get(instructions.size() - 1);
+        return (last.getOpcode().isTerminator() ? last : null);
+    }
+
+    void append(Instruction instruction) {
+        checkState(getTerminator() == null);
+        checkArgument(instruction.getBlock() == null);
+        instructions.add(instruction);
+        instruction.setBlock(this);
+    }
+
+    void prepend(Instruction instruction) {
+        checkArgument(instruction.getBlock() == null);
+        instructions.add(0, instruction);
+        instruction.setBlock(this);
+    }
+
+    void remove(Instruction instruction) {
+        checkArgument(instruction.getBlock() == this);
+        instructions.remove(instruction);
+        instruction.setBlock(null);
+    }
+
+    void addSuccessor(BasicBlock successor) {
+        successors.add(successor);
+        successor.predecessors.add(this);
+    }
+
+    /**
+     * Removes a predecessor of this block, along with the corresponding operand of each phi.
+     */
+    void removePredecessor(BasicBlock predecessor) {
+        int predecessorIndex = predecessors.indexOf(predecessor);
+        checkArgument(predecessorIndex >= 0);
+        predecessors.remove(predecessorIndex);
+        for (Instruction instruction : instructions) {
+            if (instruction.getOpcode() == Instruction.Opcode.PHI) {
+                instruction.removeOperand(predecessorIndex);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "block" + index;
+    }
+}
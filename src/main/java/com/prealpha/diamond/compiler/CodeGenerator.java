@@ -8,22 +8,32 @@ package com.prealpha.diamond.compiler;
 
 import com.google.common.base.Functions;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 import com.google.common.io.CharStreams;
+import com.prealpha.diamond.compiler.analysis.DepthFirstAdapter;
+import com.prealpha.diamond.compiler.node.AAddAssignment;
 import com.prealpha.diamond.compiler.node.AAddExpression;
 import com.prealpha.diamond.compiler.node.AArrayAccess;
 import com.prealpha.diamond.compiler.node.AArrayAccessAssignmentTarget;
 import com.prealpha.diamond.compiler.node.AArrayAccessPrimaryExpression;
 import com.prealpha.diamond.compiler.node.AAssignment;
 import com.prealpha.diamond.compiler.node.AAssignmentExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseAndAssignment;
 import com.prealpha.diamond.compiler.node.ABitwiseAndExpression;
 import com.prealpha.diamond.compiler.node.ABitwiseComplementExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseOrAssignment;
 import com.prealpha.diamond.compiler.node.ABitwiseOrExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseXorAssignment;
 import com.prealpha.diamond.compiler.node.ABitwiseXorExpression;
 import com.prealpha.diamond.compiler.node.ABlockStatement;
 import com.prealpha.diamond.compiler.node.ABreakStatement;
@@ -43,8 +53,10 @@ import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
 import com.prealpha.diamond.compiler.node.AConstructorInvocation;
 import com.prealpha.diamond.compiler.node.AConstructorInvocationPrimaryExpression;
 import com.prealpha.diamond.compiler.node.AContinueStatement;
+import com.prealpha.diamond.compiler.node.ADecrementAssignment;
 import com.prealpha.diamond.compiler.node.ADefaultCaseGroup;
 import com.prealpha.diamond.compiler.node.ADeleteStatement;
+import com.prealpha.diamond.compiler.node.ADivideAssignment;
 import com.prealpha.diamond.compiler.node.ADivideExpression;
 import com.prealpha.diamond.compiler.node.ADoStatement;
 import com.prealpha.diamond.compiler.node.AEqualExpression;
@@ -67,6 +79,7 @@ import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
 import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
 import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
 import com.prealpha.diamond.compiler.node.AIfThenStatement;
+import com.prealpha.diamond.compiler.node.AIncrementAssignment;
 import com.prealpha.diamond.compiler.node.AIntegralLiteral;
 import com.prealpha.diamond.compiler.node.ALessOrEqualExpression;
 import com.prealpha.diamond.compiler.node.ALessThanExpression;
@@ -74,17 +87,23 @@ import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
 import com.prealpha.diamond.compiler.node.ALocalDeclaration;
 import com.prealpha.diamond.compiler.node.ALocalDeclarationAssignmentTarget;
 import com.prealpha.diamond.compiler.node.ALocalDeclarationStatement;
+import com.prealpha.diamond.compiler.node.AModulusAssignment;
 import com.prealpha.diamond.compiler.node.AModulusExpression;
+import com.prealpha.diamond.compiler.node.AMultiplyAssignment;
 import com.prealpha.diamond.compiler.node.AMultiplyExpression;
 import com.prealpha.diamond.compiler.node.ANativeStatement;
 import com.prealpha.diamond.compiler.node.ANotEqualExpression;
 import com.prealpha.diamond.compiler.node.ANumericNegationExpression;
 import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
 import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.AProgram;
 import com.prealpha.diamond.compiler.node.AReturnStatement;
+import com.prealpha.diamond.compiler.node.AShiftLeftAssignment;
 import com.prealpha.diamond.compiler.node.AShiftLeftExpression;
+import com.prealpha.diamond.compiler.node.AShiftRightAssignment;
 import com.prealpha.diamond.compiler.node.AShiftRightExpression;
 import com.prealpha.diamond.compiler.node.AStringLiteral;
+import com.prealpha.diamond.compiler.node.ASubtractAssignment;
 import com.prealpha.diamond.compiler.node.ASubtractExpression;
 import com.prealpha.diamond.compiler.node.ASwitchStatement;
 import com.prealpha.diamond.compiler.node.AThisPrimaryExpression;
@@ -92,16 +111,25 @@ import com.prealpha.diamond.compiler.node.ATrueLiteral;
 import com.prealpha.diamond.compiler.node.ATypeTokenFieldAccess;
 import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
 import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnsignedShiftRightAssignment;
 import com.prealpha.diamond.compiler.node.AUnsignedShiftRightExpression;
 import com.prealpha.diamond.compiler.node.AVoidFunctionDeclaration;
 import com.prealpha.diamond.compiler.node.AWhileStatement;
 import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PAssignment;
+import com.prealpha.diamond.compiler.node.PAssignmentTarget;
 import com.prealpha.diamond.compiler.node.PCaseGroup;
+import com.prealpha.diamond.compiler.node.PCastInvocation;
 import com.prealpha.diamond.compiler.node.PClassStatement;
+import com.prealpha.diamond.compiler.node.PConstructorInvocation;
 import com.prealpha.diamond.compiler.node.PExpression;
+import com.prealpha.diamond.compiler.node.PFieldAccess;
 import com.prealpha.diamond.compiler.node.PFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.PFunctionInvocation;
 import com.prealpha.diamond.compiler.node.PIntegralLiteral;
+import com.prealpha.diamond.compiler.node.PLiteral;
 import com.prealpha.diamond.compiler.node.PLocalDeclaration;
+import com.prealpha.diamond.compiler.node.PPrimaryExpression;
 import com.prealpha.diamond.compiler.node.PStatement;
 import com.prealpha.diamond.compiler.node.PTopLevelStatement;
 import com.prealpha.diamond.compiler.node.TIdentifier;
@@ -110,11 +138,16 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -122,6 +155,37 @@ import static com.google.common.base.Preconditions.*;
  * TODO: there's lots of code duplication with TypeEnforcer, not sure how to fix this
  */
 final class CodeGenerator extends ScopeAwareWalker {
+    /**
+     * Switch statements with fewer case values than this are dispatched by testing each value in turn. This is also
+     * the size below which a binary search stops dividing the case values and tests them in turn.
+     */
+    private static final int LINEAR_SWITCH_LIMIT = 4;
+
+    /**
+     * A switch statement is dispatched through a jump table if the table would have at most this many entries for
+     * each case value.
+     */
+    private static final int JUMP_TABLE_SPARSENESS = 3;
+
+    /**
+     * The estimated size, in words, of the code needed to call a function, beyond that needed to evaluate its
+     * arguments. This is used to estimate the cost of inlining a function which itself invokes other functions.
+     */
+    private static final int INVOCATION_WORDS = 4;
+
+    /**
+     * The estimated time, in cycles, needed to call a function and return from it, beyond that needed to evaluate its
+     * arguments and execute its body.
+     */
+    private static final int INVOCATION_CYCLES = 8;
+
+    /**
+     * The opcodes which overwrite their first operand, other than {@code STI} and {@code STD}, which also overwrite I
+     * and J.
+     */
+    private static final Set<String> WRITING_OPCODES = ImmutableSet.of("SET", "ADD", "SUB", "MUL", "MLI", "DIV",
+            "DVI", "MOD", "MDI", "AND", "BOR", "XOR", "SHR", "ASR", "SHL", "ADX", "SBX", "STI", "STD");
+
     /**
      * The {@code Compiler} we use to {@linkplain Compiler#raise(Throwable) raise exceptions} and for information from
      * previous compilation phases.
@@ -136,6 +200,18 @@ final class CodeGenerator extends ScopeAwareWalker {
      */
     private final Map<Node, TypeToken> types;
 
+    /**
+     * The register assignments produced by the {@link RegisterAllocator} phase. Locals which have been assigned a
+     * register never occupy a slot on the DCPU stack, and so they never appear in {@link #stack}.
+     */
+    private final RegisterAllocator registerAllocator;
+
+    /**
+     * The allocations which the {@link EscapeAnalyzer} found may be placed in the frame of the allocating function,
+     * rather than on the heap.
+     */
+    private final EscapeAnalyzer escapeAnalyzer;
+
     /**
      * <p>
      *     The instructions generated by this phase. Each top level statement has its own list of instructions. In
@@ -156,8 +232,41 @@ final class CodeGenerator extends ScopeAwareWalker {
     private final ListMultimap<PTopLevelStatement, String> instructions;
 
     /**
-     * Models the stack and its contents as they change during program execution. Each local variable should be placed
-     * on the stack as soon as it is declared, and removed when it falls out of scope. The stack also contains several
+     * The start and end labels of each {@code native} function. Native code addresses the stack by hard-coded offsets
+     * and may use relative jumps, so the {@link PeepholeOptimizer} must leave these regions exactly as written.
+     */
+    private final Map<String, String> nativeRegions;
+
+    /**
+     * The registers which each function generated so far may overwrite before it returns, including through the
+     * functions it invokes (see {@link #summarize(List)}). A function missing from this map is assumed to overwrite
+     * every register.
+     */
+    private final Map<Node, Set<Register>> clobberedRegisters;
+
+    /**
+     * The function, constructor and cast declarations found by the walk, with the top level statement and the scope
+     * enclosing each. Their code is generated once the walk is complete (see {@link #generateDeclarations(AProgram)}).
+     */
+    private final Map<Node, PTopLevelStatement> declarationContexts;
+
+    private final Map<Node, Scope> declarationScopes;
+
+    /**
+     * The registers overwritten by the code of each function generated so far, not counting the functions it invokes
+     * or registers which it saves and later restores. A {@code native} function is assumed to overwrite every register.
+     */
+    private final Map<Node, Set<Register>> writtenRegisters;
+
+    /**
+     * The functions invoked by each function generated so far, other than those which were inlined.
+     */
+    private final SetMultimap<Node, Node> invokedDeclarations;
+
+    /**
+     * Models the stack and its contents as they change during program execution. Each local variable which has been
+     * assigned neither a register nor a {@linkplain #frameSlots frame slot} should be placed on the stack as soon as it
+     * is declared, and removed when it falls out of scope. The stack also contains several
      * placeholder values, used to represent values on the stack that do not correspond to local variables:
      * <ul>
      *     <li>{@link #thisSymbol}, of type {@link FunctionPlaceholder}, which represents {@code this}, the implicit
@@ -167,12 +276,41 @@ final class CodeGenerator extends ScopeAwareWalker {
      *     itself, the explicit parameters are ordinary local variables, so no placeholders are needed.</li>
      *     <li>A one-word JSR pointer, to account for the stack offset caused by the {@code JSR} instruction used to
      *     enter functions. The JSR pointer is also a {@code FunctionPointer}.</li>
+     *     <li>{@link FrameSlotPlaceholder} values, one for each slot of the current function's frame, which is reserved
+     *     just above the JSR pointer.</li>
      *     <li>{@link TransientPlaceholder} values, which are used in binary expressions to store the left operand while
      *     the right operand is being evaluated. These {@code POP} from the stack as soon as they are accessed.</li>
+     *     <li>{@link SavedRegisterPlaceholder} values, which hold the contents of registers that must be preserved
+     *     across a function invocation.</li>
      * </ul>
      */
     private final Deque<TypedSymbol> stack;
 
+    /**
+     * The frame slot of each stack-resident local declared in the body of the function currently being generated. The
+     * whole frame is reserved on entry to the function and released on exit, so these locals are not pushed when they
+     * are declared or popped when their scope ends. Locals of sibling scopes, which are never live at the same time,
+     * share slots. The locals of {@code native} functions and of inlined bodies are not in the frame, since native code
+     * expects to find locals at offsets determined by their declarations.
+     *
+     * @see #assignFrameSlots(Node)
+     */
+    private final Map<LocalSymbol, Integer> frameSlots;
+
+    /**
+     * The placeholders representing the slots of the current function's frame in {@link #stack}, indexed by slot.
+     */
+    private final List<FrameSlotPlaceholder> frame;
+
+    /**
+     * The first frame slot of each object or array allocated on the stack by the function currently being generated,
+     * keyed by its constructor invocation. An allocation of {@code n} words occupies that slot and the {@code n - 1}
+     * following it. Allocations within inlined bodies are not in the frame, and so they use the heap.
+     *
+     * @see EscapeAnalyzer
+     */
+    private final Map<Node, Integer> allocationSlots;
+
     /**
      * A stack containing the {@link FlowStructure} instances enclosing the currently executing code. By flow
      * structures, we mean structures like loops and functions that determine and modify the behavior of these three
@@ -192,10 +330,27 @@ final class CodeGenerator extends ScopeAwareWalker {
     private PTopLevelStatement context;
 
     /**
-     * The result of the last expression to be executed. There are three possible cases:
+     * The declaration of the function, constructor or cast enclosing the currently executing code, or {@code null} if
+     * the code is not within any such declaration.
+     */
+    private Node currentDeclaration;
+
+    /**
+     * The registers currently holding temporaries, which were allocated by {@link #evaluateOperands(Node, Node,
+     * boolean)} from the registers {@linkplain RegisterAllocator#getFreeRegisters(Node) not used by any local}. Like
+     * the registers of live locals, these must be preserved across invocations.
+     */
+    private final Deque<Register> temporaries;
+
+    /**
+     * The result of the last expression to be executed. There are four possible cases:
      * <ul>
-     *     <li>If the expression returned a local variable or field, {@code expressionResult} is the symbol for that
+     *     <li>If the expression returned a field or array element, {@code expressionResult} is the symbol for that
      *     variable, and register A contains a pointer to that variable.</li>
+     *     <li>If the expression returned a local variable, {@code expressionResult} is the symbol for that variable,
+     *     and the contents of register A are undefined. A local which has been assigned a register is found in that
+     *     register, and one on the stack is addressed relative to the stack pointer, as given by
+     *     {@link #getVariableOperand(TypedSymbol)}.</li>
      *     <li>If the expression returned a value, {@code expressionResult} is {@code null}, and register A contains the
      *     value.</li>
      *     <li>If the expression was a void method invocation, {@code expressionResult} is {@code null}, and the
@@ -213,6 +368,34 @@ final class CodeGenerator extends ScopeAwareWalker {
      */
     private FunctionPlaceholder thisSymbol;
 
+    /**
+     * The registers holding loop-invariant expressions which have been evaluated before the loops enclosing the
+     * currently executing code, keyed by the expression without any enclosing parentheses. These registers are also
+     * held in {@link #temporaries} for the duration of the loop, so they are preserved across invocations.
+     */
+    private final Map<Node, Register> hoistedExpressions;
+
+    /**
+     * The registers holding pointers to array elements, keyed by the array access. Such a pointer is either indexed by
+     * the induction variable of an enclosing loop (see {@link #createInductionPointers(AForStatement)}), or it is the
+     * address of an element accessed several times in a run of statements (see
+     * {@link #inlineStraightLineStatements(List)}).
+     */
+    private final Map<Node, Register> elementPointers;
+
+    /**
+     * The register holding {@code this}, if it has been evaluated before a loop enclosing the currently executing
+     * code, if it was passed in a register, or if the register allocator assigned it a register for the whole function;
+     * {@code null} otherwise.
+     */
+    private Register thisRegister;
+
+    /**
+     * Set when an invocation is compiled as a tail call, so that the enclosing {@code return} statement does not also
+     * return.
+     */
+    private boolean tailCalled;
+
     /**
      * Constructs a new {@code CodeGenerator} as a phase for the given {@link Compiler}. The code generator will use
      * information from previous phases as exposed by the {@code Compiler}, and it will invoke its
@@ -226,9 +409,23 @@ final class CodeGenerator extends ScopeAwareWalker {
     public CodeGenerator(Compiler compiler) {
         super(compiler.getScopeSource());
         this.compiler = compiler;
+        clobberedRegisters = Maps.newHashMap();
+        declarationContexts = Maps.newLinkedHashMap();
+        declarationScopes = Maps.newHashMap();
         types = compiler.getTypes();
+        registerAllocator = compiler.getRegisterAllocator();
+        escapeAnalyzer = compiler.getEscapeAnalyzer();
         instructions = ArrayListMultimap.create();
+        nativeRegions = Maps.newHashMap();
+        writtenRegisters = Maps.newHashMap();
+        invokedDeclarations = HashMultimap.create();
+        frameSlots = Maps.newHashMap();
+        frame = Lists.newArrayList();
+        allocationSlots = Maps.newHashMap();
         stack = Queues.newArrayDeque();
+        temporaries = Queues.newArrayDeque();
+        hoistedExpressions = Maps.newHashMap();
+        elementPointers = Maps.newHashMap();
         flowStructures = Lists.newLinkedList();
     }
 
@@ -245,7 +442,11 @@ final class CodeGenerator extends ScopeAwareWalker {
      *     <li>A {@code BRK} instruction.</li>
      *     <li>{@code SUB SP 0x0001}, to end the program in emulators that do not recognize {@code BRK}.</li>
      *     <li>All instructions stored in {@link #instructions}. The order of the top-level statements (keys in the
-     *     {@code instructions} map) is undefined.</li>
+     *     {@code instructions} map) is undefined. The code of a function which is never called from {@code main},
+     *     directly or indirectly, is left out; this includes any function which was inlined wherever it is
+     *     invoked.</li>
+     *     <li>The instructions above are then improved by a {@link PeepholeOptimizer}, which leaves the code of
+     *     {@code native} functions untouched.</li>
      *     <li>The heap library, a copy of which can be found on
      *     <a href="https://github.com/Niriel/dcpu16/blob/master/malloc.dasm16">Github</a>. The example code is removed.
      *     The code itself is loaded from a copy of the {@code malloc.dasm16} file which is exported as a resource; the
@@ -280,16 +481,41 @@ final class CodeGenerator extends ScopeAwareWalker {
         toReturn.add("JSR " + getStartLabel(mainMethod));
         toReturn.add("BRK");
         toReturn.add("SUB PC 0x0001");
-        toReturn.addAll(instructions.values());
+        Set<Node> reachable = Sets.newHashSet();
+        Deque<Node> unvisited = Queues.newArrayDeque();
+        unvisited.push(mainMethod);
+        while (!unvisited.isEmpty()) {
+            Node declaration = unvisited.pop();
+            if (reachable.add(declaration)) {
+                unvisited.addAll(invokedDeclarations.get(declaration));
+            }
+        }
+        Map<String, String> omitted = Maps.newHashMap();
+        for (Node declaration : Sets.difference(writtenRegisters.keySet(), reachable)) {
+            omitted.put(":" + getStartLabel(declaration), ":" + getEndLabel(declaration));
+        }
+        String omittedEnd = null;
+        for (String instruction : instructions.values()) {
+            if (omittedEnd == null && omitted.containsKey(instruction)) {
+                omittedEnd = omitted.get(instruction);
+            } else if (omittedEnd == null) {
+                toReturn.add(instruction);
+            } else if (instruction.equals(omittedEnd)) {
+                omittedEnd = null;
+            }
+        }
 
         InputStream stream = getClass().getResourceAsStream("malloc.dasm16");
         if (stream == null) {
             throw new FileNotFoundException("could not locate malloc.dasm16");
         }
         List<String> malloc = CharStreams.readLines(new InputStreamReader(stream));
-        toReturn.addAll(malloc);
         stream.close();
 
+        PeepholeOptimizer optimizer = new PeepholeOptimizer(toReturn, nativeRegions, malloc);
+        toReturn = Lists.newArrayList(optimizer.optimize());
+        toReturn.addAll(malloc);
+
         return toReturn;
     }
 
@@ -317,7 +543,7 @@ final class CodeGenerator extends ScopeAwareWalker {
      * @param scope the scope to reclaim
      */
     private void reclaimScope(Scope scope) {
-        for (LocalSymbol local : Lists.reverse(scope.getLocals())) {
+        for (LocalSymbol local : Lists.reverse(getStackLocals(scope))) {
             TypedSymbol popped = stack.pop();
             assert (local.equals(popped));
         }
@@ -332,13 +558,81 @@ final class CodeGenerator extends ScopeAwareWalker {
      * @param scope the scope to reclaim
      */
     void doReclaimScope(Scope scope) {
-        if (scope.getLocals().size() == 1) {
+        writeStackRelease(getStackLocals(scope).size());
+    }
+
+    /**
+     * Emits instructions to release the frame of the current function from the DCPU stack, without modifying
+     * {@link #stack}. This is used to implement {@code return}, and the frame must be the top of the stack.
+     */
+    void doReclaimFrame() {
+        writeStackRelease(frame.size());
+    }
+
+    private void writeStackRelease(int words) {
+        if (words == 1) {
             write("SET EX POP");
-        } else if (scope.getLocals().size() > 0) {
-            write(String.format("ADD SP 0x%04x", scope.getLocals().size()));
+        } else if (words > 0) {
+            write(String.format("ADD SP 0x%04x", words));
         }
     }
 
+    /**
+     * Returns the locals in the specified scope which are pushed to the DCPU stack when they are declared; that is,
+     * those which have been assigned neither a register nor a slot in the frame of the current function.
+     *
+     * @param scope the scope whose locals should be returned
+     * @return the list of stack-resident locals strictly within the scope, in the order declared
+     */
+    private List<LocalSymbol> getStackLocals(Scope scope) {
+        List<LocalSymbol> stackLocals = Lists.newArrayList();
+        for (LocalSymbol local : scope.getLocals()) {
+            if (registerAllocator.getRegister(local) == null && !frameSlots.containsKey(local)) {
+                stackLocals.add(local);
+            }
+        }
+        return stackLocals;
+    }
+
+    /**
+     * Assigns a slot in the frame of the specified function to each stack-resident local declared in its body. The
+     * locals of each scope take the slots following those of the enclosing scopes, so the locals of sibling scopes
+     * share slots. Parameters are not in the frame, since they are pushed by the caller. Each allocation which may be
+     * placed on the stack takes as many slots as it has words, following those already taken in its scope.
+     *
+     * @param declaration a function, constructor or cast declaration
+     */
+    private void assignFrameSlots(Node declaration) {
+        assert (frameSlots.isEmpty() && frame.isEmpty() && allocationSlots.isEmpty());
+        final Map<Node, Integer> stackAllocations = escapeAnalyzer.getStackAllocations();
+        final Deque<Integer> bases = Queues.newArrayDeque();
+        final int[] next = {0};
+        getBody(declaration).apply(new DepthFirstAdapter() {
+            @Override
+            public void defaultIn(Node node) {
+                if (node instanceof ABlockStatement || node instanceof AForStatement) {
+                    bases.push(next[0]);
+                    for (LocalSymbol local : getStackLocals(getScope(node))) {
+                        frameSlots.put(local, next[0]++);
+                    }
+                } else if (stackAllocations.containsKey(node) && !bases.isEmpty()) {
+                    allocationSlots.put(node, next[0]);
+                    next[0] += stackAllocations.get(node);
+                }
+                while (frame.size() < next[0]) {
+                    frame.add(new FrameSlotPlaceholder());
+                }
+            }
+
+            @Override
+            public void defaultOut(Node node) {
+                if (node instanceof ABlockStatement || node instanceof AForStatement) {
+                    next[0] = bases.pop();
+                }
+            }
+        });
+    }
+
     String getStartLabel(Node node) {
         return "start_" + getBaseLabel(node);
     }
@@ -349,9 +643,28 @@ final class CodeGenerator extends ScopeAwareWalker {
 
     private final Map<Node, Integer> labels = Maps.newHashMap();
 
+    /**
+     * The label numbers for the copies of function bodies currently being inlined, keyed by the body. A body which is
+     * inlined in several places needs distinct labels in each copy, and distinct from those of the function itself.
+     */
+    private final Map<Node, Map<Node, Integer>> inlineLabels = Maps.newHashMap();
+
+    /**
+     * The declarations enclosing each function body currently being inlined, innermost first. No function is inlined
+     * into itself, even indirectly, so that recursive functions are only ever expanded once.
+     */
+    private final Deque<Node> inlinedDeclarations = Queues.newArrayDeque();
+
     private int nextLabel = 0;
 
-    private String getBaseLabel(Node node) {
+    String getBaseLabel(Node node) {
+        Map<Node, Integer> labels = this.labels;
+        for (Node ancestor = node; ancestor != null; ancestor = ancestor.parent()) {
+            if (inlineLabels.containsKey(ancestor)) {
+                labels = inlineLabels.get(ancestor);
+                break;
+            }
+        }
         if (!labels.containsKey(node)) {
             labels.put(node, nextLabel++);
         }
@@ -361,11 +674,33 @@ final class CodeGenerator extends ScopeAwareWalker {
     private void inline(Node subject) {
         if (subject != null) {
             write(":" + getStartLabel(subject));
-            subject.apply(this);
+            Register hoisted = getHoistedRegister(subject);
+            if (hoisted != null) {
+                write("SET A " + hoisted);
+                expressionResult = null;
+            } else {
+                subject.apply(this);
+            }
             write(":" + getEndLabel(subject));
         }
     }
 
+    /**
+     * Returns the register holding the value of the specified expression, if the expression has been evaluated before
+     * an enclosing loop by {@link #hoistInvariants(Node...)}, or {@code null} otherwise.
+     *
+     * @param expression the expression
+     * @return the register holding the hoisted value of the expression, or {@code null}
+     */
+    private Register getHoistedRegister(Node expression) {
+        Node unwrapped = unwrapExpression(expression);
+        if (unwrapped instanceof AThisPrimaryExpression) {
+            return thisRegister;
+        } else {
+            return hoistedExpressions.get(unwrapped);
+        }
+    }
+
     /**
      * Pushes {@link #expressionResult} to the stack so that another expression may be evaluated without losing the last
      * result. A {@link TransientPlaceholder} is returned, which may be used to access the current expression result at
@@ -375,131 +710,1027 @@ final class CodeGenerator extends ScopeAwareWalker {
      */
     private TransientPlaceholder pushExpression() {
         TransientPlaceholder placeholder;
-        if (expressionResult != null) {
+        if (expressionResult != null && getVariableOperand(expressionResult) == null) {
             placeholder = new TransientVariablePlaceholder(expressionResult.getType());
         } else {
             placeholder = new TransientValuePlaceholder();
         }
-        write("SET PUSH A");
+        write("SET PUSH " + ((placeholder instanceof TransientValuePlaceholder) ? lookupExpression() : "A"));
         stack.push(placeholder);
         return placeholder;
     }
 
     /**
-     * Returns an assembly value which contains the <i>value</i> of the result of the last expression
-     * ({@link #expressionResult}). The assembly value will refer to the expression's value even if the expression
-     * itself returned a variable; in that case, the pointer stored in register A is dereferenced.
+     * <p>
+     *     Evaluates both operands of a binary operation, leaving the left operand in a writable location (register A,
+     *     register B or a temporary register) and the right operand in some assembly value. The operands are evaluated
+     *     with Sethi-Ullman ordering:
+     * </p>
+     * <ul>
+     *     <li>An operand which is a literal or a register local is a leaf, and needs no evaluation at all; it is
+     *     referred to directly in the resulting instruction.</li>
+     *     <li>Otherwise, whichever operand needs more registers is evaluated first, so that fewer temporaries are held
+     *     at once. Since this may change the order of evaluation, the operands are only swapped if neither has side
+     *     effects.</li>
+     *     <li>The operand evaluated first is held in a free register while the other is evaluated. Only when no
+     *     register is free does it fall back to the stack, as a {@link TransientPlaceholder}. If the other operand has
+     *     side effects, the value itself is pushed rather than the address of a variable, so that the left operand is
+     *     still read before the right.</li>
+     * </ul>
      *
-     * @return an assembly value for the value of the last expression
+     * @param left the left operand
+     * @param right the right operand
+     * @param commutative whether the operands of the operation may be exchanged
+     * @return the locations of the evaluated operands
      */
-    private String lookupExpression() {
-        if (expressionResult != null) {
-            return "[A]";
+    private Operands evaluateOperands(Node left, Node right, boolean commutative) {
+        String rightLeaf = getLeafOperand(right);
+        if (rightLeaf != null) {
+            inline(left);
+            requireValue();
+            return new Operands("A", rightLeaf);
+        }
+
+        String leftLeaf = getLeafOperand(left);
+        if (leftLeaf != null && isPure(right)) {
+            inline(right);
+            requireValue();
+            if (commutative) {
+                return new Operands("A", leftLeaf);
+            } else {
+                write("SET B " + leftLeaf);
+                return new Operands("B", "A");
+            }
+        }
+
+        boolean swap = isPure(left) && isPure(right) && getRegisterNeed(right) > getRegisterNeed(left);
+        inline(swap ? right : left);
+        Register temporary = allocateTemporary();
+        TransientPlaceholder placeholder = null;
+        if (temporary != null) {
+            write(String.format("SET %s %s", temporary, lookupExpression()));
+            expressionResult = null;
         } else {
-            return "A";
+            if (!isPure(right)) {
+                // a field or array element must be read before the right operand has a chance to modify it
+                requireValue();
+            }
+            placeholder = pushExpression();
+        }
+
+        inline(swap ? left : right);
+        requireValue();
+
+        String held;
+        if (temporary != null) {
+            Register released = temporaries.pop();
+            assert (released == temporary);
+            held = temporary.toString();
+        } else {
+            held = placeholder.lookup();
+        }
+        if (swap || (commutative && temporary == null)) {
+            return new Operands("A", held);
+        } else if (temporary != null) {
+            return new Operands(held, "A");
+        } else {
+            write("SET B " + held);
+            return new Operands("B", "A");
         }
     }
 
     /**
-     * If the result of the last expression was a variable, dereference it, and store the variable's value as the
-     * expression result instead. In other words, if {@link #expressionResult} is non-{@code null}, write the assembly
-     * {@code SET A [A]} and set {@code expressionResult} to {@code null}. When this method returns, the expression
-     * result is guaranteed to be a value rather than a variable.
+     * Applies a binary instruction to operands prepared by {@link #evaluateOperands(Node, Node, boolean)}, and moves
+     * the result to register A if necessary.
+     *
+     * @param opcode the opcode of the instruction
+     * @param operands the locations of the operands
      */
-    private void requireValue() {
-        if (expressionResult != null) {
-            write("SET A [A]");
-            expressionResult = null;
+    private void writeOperation(String opcode, Operands operands) {
+        write(String.format("%s %s %s", opcode, operands.left, operands.right));
+        if (!operands.left.equals("A")) {
+            write("SET A " + operands.left);
         }
+        expressionResult = null;
     }
 
     /**
-     * When an expression is a variable located on the stack, we need to set register A to a pointer to that variable.
-     * This method performs that task for the specified symbol.
+     * Writes the start and end labels of a condition around the code written by
+     * {@link #branch(Node, boolean, String)}, so that flow modifiers such as {@code continue} can jump to the
+     * condition as though it had been inlined.
      *
-     * @param symbol the symbol that register A should point to
-     * @throws AssertionError if {@code symbol} is not on the stack
+     * @param condition the condition
+     * @param sense the value of the condition for which the jump is taken
+     * @param target the label to jump to
      */
-    private void evaluateStackExpression(TypedSymbol symbol) {
-        assert stack.contains(symbol);
-        int stackOffset = 0;
-        for (TypedSymbol stackSymbol : stack) {
-            if (stackSymbol.equals(symbol)) {
-                break;
-            } else {
-                stackOffset += 1;
+    private void inlineBranch(PExpression condition, boolean sense, String target) {
+        write(":" + getStartLabel(condition));
+        branch(condition, sense, target);
+        write(":" + getEndLabel(condition));
+    }
+
+    /**
+     * <p>
+     *     Writes code which jumps to the target label if the condition evaluates to {@code sense}, and otherwise falls
+     *     through. Unlike inlining the condition, this never materializes a boolean: comparisons are compiled directly
+     *     into the corresponding {@code IF} instruction, and the operators {@code !}, {@code &&} and {@code ||} only
+     *     change which jumps are written.
+     * </p>
+     *
+     * <p>
+     *     Conjunctions take advantage of the DCPU-16 rule that a failed {@code IF} skips any chain of {@code IF}
+     *     instructions following it. Conjuncts which need no code to evaluate (those whose operands are all literals or
+     *     register locals) are written as a single chain ending in one jump, with the preceding conjuncts jumping past
+     *     the chain if they fail.
+     * </p>
+     *
+     * @param condition the condition
+     * @param sense the value of the condition for which the jump is taken
+     * @param target the label to jump to
+     */
+    private void branch(Node condition, boolean sense, String target) {
+        condition = unwrapExpression(condition);
+        if (condition instanceof AConditionalNotExpression) {
+            branch(((AConditionalNotExpression) condition).getValue(), !sense, target);
+        } else if (condition instanceof ALiteralPrimaryExpression
+                && ((ALiteralPrimaryExpression) condition).getLiteral() instanceof ATrueLiteral) {
+            if (sense) {
+                write("SET PC " + target);
+            }
+        } else if (condition instanceof ALiteralPrimaryExpression
+                && ((ALiteralPrimaryExpression) condition).getLiteral() instanceof AFalseLiteral) {
+            if (!sense) {
+                write("SET PC " + target);
+            }
+        } else if (condition instanceof AConditionalOrExpression && sense) {
+            branch(((AConditionalOrExpression) condition).getLeft(), true, target);
+            branch(((AConditionalOrExpression) condition).getRight(), true, target);
+        } else if (condition instanceof AConditionalAndExpression && !sense) {
+            branch(((AConditionalAndExpression) condition).getLeft(), false, target);
+            branch(((AConditionalAndExpression) condition).getRight(), false, target);
+        } else {
+            List<Node> conjuncts = Lists.newArrayList();
+            List<Boolean> senses = Lists.newArrayList();
+            collectConjuncts(condition, sense, conjuncts, senses);
+
+            // find the conjuncts at the end which can be tested without writing any code
+            int chainStart = conjuncts.size();
+            while (chainStart > 0 && writeTest(conjuncts.get(chainStart - 1), senses.get(chainStart - 1), true) != null) {
+                chainStart--;
+            }
+
+            String skipLabel = "skip_" + getBaseLabel(condition);
+            boolean skipped = false;
+            List<String> chain = Lists.newArrayList();
+            if (chainStart > 0) {
+                for (int i = 0; i < chainStart - 1; i++) {
+                    branch(conjuncts.get(i), !senses.get(i), skipLabel);
+                    skipped = true;
+                }
+                String test = writeTest(conjuncts.get(chainStart - 1), senses.get(chainStart - 1), false);
+                if (test != null) {
+                    chain.add(test);
+                } else {
+                    branch(conjuncts.get(chainStart - 1), !senses.get(chainStart - 1), skipLabel);
+                    skipped = true;
+                }
+            }
+            for (int i = chainStart; i < conjuncts.size(); i++) {
+                chain.add(writeTest(conjuncts.get(i), senses.get(i), true));
+            }
+            for (String test : chain) {
+                write(test);
+            }
+            write("SET PC " + target);
+            if (skipped) {
+                write(":" + skipLabel);
             }
-        }
-        write("SET A SP");
-        if (stackOffset > 0) {
-            write(String.format("ADD A 0x%04x", stackOffset));
         }
     }
 
-    void write(String instruction) {
-        instructions.put(context, instruction);
+    private static void collectConjuncts(Node condition, boolean sense, List<Node> conjuncts, List<Boolean> senses) {
+        condition = unwrapExpression(condition);
+        if (condition instanceof AConditionalNotExpression) {
+            collectConjuncts(((AConditionalNotExpression) condition).getValue(), !sense, conjuncts, senses);
+        } else if (condition instanceof AConditionalAndExpression && sense) {
+            collectConjuncts(((AConditionalAndExpression) condition).getLeft(), true, conjuncts, senses);
+            collectConjuncts(((AConditionalAndExpression) condition).getRight(), true, conjuncts, senses);
+        } else if (condition instanceof AConditionalOrExpression && !sense) {
+            collectConjuncts(((AConditionalOrExpression) condition).getLeft(), false, conjuncts, senses);
+            collectConjuncts(((AConditionalOrExpression) condition).getRight(), false, conjuncts, senses);
+        } else {
+            conjuncts.add(condition);
+            senses.add(sense);
+        }
     }
 
-    private static abstract class Placeholder implements TypedSymbol {
-        private final TypeToken type;
-
-        protected Placeholder(TypeToken type) {
-            this.type = type;
+    /**
+     * <p>
+     *     Writes the code to evaluate the operands of a condition, and returns a single {@code IF} instruction which
+     *     succeeds exactly when the condition evaluates to {@code sense}. If no single instruction can test the
+     *     condition, nothing is written and {@code null} is returned; this only happens for {@code <=} and {@code >=}
+     *     (or the negations of {@code <} and {@code >}), and then only when the right operand is not a literal which can
+     *     be adjusted by one to make the comparison strict.
+     * </p>
+     *
+     * <p>
+     *     If {@code leafOnly} is {@code true}, the test is only returned if it needs no code at all, and nothing is
+     *     ever written.
+     * </p>
+     *
+     * @param condition the condition
+     * @param sense the value of the condition for which the test succeeds
+     * @param leafOnly whether to refuse conditions which need code to evaluate
+     * @return an {@code IF} instruction testing the condition, or {@code null}
+     */
+    private String writeTest(Node condition, boolean sense, boolean leafOnly) {
+        Relation relation = getRelation(condition);
+        if (relation == null) {
+            String leaf = getLeafOperand(condition);
+            if (leaf == null || isLiteralOperand(leaf)) {
+                if (leafOnly) {
+                    return null;
+                }
+                inline(condition);
+                leaf = lookupExpression();
+            }
+            return String.format("%s %s 0x0000", sense ? "IFN" : "IFE", leaf);
         }
 
-        @Override
-        public Node getDeclaration() {
-            return null;
+        List<PExpression> operands = getBinaryOperands(condition);
+        Node left = operands.get(0);
+        Node right = operands.get(1);
+        boolean signed = types.get(left).isSigned();
+        if (!sense) {
+            relation = relation.negate();
+        }
+        if (getLiteralValue(left) != null && getLiteralValue(right) == null) {
+            Node temp = left;
+            left = right;
+            right = temp;
+            relation = relation.reverse();
         }
 
-        @Override
-        public String getName() {
+        // x <= k is x < k + 1, and x >= k is x > k - 1
+        BigInteger literal = getLiteralValue(right);
+        String adjustedRight = null;
+        if (literal != null && relation == Relation.LESS_OR_EQUAL
+                && literal.compareTo(BigInteger.valueOf(signed ? Short.MAX_VALUE : 0xffff)) < 0) {
+            relation = Relation.LESS;
+            adjustedRight = String.format("0x%04x", literal.add(BigInteger.ONE).shortValue());
+        } else if (literal != null && relation == Relation.GREATER_OR_EQUAL
+                && literal.compareTo(BigInteger.valueOf(signed ? Short.MIN_VALUE : 0)) > 0) {
+            relation = Relation.GREATER;
+            adjustedRight = String.format("0x%04x", literal.subtract(BigInteger.ONE).shortValue());
+        }
+        String opcode = relation.getOpcode(signed);
+        if (opcode == null) {
             return null;
         }
 
-        @Override
-        public TypeToken getType() {
-            return type;
+        String leftOperand;
+        String rightOperand;
+        if (leafOnly) {
+            leftOperand = getLeafOperand(left);
+            rightOperand = getLeafOperand(right);
+            if (leftOperand == null || isLiteralOperand(leftOperand) || rightOperand == null) {
+                return null;
+            }
+        } else {
+            boolean symmetric = (relation == Relation.EQUAL || relation == Relation.NOT_EQUAL);
+            Operands evaluated = evaluateOperands(left, right, symmetric);
+            leftOperand = evaluated.left;
+            rightOperand = evaluated.right;
         }
+        return String.format("%s %s %s", opcode, leftOperand, (adjustedRight != null) ? adjustedRight : rightOperand);
+    }
 
-        @Override
-        public Set<Modifier> getModifiers() {
-            return ImmutableSet.of();
+    /**
+     * Evaluates a comparison for its value, leaving 0 or 1 in register A. Register Y is used to build the result,
+     * since the operands may be in any of the other scratch registers.
+     *
+     * @param comparison the comparison
+     */
+    private void evaluateComparison(Node comparison) {
+        String test = writeTest(comparison, true, false);
+        if (test != null) {
+            write("SET Y 0x0000");
+            write(test);
+            write("SET Y 0x0001");
+        } else {
+            write("SET Y 0x0001");
+            write(writeTest(comparison, false, false));
+            write("SET Y 0x0000");
         }
+        write("SET A Y");
+        expressionResult = null;
     }
 
-    private static final class FunctionPlaceholder extends Placeholder {
-        public FunctionPlaceholder(TypeToken type) {
-            super(type);
+    private static Relation getRelation(Node expression) {
+        if (expression instanceof ALessThanExpression) {
+            return Relation.LESS;
+        } else if (expression instanceof AGreaterThanExpression) {
+            return Relation.GREATER;
+        } else if (expression instanceof ALessOrEqualExpression) {
+            return Relation.LESS_OR_EQUAL;
+        } else if (expression instanceof AGreaterOrEqualExpression) {
+            return Relation.GREATER_OR_EQUAL;
+        } else if (expression instanceof AEqualExpression) {
+            return Relation.EQUAL;
+        } else if (expression instanceof ANotEqualExpression) {
+            return Relation.NOT_EQUAL;
+        } else {
+            return null;
         }
     }
 
-    private static final class ArrayElementPlaceholder extends Placeholder {
-        public ArrayElementPlaceholder(TypeToken type) {
-            super(type);
+    private static Node unwrapExpression(Node expression) {
+        if (expression instanceof APrimaryExpression) {
+            return unwrapExpression(((APrimaryExpression) expression).getPrimaryExpression());
+        } else if (expression instanceof AParentheticalPrimaryExpression) {
+            return unwrapExpression(((AParentheticalPrimaryExpression) expression).getExpression());
+        } else {
+            return expression;
         }
     }
 
-    private abstract class TransientPlaceholder extends Placeholder {
-        protected TransientPlaceholder(TypeToken type) {
-            super(type);
+    private static BigInteger getLiteralValue(Node expression) {
+        expression = unwrapExpression(expression);
+        if (expression instanceof ALiteralPrimaryExpression) {
+            PLiteral literal = ((ALiteralPrimaryExpression) expression).getLiteral();
+            if (literal instanceof AIntegralLiteral) {
+                try {
+                    return TypeTokenUtil.parseIntegralLiteral(((AIntegralLiteral) literal).getIntegralLiteral());
+                } catch (SemanticException sx) {
+                    return null;
+                }
+            }
         }
-
-        public abstract String lookup();
-
-        public abstract String lookupAsB();
+        return null;
     }
 
-    private final class TransientVariablePlaceholder extends TransientPlaceholder {
-        public TransientVariablePlaceholder(TypeToken type) {
-            super(type);
-        }
+    private static boolean isLiteralOperand(String operand) {
+        return operand.startsWith("0x");
+    }
 
-        @Override
-        public String lookup() {
-            checkArgument(stack.contains(this));
-            TypedSymbol popped = stack.pop();
-            assert (this == popped);
+    /**
+     * Returns an assembly value which can be used as an operand in place of evaluating the specified expression, or
+     * {@code null} if the expression must be evaluated. Only literals, locals, static fields, and fields of objects
+     * held in registers (including {@code this}) are leaves in this sense; the latter are addressed as memory operands
+     * such as {@code [SP+0x0003]}, {@code [C+0x0001]} or {@code [label]}, rather than through a pointer in register A.
+     * A local on the stack is addressed relative to the stack pointer, so its operand must be used at the same stack
+     * depth at which it was found, which is the case after evaluating any other expression.
+     *
+     * @param expression the expression
+     * @return an assembly value for the expression, or {@code null} if the expression is not a leaf
+     */
+    private String getLeafOperand(Node expression) {
+        Register hoisted = getHoistedRegister(expression);
+        if (hoisted != null) {
+            return hoisted.toString();
+        } else if (expression instanceof AArrayAccessPrimaryExpression
+                && elementPointers.containsKey(((AArrayAccessPrimaryExpression) expression).getArrayAccess())) {
+            return String.format("[%s]", elementPointers.get(((AArrayAccessPrimaryExpression) expression).getArrayAccess()));
+        } else if (expression instanceof APrimaryExpression) {
+            return getLeafOperand(((APrimaryExpression) expression).getPrimaryExpression());
+        } else if (expression instanceof AParentheticalPrimaryExpression) {
+            return getLeafOperand(((AParentheticalPrimaryExpression) expression).getExpression());
+        } else if (expression instanceof ALiteralPrimaryExpression) {
+            PLiteral literal = ((ALiteralPrimaryExpression) expression).getLiteral();
+            if (literal instanceof AIntegralLiteral) {
+                try {
+                    BigInteger value = TypeTokenUtil.parseIntegralLiteral(((AIntegralLiteral) literal).getIntegralLiteral());
+                    return String.format("0x%04x", value.shortValue());
+                } catch (SemanticException sx) {
+                    // evaluating the literal normally will raise the exception
+                    return null;
+                }
+            } else if (literal instanceof ATrueLiteral) {
+                return "0x0001";
+            } else if (literal instanceof AFalseLiteral) {
+                return "0x0000";
+            } else {
+                return null;
+            }
+        } else if (expression instanceof AIdentifierPrimaryExpression) {
+            try {
+                String name = ((AIdentifierPrimaryExpression) expression).getIdentifier().getText();
+                return getVariableOperand(getScope().resolveLocal(name));
+            } catch (SemanticException sx) {
+                return getThisFieldOperand(((AIdentifierPrimaryExpression) expression).getIdentifier());
+            }
+        } else if (expression instanceof AFieldAccessPrimaryExpression) {
+            return getFieldAccessOperand(((AFieldAccessPrimaryExpression) expression).getFieldAccess());
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns an assembly value addressing the field of {@code this} named by the specified identifier, if
+     * {@code this} is held in a register, or {@code null} otherwise.
+     *
+     * @param identifier an identifier
+     * @return an assembly value for the field, or {@code null} if it is not a field or {@code this} is not in a register
+     */
+    private String getThisFieldOperand(TIdentifier identifier) {
+        if (thisRegister == null) {
+            return null;
+        }
+        try {
+            getScope().resolveLocal(identifier.getText());
+            return null;
+        } catch (SemanticException sx) {
+            // not a local, so it must be a field
+        }
+        try {
+            int fieldOffset = getFieldOffset(getScope().resolveField(identifier.getText()));
+            return (fieldOffset > 0) ? String.format("[%s+0x%04x]", thisRegister, fieldOffset) : String.format("[%s]", thisRegister);
+        } catch (SemanticException sx) {
+            // evaluating the identifier normally will raise the exception
+            return null;
+        }
+    }
+
+    /**
+     * Returns an assembly value addressing the field named by the specified field access, if it is a static field or
+     * the field of an object whose reference is a register {@linkplain #getLeafOperand(Node) leaf}, or {@code null}
+     * otherwise.
+     *
+     * @param fieldAccess a field access
+     * @return an assembly value for the field, or {@code null} if it must be addressed through a pointer
+     */
+    private String getFieldAccessOperand(PFieldAccess fieldAccess) {
+        try {
+            if (fieldAccess instanceof ATypeTokenFieldAccess) {
+                ATypeTokenFieldAccess typeTokenFieldAccess = (ATypeTokenFieldAccess) fieldAccess;
+                TypeToken enclosingType = TypeTokenUtil.fromNode(typeTokenFieldAccess.getTarget());
+                String enclosingClassName = ((UserDefinedTypeToken) enclosingType).getTypeName();
+                Scope scope = getScope(getScope().resolveClass(enclosingClassName).getDeclaration());
+                FieldSymbol field = scope.resolveField(typeTokenFieldAccess.getFieldName().getText());
+                return String.format("[%s]", getStartLabel(field.getDeclaration()));
+            } else {
+                AExpressionFieldAccess expressionFieldAccess = (AExpressionFieldAccess) fieldAccess;
+                String target = getLeafOperand(expressionFieldAccess.getTarget());
+                if (!isRegisterOperand(target)) {
+                    return null;
+                }
+                TypeToken enclosingType = types.get(expressionFieldAccess.getTarget());
+                String enclosingClassName = ((UserDefinedTypeToken) enclosingType).getTypeName();
+                Scope scope = getScope(getScope().resolveClass(enclosingClassName).getDeclaration());
+                int fieldOffset = getFieldOffset(scope.resolveField(expressionFieldAccess.getFieldName().getText()));
+                return (fieldOffset > 0) ? String.format("[%s+0x%04x]", target, fieldOffset) : String.format("[%s]", target);
+            }
+        } catch (SemanticException sx) {
+            // evaluating the field access normally will raise the exception
+            return null;
+        }
+    }
+
+    private static boolean isRegisterOperand(String operand) {
+        for (Register register : Register.values()) {
+            if (register.name().equals(operand)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getFieldOffset(FieldSymbol field) {
+        Scope classScope = getScope(field.getDeclaringClass().getDeclaration());
+        int fieldOffset = 0;
+        for (TypedSymbol declaredField : classScope.getFields()) {
+            if (declaredField == field) {
+                break;
+            } else {
+                fieldOffset += 1;
+            }
+        }
+        return fieldOffset;
+    }
+
+    /**
+     * Returns the Sethi-Ullman number of the specified expression: the number of registers needed to evaluate it
+     * without holding any intermediate result on the stack. Leaves need no registers at all, and any expression other
+     * than a binary operation is assumed to need one.
+     *
+     * @param expression the expression
+     * @return the number of registers needed to evaluate the expression
+     */
+    private int getRegisterNeed(Node expression) {
+        if (getLeafOperand(expression) != null) {
+            return 0;
+        } else if (expression instanceof APrimaryExpression) {
+            return getRegisterNeed(((APrimaryExpression) expression).getPrimaryExpression());
+        } else if (expression instanceof AParentheticalPrimaryExpression) {
+            return getRegisterNeed(((AParentheticalPrimaryExpression) expression).getExpression());
+        }
+
+        List<PExpression> operands = getBinaryOperands(expression);
+        if (operands == null) {
+            return 1;
+        }
+        int leftNeed = getRegisterNeed(operands.get(0));
+        int rightNeed = getRegisterNeed(operands.get(1));
+        if (rightNeed == 0) {
+            return Math.max(leftNeed, 1);
+        } else if (leftNeed == rightNeed) {
+            return leftNeed + 1;
+        } else {
+            return Math.max(leftNeed, rightNeed);
+        }
+    }
+
+    static List<PExpression> getBinaryOperands(Node expression) {
+        if (expression instanceof AMultiplyExpression) {
+            return ImmutableList.of(((AMultiplyExpression) expression).getLeft(), ((AMultiplyExpression) expression).getRight());
+        } else if (expression instanceof ADivideExpression) {
+            return ImmutableList.of(((ADivideExpression) expression).getLeft(), ((ADivideExpression) expression).getRight());
+        } else if (expression instanceof AModulusExpression) {
+            return ImmutableList.of(((AModulusExpression) expression).getLeft(), ((AModulusExpression) expression).getRight());
+        } else if (expression instanceof AAddExpression) {
+            return ImmutableList.of(((AAddExpression) expression).getLeft(), ((AAddExpression) expression).getRight());
+        } else if (expression instanceof ASubtractExpression) {
+            return ImmutableList.of(((ASubtractExpression) expression).getLeft(), ((ASubtractExpression) expression).getRight());
+        } else if (expression instanceof AShiftLeftExpression) {
+            return ImmutableList.of(((AShiftLeftExpression) expression).getLeft(), ((AShiftLeftExpression) expression).getRight());
+        } else if (expression instanceof AShiftRightExpression) {
+            return ImmutableList.of(((AShiftRightExpression) expression).getLeft(), ((AShiftRightExpression) expression).getRight());
+        } else if (expression instanceof AUnsignedShiftRightExpression) {
+            return ImmutableList.of(((AUnsignedShiftRightExpression) expression).getLeft(), ((AUnsignedShiftRightExpression) expression).getRight());
+        } else if (expression instanceof ALessThanExpression) {
+            return ImmutableList.of(((ALessThanExpression) expression).getLeft(), ((ALessThanExpression) expression).getRight());
+        } else if (expression instanceof AGreaterThanExpression) {
+            return ImmutableList.of(((AGreaterThanExpression) expression).getLeft(), ((AGreaterThanExpression) expression).getRight());
+        } else if (expression instanceof ALessOrEqualExpression) {
+            return ImmutableList.of(((ALessOrEqualExpression) expression).getLeft(), ((ALessOrEqualExpression) expression).getRight());
+        } else if (expression instanceof AGreaterOrEqualExpression) {
+            return ImmutableList.of(((AGreaterOrEqualExpression) expression).getLeft(), ((AGreaterOrEqualExpression) expression).getRight());
+        } else if (expression instanceof AEqualExpression) {
+            return ImmutableList.of(((AEqualExpression) expression).getLeft(), ((AEqualExpression) expression).getRight());
+        } else if (expression instanceof ANotEqualExpression) {
+            return ImmutableList.of(((ANotEqualExpression) expression).getLeft(), ((ANotEqualExpression) expression).getRight());
+        } else if (expression instanceof ABitwiseAndExpression) {
+            return ImmutableList.of(((ABitwiseAndExpression) expression).getLeft(), ((ABitwiseAndExpression) expression).getRight());
+        } else if (expression instanceof ABitwiseXorExpression) {
+            return ImmutableList.of(((ABitwiseXorExpression) expression).getLeft(), ((ABitwiseXorExpression) expression).getRight());
+        } else if (expression instanceof ABitwiseOrExpression) {
+            return ImmutableList.of(((ABitwiseOrExpression) expression).getLeft(), ((ABitwiseOrExpression) expression).getRight());
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the target of an assignment of any kind.
+     *
+     * @param assignment an assignment
+     * @return the target of the assignment
+     */
+    static PAssignmentTarget getAssignmentTarget(PAssignment assignment) {
+        if (assignment instanceof AAssignment) {
+            return ((AAssignment) assignment).getTarget();
+        } else if (assignment instanceof AAddAssignment) {
+            return ((AAddAssignment) assignment).getTarget();
+        } else if (assignment instanceof ASubtractAssignment) {
+            return ((ASubtractAssignment) assignment).getTarget();
+        } else if (assignment instanceof AMultiplyAssignment) {
+            return ((AMultiplyAssignment) assignment).getTarget();
+        } else if (assignment instanceof ADivideAssignment) {
+            return ((ADivideAssignment) assignment).getTarget();
+        } else if (assignment instanceof AModulusAssignment) {
+            return ((AModulusAssignment) assignment).getTarget();
+        } else if (assignment instanceof ABitwiseAndAssignment) {
+            return ((ABitwiseAndAssignment) assignment).getTarget();
+        } else if (assignment instanceof ABitwiseXorAssignment) {
+            return ((ABitwiseXorAssignment) assignment).getTarget();
+        } else if (assignment instanceof ABitwiseOrAssignment) {
+            return ((ABitwiseOrAssignment) assignment).getTarget();
+        } else if (assignment instanceof AShiftLeftAssignment) {
+            return ((AShiftLeftAssignment) assignment).getTarget();
+        } else if (assignment instanceof AShiftRightAssignment) {
+            return ((AShiftRightAssignment) assignment).getTarget();
+        } else if (assignment instanceof AUnsignedShiftRightAssignment) {
+            return ((AUnsignedShiftRightAssignment) assignment).getTarget();
+        } else if (assignment instanceof AIncrementAssignment) {
+            return ((AIncrementAssignment) assignment).getTarget();
+        } else if (assignment instanceof ADecrementAssignment) {
+            return ((ADecrementAssignment) assignment).getTarget();
+        } else {
+            throw new AssertionError("unknown assignment flavor");
+        }
+    }
+
+    /**
+     * Returns the value of an assignment: the value stored by a plain assignment, or the right operand of the operation
+     * performed by a compound assignment.
+     *
+     * @param assignment an assignment
+     * @return the value of the assignment, or {@code null} for an increment or decrement
+     */
+    static PExpression getAssignmentValue(PAssignment assignment) {
+        if (assignment instanceof AAssignment) {
+            return ((AAssignment) assignment).getValue();
+        } else if (assignment instanceof AAddAssignment) {
+            return ((AAddAssignment) assignment).getValue();
+        } else if (assignment instanceof ASubtractAssignment) {
+            return ((ASubtractAssignment) assignment).getValue();
+        } else if (assignment instanceof AMultiplyAssignment) {
+            return ((AMultiplyAssignment) assignment).getValue();
+        } else if (assignment instanceof ADivideAssignment) {
+            return ((ADivideAssignment) assignment).getValue();
+        } else if (assignment instanceof AModulusAssignment) {
+            return ((AModulusAssignment) assignment).getValue();
+        } else if (assignment instanceof ABitwiseAndAssignment) {
+            return ((ABitwiseAndAssignment) assignment).getValue();
+        } else if (assignment instanceof ABitwiseXorAssignment) {
+            return ((ABitwiseXorAssignment) assignment).getValue();
+        } else if (assignment instanceof ABitwiseOrAssignment) {
+            return ((ABitwiseOrAssignment) assignment).getValue();
+        } else if (assignment instanceof AShiftLeftAssignment) {
+            return ((AShiftLeftAssignment) assignment).getValue();
+        } else if (assignment instanceof AShiftRightAssignment) {
+            return ((AShiftRightAssignment) assignment).getValue();
+        } else if (assignment instanceof AUnsignedShiftRightAssignment) {
+            return ((AUnsignedShiftRightAssignment) assignment).getValue();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the kind of binary expression whose operation a compound assignment performs on its target, such as
+     * {@link AAddExpression} for {@code +=}. An increment is treated as adding one, and a decrement as subtracting one.
+     *
+     * @param assignment an assignment
+     * @return the class of the operation, or {@code null} for a plain assignment
+     */
+    static Class<? extends PExpression> getCompoundOperator(PAssignment assignment) {
+        if (assignment instanceof AIncrementAssignment) {
+            return AAddExpression.class;
+        } else if (assignment instanceof ADecrementAssignment) {
+            return ASubtractExpression.class;
+        } else if (assignment instanceof AAddAssignment) {
+            return AAddExpression.class;
+        } else if (assignment instanceof ASubtractAssignment) {
+            return ASubtractExpression.class;
+        } else if (assignment instanceof AMultiplyAssignment) {
+            return AMultiplyExpression.class;
+        } else if (assignment instanceof ADivideAssignment) {
+            return ADivideExpression.class;
+        } else if (assignment instanceof AModulusAssignment) {
+            return AModulusExpression.class;
+        } else if (assignment instanceof ABitwiseAndAssignment) {
+            return ABitwiseAndExpression.class;
+        } else if (assignment instanceof ABitwiseXorAssignment) {
+            return ABitwiseXorExpression.class;
+        } else if (assignment instanceof ABitwiseOrAssignment) {
+            return ABitwiseOrExpression.class;
+        } else if (assignment instanceof AShiftLeftAssignment) {
+            return AShiftLeftExpression.class;
+        } else if (assignment instanceof AShiftRightAssignment) {
+            return AShiftRightExpression.class;
+        } else if (assignment instanceof AUnsignedShiftRightAssignment) {
+            return AUnsignedShiftRightExpression.class;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if evaluating the specified expression can have no side effects; that is, if it contains
+     * no assignments and no invocations of any kind. The order in which pure expressions are evaluated does not
+     * matter.
+     *
+     * @param expression the expression
+     * @return whether the expression is free of side effects
+     */
+    private static boolean isPure(Node expression) {
+        final boolean[] pure = { true };
+        expression.apply(new DepthFirstAdapter() {
+            @Override
+            public void defaultIn(Node node) {
+                if (node instanceof PAssignment || node instanceof PFunctionInvocation
+                        || node instanceof PConstructorInvocation || node instanceof PCastInvocation) {
+                    pure[0] = false;
+                }
+            }
+        });
+        return pure[0];
+    }
+
+    private Register allocateTemporary() {
+        for (Register register : registerAllocator.getFreeRegisters(currentDeclaration)) {
+            if (!temporaries.contains(register)) {
+                temporaries.push(register);
+                return register;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an assembly value which contains the <i>value</i> of the result of the last expression
+     * ({@link #expressionResult}). The assembly value will refer to the expression's value even if the expression
+     * itself returned a variable; in that case, the variable is addressed directly if it is a local, and otherwise the
+     * pointer stored in register A is dereferenced.
+     *
+     * @return an assembly value for the value of the last expression
+     */
+    private String lookupExpression() {
+        if (expressionResult != null) {
+            String operand = getVariableOperand(expressionResult);
+            return (operand != null) ? operand : "[A]";
+        } else {
+            return "A";
+        }
+    }
+
+    /**
+     * If the result of the last expression was a variable, dereference it, and store the variable's value as the
+     * expression result instead. In other words, if {@link #expressionResult} is non-{@code null}, write the assembly
+     * {@code SET A} followed by the variable's {@linkplain #lookupExpression() location}, and set
+     * {@code expressionResult} to {@code null}. When this method returns, the expression result is guaranteed to be a
+     * value rather than a variable.
+     */
+    private void requireValue() {
+        if (expressionResult != null) {
+            write("SET A " + lookupExpression());
+            expressionResult = null;
+        }
+    }
+
+    /**
+     * Returns an assembly value which addresses the specified variable without a pointer in register A: the register of
+     * a local which has been assigned one, or an offset from the stack pointer for a local on the stack. Since the
+     * offset is taken from {@link #stack} when this method is called, the operand is only valid until the next push or
+     * pop.
+     *
+     * @param symbol a variable
+     * @return an assembly value for the variable, or {@code null} if it is not a local
+     */
+    private String getVariableOperand(TypedSymbol symbol) {
+        Register register = registerAllocator.getRegister(symbol);
+        if (register != null) {
+            return register.toString();
+        } else if (frameSlots.containsKey(symbol) || stack.contains(symbol)) {
+            return getStackOperand(symbol);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns an assembly value which addresses the specified symbol on the stack, relative to the stack pointer.
+     *
+     * @param symbol a symbol on the stack
+     * @return an assembly value for the symbol
+     * @throws AssertionError if {@code symbol} is not on the stack
+     */
+    private String getStackOperand(TypedSymbol symbol) {
+        int stackOffset = getStackOffset(symbol);
+        return (stackOffset > 0) ? String.format("[SP+0x%04x]", stackOffset) : "[SP]";
+    }
+
+    /**
+     * Returns the offset of the specified symbol from the top of the DCPU stack, according to {@link #stack}.
+     *
+     * @param symbol a symbol on the stack
+     * @return the number of words between the symbol and the top of the stack
+     * @throws AssertionError if {@code symbol} is not on the stack
+     */
+    private int getStackOffset(TypedSymbol symbol) {
+        if (frameSlots.containsKey(symbol)) {
+            return getStackOffset(frame.get(frameSlots.get(symbol)));
+        }
+        assert stack.contains(symbol);
+        int stackOffset = 0;
+        for (TypedSymbol stackSymbol : stack) {
+            if (stackSymbol.equals(symbol)) {
+                break;
+            } else {
+                stackOffset += 1;
+            }
+        }
+        return stackOffset;
+    }
+
+    void write(String instruction) {
+        instructions.put(context, instruction);
+        Node declaration = getEmittingDeclaration();
+        if (declaration != null) {
+            String[] parts = instruction.split(" ");
+            if (parts[0].equals("STI") || parts[0].equals("STD")) {
+                writtenRegisters.get(declaration).add(Register.I);
+                writtenRegisters.get(declaration).add(Register.J);
+            }
+            if (parts.length == 3 && WRITING_OPCODES.contains(parts[0])) {
+                for (Register register : Register.values()) {
+                    if (register.name().equals(parts[1])) {
+                        writtenRegisters.get(declaration).add(register);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes an instruction which restores a register from the stack, where it was saved earlier in the same function.
+     * Unlike {@link #write(String)}, this does not count towards the registers the function overwrites.
+     *
+     * @param register the register to restore
+     */
+    private void writeRestore(Register register) {
+        instructions.put(context, "SET " + register + " POP");
+    }
+
+    /**
+     * Returns the declaration of the function whose code is currently being written. This is the current declaration,
+     * unless a function body is being inlined, in which case it is the function into which it is being inlined.
+     *
+     * @return the function whose code is being written, or {@code null} if there is none
+     */
+    private Node getEmittingDeclaration() {
+        return (inlinedDeclarations.isEmpty() ? currentDeclaration : inlinedDeclarations.getLast());
+    }
+
+    /**
+     * Records the registers which the functions of a strongly connected component of the call graph may overwrite
+     * before they return, once all their code has been generated. This is the union of the registers their own code
+     * overwrites, and the summaries for every other function they invoke, which have already been recorded if they
+     * were generated first. Each function in the component may invoke every other, so they share the same summary.
+     * Native code may do anything, so a {@code native} function, and any function which may invoke one, may overwrite
+     * every register. Argument registers are left out unless the function itself overwrites them, since it is the
+     * caller which sets them.
+     *
+     * @param component the functions of the component
+     */
+    private void summarize(List<Node> component) {
+        Set<Register> summary = EnumSet.noneOf(Register.class);
+        for (Node declaration : component) {
+            Set<Register> written = writtenRegisters.get(declaration);
+            summary.addAll(written != null ? written : EnumSet.allOf(Register.class));
+            for (Node callee : invokedDeclarations.get(declaration)) {
+                if (!component.contains(callee)) {
+                    summary.addAll(getClobberedRegisters(callee));
+                }
+            }
+        }
+        for (Node declaration : component) {
+            clobberedRegisters.put(declaration, Collections.unmodifiableSet(summary));
+        }
+    }
+
+    private Set<Register> getClobberedRegisters(Node declaration) {
+        Set<Register> clobbered = clobberedRegisters.get(declaration);
+        return (clobbered != null ? clobbered : EnumSet.allOf(Register.class));
+    }
+
+    private static abstract class Placeholder implements TypedSymbol {
+        private final TypeToken type;
+
+        protected Placeholder(TypeToken type) {
+            this.type = type;
+        }
+
+        @Override
+        public Node getDeclaration() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return null;
+        }
+
+        @Override
+        public TypeToken getType() {
+            return type;
+        }
+
+        @Override
+        public Set<Modifier> getModifiers() {
+            return ImmutableSet.of();
+        }
+    }
+
+    private static final class FunctionPlaceholder extends Placeholder {
+        public FunctionPlaceholder(TypeToken type) {
+            super(type);
+        }
+    }
+
+    private static final class ArrayElementPlaceholder extends Placeholder {
+        public ArrayElementPlaceholder(TypeToken type) {
+            super(type);
+        }
+    }
+
+    private static final class Operands {
+        private final String left;
+
+        private final String right;
+
+        public Operands(String left, String right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * The relations tested by the comparison operators, used when compiling conditions into {@code IF} instructions.
+     */
+    private static enum Relation {
+        LESS, GREATER, LESS_OR_EQUAL, GREATER_OR_EQUAL, EQUAL, NOT_EQUAL;
+
+        public Relation negate() {
+            switch (this) {
+                case LESS:
+                    return GREATER_OR_EQUAL;
+                case GREATER:
+                    return LESS_OR_EQUAL;
+                case LESS_OR_EQUAL:
+                    return GREATER;
+                case GREATER_OR_EQUAL:
+                    return LESS;
+                case EQUAL:
+                    return NOT_EQUAL;
+                case NOT_EQUAL:
+                    return EQUAL;
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        public Relation reverse() {
+            switch (this) {
+                case LESS:
+                    return GREATER;
+                case GREATER:
+                    return LESS;
+                case LESS_OR_EQUAL:
+                    return GREATER_OR_EQUAL;
+                case GREATER_OR_EQUAL:
+                    return LESS_OR_EQUAL;
+                default:
+                    return this;
+            }
+        }
+
+        /**
+         * Returns the {@code IF} opcode which tests this relation, or {@code null} if no single instruction does.
+         *
+         * @param signed whether the operands are signed
+         * @return the opcode testing this relation
+         */
+        public String getOpcode(boolean signed) {
+            switch (this) {
+                case LESS:
+                    return signed ? "IFU" : "IFL";
+                case GREATER:
+                    return signed ? "IFA" : "IFG";
+                case EQUAL:
+                    return "IFE";
+                case NOT_EQUAL:
+                    return "IFN";
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static final class SavedRegisterPlaceholder extends Placeholder {
+        public SavedRegisterPlaceholder() {
+            super(null);
+        }
+    }
+
+    private static final class FrameSlotPlaceholder extends Placeholder {
+        public FrameSlotPlaceholder() {
+            super(null);
+        }
+    }
+
+    private abstract class TransientPlaceholder extends Placeholder {
+        protected TransientPlaceholder(TypeToken type) {
+            super(type);
+        }
+
+        public abstract String lookup();
+
+        public abstract String lookupAsB();
+    }
+
+    private final class TransientVariablePlaceholder extends TransientPlaceholder {
+        public TransientVariablePlaceholder(TypeToken type) {
+            super(type);
+        }
+
+        @Override
+        public String lookup() {
+            checkArgument(stack.contains(this));
+            TypedSymbol popped = stack.pop();
+            assert (this == popped);
             write("SET Y POP");
             return "[Y]";
         }
@@ -533,98 +1764,788 @@ final class CodeGenerator extends ScopeAwareWalker {
         }
     }
 
-    @Override
-    public void caseAClassTopLevelStatement(AClassTopLevelStatement topLevelStatement) {
-        assert stack.isEmpty();
-        context = topLevelStatement;
-        inline(topLevelStatement.getClassDeclaration());
-        context = null;
-        assert stack.isEmpty();
+    @Override
+    public void outAProgram(AProgram program) {
+        generateDeclarations(program);
+    }
+
+    /**
+     * Generates the code of every function, constructor and cast found by the walk, in the order given by
+     * {@link #getCallOrder(AProgram)}: each function is generated after those it invokes, so that the invocations
+     * preserve only the live registers in their callees' {@linkplain #summarize(List) summaries}. Only the invocations
+     * within a group of mutually recursive functions, whose summary is not known until they have all been generated,
+     * preserve every live register.
+     */
+    private void generateDeclarations(AProgram program) {
+        for (List<Node> component : getCallOrder(program)) {
+            for (Node declaration : component) {
+                if (declarationContexts.containsKey(declaration)) {
+                    context = declarationContexts.get(declaration);
+                    setScope(declarationScopes.get(declaration));
+                    inline(declaration);
+                }
+            }
+            summarize(component);
+        }
+        context = null;
+        setScope(getRootScope());
+    }
+
+    /**
+     * Divides the functions, constructors and casts found by the walk into the strongly connected components of the
+     * call graph, using Tarjan's algorithm. Each component is a single function, unless several functions invoke each
+     * other recursively, and it comes after every component it invokes. Invocations of casts are not followed, so a
+     * cast may come after its callers, which then preserve every live register around it.
+     *
+     * @param program the root of the syntax tree
+     * @return the components of the call graph, callees first
+     */
+    private List<List<Node>> getCallOrder(AProgram program) {
+        InvocationCollector collector = new InvocationCollector(compiler);
+        program.apply(collector);
+        SetMultimap<Node, Node> calls = LinkedHashMultimap.create();
+        for (Map.Entry<Node, FunctionSymbol> invocation : collector.getInvocations().entrySet()) {
+            calls.put(getEnclosingDeclaration(invocation.getKey()), invocation.getValue().getDeclaration());
+        }
+        for (Map.Entry<Node, ConstructorSymbol> invocation : collector.getConstructorInvocations().entrySet()) {
+            calls.put(getEnclosingDeclaration(invocation.getKey()), invocation.getValue().getDeclaration());
+        }
+
+        List<List<Node>> components = Lists.newArrayList();
+        Map<Node, Integer> indices = Maps.newHashMap();
+        Map<Node, Integer> lowLinks = Maps.newHashMap();
+        Deque<Node> open = Queues.newArrayDeque();
+        for (Node declaration : declarationContexts.keySet()) {
+            if (!indices.containsKey(declaration)) {
+                visitCalls(declaration, calls, indices, lowLinks, open, components);
+            }
+        }
+        return components;
+    }
+
+    private static void visitCalls(Node declaration, SetMultimap<Node, Node> calls, Map<Node, Integer> indices,
+                                   Map<Node, Integer> lowLinks, Deque<Node> open, List<List<Node>> components) {
+        int index = indices.size();
+        indices.put(declaration, index);
+        lowLinks.put(declaration, index);
+        open.push(declaration);
+        for (Node callee : calls.get(declaration)) {
+            if (!indices.containsKey(callee)) {
+                visitCalls(callee, calls, indices, lowLinks, open, components);
+                lowLinks.put(declaration, Math.min(lowLinks.get(declaration), lowLinks.get(callee)));
+            } else if (open.contains(callee)) {
+                lowLinks.put(declaration, Math.min(lowLinks.get(declaration), indices.get(callee)));
+            }
+        }
+        if (lowLinks.get(declaration) == index) {
+            List<Node> component = Lists.newArrayList();
+            Node member;
+            do {
+                member = open.pop();
+                component.add(member);
+            } while (member != declaration);
+            components.add(component);
+        }
+    }
+
+    private static Node getEnclosingDeclaration(Node node) {
+        for (Node ancestor = node; ancestor != null; ancestor = ancestor.parent()) {
+            if (ancestor instanceof PFunctionDeclaration || ancestor instanceof AConstructorDeclaration
+                    || ancestor instanceof ACastDeclaration) {
+                return ancestor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a function, constructor or cast declaration found by the walk, so that its code can be generated once
+     * the walk is complete.
+     *
+     * @param declaration the declaration
+     */
+    private void deferDeclaration(Node declaration) {
+        declarationContexts.put(declaration, context);
+        declarationScopes.put(declaration, getScope());
+    }
+
+    @Override
+    public void caseAClassTopLevelStatement(AClassTopLevelStatement topLevelStatement) {
+        assert stack.isEmpty();
+        context = topLevelStatement;
+        inline(topLevelStatement.getClassDeclaration());
+        context = null;
+        assert stack.isEmpty();
+    }
+
+    @Override
+    public void caseAFunctionTopLevelStatement(AFunctionTopLevelStatement topLevelStatement) {
+        assert stack.isEmpty();
+        context = topLevelStatement;
+        deferDeclaration(topLevelStatement.getFunctionDeclaration());
+        context = null;
+        assert stack.isEmpty();
+    }
+
+    @Override
+    public void caseAIfThenStatement(AIfThenStatement statement) {
+        evaluateIfThenElse(statement, statement.getCondition(), statement.getThen(), null);
+    }
+
+    @Override
+    public void caseAIfThenElseStatement(AIfThenElseStatement statement) {
+        evaluateIfThenElse(statement, statement.getCondition(), statement.getThen(), statement.getElse());
+    }
+
+    /**
+     * Writes an {@code if} statement. Whichever branch is laid out first must jump over the other when it completes,
+     * so if only the {@code else} branch cannot complete normally (because it returns, for example), it goes first;
+     * then neither branch needs a jump at its end.
+     */
+    private void evaluateIfThenElse(Node statement, PExpression condition, PStatement thenBody, PStatement elseBody) {
+        if (elseBody != null && DeadCodeEliminator.canCompleteNormally(thenBody)
+                && !DeadCodeEliminator.canCompleteNormally(elseBody)) {
+            inlineBranch(condition, true, getStartLabel(thenBody));
+            inline(elseBody);
+            inline(thenBody);
+        } else if (elseBody != null) {
+            inlineBranch(condition, false, getStartLabel(elseBody));
+            inline(thenBody);
+            if (DeadCodeEliminator.canCompleteNormally(thenBody)) {
+                write("SET PC " + getEndLabel(statement));
+            }
+            inline(elseBody);
+        } else {
+            inlineBranch(condition, false, getEndLabel(statement));
+            inline(thenBody);
+        }
+    }
+
+    @Override
+    public void caseAWhileStatement(AWhileStatement statement) {
+        flowStructures.push(new WhileFlowStructure(this, statement));
+        int hoisted = hoistInvariants(statement.getCondition(), statement.getBody());
+
+        // the loop is rotated to test its condition at the bottom, so each iteration takes just one jump
+        String loopLabel = "loop_" + getBaseLabel(statement);
+        if (DeadCodeEliminator.getBooleanConstant(statement.getCondition()) != Boolean.TRUE) {
+            write("SET PC " + getStartLabel(statement.getCondition()));
+        }
+        write(":" + loopLabel);
+        inline(statement.getBody());
+
+        inlineBranch(statement.getCondition(), true, loopLabel);
+
+        releaseInvariants(hoisted);
+        flowStructures.pop();
+    }
+
+    @Override
+    public void caseAForStatement(AForStatement statement) {
+        super.inAForStatement(statement);
+        flowStructures.push(new ForFlowStructure(this, statement));
+
+        inline(statement.getInit());
+        List<Register> pointers = createInductionPointers(statement);
+        int hoisted = hoistInvariants(statement.getCondition(), statement.getUpdate(), statement.getBody());
+
+        String loopLabel = "loop_" + getBaseLabel(statement);
+        PExpression condition = statement.getCondition();
+        int[] unrolling = getUnrolling(statement);
+        if (unrolling != null) {
+            // the trip count is known, so the leading copies and the first pass through the loop need no test
+            for (int i = 0; i < unrolling[1]; i++) {
+                writeLoopIteration(statement, pointers, true);
+            }
+            boolean repeats = (unrolling[0] + unrolling[1] < unrolling[2]);
+            if (repeats) {
+                write(":" + loopLabel);
+            }
+            for (int i = 0; i < unrolling[0]; i++) {
+                writeLoopIteration(statement, pointers, true);
+            }
+            if (repeats) {
+                inlineBranch(condition, true, loopLabel);
+            }
+        } else {
+            // as with while loops, the condition is tested at the bottom, after the update
+            if (condition != null && DeadCodeEliminator.getBooleanConstant(condition) != Boolean.TRUE) {
+                write("SET PC " + getStartLabel(condition));
+            }
+            write(":" + loopLabel);
+            writeLoopIteration(statement, pointers, false);
+            if (condition != null) {
+                inlineBranch(condition, true, loopLabel);
+            } else {
+                write("SET PC " + loopLabel);
+            }
+        }
+
+        releaseInvariants(hoisted);
+        releaseInductionPointers(pointers);
+        flowStructures.pop();
+        write(":reclaim_" + getBaseLabel(statement));
+        super.outAForStatement(statement);
+    }
+
+    /**
+     * Writes one iteration of the body and update of a {@code for} loop, without its condition. The target of a
+     * {@code continue} statement in the body is labeled by the body itself, so that each copy of an unrolled body has
+     * its own.
+     *
+     * @param statement the loop
+     * @param pointers the induction pointers of the loop, which are advanced along with the update
+     * @param copy whether this is one of several copies of the body, which must have labels distinct from the others
+     */
+    private void writeLoopIteration(AForStatement statement, List<Register> pointers, boolean copy) {
+        if (copy) {
+            inlineLabels.put(statement.getBody(), Maps.<Node, Integer>newHashMap());
+            if (statement.getUpdate() != null) {
+                inlineLabels.put(statement.getUpdate(), Maps.<Node, Integer>newHashMap());
+            }
+        }
+        inline(statement.getBody());
+        write(":next_" + getBaseLabel(statement.getBody()));
+        inline(statement.getUpdate());
+        if (!pointers.isEmpty()) {
+            writeInductionUpdate(pointers, getInductionStep(getInductionAssignment(statement)));
+        }
+        if (copy) {
+            inlineLabels.remove(statement.getBody());
+            inlineLabels.remove(statement.getUpdate());
+        }
+    }
+
+    /**
+     * <p>
+     *     Decides how to unroll the specified {@code for} loop, if its {@linkplain #getTripCount(AForStatement) trip
+     *     count} is known. If all of its iterations fit within the budget set on the {@link Compiler}, the loop is
+     *     unrolled completely, and never tests its condition at all. Otherwise, its body is copied as many times as
+     *     the unrolling factor allows within each iteration, and the iterations left over are copied before the loop,
+     *     so that the condition is still only ever tested at the end of an iteration. Each copy is estimated to be as
+     *     large as the {@linkplain #estimateCost(Node) estimated cost} of the body and update.
+     * </p>
+     *
+     * <p>
+     *     A loop whose body contains a native statement is never unrolled, since its labels cannot be renamed.
+     * </p>
+     *
+     * @param statement the loop
+     * @return the number of copies of the body within the loop, the number of copies before it and the trip count,
+     * or {@code null} if the loop should not be unrolled
+     */
+    private int[] getUnrolling(AForStatement statement) {
+        Integer tripCount = getTripCount(statement);
+        int[] bodyCost = estimateCost(statement.getBody());
+        if (tripCount == null || tripCount == 0 || bodyCost == null) {
+            return null;
+        }
+        int copyWords = bodyCost[0] + estimateCost(statement.getUpdate())[0];
+        int budget = compiler.getUnrollingWords();
+        if ((long) tripCount * copyWords <= budget) {
+            return new int[] { tripCount, 0, tripCount };
+        }
+        for (int factor = Math.min(compiler.getUnrollingFactor(), tripCount); factor > 1; factor--) {
+            int leading = tripCount % factor;
+            if ((factor + leading) * copyWords <= budget) {
+                return new int[] { factor, leading, tripCount };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of times the body of the specified {@code for} loop executes, if it can be determined at
+     * compile time. This is the case if the loop has an {@linkplain #getInductionAssignment(AForStatement) induction
+     * variable} {@code i} which is initialized to a literal, the condition compares {@code i} to a literal with
+     * {@code <}, {@code <=}, {@code >}, {@code >=} or {@code !=}, and {@code i} is not assigned within the body. The
+     * loop is simulated with the same 16-bit arithmetic as the code would use, so a loop which never terminates has no
+     * trip count.
+     *
+     * @param statement the loop
+     * @return the trip count of the loop, or {@code null} if it is not known
+     */
+    private Integer getTripCount(AForStatement statement) {
+        PAssignment update = getInductionAssignment(statement);
+        Node init = unwrapExpression(statement.getInit());
+        Node condition = unwrapExpression(statement.getCondition());
+        if (update == null || !(init instanceof AAssignmentExpression) || getBinaryOperands(condition) == null) {
+            return null;
+        }
+        String variable = ((AIdentifierAssignmentTarget) getAssignmentTarget(update)).getIdentifier().getText();
+        TypeToken type;
+        try {
+            type = getScope().resolveLocal(variable).getType();
+        } catch (SemanticException sx) {
+            return null;
+        }
+        if (!type.isIntegral() || new LoopInvariantFinder(getScope(), statement.getBody()).isAssigned(variable)) {
+            return null;
+        }
+
+        PAssignment assignment = ((AAssignmentExpression) init).getAssignment();
+        PAssignmentTarget target = getAssignmentTarget(assignment);
+        String initialized;
+        if (target instanceof AIdentifierAssignmentTarget) {
+            initialized = ((AIdentifierAssignmentTarget) target).getIdentifier().getText();
+        } else if (target instanceof ALocalDeclarationAssignmentTarget) {
+            initialized = ((ALocalDeclaration) ((ALocalDeclarationAssignmentTarget) target).getLocalDeclaration())
+                    .getName().getText();
+        } else {
+            return null;
+        }
+        BigInteger initial = getLiteralValue(getAssignmentValue(assignment));
+        List<PExpression> operands = getBinaryOperands(condition);
+        BigInteger limit = getLiteralValue(operands.get(1));
+        if (!(assignment instanceof AAssignment) || !initialized.equals(variable) || initial == null
+                || !isIdentifier(operands.get(0), variable) || limit == null) {
+            return null;
+        }
+
+        int value = initial.intValue();
+        int step = getInductionStep(update).intValue();
+        for (int trips = 0; trips <= 0xffff; trips++) {
+            int compared = limit.intValue();
+            boolean continues;
+            if (condition instanceof ALessThanExpression) {
+                continues = (value < compared);
+            } else if (condition instanceof ALessOrEqualExpression) {
+                continues = (value <= compared);
+            } else if (condition instanceof AGreaterThanExpression) {
+                continues = (value > compared);
+            } else if (condition instanceof AGreaterOrEqualExpression) {
+                continues = (value >= compared);
+            } else if (condition instanceof ANotEqualExpression) {
+                continues = (value != compared);
+            } else {
+                return null;
+            }
+            if (!continues) {
+                return trips;
+            }
+            value = type.isSigned() ? (short) (value + step) : (char) (value + step);
+        }
+        return null;
+    }
+
+    @Override
+    public void caseADoStatement(ADoStatement statement) {
+        flowStructures.push(new DoFlowStructure(this, statement));
+        int hoisted = hoistInvariants(statement.getBody(), statement.getCondition());
+
+        inline(statement.getBody());
+
+        inlineBranch(statement.getCondition(), true, getStartLabel(statement.getBody()));
+
+        releaseInvariants(hoisted);
+        flowStructures.pop();
+    }
+
+    /**
+     * <p>
+     *     Strength-reduces the array accesses in a {@code for} loop which are indexed by its induction variable. If the
+     *     update of the loop is {@code i = i + c} or {@code i = i - c} for some local {@code i} and literal {@code c},
+     *     and {@code i} is not otherwise assigned within the loop, then each access of the form {@code a[i]},
+     *     {@code a[i + k]} or {@code a[i - k]}, where {@code a} is a loop-invariant array named by an identifier and
+     *     {@code k} is a literal, can use a pointer which is computed once before the loop and then advanced by
+     *     {@code c} whenever {@code i} is. Accesses to the same array at the same offset share a pointer.
+     * </p>
+     *
+     * <p>
+     *     As with {@linkplain #hoistInvariants(Node...) hoisted invariants}, the pointers are held in registers not
+     *     assigned to any local, one register is always left for temporaries, and pointers are only created if the
+     *     loop makes fewer invocations than it has accesses to rewrite. Registers I and J are preferred, so that both
+     *     can be advanced by a single {@code STI} or {@code STD} when {@code c} is 1.
+     * </p>
+     *
+     * @param statement the loop
+     * @return the registers reserved for pointers, which must be released by
+     * {@link #releaseInductionPointers(List)} once the loop has been written
+     */
+    private List<Register> createInductionPointers(AForStatement statement) {
+        List<Register> pointers = Lists.newArrayList();
+        PAssignment update = getInductionAssignment(statement);
+        if (update == null) {
+            return pointers;
+        }
+        final String variable = ((AIdentifierAssignmentTarget) getAssignmentTarget(update)).getIdentifier().getText();
+        try {
+            getScope().resolveLocal(variable);
+        } catch (SemanticException sx) {
+            return pointers;
+        }
+
+        final LoopInvariantFinder finder = new LoopInvariantFinder(getScope(), statement.getCondition(), statement.getBody());
+        final Map<String, List<AArrayAccess>> accesses = Maps.newLinkedHashMap();
+        final int[] accessCount = { 0 };
+        DepthFirstAdapter collector = new DepthFirstAdapter() {
+            @Override
+            public void inAArrayAccess(AArrayAccess arrayAccess) {
+                Node array = unwrapExpression(arrayAccess.getArray());
+                Node index = unwrapExpression(arrayAccess.getIndex());
+                BigInteger offset = getInductionOffset(index, variable, finder);
+                if (array instanceof AIdentifierPrimaryExpression && finder.isInvariant(array) && offset != null) {
+                    String key = ((AIdentifierPrimaryExpression) array).getIdentifier().getText() + " " + offset;
+                    if (!accesses.containsKey(key)) {
+                        accesses.put(key, Lists.<AArrayAccess>newArrayList());
+                    }
+                    accesses.get(key).add(arrayAccess);
+                    accessCount[0] += 1;
+                }
+            }
+        };
+        if (statement.getCondition() != null) {
+            statement.getCondition().apply(collector);
+        }
+        statement.getBody().apply(collector);
+        if (accessCount[0] <= finder.getInvocations()) {
+            return pointers;
+        }
+
+        List<Register> candidates = Lists.newArrayList(Register.I, Register.J);
+        for (Register register : registerAllocator.getFreeRegisters(currentDeclaration)) {
+            if (!candidates.contains(register)) {
+                candidates.add(register);
+            }
+        }
+        candidates.retainAll(registerAllocator.getFreeRegisters(currentDeclaration));
+        candidates.removeAll(temporaries);
+
+        for (List<AArrayAccess> group : accesses.values()) {
+            if (pointers.size() >= candidates.size() - 1) {
+                break;
+            }
+            Register pointer = candidates.get(pointers.size());
+            temporaries.push(pointer);
+            pointers.add(pointer);
+            AArrayAccess first = group.get(0);
+            writeOperation("ADD", evaluateOperands(first.getArray(), first.getIndex(), true));
+            write(String.format("SET %s A", pointer));
+            for (AArrayAccess arrayAccess : group) {
+                elementPointers.put(arrayAccess, pointer);
+            }
+        }
+        return pointers;
+    }
+
+    /**
+     * Returns the update of the specified {@code for} loop if it has the form {@code i = i + c}, {@code i = c + i},
+     * {@code i = i - c}, {@code i += c}, {@code i -= c}, {@code i++} or {@code i--} for an identifier {@code i} and a
+     * literal {@code c}, or {@code null} otherwise.
+     *
+     * @param statement the loop
+     * @return the assignment which updates the loop's induction variable, or {@code null}
+     */
+    private static PAssignment getInductionAssignment(AForStatement statement) {
+        Node update = unwrapExpression(statement.getUpdate());
+        if (!(update instanceof AAssignmentExpression)) {
+            return null;
+        }
+        PAssignment assignment = ((AAssignmentExpression) update).getAssignment();
+        if (!(getAssignmentTarget(assignment) instanceof AIdentifierAssignmentTarget)) {
+            return null;
+        }
+        String variable = ((AIdentifierAssignmentTarget) getAssignmentTarget(assignment)).getIdentifier().getText();
+        Class<? extends PExpression> operator = getCompoundOperator(assignment);
+        if (operator != null) {
+            boolean additive = (operator == AAddExpression.class || operator == ASubtractExpression.class);
+            PExpression value = getAssignmentValue(assignment);
+            return (additive && (value == null || getLiteralValue(value) != null)) ? assignment : null;
+        }
+        Node value = unwrapExpression(getAssignmentValue(assignment));
+        List<PExpression> operands = getBinaryOperands(value);
+        if (!(value instanceof AAddExpression || value instanceof ASubtractExpression)) {
+            return null;
+        } else if (isIdentifier(operands.get(0), variable) && getLiteralValue(operands.get(1)) != null) {
+            return assignment;
+        } else if (value instanceof AAddExpression && isIdentifier(operands.get(1), variable)
+                && getLiteralValue(operands.get(0)) != null) {
+            return assignment;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the amount by which the specified induction assignment, as returned by
+     * {@link #getInductionAssignment(AForStatement)}, changes the induction variable.
+     *
+     * @param assignment the assignment
+     * @return the step of the induction variable, which may be negative
+     */
+    private static BigInteger getInductionStep(PAssignment assignment) {
+        Class<? extends PExpression> operator = getCompoundOperator(assignment);
+        if (operator != null) {
+            PExpression value = getAssignmentValue(assignment);
+            BigInteger step = (value == null) ? BigInteger.ONE : getLiteralValue(value);
+            return (operator == ASubtractExpression.class) ? step.negate() : step;
+        }
+        Node value = unwrapExpression(getAssignmentValue(assignment));
+        List<PExpression> operands = getBinaryOperands(value);
+        BigInteger step = getLiteralValue(operands.get(1));
+        if (step == null) {
+            return getLiteralValue(operands.get(0));
+        } else {
+            return (value instanceof ASubtractExpression) ? step.negate() : step;
+        }
+    }
+
+    /**
+     * Returns {@code k} if the specified array index has the form {@code i}, {@code i + k}, {@code k + i} or
+     * {@code i - k} (in which case {@code -k} is returned), where {@code i} is the named induction variable and is not
+     * assigned within the loop, or {@code null} otherwise.
+     */
+    private static BigInteger getInductionOffset(Node index, String variable, LoopInvariantFinder finder) {
+        if (isIdentifier(index, variable)) {
+            return finder.isInvariant(index) ? BigInteger.ZERO : null;
+        } else if (index instanceof AAddExpression || index instanceof ASubtractExpression) {
+            List<PExpression> operands = getBinaryOperands(index);
+            Node left = unwrapExpression(operands.get(0));
+            Node right = unwrapExpression(operands.get(1));
+            if (isIdentifier(left, variable) && finder.isInvariant(left) && getLiteralValue(right) != null) {
+                BigInteger offset = getLiteralValue(right);
+                return (index instanceof ASubtractExpression) ? offset.negate() : offset;
+            } else if (index instanceof AAddExpression && isIdentifier(right, variable) && finder.isInvariant(right)
+                    && getLiteralValue(left) != null) {
+                return getLiteralValue(left);
+            }
+        }
+        return null;
     }
 
-    @Override
-    public void caseAFunctionTopLevelStatement(AFunctionTopLevelStatement topLevelStatement) {
-        assert stack.isEmpty();
-        context = topLevelStatement;
-        inline(topLevelStatement.getFunctionDeclaration());
-        context = null;
-        assert stack.isEmpty();
+    private boolean isLocalIdentifier(Node expression) {
+        expression = unwrapExpression(expression);
+        if (expression instanceof AIdentifierPrimaryExpression) {
+            try {
+                getScope().resolveLocal(((AIdentifierPrimaryExpression) expression).getIdentifier().getText());
+                return true;
+            } catch (SemanticException sx) {
+                return false;
+            }
+        }
+        return false;
     }
 
-    @Override
-    public void caseAIfThenStatement(AIfThenStatement statement) {
-        evaluateIfThenElse(statement, statement.getCondition(), statement.getThen(), null);
+    private static boolean isIdentifier(Node expression, String name) {
+        expression = unwrapExpression(expression);
+        return (expression instanceof AIdentifierPrimaryExpression
+                && ((AIdentifierPrimaryExpression) expression).getIdentifier().getText().equals(name));
     }
 
-    @Override
-    public void caseAIfThenElseStatement(AIfThenElseStatement statement) {
-        evaluateIfThenElse(statement, statement.getCondition(), statement.getThen(), statement.getElse());
+    /**
+     * Advances the specified induction pointers by the step of their induction variable. When the step is 1 or -1
+     * and one of the pointers is in I or J, a single {@code STI EX EX} or {@code STD EX EX} advances both I and J,
+     * provided that the other register is also a pointer or holds nothing at all. {@code EX} is never read by the
+     * code generator except to reserve stack space, so the copy of {@code EX} to itself is harmless.
+     *
+     * @param pointers the pointers
+     * @param step the step of the induction variable
+     */
+    private void writeInductionUpdate(List<Register> pointers, BigInteger step) {
+        List<Register> remaining = Lists.newArrayList(pointers);
+        if (step.abs().equals(BigInteger.ONE) && (remaining.contains(Register.I) || remaining.contains(Register.J))) {
+            Register other = remaining.contains(Register.I) ? Register.J : Register.I;
+            if (remaining.contains(other) || (!temporaries.contains(other)
+                    && registerAllocator.getFreeRegisters(currentDeclaration).contains(other))) {
+                write(step.signum() > 0 ? "STI EX EX" : "STD EX EX");
+                remaining.remove(Register.I);
+                remaining.remove(Register.J);
+            }
+        }
+        for (Register pointer : remaining) {
+            if (step.signum() > 0) {
+                write(String.format("ADD %s 0x%04x", pointer, step.shortValue()));
+            } else {
+                write(String.format("SUB %s 0x%04x", pointer, step.negate().shortValue()));
+            }
+        }
     }
 
-    private void evaluateIfThenElse(Node statement, PExpression condition, PStatement thenBody, PStatement elseBody) {
-        inline(condition);
-
-        write("IFN " + lookupExpression() + " 0x0000");
-        write("SET PC " + getStartLabel(thenBody));
-
-        if (elseBody != null) {
-            inline(elseBody);
+    /**
+     * Releases the registers reserved by {@link #createInductionPointers(AForStatement)}, once the loop has been
+     * written.
+     *
+     * @param pointers the registers reserved for pointers
+     */
+    private void releaseInductionPointers(List<Register> pointers) {
+        for (Register pointer : Lists.reverse(pointers)) {
+            Register popped = temporaries.pop();
+            assert (popped == pointer);
+            elementPointers.values().removeAll(ImmutableSet.of(pointer));
         }
-        write("SET PC " + getEndLabel(statement));
-        inline(thenBody);
     }
 
-    @Override
-    public void caseAWhileStatement(AWhileStatement statement) {
-        flowStructures.push(new WhileFlowStructure(this, statement));
-
-        inline(statement.getCondition());
+    /**
+     * Evaluates the loop-invariant expressions found by a {@link LoopInvariantFinder} in the specified loop region,
+     * leaving each in a register which is reserved until {@link #releaseInvariants(int)} is called. Uses of these
+     * expressions within the loop then simply read the register. The code is written at the current position, which
+     * must be executed once before the loop is entered, and not again on each iteration.
+     *
+     * <p>
+     *     Only registers not assigned to any local in the current function are used, and one is always left free for
+     *     temporaries. Each hoisted register must be saved around every invocation in the loop, so an expression is
+     *     only hoisted if it is more expensive than those saves. If {@code this} is used within the loop more often
+     *     than invocations are made, it is hoisted first, since every field named without a target uses it; then the
+     *     largest invariant expressions are hoisted, those in the most deeply nested loops first.
+     * </p>
+     *
+     * @param region the parts of the loop executed on every iteration; {@code null} parts are ignored
+     * @return the number of registers reserved
+     */
+    private int hoistInvariants(Node... region) {
+        int available = -1;
+        for (Register register : registerAllocator.getFreeRegisters(currentDeclaration)) {
+            if (!temporaries.contains(register)) {
+                available += 1;
+            }
+        }
+        if (available <= 0) {
+            return 0;
+        }
 
-        write("IFE " + lookupExpression() + " 0x0000");
-        write("SET PC " + getEndLabel(statement));
+        final LoopInvariantFinder finder = new LoopInvariantFinder(getScope(), region);
+        final List<Node> candidates = Lists.newArrayList();
+        final Map<Node, Integer> depths = Maps.newHashMap();
+        final int[] replacedThisUses = { 0 };
+        for (final Node part : region) {
+            if (part == null) {
+                continue;
+            }
+            part.apply(new DepthFirstAdapter() {
+                private int depth = 0;
+
+                @Override
+                public void caseAArrayAccess(AArrayAccess arrayAccess) {
+                    // accesses replaced by induction pointers never evaluate their array or index
+                    if (!elementPointers.containsKey(arrayAccess)) {
+                        super.caseAArrayAccess(arrayAccess);
+                    } else if (finder.getThisUses() > 0 && !isLocalIdentifier(arrayAccess.getArray())) {
+                        replacedThisUses[0] += 1;
+                    }
+                }
 
-        inline(statement.getBody());
-        write("SET PC " + getStartLabel(statement.getCondition()));
+                @Override
+                public void defaultIn(Node node) {
+                    if (node instanceof AWhileStatement || node instanceof AForStatement || node instanceof ADoStatement) {
+                        depth += 1;
+                    } else if (isHoistable(node, finder) && !hasHoistableAncestor(node, part, finder)) {
+                        candidates.add(node);
+                        depths.put(node, depth);
+                    }
+                }
 
-        flowStructures.pop();
+                @Override
+                public void defaultOut(Node node) {
+                    if (node instanceof AWhileStatement || node instanceof AForStatement || node instanceof ADoStatement) {
+                        depth -= 1;
+                    }
+                }
+            });
+        }
+        Collections.sort(candidates, new Comparator<Node>() {
+            @Override
+            public int compare(Node o1, Node o2) {
+                return depths.get(o2) - depths.get(o1);
+            }
+        });
+
+        int hoisted = 0;
+        int thisUses = finder.getThisUses() - replacedThisUses[0];
+        if (thisSymbol != null && thisRegister == null && thisUses > finder.getInvocations()) {
+            inline(new AThisPrimaryExpression());
+            thisRegister = reserveHoistedRegister();
+            hoisted += 1;
+        }
+        for (Node candidate : candidates) {
+            if (hoisted >= available) {
+                break;
+            }
+            if (getExpressionSize(candidate) > 2 * finder.getInvocations()) {
+                inline(candidate);
+                requireValue();
+                hoistedExpressions.put(unwrapExpression(candidate), reserveHoistedRegister());
+                hoisted += 1;
+            }
+        }
+        return hoisted;
     }
 
-    @Override
-    public void caseAForStatement(AForStatement statement) {
-        super.inAForStatement(statement);
-        flowStructures.push(new ForFlowStructure(this, statement));
-
-        inline(statement.getInit());
-
-        // we actually want the update on top, so skip to the condition
-        write("SET PC " + getStartLabel(statement.getCondition()));
-
-        inline(statement.getUpdate());
-
-        inline(statement.getCondition());
-
-        write("IFE " + lookupExpression() + " 0x0000");
-        write("SET PC reclaim_" + getBaseLabel(statement));
-
-        inline(statement.getBody());
-        write("SET PC " + getStartLabel(statement.getUpdate()));
-
-        flowStructures.pop();
-        write(":reclaim_" + getBaseLabel(statement));
-        super.outAForStatement(statement);
+    private Register reserveHoistedRegister() {
+        Register register = allocateTemporary();
+        assert (register != null);
+        write(String.format("SET %s A", register));
+        return register;
     }
 
-    @Override
-    public void caseADoStatement(ADoStatement statement) {
-        flowStructures.push(new DoFlowStructure(this, statement));
+    /**
+     * Releases the registers reserved by the last call to {@link #hoistInvariants(Node...)}, once the loop has been
+     * written.
+     *
+     * @param hoisted the number of registers reserved
+     */
+    private void releaseInvariants(int hoisted) {
+        for (int i = 0; i < hoisted; i++) {
+            Register register = temporaries.pop();
+            if (register == thisRegister) {
+                thisRegister = null;
+            } else {
+                hoistedExpressions.values().remove(register);
+            }
+        }
+    }
 
-        inline(statement.getBody());
+    /**
+     * Returns {@code true} if the specified node is worth evaluating before a loop: that is, if it is an invariant
+     * expression which is not a register or literal leaf operand, and not a comparison or logical operation, whose
+     * operands are better hoisted individually so that the comparison can still be used as a branch condition.
+     * Parentheses are not themselves hoisted, but the expressions within them may be. {@code this} is handled
+     * separately.
+     *
+     * @param node the node
+     * @param finder the invariant information for the loop
+     * @return whether the node should be hoisted
+     */
+    private boolean isHoistable(Node node, LoopInvariantFinder finder) {
+        if (!(node instanceof PExpression || node instanceof PPrimaryExpression) || !finder.isInvariant(node)) {
+            return false;
+        } else if (node != unwrapExpression(node) || node instanceof AThisPrimaryExpression) {
+            return false;
+        } else if (getRelation(node) != null || node instanceof AConditionalNotExpression
+                || node instanceof AConditionalAndExpression || node instanceof AConditionalOrExpression) {
+            return false;
+        } else {
+            // memory operands are still worth holding in a register, but registers and literals are not
+            String leaf = getLeafOperand(node);
+            return (leaf == null || (leaf.startsWith("[") && !(node instanceof AArrayAccessPrimaryExpression)));
+        }
+    }
 
-        inline(statement.getCondition());
-        write("IFN " + lookupExpression() + " 0x0000");
-        write("SET PC " + getStartLabel(statement));
+    private boolean hasHoistableAncestor(Node node, Node root, LoopInvariantFinder finder) {
+        for (Node ancestor = node; ancestor != root; ) {
+            ancestor = ancestor.parent();
+            if (isHoistable(ancestor, finder)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        flowStructures.pop();
+    /**
+     * Returns the number of nodes in the specified expression, which serves as a rough estimate of the number of
+     * instructions needed to evaluate it.
+     *
+     * @param expression the expression
+     * @return the size of the expression
+     */
+    private static int getExpressionSize(Node expression) {
+        final int[] size = { 0 };
+        expression.apply(new DepthFirstAdapter() {
+            @Override
+            public void defaultIn(Node node) {
+                size[0] += 1;
+            }
+        });
+        return size[0];
     }
 
     @Override
@@ -632,14 +2553,18 @@ final class CodeGenerator extends ScopeAwareWalker {
         flowStructures.push(new SwitchFlowStructure(this, statement));
 
         inline(statement.getValue());
+        requireValue();
 
+        // if a value appears more than once, the first case group containing it is the one executed
+        SortedMap<BigInteger, PCaseGroup> cases = Maps.newTreeMap();
         PCaseGroup defaultCaseGroup = null;
         for (PCaseGroup caseGroup : statement.getBody()) {
             for (PIntegralLiteral literal : getCaseGroupValues(caseGroup)) {
                 try {
-                    short value = TypeTokenUtil.parseIntegralLiteral(literal).shortValue();
-                    write(String.format("IFE %s 0x%04x", lookupExpression(), value));
-                    write("SET PC " + getStartLabel(caseGroup));
+                    BigInteger value = TypeTokenUtil.parseIntegralLiteral(literal);
+                    if (!cases.containsKey(value)) {
+                        cases.put(value, caseGroup);
+                    }
                 } catch (SemanticException sx) {
                     compiler.raise(sx);
                 }
@@ -649,10 +2574,26 @@ final class CodeGenerator extends ScopeAwareWalker {
                 defaultCaseGroup = caseGroup;
             }
         }
+
+        String defaultLabel;
         if (defaultCaseGroup != null) {
-            write("SET PC " + getStartLabel(defaultCaseGroup));
+            defaultLabel = getStartLabel(defaultCaseGroup);
         } else if (!statement.getBody().isEmpty()) {
-            write("SET PC " + getEndLabel(statement.getBody().descendingIterator().next()));
+            defaultLabel = getEndLabel(statement.getBody().descendingIterator().next());
+        } else {
+            defaultLabel = getEndLabel(statement);
+        }
+
+        if (cases.size() < LINEAR_SWITCH_LIMIT) {
+            writeLinearDispatch(cases, defaultLabel);
+        } else {
+            BigInteger range = cases.lastKey().subtract(cases.firstKey()).add(BigInteger.ONE);
+            if (range.compareTo(BigInteger.valueOf(cases.size() * JUMP_TABLE_SPARSENESS)) <= 0) {
+                writeTableDispatch(statement, cases, defaultLabel);
+            } else {
+                boolean signed = types.get(statement.getValue()).isSigned();
+                writeSearchDispatch(statement, cases, signed, defaultLabel);
+            }
         }
 
         for (PCaseGroup caseGroup : statement.getBody()) {
@@ -662,6 +2603,74 @@ final class CodeGenerator extends ScopeAwareWalker {
         flowStructures.pop();
     }
 
+    /**
+     * Dispatches a switch statement, whose value is in register A, by testing each case value in turn.
+     *
+     * @param cases the case group for each case value
+     * @param defaultLabel the label to jump to if no case value matches
+     */
+    private void writeLinearDispatch(SortedMap<BigInteger, PCaseGroup> cases, String defaultLabel) {
+        for (Map.Entry<BigInteger, PCaseGroup> entry : cases.entrySet()) {
+            write(String.format("IFE A 0x%04x", entry.getKey().shortValue()));
+            write("SET PC " + getStartLabel(entry.getValue()));
+        }
+        write("SET PC " + defaultLabel);
+    }
+
+    /**
+     * Dispatches a switch statement, whose value is in register A, through a table holding the address of the case
+     * group for each value from the smallest case value to the largest. Values outside that range are caught by a
+     * single unsigned comparison, since subtracting the smallest case value wraps smaller values around to large
+     * ones.
+     *
+     * @param statement the switch statement
+     * @param cases the case group for each case value
+     * @param defaultLabel the label to jump to if no case value matches
+     */
+    private void writeTableDispatch(ASwitchStatement statement, SortedMap<BigInteger, PCaseGroup> cases,
+                                    String defaultLabel) {
+        BigInteger minimum = cases.firstKey();
+        int size = cases.lastKey().subtract(minimum).intValue() + 1;
+        String tableLabel = "table_" + getBaseLabel(statement);
+        if (minimum.signum() != 0) {
+            write(String.format("SUB A 0x%04x", minimum.shortValue()));
+        }
+        write(String.format("IFL A 0x%04x", size));
+        write(String.format("SET PC [A+%s]", tableLabel));
+        write("SET PC " + defaultLabel);
+
+        write(":" + tableLabel);
+        for (int i = 0; i < size; i++) {
+            PCaseGroup caseGroup = cases.get(minimum.add(BigInteger.valueOf(i)));
+            write("DAT " + ((caseGroup != null) ? getStartLabel(caseGroup) : defaultLabel));
+        }
+    }
+
+    /**
+     * Dispatches a switch statement, whose value is in register A, by a binary search over the sorted case values.
+     * Once few enough values remain, they are tested in turn.
+     *
+     * @param statement the switch statement
+     * @param cases the case group for each case value
+     * @param signed whether the switch value is signed
+     * @param defaultLabel the label to jump to if no case value matches
+     */
+    private void writeSearchDispatch(ASwitchStatement statement, SortedMap<BigInteger, PCaseGroup> cases,
+                                     boolean signed, String defaultLabel) {
+        if (cases.size() < LINEAR_SWITCH_LIMIT) {
+            writeLinearDispatch(cases, defaultLabel);
+            return;
+        }
+
+        BigInteger pivot = Iterables.get(cases.keySet(), cases.size() / 2);
+        String lowerLabel = String.format("search_%s_%04x", getBaseLabel(statement), pivot.shortValue());
+        write(String.format("%s A 0x%04x", signed ? "IFU" : "IFL", pivot.shortValue()));
+        write("SET PC " + lowerLabel);
+        writeSearchDispatch(statement, cases.tailMap(pivot), signed, defaultLabel);
+        write(":" + lowerLabel);
+        writeSearchDispatch(statement, cases.headMap(pivot), signed, defaultLabel);
+    }
+
     private Iterable<PIntegralLiteral> getCaseGroupValues(PCaseGroup caseGroup) {
         if (caseGroup instanceof ACaseGroup) {
             return ((ACaseGroup) caseGroup).getValues();
@@ -674,6 +2683,11 @@ final class CodeGenerator extends ScopeAwareWalker {
 
     @Override
     public void caseADeleteStatement(ADeleteStatement statement) {
+        Node allocation = escapeAnalyzer.getDeletedAllocation(statement);
+        if (allocation != null && allocationSlots.containsKey(allocation)) {
+            // the object is in the frame, which is reclaimed when the function returns
+            return;
+        }
         inline(statement.getObject());
         requireValue();
         write("JSR heapfree");
@@ -714,7 +2728,13 @@ final class CodeGenerator extends ScopeAwareWalker {
 
     @Override
     public void caseAReturnStatement(AReturnStatement statement) {
+        tailCalled = false;
         inline(statement.getReturnValue());
+        if (tailCalled) {
+            // the callee will return in our place
+            tailCalled = false;
+            return;
+        }
         // if the expression didn't return a value, coerce whatever it did return into one
         // this is done in case the result is a local/field that will fall out of scope
         requireValue();
@@ -731,37 +2751,379 @@ final class CodeGenerator extends ScopeAwareWalker {
         } while (!flag);
     }
 
-    @Override
-    public void caseAExpressionStatement(AExpressionStatement statement) {
-        inline(statement.getExpression());
-    }
+    @Override
+    public void caseAExpressionStatement(AExpressionStatement statement) {
+        inline(statement.getExpression());
+    }
+
+    @Override
+    public void caseANativeStatement(ANativeStatement statement) {
+        String nativeText = statement.getNativeLiteral().getText();
+        write(nativeText.substring(1, nativeText.length() - 1)); // strip the backticks
+    }
+
+    @Override
+    public void caseABlockStatement(ABlockStatement statement) {
+        super.inABlockStatement(statement);
+        inlineStatements(statement.getStatement());
+        super.outABlockStatement(statement);
+    }
+
+    @Override
+    public void caseACaseGroup(ACaseGroup caseGroup) {
+        inlineStatements(caseGroup.getBody());
+    }
+
+    @Override
+    public void caseADefaultCaseGroup(ADefaultCaseGroup caseGroup) {
+        inlineStatements(caseGroup.getBody());
+    }
+
+    /**
+     * Writes a list of statements which are executed in sequence, such as the body of a block. Each maximal run of
+     * statements which contain no control flow is written by {@link #inlineStraightLineStatements(List)}.
+     *
+     * @param statements the statements
+     */
+    private void inlineStatements(List<PStatement> statements) {
+        int start = 0;
+        while (start < statements.size()) {
+            int end = start;
+            while (end < statements.size() && isStraightLine(statements.get(end))) {
+                end += 1;
+            }
+            if (end > start) {
+                inlineStraightLineStatements(statements.subList(start, end));
+                start = end;
+            } else {
+                inline(statements.get(start));
+                start += 1;
+            }
+        }
+    }
+
+    private static boolean isStraightLine(PStatement statement) {
+        return (statement instanceof AExpressionStatement || statement instanceof ALocalDeclarationStatement);
+    }
+
+    /**
+     * <p>
+     *     Writes a run of statements which contain no control flow, reusing the values of common subexpressions. Local
+     *     value numbering assigns the same key to expressions which compute the same value from the same operands (see
+     *     {@link #getValueKey(Node)}). Where an expression with some key is evaluated more than once in the run, and
+     *     nothing which it depends on may be modified in between, it can be evaluated once, before the statement in
+     *     which it first occurs, and held in a register until the end of the statement in which it last occurs. The
+     *     same is done for the addresses of array elements, so that the element {@code a[i]} in
+     *     {@code a[i] = a[i] + 1} is located only once. Invocations, assignments and {@code delete} statements are
+     *     accounted for using a {@link LoopInvariantFinder} over the statements spanned; the store made by the last
+     *     of these statements happens after all of its subexpressions have been evaluated, and so is left out.
+     * </p>
+     *
+     * <p>
+     *     As with {@linkplain #hoistInvariants(Node...) hoisted invariants}, the values are held in registers not
+     *     assigned to any local, and one register is always left for temporaries. Values whose lifetimes do not overlap
+     *     may share a register. If there are no registers to spare, the statements are written as usual.
+     * </p>
+     *
+     * @param statements the statements, none of which may contain control flow
+     */
+    private void inlineStraightLineStatements(List<PStatement> statements) {
+        List<Register> available = Lists.newArrayList();
+        for (Register register : registerAllocator.getFreeRegisters(currentDeclaration)) {
+            if (!temporaries.contains(register)) {
+                available.add(register);
+            }
+        }
+        List<CommonValue> values = available.size() > 1 ? findCommonValues(statements) : ImmutableList.<CommonValue>of();
+        if (values.isEmpty()) {
+            for (PStatement statement : statements) {
+                inline(statement);
+            }
+            return;
+        }
+
+        // larger values first, so that the values within them are only held if they are needed elsewhere
+        Collections.sort(values, new Comparator<CommonValue>() {
+            @Override
+            public int compare(CommonValue o1, CommonValue o2) {
+                return getExpressionSize(o2.occurrences.get(0)) - getExpressionSize(o1.occurrences.get(0));
+            }
+        });
+        List<CommonValue> chosen = Lists.newArrayList();
+        Set<Register> reserved = EnumSet.noneOf(Register.class);
+        for (CommonValue value : values) {
+            for (CommonValue other : chosen) {
+                value.removeOccurrencesWithin(other);
+            }
+            if (value.occurrences.size() < 2) {
+                continue;
+            }
+            for (Register register : available.subList(0, available.size() - 1)) {
+                boolean overlaps = false;
+                for (CommonValue other : chosen) {
+                    overlaps |= (other.register == register && other.first <= value.last && value.first <= other.last);
+                }
+                if (!overlaps) {
+                    value.register = register;
+                    reserved.add(register);
+                    chosen.add(value);
+                    break;
+                }
+            }
+        }
+        // within a statement, values must be evaluated before the larger values which may contain them
+        Collections.reverse(chosen);
+
+        for (Register register : reserved) {
+            temporaries.push(register);
+        }
+        for (int i = 0; i < statements.size(); i++) {
+            for (CommonValue value : chosen) {
+                if (value.first == i) {
+                    evaluateCommonValue(value);
+                }
+            }
+            inline(statements.get(i));
+            for (CommonValue value : chosen) {
+                if (value.last == i) {
+                    for (Node occurrence : value.occurrences) {
+                        hoistedExpressions.remove(occurrence);
+                        elementPointers.remove(occurrence);
+                    }
+                }
+            }
+        }
+        for (Register register : reserved) {
+            Register popped = temporaries.pop();
+            assert reserved.contains(popped);
+        }
+    }
+
+    /**
+     * Evaluates a common value into its register, and arranges for each of its occurrences to use the register
+     * instead of being evaluated again.
+     */
+    private void evaluateCommonValue(CommonValue value) {
+        Node first = value.occurrences.get(0);
+        // the node is evaluated directly, since its labels will be written when its statement is
+        first.apply(this);
+        if (first instanceof AArrayAccess) {
+            write(String.format("SET %s A", value.register));
+            for (Node occurrence : value.occurrences) {
+                elementPointers.put(occurrence, value.register);
+            }
+        } else {
+            requireValue();
+            write(String.format("SET %s A", value.register));
+            for (Node occurrence : value.occurrences) {
+                hoistedExpressions.put(occurrence, value.register);
+            }
+        }
+        expressionResult = null;
+    }
+
+    /**
+     * Finds the expressions and array element addresses which are evaluated more than once by the specified
+     * statements, grouping their occurrences by value.
+     *
+     * @param statements the statements
+     * @return the values which occur more than once, in no particular order
+     */
+    private List<CommonValue> findCommonValues(final List<PStatement> statements) {
+        final Map<String, List<Node>> occurrences = Maps.newLinkedHashMap();
+        final Map<Node, Integer> indices = Maps.newHashMap();
+        for (int i = 0; i < statements.size(); i++) {
+            final int index = i;
+            statements.get(i).apply(new DepthFirstAdapter() {
+                @Override
+                public void defaultIn(Node node) {
+                    Node unwrapped = unwrapExpression(node);
+                    if (unwrapped != node || getValueKey(node) == null || getHoistedRegister(node) != null
+                            || elementPointers.containsKey(node) || getLeafOperand(node) != null
+                            || node instanceof AIdentifierPrimaryExpression || node instanceof AThisPrimaryExpression) {
+                        return;
+                    }
+                    String key = getValueKey(node);
+                    if (!occurrences.containsKey(key)) {
+                        occurrences.put(key, Lists.<Node>newArrayList());
+                    }
+                    occurrences.get(key).add(node);
+                    indices.put(node, index);
+                }
+            });
+        }
+
+        List<CommonValue> values = Lists.newArrayList();
+        for (List<Node> nodes : occurrences.values()) {
+            CommonValue value = null;
+            for (Node node : nodes) {
+                int index = indices.get(node);
+                if (value != null && value.isValidThrough(statements, index, node)) {
+                    value.occurrences.add(node);
+                    value.last = index;
+                } else {
+                    if (value != null && value.occurrences.size() > 1) {
+                        values.add(value);
+                    }
+                    value = new CommonValue(node, index);
+                    if (!value.isValidThrough(statements, index, node)) {
+                        value = null;
+                    }
+                }
+            }
+            if (value != null && value.occurrences.size() > 1) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns a key for the value computed by the specified expression, primary expression, field access or array
+     * access. Two nodes with the same key compute the same value, provided that nothing which they depend on is
+     * modified between them; an array access is keyed by the address of the element. Operands of commutative
+     * operators are put in a canonical order. Returns {@code null} if the node is not a pure computation, or if it
+     * contains a comparison or logical operation, since these are written with labels of their own.
+     *
+     * @param node the node
+     * @return the value key for the node, or {@code null}
+     */
+    private String getValueKey(Node node) {
+        node = unwrapExpression(node);
+        if (node instanceof ALiteralPrimaryExpression) {
+            PLiteral literal = ((ALiteralPrimaryExpression) node).getLiteral();
+            if (literal instanceof ATrueLiteral || literal instanceof AFalseLiteral) {
+                return literal.toString().trim();
+            }
+            BigInteger value = getLiteralValue(node);
+            return (value != null) ? "#" + value : null;
+        } else if (node instanceof AIdentifierPrimaryExpression) {
+            String name = ((AIdentifierPrimaryExpression) node).getIdentifier().getText();
+            return (isLocalIdentifier(node) ? "local " : "field ") + name;
+        } else if (node instanceof AThisPrimaryExpression) {
+            return "this";
+        } else if (node instanceof AFieldAccessPrimaryExpression) {
+            return getValueKey(((AFieldAccessPrimaryExpression) node).getFieldAccess());
+        } else if (node instanceof AExpressionFieldAccess) {
+            AExpressionFieldAccess fieldAccess = (AExpressionFieldAccess) node;
+            String target = getValueKey(fieldAccess.getTarget());
+            return (target != null) ? String.format("(%s).%s", target, fieldAccess.getFieldName().getText()) : null;
+        } else if (node instanceof ATypeTokenFieldAccess) {
+            ATypeTokenFieldAccess fieldAccess = (ATypeTokenFieldAccess) node;
+            return String.format("%s::%s", fieldAccess.getTarget().toString().trim(), fieldAccess.getFieldName().getText());
+        } else if (node instanceof AArrayAccessPrimaryExpression) {
+            String address = getValueKey(((AArrayAccessPrimaryExpression) node).getArrayAccess());
+            return (address != null) ? String.format("[%s]", address) : null;
+        } else if (node instanceof AArrayAccess) {
+            String array = getValueKey(((AArrayAccess) node).getArray());
+            String index = getValueKey(((AArrayAccess) node).getIndex());
+            return (array != null && index != null) ? String.format("&(%s)[%s]", array, index) : null;
+        } else if (node instanceof ANumericNegationExpression) {
+            String value = getValueKey(((ANumericNegationExpression) node).getValue());
+            return (value != null) ? String.format("-%s(%s)", types.get(node), value) : null;
+        } else if (node instanceof ABitwiseComplementExpression) {
+            String value = getValueKey(((ABitwiseComplementExpression) node).getValue());
+            return (value != null) ? String.format("~%s(%s)", types.get(node), value) : null;
+        } else if (getBinaryOperands(node) != null && getRelation(node) == null) {
+            List<PExpression> operands = getBinaryOperands(node);
+            String left = getValueKey(operands.get(0));
+            String right = getValueKey(operands.get(1));
+            if (left == null || right == null) {
+                return null;
+            }
+            boolean commutative = (node instanceof AAddExpression || node instanceof AMultiplyExpression
+                    || node instanceof ABitwiseAndExpression || node instanceof ABitwiseOrExpression
+                    || node instanceof ABitwiseXorExpression);
+            if (commutative && left.compareTo(right) > 0) {
+                String swap = left;
+                left = right;
+                right = swap;
+            }
+            return String.format("%s %s(%s, %s)", node.getClass().getSimpleName(), types.get(node), left, right);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * The occurrences of some value within a run of straight-line statements, which can all be replaced by a register
+     * holding the value. See {@link #inlineStraightLineStatements(List)}.
+     */
+    private final class CommonValue {
+        private final List<Node> occurrences;
+
+        private final int first;
+
+        private int last;
+
+        private Register register;
 
-    @Override
-    public void caseANativeStatement(ANativeStatement statement) {
-        String nativeText = statement.getNativeLiteral().getText();
-        write(nativeText.substring(1, nativeText.length() - 1)); // strip the backticks
-    }
+        CommonValue(Node occurrence, int index) {
+            occurrences = Lists.newArrayList(occurrence);
+            first = index;
+            last = index;
+        }
 
-    @Override
-    public void caseABlockStatement(ABlockStatement statement) {
-        super.inABlockStatement(statement);
-        for (PStatement enclosedStatement : statement.getStatement()) {
-            inline(enclosedStatement);
+        /**
+         * Returns {@code true} if the value is unchanged from the beginning of the first statement up to the specified
+         * occurrence in the statement with the specified index.
+         */
+        boolean isValidThrough(List<PStatement> statements, int index, Node occurrence) {
+            List<Node> region = Lists.<Node>newArrayList(statements.subList(first, index));
+            PStatement statement = statements.get(index);
+            PAssignment assignment = null;
+            if (statement instanceof AExpressionStatement) {
+                PExpression expression = ((AExpressionStatement) statement).getExpression();
+                if (expression instanceof AAssignmentExpression) {
+                    assignment = ((AAssignmentExpression) expression).getAssignment();
+                }
+            }
+            if (assignment == null) {
+                region.add(statement);
+            } else {
+                // the store itself happens last, but whatever locates the target does not
+                if (getAssignmentValue(assignment) != null) {
+                    region.add(getAssignmentValue(assignment));
+                }
+                PAssignmentTarget target = getAssignmentTarget(assignment);
+                if (target instanceof AArrayAccessAssignmentTarget) {
+                    region.add(((AArrayAccessAssignmentTarget) target).getArrayAccess());
+                } else if (target instanceof AFieldAccessAssignmentTarget
+                        && ((AFieldAccessAssignmentTarget) target).getFieldAccess() instanceof AExpressionFieldAccess) {
+                    region.add(((AExpressionFieldAccess) ((AFieldAccessAssignmentTarget) target).getFieldAccess()).getTarget());
+                }
+            }
+
+            LoopInvariantFinder finder = new LoopInvariantFinder(getScope(), region.toArray(new Node[region.size()]));
+            for (Node node : Iterables.concat(occurrences, ImmutableList.of(occurrence))) {
+                if (!isUnchanged(node, finder)) {
+                    return false;
+                }
+            }
+            return true;
         }
-        super.outABlockStatement(statement);
-    }
 
-    @Override
-    public void caseACaseGroup(ACaseGroup caseGroup) {
-        for (PStatement enclosedStatement : caseGroup.getBody()) {
-            inline(enclosedStatement);
+        private boolean isUnchanged(Node node, LoopInvariantFinder finder) {
+            if (node instanceof AArrayAccess) {
+                // the address of an element does not depend on what is stored there
+                return finder.isInvariant(((AArrayAccess) node).getArray())
+                        && finder.isInvariant(((AArrayAccess) node).getIndex());
+            } else {
+                return finder.isInvariant(node);
+            }
         }
-    }
 
-    @Override
-    public void caseADefaultCaseGroup(ADefaultCaseGroup caseGroup) {
-        for (PStatement enclosedStatement : caseGroup.getBody()) {
-            inline(enclosedStatement);
+        void removeOccurrencesWithin(CommonValue other) {
+            Iterator<Node> iterator = occurrences.iterator();
+            while (iterator.hasNext()) {
+                Node occurrence = iterator.next();
+                for (Node ancestor = occurrence.parent(); ancestor != null; ancestor = ancestor.parent()) {
+                    if (other.occurrences.contains(ancestor)) {
+                        iterator.remove();
+                        break;
+                    }
+                }
+            }
         }
     }
 
@@ -781,17 +3143,17 @@ final class CodeGenerator extends ScopeAwareWalker {
 
     @Override
     public void caseAFunctionClassStatement(AFunctionClassStatement classStatement) {
-        inline(classStatement.getFunctionDeclaration());
+        deferDeclaration(classStatement.getFunctionDeclaration());
     }
 
     @Override
     public void caseAConstructorClassStatement(AConstructorClassStatement classStatement) {
-        inline(classStatement.getConstructorDeclaration());
+        deferDeclaration(classStatement.getConstructorDeclaration());
     }
 
     @Override
     public void caseACastClassStatement(ACastClassStatement classStatement) {
-        inline(classStatement.getCastDeclaration());
+        deferDeclaration(classStatement.getCastDeclaration());
     }
 
     @Override
@@ -842,21 +3204,53 @@ final class CodeGenerator extends ScopeAwareWalker {
 
             onEnterScope(declaration);
             flowStructures.push(new ParametrizedFlowStructure(this));
+            currentDeclaration = declaration;
+            // a function taking its arguments in registers has nothing on the stack but the JSR pointer
+            List<Register> argumentRegisters = registerAllocator.getArgumentRegisters(declaration);
+            if (symbol.getModifiers().contains(Modifier.NATIVE)) {
+                nativeRegions.put(getStartLabel(declaration), getEndLabel(declaration));
+                writtenRegisters.put(declaration, EnumSet.allOf(Register.class));
+            } else {
+                writtenRegisters.put(declaration, EnumSet.noneOf(Register.class));
+            }
 
             if ((!symbol.getModifiers().contains(Modifier.STATIC) || symbol instanceof ConstructorSymbol)
                     && symbol.getDeclaringClass() != null) {
                 thisSymbol = new FunctionPlaceholder(new UserDefinedTypeToken(symbol.getDeclaringClass().getName()));
-                stack.push(thisSymbol);
+                if (argumentRegisters != null) {
+                    thisRegister = argumentRegisters.get(0);
+                } else {
+                    stack.push(thisSymbol);
+                }
             }
 
             for (LocalSymbol parameter : symbol.getParameters()) {
-                stack.push(parameter);
+                if (registerAllocator.getRegister(parameter) == null) {
+                    stack.push(parameter);
+                }
             }
 
             // push the JSR pointer
             TypedSymbol jsrPointer = new FunctionPlaceholder(PrimitiveTypeToken.UINT);
             stack.push(jsrPointer);
 
+            // reserve the frame
+            if (!symbol.getModifiers().contains(Modifier.NATIVE)) {
+                assignFrameSlots(declaration);
+            }
+            for (FrameSlotPlaceholder slot : frame) {
+                stack.push(slot);
+            }
+            if (frame.size() == 1) {
+                write("SET PUSH EX");
+            } else if (frame.size() > 0) {
+                write(String.format("SUB SP 0x%04x", frame.size()));
+            }
+            if (registerAllocator.getThisRegister(declaration) != null) {
+                thisRegister = registerAllocator.getThisRegister(declaration);
+                write(String.format("SET %s %s", thisRegister, getStackOperand(thisSymbol)));
+            }
+
             inline(body);
 
             // if we get to this point, TRY to set the last expression as the return value
@@ -866,19 +3260,29 @@ final class CodeGenerator extends ScopeAwareWalker {
                 requireValue();
             }
 
+            doReclaimFrame();
             write("SET PC POP");
+            for (FrameSlotPlaceholder slot : Lists.reverse(frame)) {
+                TypedSymbol poppedSlot = stack.pop();
+                assert (poppedSlot == slot);
+            }
+            frame.clear();
+            frameSlots.clear();
+            allocationSlots.clear();
             TypedSymbol poppedJsr = stack.pop();
             assert (poppedJsr == jsrPointer);
 
             onExitScope(declaration);
 
-            if (thisSymbol != null) {
+            if (thisSymbol != null && argumentRegisters == null) {
                 TypedSymbol poppedThis = stack.pop();
                 assert (poppedThis == thisSymbol);
                 write("SET EX POP");
-                thisSymbol = null;
             }
+            thisSymbol = null;
+            thisRegister = null;
 
+            currentDeclaration = null;
             flowStructures.pop();
         } catch (SemanticException sx) {
             compiler.raise(sx);
@@ -890,9 +3294,11 @@ final class CodeGenerator extends ScopeAwareWalker {
     public void caseALocalDeclaration(ALocalDeclaration declaration) {
         try {
             expressionResult = getScope().resolveLocal(declaration.getName().getText());
-            stack.push(expressionResult);
-            write("SET PUSH EX");
-            evaluateStackExpression(expressionResult);
+            // locals in the frame had their slots reserved on entry to the function
+            if (!frameSlots.containsKey(expressionResult) && registerAllocator.getRegister(expressionResult) == null) {
+                stack.push(expressionResult);
+                write("SET PUSH EX");
+            }
         } catch (SemanticException sx) {
             compiler.raise(sx);
         }
@@ -905,14 +3311,24 @@ final class CodeGenerator extends ScopeAwareWalker {
 
     @Override
     public void caseAIdentifierPrimaryExpression(AIdentifierPrimaryExpression primaryExpression) {
-        enforceIdentifier(primaryExpression.getIdentifier());
+        String field = getThisFieldOperand(primaryExpression.getIdentifier());
+        if (field != null) {
+            write("SET A " + field);
+            expressionResult = null;
+        } else {
+            enforceIdentifier(primaryExpression.getIdentifier());
+        }
     }
 
     @Override
     public void caseAThisPrimaryExpression(AThisPrimaryExpression primaryExpression) {
         assert (thisSymbol != null);
-        evaluateStackExpression(thisSymbol);
-        write("SET A [A]"); // this returns a value, not a variable
+        if (thisRegister != null) {
+            write("SET A " + thisRegister);
+        } else {
+            write("SET A " + getStackOperand(thisSymbol)); // this returns a value, not a variable
+        }
+        expressionResult = null;
     }
 
     @Override
@@ -937,7 +3353,13 @@ final class CodeGenerator extends ScopeAwareWalker {
 
     @Override
     public void caseAFieldAccessPrimaryExpression(AFieldAccessPrimaryExpression primaryExpression) {
-        inline(primaryExpression.getFieldAccess());
+        String field = getFieldAccessOperand(primaryExpression.getFieldAccess());
+        if (field != null) {
+            write("SET A " + field);
+            expressionResult = null;
+        } else {
+            inline(primaryExpression.getFieldAccess());
+        }
     }
 
     @Override
@@ -981,10 +3403,12 @@ final class CodeGenerator extends ScopeAwareWalker {
         try {
             List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
             FunctionSymbol symbol = getScope().resolveFunction(invocation.getFunctionName().getText(), parameterTypes);
-            if (!symbol.getModifiers().contains(Modifier.STATIC) && symbol.getDeclaringClass() != null) {
+            if (!symbol.getModifiers().contains(Modifier.STATIC) && symbol.getDeclaringClass() != null
+                    && thisRegister == null) {
+                // otherwise, this is passed straight from its register
                 inline(new AThisPrimaryExpression());
             }
-            evaluateParametrizedInvocation(symbol, invocation.getParameters());
+            evaluateParametrizedInvocation(invocation, symbol, invocation.getParameters());
         } catch (SemanticException sx) {
             compiler.raise(sx);
         }
@@ -999,7 +3423,7 @@ final class CodeGenerator extends ScopeAwareWalker {
             List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
             FunctionSymbol symbol = scope.resolveFunction(invocation.getFunctionName().getText(), parameterTypes);
             inline(invocation.getTarget());
-            evaluateParametrizedInvocation(symbol, invocation.getParameters());
+            evaluateParametrizedInvocation(invocation, symbol, invocation.getParameters());
         } catch (SemanticException sx) {
             compiler.raise(sx);
         }
@@ -1018,7 +3442,7 @@ final class CodeGenerator extends ScopeAwareWalker {
             }
             List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
             FunctionSymbol symbol = scope.resolveFunction(invocation.getFunctionName().getText(), parameterTypes);
-            evaluateParametrizedInvocation(symbol, invocation.getParameters());
+            evaluateParametrizedInvocation(invocation, symbol, invocation.getParameters());
         } catch (SemanticException sx) {
             compiler.raise(sx);
         }
@@ -1035,9 +3459,13 @@ final class CodeGenerator extends ScopeAwareWalker {
                     scope = getScope(classSymbol.getDeclaration());
                 } else if (scopeToken instanceof ArrayTypeToken) {
                     assert (invocation.getParameters().size() == 1);
-                    inline(invocation.getParameters().get(0));
-                    write("SET X " + lookupExpression());
-                    write("JSR heapalloc");
+                    if (allocationSlots.containsKey(invocation)) {
+                        // the length is a constant, so it need not be evaluated
+                        evaluateStackAllocation(invocation);
+                    } else {
+                        inline(invocation.getParameters().get(0));
+                        evaluateHeapAllocation(lookupExpression());
+                    }
                     expressionResult = null;
                     return;
                 } else {
@@ -1048,7 +3476,7 @@ final class CodeGenerator extends ScopeAwareWalker {
             }
             List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
             ConstructorSymbol symbol = scope.resolveConstructor(parameterTypes);
-            evaluateParametrizedInvocation(symbol, invocation.getParameters());
+            evaluateParametrizedInvocation(invocation, symbol, invocation.getParameters());
         } catch (SemanticException sx) {
             compiler.raise(sx);
         }
@@ -1073,7 +3501,7 @@ final class CodeGenerator extends ScopeAwareWalker {
             }
             try {
                 CastSymbol symbol = scope.resolveCast(types.get(invocation.getValue()));
-                evaluateParametrizedInvocation(symbol, ImmutableList.of(invocation.getValue()));
+                evaluateParametrizedInvocation(invocation, symbol, ImmutableList.of(invocation.getValue()));
             } catch (SemanticException sx) {
                 inline(invocation.getValue());
                 requireValue();
@@ -1087,47 +3515,647 @@ final class CodeGenerator extends ScopeAwareWalker {
      * If this is an instance method, the implicit this parameter should be the expressionResult from the invoking
      * context. If this is a constructor, we have to make up our own placeholder.
      */
-    private void evaluateParametrizedInvocation(ParametrizedSymbol symbol, List<PExpression> parameters) {
+    private void evaluateParametrizedInvocation(Node invocation, ParametrizedSymbol symbol, List<PExpression> parameters) {
+        // the register which already holds the object on which an instance function is invoked, if any
+        Register targetRegister = null;
+        if (!symbol.getModifiers().contains(Modifier.STATIC) && !(symbol instanceof ConstructorSymbol)
+                && symbol.getDeclaringClass() != null) {
+            if (invocation instanceof AUnqualifiedFunctionInvocation) {
+                targetRegister = thisRegister;
+            } else if (expressionResult != null) {
+                targetRegister = registerAllocator.getRegister(expressionResult);
+            }
+        }
+
+        boolean inlined = isInlined(symbol);
+        if (!inlined && isTailCall(invocation, symbol)) {
+            evaluateTailCall(symbol, targetRegister, parameters);
+            return;
+        }
+
+        // the callee may overwrite registers, so preserve those which hold live locals or temporaries
+        List<Register> argumentRegisters = registerAllocator.getArgumentRegisters(symbol.getDeclaration());
+        Set<Register> liveRegisters = EnumSet.noneOf(Register.class);
+        liveRegisters.addAll(registerAllocator.getLiveRegisters(invocation));
+        liveRegisters.addAll(temporaries);
+        // the callee overwrites the registers in its summary, and passing the arguments overwrites their registers
+        Set<Register> clobbered = getClobberedRegisters(symbol.getDeclaration());
+        Set<Register> overwrittenRegisters = EnumSet.noneOf(Register.class);
+        overwrittenRegisters.addAll(clobbered);
+        if (argumentRegisters != null) {
+            overwrittenRegisters.addAll(argumentRegisters);
+            // except for those which already hold their arguments, unless the callee changes them itself
+            String targetOperand = (targetRegister != null) ? targetRegister.toString() : null;
+            for (Map.Entry<Register, String> leaf : getLeafMoves(argumentRegisters, targetOperand, parameters).entrySet()) {
+                Register register = leaf.getKey();
+                // an inlined body never changes this
+                if (leaf.getValue().equals(register.toString())
+                        && (!clobbered.contains(register) || (inlined && register == targetRegister))) {
+                    overwrittenRegisters.remove(register);
+                }
+            }
+        }
+        List<Register> reservedRegisters = Lists.newArrayList();
+        if (inlined) {
+            // an inlined body only overwrites the registers of its own locals, so the others are reserved instead
+            Set<Register> usedRegisters = registerAllocator.getUsedRegisters(symbol.getDeclaration());
+            for (Register register : liveRegisters) {
+                if (!usedRegisters.contains(register) && !temporaries.contains(register)) {
+                    reservedRegisters.add(register);
+                }
+            }
+            liveRegisters.retainAll(usedRegisters);
+        }
+        liveRegisters.retainAll(overwrittenRegisters);
+        // this never changes, so rather than preserving its register, reload it from its slot afterwards
+        boolean reloadThis = (thisRegister != null && inlinedDeclarations.isEmpty()
+                && thisRegister == registerAllocator.getThisRegister(currentDeclaration)
+                && liveRegisters.remove(thisRegister));
+        List<Register> savedRegisters = ImmutableList.copyOf(liveRegisters);
+        for (Register register : savedRegisters) {
+            write("SET PUSH " + register);
+            stack.push(new SavedRegisterPlaceholder());
+        }
+
         FunctionPlaceholder thisPlaceholder;
+        String thisOperand = null;
         if ((!symbol.getModifiers().contains(Modifier.STATIC) || symbol instanceof ConstructorSymbol)
                 && symbol.getDeclaringClass() != null) {
             thisPlaceholder = new FunctionPlaceholder(new UserDefinedTypeToken(symbol.getDeclaringClass().getName()));
             if (!(symbol instanceof ConstructorSymbol)) {
-                write("SET PUSH " + lookupExpression());
+                thisOperand = (targetRegister != null) ? targetRegister.toString() : lookupExpression();
             } else {
-                Scope classScope = getScope(symbol.getDeclaringClass().getDeclaration());
-                int objectWidth = classScope.getFields().size();
-                write(String.format("SET X 0x%04x", objectWidth));
-                write("JSR heapalloc");
-                write("SET PUSH A");
+                if (allocationSlots.containsKey(invocation)) {
+                    evaluateStackAllocation(invocation);
+                } else {
+                    Scope classScope = getScope(symbol.getDeclaringClass().getDeclaration());
+                    int objectWidth = classScope.getFields().size();
+                    evaluateHeapAllocation(String.format("0x%04x", objectWidth));
+                }
+                thisOperand = "A";
+            }
+            if (argumentRegisters == null) {
+                write("SET PUSH " + thisOperand);
+                stack.push(thisPlaceholder);
             }
-            stack.push(thisPlaceholder);
         } else {
             thisPlaceholder = null;
         }
 
-        assert parameters.size() == symbol.getParameters().size();
         List<LocalSymbol> formalParameters = getScope(symbol.getDeclaration()).getLocals();
+        if (argumentRegisters != null) {
+            passRegisterArguments(argumentRegisters, thisOperand, formalParameters, parameters);
+        } else {
+            pushArguments(formalParameters, parameters);
+        }
+
+        if (inlined) {
+            // within the inlined body, the arguments are the callee's parameters
+            if (argumentRegisters == null) {
+                for (LocalSymbol parameter : formalParameters) {
+                    stack.pop();
+                }
+                for (LocalSymbol parameter : formalParameters) {
+                    stack.push(parameter);
+                }
+            }
+            for (Register register : reservedRegisters) {
+                temporaries.push(register);
+            }
+            Register calleeThisRegister = (argumentRegisters != null && thisPlaceholder != null) ? argumentRegisters.get(0) : null;
+            evaluateInlineBody(invocation, symbol, thisPlaceholder, calleeThisRegister);
+            for (Register register : Lists.reverse(reservedRegisters)) {
+                Register popped = temporaries.pop();
+                assert (popped == register);
+            }
+            reclaimScope(getScope(symbol.getDeclaration()));
+        } else {
+            write("JSR " + getStartLabel(symbol.getDeclaration()));
+            invokedDeclarations.put(getEmittingDeclaration(), symbol.getDeclaration());
+            if (argumentRegisters == null) {
+                for (LocalSymbol parameter : formalParameters) {
+                    TypedSymbol popped = stack.pop();
+                    assert (popped instanceof FunctionPlaceholder);
+                }
+            }
+            doReclaimScope(getScope(symbol.getDeclaration()));
+        }
+
+        if (thisPlaceholder != null && argumentRegisters == null) {
+            TypedSymbol popped = stack.pop();
+            assert (popped == thisPlaceholder);
+            write("SET EX POP");
+        }
+
+        for (Register register : Lists.reverse(savedRegisters)) {
+            TypedSymbol popped = stack.pop();
+            assert (popped instanceof SavedRegisterPlaceholder);
+            writeRestore(register);
+        }
+        if (reloadThis) {
+            write(String.format("SET %s %s", thisRegister, getStackOperand(thisSymbol)));
+        }
+
+        // the function invocation will have already set the register
+        expressionResult = null;
+    }
+
+    /**
+     * Evaluates the arguments to an invocation and pushes each of them to the stack, in order. Each argument is
+     * represented in {@link #stack} by a {@link FunctionPlaceholder} rather than by the corresponding parameter, since
+     * a later argument may refer to a local of the same name; this happens whenever a function calls itself.
+     *
+     * @param formalParameters the parameters of the function being invoked
+     * @param parameters the argument expressions
+     */
+    private void pushArguments(List<LocalSymbol> formalParameters, List<PExpression> parameters) {
+        assert parameters.size() == formalParameters.size();
         for (int i = 0; i < parameters.size(); i++) {
             PExpression parameter = parameters.get(i);
             assert (types.get(parameter).equals(formalParameters.get(i).getType()));
             inline(parameter);
             write("SET PUSH " + lookupExpression());
-            stack.push(formalParameters.get(i));
+            stack.push(new FunctionPlaceholder(formalParameters.get(i).getType()));
+        }
+    }
+
+    /**
+     * Evaluates the arguments to an invocation of a function which takes them in registers, and places {@code this}, if
+     * there is one, and each argument in the corresponding register. When every argument is a {@linkplain
+     * #getLeafOperand(Node) leaf}, the registers are set directly, in an order which reads each register before it is
+     * overwritten (see {@link #orderRegisterMoves(Map, boolean)}). When the other arguments have no side effects, they
+     * are evaluated first, and the leaves are read afterwards; each is set straight into its register once no other
+     * argument reads that register, and only those which cannot be are pushed. Otherwise, the values are pushed as they are evaluated,
+     * since evaluating a later argument may overwrite any register, and then popped into place.
+     *
+     * @param argumentRegisters the argument registers of the function being invoked
+     * @param thisOperand an assembly value for {@code this}, or {@code null} if there is none
+     * @param formalParameters the parameters of the function being invoked
+     * @param parameters the argument expressions
+     */
+    private void passRegisterArguments(List<Register> argumentRegisters, String thisOperand,
+                                       List<LocalSymbol> formalParameters, List<PExpression> parameters) {
+        assert parameters.size() == formalParameters.size();
+        int thisCount = argumentRegisters.size() - parameters.size();
+        Map<Register, String> leaves = getLeafMoves(argumentRegisters, thisOperand, parameters);
+        if (leaves.size() == argumentRegisters.size()) {
+            List<String> moves = orderRegisterMoves(leaves, true);
+            if (moves != null) {
+                for (String move : moves) {
+                    write(move);
+                }
+                return;
+            }
+        } else if (thisOperand == null || !thisOperand.matches(".*\\b(A|SP)\\b.*")) {
+            List<Integer> remaining = Lists.newArrayList();
+            boolean pure = true;
+            for (int i = 0; i < parameters.size(); i++) {
+                if (!leaves.containsKey(argumentRegisters.get(thisCount + i))) {
+                    remaining.add(i);
+                    pure &= isPure(parameters.get(i));
+                }
+            }
+            if (pure) {
+                // the last of the other arguments may wait in register A, unless it is needed to swap the leaves
+                boolean needsScratch = (orderRegisterMoves(leaves, false) == null);
+                List<Register> placed = Lists.newArrayList();
+                List<Register> pushed = Lists.newArrayList();
+                Register waiting = null;
+                while (!remaining.isEmpty()) {
+                    // an argument goes straight to its register once nothing else left to evaluate reads it
+                    int next = remaining.get(0);
+                    boolean free = false;
+                    for (int i : remaining) {
+                        if (!isReadBy(argumentRegisters.get(thisCount + i), leaves, parameters, remaining, i)) {
+                            next = i;
+                            free = true;
+                            break;
+                        }
+                    }
+                    remaining.remove(Integer.valueOf(next));
+                    Register register = argumentRegisters.get(thisCount + next);
+                    assert (types.get(parameters.get(next)).equals(formalParameters.get(next).getType()));
+                    inline(parameters.get(next));
+                    if (free) {
+                        write(String.format("SET %s %s", register, lookupExpression()));
+                        // keep it from being taken as a temporary by the arguments which follow
+                        temporaries.push(register);
+                        placed.add(register);
+                    } else if (remaining.isEmpty() && !needsScratch) {
+                        requireValue();
+                        waiting = register;
+                    } else {
+                        write("SET PUSH " + lookupExpression());
+                        stack.push(new FunctionPlaceholder(formalParameters.get(next).getType()));
+                        pushed.add(register);
+                    }
+                }
+                for (Register register : Lists.reverse(placed)) {
+                    Register released = temporaries.pop();
+                    assert (released == register);
+                }
+                // the stack has moved, so the leaves are looked up again
+                for (String move : orderRegisterMoves(getLeafMoves(argumentRegisters, thisOperand, parameters),
+                        needsScratch)) {
+                    write(move);
+                }
+                if (waiting != null) {
+                    write(String.format("SET %s A", waiting));
+                }
+                for (Register register : Lists.reverse(pushed)) {
+                    TypedSymbol popped = stack.pop();
+                    assert (popped instanceof FunctionPlaceholder);
+                    write(String.format("SET %s POP", register));
+                }
+                return;
+            }
+        }
+
+        int pushed = 0;
+        if (thisOperand != null) {
+            write("SET PUSH " + thisOperand);
+            stack.push(new FunctionPlaceholder(PrimitiveTypeToken.UINT));
+            pushed += 1;
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            PExpression parameter = parameters.get(i);
+            assert (types.get(parameter).equals(formalParameters.get(i).getType()));
+            inline(parameter);
+            if (i < parameters.size() - 1) {
+                write("SET PUSH " + lookupExpression());
+                stack.push(new FunctionPlaceholder(formalParameters.get(i).getType()));
+                pushed += 1;
+            } else {
+                write(String.format("SET %s %s", argumentRegisters.get(pushed), lookupExpression()));
+            }
+        }
+        for (int i = pushed - 1; i >= 0; i--) {
+            TypedSymbol popped = stack.pop();
+            assert (popped instanceof FunctionPlaceholder);
+            write(String.format("SET %s POP", argumentRegisters.get(i)));
+        }
+    }
+
+    /**
+     * Returns the argument registers which {@code this}, if there is one, and each argument which is a {@linkplain
+     * #getLeafOperand(Node) leaf} are placed in, each mapped to the operand for its value, in order.
+     *
+     * @param argumentRegisters the argument registers of the function being invoked
+     * @param thisOperand an assembly value for {@code this}, or {@code null} if there is none
+     * @param parameters the argument expressions
+     * @return the operand for each register which receives a leaf
+     */
+    private Map<Register, String> getLeafMoves(List<Register> argumentRegisters, String thisOperand,
+                                               List<PExpression> parameters) {
+        Map<Register, String> leaves = Maps.newLinkedHashMap();
+        int thisCount = argumentRegisters.size() - parameters.size();
+        if (thisOperand != null) {
+            leaves.put(argumentRegisters.get(0), thisOperand);
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            String operand = getLeafOperand(parameters.get(i));
+            if (operand != null) {
+                leaves.put(argumentRegisters.get(thisCount + i), operand);
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Orders the instructions which set each of the specified registers to its operand, so that every register is
+     * read by the operands which need it before it is overwritten. A register which already holds its operand is left
+     * alone. When the registers are swapped in a cycle, one of them is first copied to register A, which is never an
+     * argument register, so that is only possible if A is free and no operand reads it.
+     *
+     * @param operands the operand for each register
+     * @param scratchFree whether register A may be overwritten
+     * @return the instructions which set the registers, or {@code null} if no order works
+     */
+    private static List<String> orderRegisterMoves(Map<Register, String> operands, boolean scratchFree) {
+        Map<Register, String> pending = Maps.newLinkedHashMap();
+        for (Map.Entry<Register, String> entry : operands.entrySet()) {
+            if (!entry.getValue().equals(entry.getKey().toString())) {
+                pending.put(entry.getKey(), entry.getValue());
+            }
+        }
+        scratchFree &= !isReadBy(Register.A, pending);
+
+        List<String> moves = Lists.newArrayList();
+        while (!pending.isEmpty()) {
+            Register next = null;
+            for (Register register : pending.keySet()) {
+                if (!isReadBy(register, pending)) {
+                    next = register;
+                    break;
+                }
+            }
+            if (next != null) {
+                moves.add(String.format("SET %s %s", next, pending.remove(next)));
+            } else if (scratchFree) {
+                // every remaining register is read by another, so move one of them out of the way
+                Register blocked = pending.keySet().iterator().next();
+                moves.add("SET A " + blocked);
+                for (Map.Entry<Register, String> entry : pending.entrySet()) {
+                    entry.setValue(entry.getValue().replaceAll("\\b" + blocked + "\\b", "A"));
+                }
+                scratchFree = false;
+            } else {
+                return null;
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Returns {@code true} if the specified register is read by the operand of any other register in the map.
+     */
+    private static boolean isReadBy(Register register, Map<Register, String> operands) {
+        for (Map.Entry<Register, String> entry : operands.entrySet()) {
+            if (entry.getKey() != register && entry.getValue().matches(".*\\b" + register + "\\b.*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if the specified register is read by any of the leaves, or by any of the remaining
+     * arguments other than the one which is placed in it.
+     *
+     * @param register an argument register
+     * @param leaves the operand for each register which receives a leaf
+     * @param parameters the argument expressions
+     * @param remaining the indices of the arguments not yet evaluated
+     * @param index the index of the argument placed in the register
+     * @return whether the register is still needed by another argument
+     */
+    private boolean isReadBy(Register register, Map<Register, String> leaves, List<PExpression> parameters,
+                             List<Integer> remaining, int index) {
+        if (isReadBy(register, leaves)) {
+            return true;
+        }
+        for (int i : remaining) {
+            if (i != index && getReadRegisters(parameters.get(i)).contains(register)) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    /**
+     * Returns the registers which evaluating the specified expression may read, other than register A and the
+     * temporaries it allocates itself: the registers of the locals, fields and hoisted values it refers to.
+     *
+     * @param expression the expression
+     * @return the registers read by the expression
+     */
+    private Set<Register> getReadRegisters(Node expression) {
+        final Set<Register> registers = EnumSet.noneOf(Register.class);
+        expression.apply(new DepthFirstAdapter() {
+            @Override
+            public void defaultIn(Node node) {
+                String operand = getLeafOperand(node);
+                if (operand != null) {
+                    for (Register register : Register.values()) {
+                        if (operand.matches(".*\\b" + register + "\\b.*")) {
+                            registers.add(register);
+                        }
+                    }
+                }
+            }
+        });
+        return registers;
+    }
 
-        write("JSR " + getStartLabel(symbol.getDeclaration()));
+    /**
+     * Returns {@code true} if the specified invocation can be compiled as a tail call: that is, if it is the entire
+     * value of a {@code return} statement in a function which is not being inlined, and the function it invokes takes
+     * the same number of parameters as the current function, and likewise takes {@code this} if and only if the
+     * current function does. The invoking function's caller will then reclaim the callee's arguments correctly. Since
+     * the frame is reused, the callee must also take its arguments on the stack, as the current function must.
+     *
+     * @param invocation the invocation
+     * @param symbol the function being invoked
+     * @return whether the invocation may reuse the current function's stack frame
+     */
+    private boolean isTailCall(Node invocation, ParametrizedSymbol symbol) {
+        if (symbol instanceof ConstructorSymbol || currentDeclaration instanceof AConstructorDeclaration
+                || !inlinedDeclarations.isEmpty() || !allocationSlots.isEmpty() || registerAllocator.getArgumentRegisters(symbol.getDeclaration()) != null) {
+            return false;
+        }
+        Node parent = invocation.parent();
+        if (!(parent instanceof AFunctionInvocationPrimaryExpression || parent instanceof ACastInvocationPrimaryExpression)) {
+            return false;
+        }
+        do {
+            parent = parent.parent();
+        } while (parent instanceof APrimaryExpression || parent instanceof AParentheticalPrimaryExpression);
+        if (!(parent instanceof AReturnStatement)) {
+            return false;
+        }
+        boolean hasThis = (!symbol.getModifiers().contains(Modifier.STATIC) && symbol.getDeclaringClass() != null);
+        return (hasThis == (thisSymbol != null)
+                && symbol.getParameters().size() == getScope(currentDeclaration).getLocals().size());
+    }
 
-        reclaimScope(getScope(symbol.getDeclaration()));
+    /**
+     * Emits a tail call, which replaces the current function's {@code this} and arguments with those of the callee,
+     * discards the current function's locals, and then jumps to the callee. The callee returns directly to the current
+     * function's caller. A function which calls itself in this way becomes a loop, which needs no stack space for each
+     * iteration. The arguments are all evaluated before any are overwritten, since they may refer to the current
+     * function's parameters.
+     *
+     * @param symbol the function being invoked
+     * @param targetRegister the register holding the object on which the function is invoked, or {@code null}
+     * @param parameters the argument expressions
+     */
+    private void evaluateTailCall(ParametrizedSymbol symbol, Register targetRegister, List<PExpression> parameters) {
+        List<TypedSymbol> frame = Lists.newArrayList();
+        if (thisSymbol != null) {
+            frame.add(thisSymbol);
+            write("SET PUSH " + ((targetRegister != null) ? targetRegister.toString() : lookupExpression()));
+            stack.push(new FunctionPlaceholder(thisSymbol.getType()));
+        }
+        frame.addAll(getScope(currentDeclaration).getLocals());
+        pushArguments(getScope(symbol.getDeclaration()).getLocals(), parameters);
 
-        if (thisPlaceholder != null) {
+        for (TypedSymbol slot : Lists.reverse(frame)) {
             TypedSymbol popped = stack.pop();
-            assert (popped == thisPlaceholder);
-            write("SET EX POP");
+            assert (popped instanceof FunctionPlaceholder);
+            write("SET Y POP");
+            write("SET " + getStackOperand(slot) + " Y");
         }
 
-        // the function invocation will have already set the register
+        Scope scope = getScope();
+        while (scope != getScope(currentDeclaration)) {
+            doReclaimScope(scope);
+            scope = scope.getParent();
+        }
+        doReclaimFrame();
+        write("SET PC " + getStartLabel(symbol.getDeclaration()));
+        invokedDeclarations.put(getEmittingDeclaration(), symbol.getDeclaration());
         expressionResult = null;
+        tailCalled = true;
+    }
+
+    /**
+     * Emits the body of the specified function in place of a call to it. The arguments, and {@code this} if there is
+     * one, must already have been pushed or placed in registers just as for a call; they are reclaimed by the caller afterwards, also just as
+     * for a call. The body is generated in the scope of its own declaration, with its own {@code this}, and a
+     * {@code return} statement within it jumps to the end of the inlined code rather than returning. Since the same
+     * body may be inlined in many places, its labels are made unique to this copy.
+     *
+     * @param invocation the invocation being replaced
+     * @param symbol the function being inlined
+     * @param thisPlaceholder the placeholder which was pushed for {@code this}, or {@code null} if there is none
+     * @param calleeThisRegister the register in which {@code this} was placed, or {@code null} if it was pushed
+     */
+    private void evaluateInlineBody(Node invocation, ParametrizedSymbol symbol, FunctionPlaceholder thisPlaceholder,
+                                    Register calleeThisRegister) {
+        Node declaration = symbol.getDeclaration();
+        PStatement body = getBody(declaration);
+        String returnLabel = "return_" + getBaseLabel(invocation);
+
+        Scope enclosingScope = getScope();
+        Node enclosingDeclaration = currentDeclaration;
+        FunctionPlaceholder enclosingThis = thisSymbol;
+        Register enclosingThisRegister = thisRegister;
+        inlinedDeclarations.push(enclosingDeclaration);
+        inlineLabels.put(body, Maps.<Node, Integer>newHashMap());
+        onEnterScope(declaration);
+        flowStructures.push(new InlineFlowStructure(this, returnLabel));
+        currentDeclaration = declaration;
+        thisSymbol = thisPlaceholder;
+        thisRegister = calleeThisRegister;
+
+        inline(body);
+        if (symbol.getReturnType() != null) {
+            requireValue();
+        }
+        write(":" + returnLabel);
+
+        thisSymbol = enclosingThis;
+        thisRegister = enclosingThisRegister;
+        currentDeclaration = enclosingDeclaration;
+        flowStructures.pop();
+        // the caller reclaims the parameters, as it would after a call, so only the scope itself is restored here
+        setScope(enclosingScope);
+        inlineLabels.remove(body);
+        inlinedDeclarations.pop();
+    }
+
+    /**
+     * Decides whether an invocation of the specified function should be replaced by a copy of its body. Constructors,
+     * {@code native} functions, functions declared {@code noinline} and functions containing native statements are
+     * never inlined, nor is any function into itself, either directly or through other inlined functions. Otherwise,
+     * a function declared {@code inline} is always inlined, and any other function is inlined if the
+     * {@linkplain #estimateCost(Node) estimated cost} of its body is within the budget set on the {@link Compiler}.
+     *
+     * @param symbol the function being invoked
+     * @return whether the invocation should be inlined
+     */
+    private boolean isInlined(ParametrizedSymbol symbol) {
+        Node declaration = symbol.getDeclaration();
+        Set<Modifier> modifiers = symbol.getModifiers();
+        if (symbol instanceof ConstructorSymbol || modifiers.contains(Modifier.NATIVE)
+                || modifiers.contains(Modifier.NOINLINE) || declaration == currentDeclaration
+                || inlinedDeclarations.contains(declaration)) {
+            return false;
+        }
+        int[] cost = estimateCost(getBody(declaration));
+        if (cost == null) {
+            return false;
+        } else if (modifiers.contains(Modifier.INLINE)) {
+            return true;
+        } else {
+            return (cost[0] <= compiler.getInliningWords() && cost[1] <= compiler.getInliningCycles());
+        }
+    }
+
+    /**
+     * Estimates the size, in words, and the execution time, in cycles, of the code generated for the specified
+     * function body. Each node in the body counts as one word and one cycle, and each invocation within it adds the
+     * overhead of a call. A loop may execute any number of times, so a body containing one has an unbounded execution
+     * time. Native statements address the stack at fixed offsets from the call, so a body containing one cannot be
+     * inlined at all, and {@code null} is returned.
+     *
+     * @param body the function body
+     * @return the estimated size and execution time of the body, or {@code null} if the body cannot be inlined
+     */
+    static int[] estimateCost(Node body) {
+        final int[] cost = { 0, 0 };
+        final boolean[] flags = { false, false }; // loops, native statements
+        body.apply(new DepthFirstAdapter() {
+            @Override
+            public void defaultIn(Node node) {
+                cost[0] += 1;
+                cost[1] += 1;
+                if (node instanceof PFunctionInvocation || node instanceof PConstructorInvocation
+                        || node instanceof PCastInvocation) {
+                    cost[0] += INVOCATION_WORDS;
+                    cost[1] += INVOCATION_CYCLES;
+                } else if (node instanceof AWhileStatement || node instanceof AForStatement
+                        || node instanceof ADoStatement) {
+                    flags[0] = true;
+                } else if (node instanceof ANativeStatement) {
+                    flags[1] = true;
+                }
+            }
+        });
+        if (flags[1]) {
+            return null;
+        } else if (flags[0]) {
+            cost[1] = Integer.MAX_VALUE;
+        }
+        return cost;
+    }
+
+    static PStatement getBody(Node declaration) {
+        if (declaration instanceof AFunctionDeclaration) {
+            return ((AFunctionDeclaration) declaration).getBody();
+        } else if (declaration instanceof AVoidFunctionDeclaration) {
+            return ((AVoidFunctionDeclaration) declaration).getBody();
+        } else if (declaration instanceof ACastDeclaration) {
+            return ((ACastDeclaration) declaration).getBody();
+        } else {
+            return ((AConstructorDeclaration) declaration).getBody();
+        }
+    }
+
+    /**
+     * Leaves in register A a pointer to the frame slots reserved for the specified allocation, which is the address of
+     * its last slot, since the frame grows downward.
+     *
+     * @param allocation a constructor invocation which has been assigned frame slots
+     */
+    private void evaluateStackAllocation(Node allocation) {
+        int lastSlot = allocationSlots.get(allocation) + escapeAnalyzer.getStackAllocations().get(allocation) - 1;
+        int stackOffset = getStackOffset(frame.get(lastSlot));
+        write("SET A SP");
+        if (stackOffset > 0) {
+            write(String.format("ADD A 0x%04x", stackOffset));
+        }
+    }
+
+    /**
+     * Emits a call to {@code heapalloc} which allocates the number of words given by the specified assembly value. The
+     * pointer to the allocated block is left in register A. Since {@code heapalloc} takes its argument in X, the
+     * previous contents of X are preserved if X has been assigned to any local in the current function, or if it holds
+     * a temporary.
+     *
+     * @param width an assembly value for the number of words to allocate
+     */
+    private void evaluateHeapAllocation(String width) {
+        boolean preserveX = registerAllocator.getUsedRegisters(currentDeclaration).contains(Register.X)
+                || temporaries.contains(Register.X);
+        if (preserveX) {
+            write("SET PUSH X");
+        }
+        write("SET X " + width);
+        write("JSR heapalloc");
+        if (preserveX) {
+            writeRestore(Register.X);
+        }
     }
 
     @Override
@@ -1140,14 +4168,7 @@ final class CodeGenerator extends ScopeAwareWalker {
 
             inline(fieldAccess.getTarget());
             requireValue();
-            int fieldOffset = 0;
-            for (FieldSymbol declaredField : scope.getFields()) {
-                if (declaredField == symbol) {
-                    break;
-                } else {
-                    fieldOffset += 1;
-                }
-            }
+            int fieldOffset = getFieldOffset(symbol);
             if (fieldOffset > 0) {
                 write(String.format("ADD A 0x%04x", fieldOffset));
             }
@@ -1171,14 +4192,13 @@ final class CodeGenerator extends ScopeAwareWalker {
     }
 
     @Override
-    public void caseAArrayAccess(AArrayAccess arrayAccess) {
-        inline(arrayAccess.getArray());
-        TransientPlaceholder array = pushExpression();
-
-        inline(arrayAccess.getIndex());
-        requireValue();
-
-        write("ADD A " + array.lookup());
+    public void caseAArrayAccess(AArrayAccess arrayAccess) {
+        Register pointer = elementPointers.get(arrayAccess);
+        if (pointer != null) {
+            write("SET A " + pointer);
+        } else {
+            writeOperation("ADD", evaluateOperands(arrayAccess.getArray(), arrayAccess.getIndex(), true));
+        }
         expressionResult = new ArrayElementPlaceholder(types.get(arrayAccess));
     }
 
@@ -1214,323 +4234,180 @@ final class CodeGenerator extends ScopeAwareWalker {
 
     @Override
     public void caseAMultiplyExpression(AMultiplyExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        if (types.get(expression).isSigned()) {
-            write("MLI A " + left.lookup());
-        } else {
-            write("MUL A " + left.lookup());
+        // the low word of a product is the same whether or not it is signed, so any power of two is a left shift
+        int shift = getLiteralPowerOfTwo(expression.getRight());
+        PExpression factor = expression.getLeft();
+        if (shift < 0) {
+            shift = getLiteralPowerOfTwo(expression.getLeft());
+            factor = expression.getRight();
         }
-        expressionResult = null;
+        if (shift >= 0) {
+            inline(factor);
+            requireValue();
+            if (shift > 0) {
+                write(String.format("SHL A 0x%04x", shift));
+            }
+            return;
+        }
+
+        Operands operands = evaluateOperands(expression.getLeft(), expression.getRight(), true);
+        writeOperation(types.get(expression).isSigned() ? "MLI" : "MUL", operands);
     }
 
     @Override
     public void caseADivideExpression(ADivideExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("SET B " + left.lookup());
-        if (types.get(expression).isSigned()) {
-            write("DVI B A");
-        } else {
-            write("DIV B A");
+        // signed division rounds toward zero, but ASR rounds toward negative infinity, so only 1 is reduced for DVI
+        int shift = getLiteralPowerOfTwo(expression.getRight());
+        if (shift == 0 || (shift > 0 && !types.get(expression).isSigned())) {
+            inline(expression.getLeft());
+            requireValue();
+            if (shift > 0) {
+                write(String.format("SHR A 0x%04x", shift));
+            }
+            return;
         }
-        write("SET A B");
-        expressionResult = null;
+
+        Operands operands = evaluateOperands(expression.getLeft(), expression.getRight(), false);
+        writeOperation(types.get(expression).isSigned() ? "DVI" : "DIV", operands);
     }
 
     @Override
     public void caseAModulusExpression(AModulusExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
+        // the result of MDI takes the sign of the dividend, so only 1 is reduced for signed operands
+        int shift = getLiteralPowerOfTwo(expression.getRight());
+        if (shift == 0 || (shift > 0 && !types.get(expression).isSigned())) {
+            inline(expression.getLeft());
+            requireValue();
+            write(String.format("AND A 0x%04x", (1 << shift) - 1));
+            return;
+        }
 
-        inline(expression.getRight());
-        requireValue();
+        Operands operands = evaluateOperands(expression.getLeft(), expression.getRight(), false);
+        writeOperation(types.get(expression).isSigned() ? "MDI" : "MOD", operands);
+    }
 
-        write("SET B " + left.lookup());
-        if (types.get(expression).isSigned()) {
-            write("MDI B A");
-        } else {
-            write("MOD B A");
+    /**
+     * Returns the base two logarithm of the specified expression if it is a literal power of two, or -1 otherwise.
+     * Multiplication, division and modulus by such literals can be strength-reduced to shifts and masks, which take
+     * one cycle rather than two or three.
+     *
+     * @param expression the expression
+     * @return the exponent if the expression is a literal power of two, or -1
+     */
+    private static int getLiteralPowerOfTwo(Node expression) {
+        BigInteger value = getLiteralValue(expression);
+        if (value == null || value.signum() <= 0 || value.bitCount() != 1) {
+            return -1;
         }
-        write("SET A B");
-        expressionResult = null;
+        return value.getLowestSetBit();
     }
 
     @Override
     public void caseAAddExpression(AAddExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("ADD A " + left.lookup());
-        expressionResult = null;
+        writeOperation("ADD", evaluateOperands(expression.getLeft(), expression.getRight(), true));
     }
 
     @Override
     public void caseASubtractExpression(ASubtractExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("SET B " + left.lookup());
-        write("SUB B A");
-        write("SET A B");
-        expressionResult = null;
+        writeOperation("SUB", evaluateOperands(expression.getLeft(), expression.getRight(), false));
     }
 
     @Override
     public void caseAShiftLeftExpression(AShiftLeftExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("SET B " + left.lookup());
-        write("SHL B A");
-        write("SET A B");
-        expressionResult = null;
+        writeOperation("SHL", evaluateOperands(expression.getLeft(), expression.getRight(), false));
     }
 
     @Override
     public void caseAShiftRightExpression(AShiftRightExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("SET B " + left.lookup());
-        write("ASR B A");
-        write("SET A B");
-        expressionResult = null;
+        writeOperation("ASR", evaluateOperands(expression.getLeft(), expression.getRight(), false));
     }
 
     @Override
     public void caseAUnsignedShiftRightExpression(AUnsignedShiftRightExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("SET B " + left.lookup());
-        write("SHR B A");
-        write("SET A B");
-        expressionResult = null;
+        writeOperation("SHR", evaluateOperands(expression.getLeft(), expression.getRight(), false));
     }
 
     @Override
     public void caseALessThanExpression(ALessThanExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        if (types.get(expression.getLeft()).isSigned()) {
-            write(String.format("IFU %s A", left.lookupAsB()));
-        } else {
-            write(String.format("IFL %s A", left.lookupAsB()));
-        }
-        write("SET PC true_" + getBaseLabel(expression));
-        write("SET A 0x0000");
-        write("SET PC " + getEndLabel(expression));
-        write(":true_" + getBaseLabel(expression));
-        write("SET A 0x0001");
-        expressionResult = null;
+        evaluateComparison(expression);
     }
 
     @Override
     public void caseAGreaterThanExpression(AGreaterThanExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        if (types.get(expression.getLeft()).isSigned()) {
-            write(String.format("IFA %s A", left.lookupAsB()));
-        } else {
-            write(String.format("IFG %s A", left.lookupAsB()));
-        }
-        write("SET PC true_" + getBaseLabel(expression));
-        write("SET A 0x0000");
-        write("SET PC " + getEndLabel(expression));
-        write(":true_" + getBaseLabel(expression));
-        write("SET A 0x0001");
-        expressionResult = null;
+        evaluateComparison(expression);
     }
 
     @Override
     public void caseALessOrEqualExpression(ALessOrEqualExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        if (types.get(expression.getLeft()).isSigned()) {
-            write(String.format("IFA %s A", left.lookupAsB()));
-        } else {
-            write(String.format("IFG %s A", left.lookupAsB()));
-        }
-        write("SET PC false_" + getBaseLabel(expression));
-        write("SET A 0x0001");
-        write("SET PC " + getEndLabel(expression));
-        write(":false_" + getBaseLabel(expression));
-        write("SET A 0x0000");
-        expressionResult = null;
+        evaluateComparison(expression);
     }
 
     @Override
     public void caseAGreaterOrEqualExpression(AGreaterOrEqualExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        if (types.get(expression.getLeft()).isSigned()) {
-            write(String.format("IFU %s A", left.lookupAsB()));
-        } else {
-            write(String.format("IFL %s A", left.lookupAsB()));
-        }
-        write("SET PC false_" + getBaseLabel(expression));
-        write("SET A 0x0001");
-        write("SET PC " + getEndLabel(expression));
-        write(":false_" + getBaseLabel(expression));
-        write("SET A 0x0000");
-        expressionResult = null;
+        evaluateComparison(expression);
     }
 
     @Override
     public void caseAEqualExpression(AEqualExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("IFE A " + left.lookup());
-        write("SET PC true_" + getBaseLabel(expression));
-        write("SET A 0x0000");
-        write("SET PC " + getEndLabel(expression));
-        write(":true_" + getBaseLabel(expression));
-        write("SET A 0x0001");
-        expressionResult = null;
+        evaluateComparison(expression);
     }
 
     @Override
     public void caseANotEqualExpression(ANotEqualExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("IFE A " + left.lookup());
-        write("SET PC false_" + getBaseLabel(expression));
-        write("SET A 0x0001");
-        write("SET PC " + getEndLabel(expression));
-        write(":false_" + getBaseLabel(expression));
-        write("SET A 0x0000");
-        expressionResult = null;
+        evaluateComparison(expression);
     }
 
     @Override
     public void caseABitwiseAndExpression(ABitwiseAndExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("AND A " + left.lookup());
-        expressionResult = null;
+        writeOperation("AND", evaluateOperands(expression.getLeft(), expression.getRight(), true));
     }
 
     @Override
     public void caseABitwiseXorExpression(ABitwiseXorExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("XOR A " + left.lookup());
-        expressionResult = null;
+        writeOperation("XOR", evaluateOperands(expression.getLeft(), expression.getRight(), true));
     }
 
     @Override
     public void caseABitwiseOrExpression(ABitwiseOrExpression expression) {
-        inline(expression.getLeft());
-        TransientPlaceholder left = pushExpression();
-
-        inline(expression.getRight());
-        requireValue();
-
-        write("BOR A " + left.lookup());
-        expressionResult = null;
+        writeOperation("BOR", evaluateOperands(expression.getLeft(), expression.getRight(), true));
     }
 
     @Override
     public void caseAConditionalAndExpression(AConditionalAndExpression expression) {
-        inline(expression.getLeft());
-        write(String.format("IFE %s 0x0000", lookupExpression()));
-        write("SET PC false_" + getBaseLabel(expression));
-
-        inline(expression.getRight());
-        write(String.format("IFE %s 0x0000", lookupExpression()));
-        write("SET PC false_" + getBaseLabel(expression));
-
-        write("SET A 0x0001");
-        write("SET PC " + getEndLabel(expression));
-        write(":false_" + getBaseLabel(expression));
-        write("SET A 0x0000");
-        expressionResult = null;
+        evaluateCondition(expression);
     }
 
     @Override
     public void caseAConditionalOrExpression(AConditionalOrExpression expression) {
-        inline(expression.getLeft());
-        write(String.format("IFE %s 0x0001", lookupExpression()));
-        write("SET PC true_" + getBaseLabel(expression));
-
-        inline(expression.getRight());
-        write(String.format("IFE %s 0x0001", lookupExpression()));
-        write("SET PC true_" + getBaseLabel(expression));
+        evaluateCondition(expression);
+    }
 
-        write("SET A 0x0000");
-        write("SET PC " + getEndLabel(expression));
-        write(":true_" + getBaseLabel(expression));
+    /**
+     * Evaluates a conditional expression for its value, leaving 0 or 1 in register A.
+     *
+     * @param expression the conditional expression
+     */
+    private void evaluateCondition(PExpression expression) {
+        branch(expression, false, "false_" + getBaseLabel(expression));
         write("SET A 0x0001");
+        write("SET PC " + getEndLabel(expression));
+        write(":false_" + getBaseLabel(expression));
+        write("SET A 0x0000");
         expressionResult = null;
     }
 
     @Override
     public void caseAConditionalExpression(AConditionalExpression expression) {
-        inline(expression.getCondition());
-        write(String.format("IFE %s 0x0001", lookupExpression()));
-        write("SET PC true_" + getBaseLabel(expression));
+        branch(expression.getCondition(), true, "true_" + getBaseLabel(expression));
 
         inline(expression.getIfFalse());
+        requireValue();
         write("SET PC " + getEndLabel(expression));
 
         write(":true_" + getBaseLabel(expression));
         inline(expression.getIfTrue());
+        // both branches must leave their result in the same place
+        requireValue();
     }
 
     @Override
@@ -1540,7 +4417,68 @@ final class CodeGenerator extends ScopeAwareWalker {
 
     @Override
     public void caseAAssignment(AAssignment assignment) {
-        inline(assignment.getTarget());
+        if (assignment.getTarget() instanceof AArrayAccessAssignmentTarget) {
+            Register pointer = elementPointers.get(((AArrayAccessAssignmentTarget) assignment.getTarget()).getArrayAccess());
+            if (pointer != null) {
+                inline(assignment.getValue());
+                requireValue();
+                write(String.format("SET [%s] A", pointer));
+                expressionResult = null;
+                return;
+            }
+        }
+
+        // targets which can be addressed directly need no pointer, and may be modified in place
+        PAssignmentTarget assignmentTarget = assignment.getTarget();
+        TypedSymbol local = null;
+        String field = null;
+        if (assignmentTarget instanceof ALocalDeclarationAssignmentTarget) {
+            inline(assignmentTarget);
+            local = expressionResult;
+        } else if (assignmentTarget instanceof AIdentifierAssignmentTarget) {
+            TIdentifier identifier = ((AIdentifierAssignmentTarget) assignmentTarget).getIdentifier();
+            try {
+                local = getScope().resolveLocal(identifier.getText());
+            } catch (SemanticException sx) {
+                // any invocation in the value reloads this, so the register still holds it afterwards
+                field = getThisFieldOperand(identifier);
+            }
+        } else if (assignmentTarget instanceof AFieldAccessAssignmentTarget) {
+            PFieldAccess fieldAccess = ((AFieldAccessAssignmentTarget) assignmentTarget).getFieldAccess();
+            // the value must not change the register holding the object
+            if (fieldAccess instanceof ATypeTokenFieldAccess || isPure(assignment.getValue())) {
+                field = getFieldAccessOperand(fieldAccess);
+            }
+        }
+        if (local != null || field != null) {
+            String target = (local != null) ? getVariableOperand(local) : field;
+            String instruction = getInPlaceInstruction(target, assignment.getValue());
+            boolean evaluated = false;
+            if (instruction == null) {
+                String value = getLeafOperand(assignment.getValue());
+                if (value == null) {
+                    inline(assignment.getValue());
+                    requireValue();
+                    value = "A";
+                    evaluated = true;
+                }
+                instruction = value.equals(target) ? null : String.format("SET %s %s", target, value);
+            }
+            if (instruction != null) {
+                write(instruction);
+            }
+            if (evaluated || (local == null && isDiscarded(assignment))) {
+                expressionResult = null;
+            } else if (local != null) {
+                expressionResult = local;
+            } else {
+                write("SET A " + field);
+                expressionResult = null;
+            }
+            return;
+        }
+
+        inline(assignmentTarget);
         assert (expressionResult != null && !(expressionResult instanceof TransientPlaceholder));
         TransientPlaceholder target = pushExpression();
 
@@ -1550,6 +4488,273 @@ final class CodeGenerator extends ScopeAwareWalker {
         expressionResult = null;
     }
 
+    @Override
+    public void caseAAddAssignment(AAddAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseASubtractAssignment(ASubtractAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseAMultiplyAssignment(AMultiplyAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseADivideAssignment(ADivideAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseAModulusAssignment(AModulusAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseABitwiseAndAssignment(ABitwiseAndAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseABitwiseXorAssignment(ABitwiseXorAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseABitwiseOrAssignment(ABitwiseOrAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseAShiftLeftAssignment(AShiftLeftAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseAShiftRightAssignment(AShiftRightAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseAUnsignedShiftRightAssignment(AUnsignedShiftRightAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseAIncrementAssignment(AIncrementAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void caseADecrementAssignment(ADecrementAssignment assignment) {
+        evaluateCompoundAssignment(assignment);
+    }
+
+    /**
+     * Evaluates a compound assignment, increment or decrement as a single instruction which reads, modifies and writes
+     * its target, such as {@code ADD [Y] A}. The address of the target is computed only once, before the value is
+     * evaluated, so any side effects of the target happen exactly once. Targets which can be addressed directly are
+     * modified in place without a pointer at all, just as for a plain {@linkplain #caseAAssignment(AAssignment)
+     * assignment}. If the value has side effects which might modify the target, the current value of the target is
+     * instead pushed before the value is evaluated, so that {@code x += f()} reads {@code x} first just as
+     * {@code x = x + f()} does.
+     *
+     * @param assignment the compound assignment
+     */
+    private void evaluateCompoundAssignment(PAssignment assignment) {
+        PAssignmentTarget assignmentTarget = getAssignmentTarget(assignment);
+        PExpression value = getAssignmentValue(assignment);
+        Class<? extends PExpression> operator = getCompoundOperator(assignment);
+        boolean signed = types.get(assignment).isSigned();
+
+        TypedSymbol local = null;
+        String target = null;
+        if (assignmentTarget instanceof ALocalDeclarationAssignmentTarget) {
+            inline(assignmentTarget);
+            local = expressionResult;
+        } else if (assignmentTarget instanceof AIdentifierAssignmentTarget) {
+            TIdentifier identifier = ((AIdentifierAssignmentTarget) assignmentTarget).getIdentifier();
+            try {
+                local = getScope().resolveLocal(identifier.getText());
+            } catch (SemanticException sx) {
+                target = getThisFieldOperand(identifier);
+            }
+        } else if (assignmentTarget instanceof AFieldAccessAssignmentTarget) {
+            PFieldAccess fieldAccess = ((AFieldAccessAssignmentTarget) assignmentTarget).getFieldAccess();
+            if (fieldAccess instanceof ATypeTokenFieldAccess || value == null || isPure(value)) {
+                target = getFieldAccessOperand(fieldAccess);
+            }
+        } else if (assignmentTarget instanceof AArrayAccessAssignmentTarget) {
+            Register pointer = elementPointers.get(((AArrayAccessAssignmentTarget) assignmentTarget).getArrayAccess());
+            if (pointer != null) {
+                target = String.format("[%s]", pointer);
+            }
+        }
+        if (local != null) {
+            target = getVariableOperand(local);
+        }
+
+        if (local == null && value != null && !isPure(value)) {
+            // the value may modify the target, so the current value of the target must be read first
+            TransientPlaceholder pointer = null;
+            if (target == null) {
+                inline(assignmentTarget);
+                assert (expressionResult != null && getVariableOperand(expressionResult) == null);
+                pointer = pushExpression();
+                target = "[A]";
+            }
+            write("SET PUSH " + target);
+            TransientPlaceholder current = new TransientValuePlaceholder();
+            stack.push(current);
+            inline(value);
+            requireValue();
+            write("SET B " + current.lookup());
+            write(getOperationInstruction(operator, signed, "B", value, "A"));
+            if (pointer != null) {
+                target = pointer.lookup();
+            }
+            write(String.format("SET %s B", target));
+        } else {
+            String operand = (value == null) ? "0x0001" : getLeafOperand(value);
+            if (target == null) {
+                inline(assignmentTarget);
+                assert (expressionResult != null && getVariableOperand(expressionResult) == null);
+                if (operand != null) {
+                    target = "[A]";
+                } else {
+                    TransientPlaceholder pointer = pushExpression();
+                    inline(value);
+                    requireValue();
+                    target = pointer.lookup();
+                    operand = "A";
+                }
+            } else if (operand == null) {
+                inline(value);
+                requireValue();
+                operand = "A";
+            }
+            write(getOperationInstruction(operator, signed, target, value, operand));
+        }
+
+        if (local != null) {
+            expressionResult = local;
+        } else {
+            if (!isDiscarded(assignment)) {
+                write("SET A " + target);
+            }
+            expressionResult = null;
+        }
+    }
+
+    /**
+     * Returns a single instruction which computes the specified value in the target itself, if the value is a binary
+     * operation on the target and a {@linkplain #getLeafOperand(Node) leaf}, or {@code null} otherwise. For example,
+     * {@code x = x + 1} for a local on the stack becomes {@code ADD [SP+0x0003] 0x0001}. For commutative operations, the
+     * target may be either operand. Multiplication, division and modulus by powers of two are strength-reduced just as
+     * they are when evaluated normally.
+     *
+     * @param target an assembly value for the target of an assignment
+     * @param value the value being assigned
+     * @return an instruction which modifies the target in place, or {@code null}
+     */
+    private String getInPlaceInstruction(String target, PExpression value) {
+        Node expression = unwrapExpression(value);
+        List<PExpression> operands = getBinaryOperands(expression);
+        if (operands == null || getRelation(expression) != null) {
+            return null;
+        }
+        boolean commutative = (expression instanceof AAddExpression || expression instanceof AMultiplyExpression
+                || expression instanceof ABitwiseAndExpression || expression instanceof ABitwiseXorExpression
+                || expression instanceof ABitwiseOrExpression);
+        Node other;
+        if (target.equals(getLeafOperand(operands.get(0)))) {
+            other = operands.get(1);
+        } else if (commutative && target.equals(getLeafOperand(operands.get(1)))) {
+            other = operands.get(0);
+        } else {
+            return null;
+        }
+        String operand = getLeafOperand(other);
+        if (operand == null) {
+            return null;
+        }
+        return getOperationInstruction(expression.getClass(), types.get(expression).isSigned(), target, other, operand);
+    }
+
+    /**
+     * Returns the instruction which performs a binary operation on the target in place, strength-reducing
+     * multiplication, division and modulus by a literal power of two.
+     *
+     * @param operator the class of the binary expression whose operation is performed
+     * @param signed whether the operation is signed
+     * @param target an assembly value for the left operand, which receives the result
+     * @param other the right operand, or {@code null} if it is not in the syntax tree
+     * @param operand an assembly value for the right operand
+     * @return the instruction performing the operation
+     */
+    private static String getOperationInstruction(Class<?> operator, boolean signed, String target, Node other,
+                                                  String operand) {
+        int shift = (other == null) ? -1 : getLiteralPowerOfTwo(other);
+        String opcode;
+        if (operator == AAddExpression.class) {
+            opcode = "ADD";
+        } else if (operator == ASubtractExpression.class) {
+            opcode = "SUB";
+        } else if (operator == AMultiplyExpression.class) {
+            if (shift >= 0) {
+                opcode = "SHL";
+                operand = String.format("0x%04x", shift);
+            } else {
+                opcode = signed ? "MLI" : "MUL";
+            }
+        } else if (operator == ADivideExpression.class) {
+            if (shift > 0 && !signed) {
+                opcode = "SHR";
+                operand = String.format("0x%04x", shift);
+            } else {
+                opcode = signed ? "DVI" : "DIV";
+            }
+        } else if (operator == AModulusExpression.class) {
+            if (shift >= 0 && !signed) {
+                opcode = "AND";
+                operand = String.format("0x%04x", (1 << shift) - 1);
+            } else {
+                opcode = signed ? "MDI" : "MOD";
+            }
+        } else if (operator == AShiftLeftExpression.class) {
+            opcode = "SHL";
+        } else if (operator == AShiftRightExpression.class) {
+            opcode = "ASR";
+        } else if (operator == AUnsignedShiftRightExpression.class) {
+            opcode = "SHR";
+        } else if (operator == ABitwiseAndExpression.class) {
+            opcode = "AND";
+        } else if (operator == ABitwiseXorExpression.class) {
+            opcode = "XOR";
+        } else {
+            assert (operator == ABitwiseOrExpression.class);
+            opcode = "BOR";
+        }
+        return String.format("%s %s %s", opcode, target, operand);
+    }
+
+    /**
+     * Returns {@code true} if the value of the specified assignment is never used, because it is the entire expression
+     * of an expression statement, or the initializer or update of a {@code for} loop.
+     *
+     * @param assignment the assignment
+     * @return whether the value of the assignment is discarded
+     */
+    private static boolean isDiscarded(PAssignment assignment) {
+        Node expression = assignment.parent();
+        Node parent = expression.parent();
+        return (parent instanceof AExpressionStatement
+                || (parent instanceof AForStatement && ((AForStatement) parent).getCondition() != expression));
+    }
+
     @Override
     public void caseALocalDeclarationAssignmentTarget(ALocalDeclarationAssignmentTarget assignmentTarget) {
         inline(assignmentTarget.getLocalDeclaration());
@@ -1573,19 +4778,11 @@ final class CodeGenerator extends ScopeAwareWalker {
     private void enforceIdentifier(TIdentifier identifier) {
         try {
             try {
+                // locals are addressed directly, so there is no pointer to compute
                 expressionResult = getScope().resolveLocal(identifier.getText());
-                evaluateStackExpression(expressionResult);
             } catch (SemanticException sx) {
                 FieldSymbol field = getScope().resolveField(identifier.getText());
-
-                int fieldOffset = 0;
-                for (TypedSymbol declaredField : getScope().getFields()) {
-                    if (declaredField == field) {
-                        break;
-                    } else {
-                        fieldOffset += 1;
-                    }
-                }
+                int fieldOffset = getFieldOffset(field);
 
                 inline(new AThisPrimaryExpression());
                 if (fieldOffset > 0) {
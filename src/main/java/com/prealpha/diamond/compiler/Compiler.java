@@ -105,6 +105,76 @@ public abstract class Compiler {
             }
         },
 
+        CONSTANT_FOLDING {
+            @Override
+            void execute(Compiler compiler, Start tree) {
+                ConstantFolder constantFolder = new ConstantFolder(compiler);
+                tree.apply(constantFolder);
+                compiler.types = constantFolder.getTypes();
+            }
+        },
+
+        FUNCTION_EVALUATION {
+            @Override
+            void execute(Compiler compiler, Start tree) {
+                FunctionEvaluator evaluator = new FunctionEvaluator(compiler);
+                while (evaluator.evaluate(tree)) {
+                    // the new literals need types, and may make more constants to fold
+                    SYMBOL_TABLE.execute(compiler, tree);
+                    TYPE_ENFORCEMENT.execute(compiler, tree);
+                    CONSTANT_FOLDING.execute(compiler, tree);
+                }
+            }
+        },
+
+        SPECIALIZATION {
+            @Override
+            void execute(Compiler compiler, Start tree) {
+                FunctionSpecializer specializer = new FunctionSpecializer(compiler);
+                while (specializer.specialize(tree)) {
+                    // the specialized functions need symbols and types of their own, and their constants folded
+                    SYMBOL_TABLE.execute(compiler, tree);
+                    TYPE_ENFORCEMENT.execute(compiler, tree);
+                    CONSTANT_FOLDING.execute(compiler, tree);
+                    // a specialized body may invoke other functions with nothing but constants
+                    FUNCTION_EVALUATION.execute(compiler, tree);
+                }
+            }
+        },
+
+        DEAD_CODE_ELIMINATION {
+            @Override
+            void execute(Compiler compiler, Start tree) {
+                DeadCodeEliminator deadCodeEliminator = new DeadCodeEliminator(compiler);
+                tree.apply(deadCodeEliminator);
+            }
+        },
+
+        LOWERING {
+            @Override
+            void execute(Compiler compiler, Start tree) {
+                ControlFlowGraphBuilder builder = new ControlFlowGraphBuilder(compiler);
+                tree.apply(builder);
+                compiler.controlFlowGraphs = builder.getGraphs();
+            }
+        },
+
+        ESCAPE_ANALYSIS {
+            @Override
+            void execute(Compiler compiler, Start tree) {
+                compiler.escapeAnalyzer = new EscapeAnalyzer(compiler);
+                tree.apply(compiler.escapeAnalyzer);
+            }
+        },
+
+        REGISTER_ALLOCATION {
+            @Override
+            void execute(Compiler compiler, Start tree) {
+                compiler.registerAllocator = new RegisterAllocator(compiler);
+                tree.apply(compiler.registerAllocator);
+            }
+        },
+
         CODE_GENERATION {
             @Override
             void execute(Compiler compiler, Start tree) {
@@ -121,12 +191,61 @@ public abstract class Compiler {
         abstract void execute(Compiler compiler, Start tree);
     }
 
+    /**
+     * The default number of words a function body may be estimated to occupy and still be inlined at its call sites.
+     */
+    public static final int DEFAULT_INLINING_WORDS = 16;
+
+    /**
+     * The default number of cycles a function body may be estimated to take and still be inlined at its call sites.
+     */
+    public static final int DEFAULT_INLINING_CYCLES = 24;
+
+    /**
+     * The default number of steps which the evaluation of a single invocation at compile time may take; each step is
+     * worth a few cycles, so this is roughly as much work as the DCPU does in a second.
+     */
+    public static final int DEFAULT_EVALUATION_STEPS = 100000;
+
+    /**
+     * The default number of words which all the specialized copies of functions may be estimated to occupy.
+     */
+    public static final int DEFAULT_SPECIALIZATION_WORDS = 128;
+
+    /**
+     * The default number of words which all the copies of an unrolled loop body may be estimated to occupy.
+     */
+    public static final int DEFAULT_UNROLLING_WORDS = 96;
+
+    /**
+     * The default number of copies of its body which a partially unrolled loop executes on each iteration.
+     */
+    public static final int DEFAULT_UNROLLING_FACTOR = 4;
+
+    private int inliningWords = DEFAULT_INLINING_WORDS;
+
+    private int inliningCycles = DEFAULT_INLINING_CYCLES;
+
+    private int evaluationSteps = DEFAULT_EVALUATION_STEPS;
+
+    private int specializationWords = DEFAULT_SPECIALIZATION_WORDS;
+
+    private int unrollingWords = DEFAULT_UNROLLING_WORDS;
+
+    private int unrollingFactor = DEFAULT_UNROLLING_FACTOR;
+
     private File mainFile;
 
     private ScopeAwareWalker scopeSource;
 
     private Map<Node, TypeToken> types;
 
+    private Map<Node, ControlFlowGraph> controlFlowGraphs;
+
+    private EscapeAnalyzer escapeAnalyzer;
+
+    private RegisterAllocator registerAllocator;
+
     private List<String> instructions;
 
     private Compiler() {
@@ -162,10 +281,75 @@ public abstract class Compiler {
         mainFile = null;
         scopeSource = null;
         types = null;
+        controlFlowGraphs = null;
+        escapeAnalyzer = null;
+        registerAllocator = null;
         instructions = null;
         return toReturn;
     }
 
+    /**
+     * Sets the budget against which the code generator decides whether to inline a function at its call sites. A
+     * function is inlined if the estimated size of its body is at most {@code words} words, and the estimated time to
+     * execute its body is at most {@code cycles} cycles. Functions declared {@code inline} are always inlined, and
+     * those declared {@code noinline} never are; a budget of zero therefore inlines only the former.
+     *
+     * @param words the largest estimated body size to inline, in words
+     * @param cycles the largest estimated body execution time to inline, in cycles
+     * @throws IllegalArgumentException if either argument is negative
+     */
+    public void setInliningBudget(int words, int cycles) {
+        checkArgument(words >= 0 && cycles >= 0);
+        inliningWords = words;
+        inliningCycles = cycles;
+    }
+
+    /**
+     * Sets the budget against which the {@link FunctionEvaluator} decides whether to evaluate an invocation with
+     * constant arguments at compile time. An evaluation which has not finished after {@code steps} steps, each of which
+     * executes a single statement or evaluates a single expression, is abandoned, and the invocation is compiled as
+     * usual. A budget of zero steps disables evaluation at compile time.
+     *
+     * @param steps the largest number of steps which a single evaluation may take
+     * @throws IllegalArgumentException if {@code steps} is negative
+     */
+    public void setEvaluationBudget(int steps) {
+        checkArgument(steps >= 0);
+        evaluationSteps = steps;
+    }
+
+    /**
+     * Sets the budget against which the {@link FunctionSpecializer} decides whether to copy a function for the constant
+     * arguments of some of its invocations. Copies are made until their estimated sizes add up to {@code words} words;
+     * a budget of zero words disables copying, although a function whose invocations all agree on a constant argument
+     * is still specialized in place.
+     *
+     * @param words the largest estimated size of all the specialized copies together, in words
+     * @throws IllegalArgumentException if {@code words} is negative
+     */
+    public void setSpecializationBudget(int words) {
+        checkArgument(words >= 0);
+        specializationWords = words;
+    }
+
+    /**
+     * Sets the budget against which the code generator decides whether to unroll a {@code for} loop with a trip count
+     * known at compile time. A loop is unrolled completely if the estimated size of all its iterations is at most
+     * {@code words} words. Otherwise, its body is copied up to {@code factor} times within each iteration, with any
+     * iterations left over copied before the loop, so long as all the copies together are likewise within
+     * {@code words} words. A factor of one therefore disables partial unrolling, and a budget of zero words disables
+     * unrolling altogether.
+     *
+     * @param words the largest estimated size of the copies of a loop body, in words
+     * @param factor the largest number of copies of a loop body in each iteration of a partially unrolled loop
+     * @throws IllegalArgumentException if {@code words} is negative or {@code factor} is less than one
+     */
+    public void setUnrollingBudget(int words, int factor) {
+        checkArgument(words >= 0 && factor >= 1);
+        unrollingWords = words;
+        unrollingFactor = factor;
+    }
+
     abstract void raise(Throwable throwable);
 
     abstract void checkRaised() throws IOException, LexerException, ParserException, SemanticException;
@@ -199,4 +383,43 @@ public abstract class Compiler {
         checkState(types != null);
         return ImmutableMap.copyOf(types);
     }
+
+    Map<Node, ControlFlowGraph> getControlFlowGraphs() {
+        checkState(controlFlowGraphs != null);
+        return controlFlowGraphs;
+    }
+
+    int getInliningWords() {
+        return inliningWords;
+    }
+
+    int getInliningCycles() {
+        return inliningCycles;
+    }
+
+    int getEvaluationSteps() {
+        return evaluationSteps;
+    }
+
+    int getSpecializationWords() {
+        return specializationWords;
+    }
+
+    int getUnrollingWords() {
+        return unrollingWords;
+    }
+
+    int getUnrollingFactor() {
+        return unrollingFactor;
+    }
+
+    EscapeAnalyzer getEscapeAnalyzer() {
+        checkState(escapeAnalyzer != null);
+        return escapeAnalyzer;
+    }
+
+    RegisterAllocator getRegisterAllocator() {
+        checkState(registerAllocator != null);
+        return registerAllocator;
+    }
 }
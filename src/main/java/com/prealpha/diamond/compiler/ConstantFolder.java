@@ -0,0 +1,800 @@
+/*
+ * ConstantFolder.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.analysis.DepthFirstAdapter;
+import com.prealpha.diamond.compiler.node.AAddExpression;
+import com.prealpha.diamond.compiler.node.AAssignment;
+import com.prealpha.diamond.compiler.node.AAssignmentExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseAndExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseComplementExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseOrExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseXorExpression;
+import com.prealpha.diamond.compiler.node.ACastDeclaration;
+import com.prealpha.diamond.compiler.node.AConditionalAndExpression;
+import com.prealpha.diamond.compiler.node.AConditionalExpression;
+import com.prealpha.diamond.compiler.node.AConditionalNotExpression;
+import com.prealpha.diamond.compiler.node.AConditionalOrExpression;
+import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
+import com.prealpha.diamond.compiler.node.ADecimalIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ADivideExpression;
+import com.prealpha.diamond.compiler.node.ADoStatement;
+import com.prealpha.diamond.compiler.node.AEqualExpression;
+import com.prealpha.diamond.compiler.node.AFalseLiteral;
+import com.prealpha.diamond.compiler.node.AForStatement;
+import com.prealpha.diamond.compiler.node.AFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AGreaterOrEqualExpression;
+import com.prealpha.diamond.compiler.node.AGreaterThanExpression;
+import com.prealpha.diamond.compiler.node.AHexIntegralLiteral;
+import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
+import com.prealpha.diamond.compiler.node.AIfThenStatement;
+import com.prealpha.diamond.compiler.node.AIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ALessOrEqualExpression;
+import com.prealpha.diamond.compiler.node.ALessThanExpression;
+import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ALocalDeclaration;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AModulusExpression;
+import com.prealpha.diamond.compiler.node.AMultiplyExpression;
+import com.prealpha.diamond.compiler.node.ANotEqualExpression;
+import com.prealpha.diamond.compiler.node.ANumericNegationExpression;
+import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.AShiftLeftExpression;
+import com.prealpha.diamond.compiler.node.AShiftRightExpression;
+import com.prealpha.diamond.compiler.node.ASubtractExpression;
+import com.prealpha.diamond.compiler.node.ASwitchStatement;
+import com.prealpha.diamond.compiler.node.ATrueLiteral;
+import com.prealpha.diamond.compiler.node.AUnsignedShiftRightExpression;
+import com.prealpha.diamond.compiler.node.AVoidFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AWhileStatement;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PAssignment;
+import com.prealpha.diamond.compiler.node.PAssignmentTarget;
+import com.prealpha.diamond.compiler.node.PCaseGroup;
+import com.prealpha.diamond.compiler.node.PExpression;
+import com.prealpha.diamond.compiler.node.PIntegralLiteral;
+import com.prealpha.diamond.compiler.node.PLiteral;
+import com.prealpha.diamond.compiler.node.PModifier;
+import com.prealpha.diamond.compiler.node.PPrimaryExpression;
+import com.prealpha.diamond.compiler.node.TDecimalLiteral;
+import com.prealpha.diamond.compiler.node.THexLiteral;
+import com.prealpha.diamond.compiler.node.TIdentifier;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>
+ *     Folds constant subexpressions and propagates constants and copies through locals, rewriting the syntax tree in
+ *     place before registers are allocated and code is generated. Arithmetic follows the DCPU-16 instructions which the
+ *     {@link CodeGenerator} would have emitted, including 16-bit wraparound; for example, division by zero yields zero.
+ *     New nodes are added to the type map, which is made available to later phases through {@link #getTypes()}.
+ * </p>
+ *
+ * <p>
+ *     Propagation is a forward analysis over the structured control flow of each function. At each point, the folder
+ *     knows that some locals hold a constant value, and that others hold a copy of another local. Uses of these locals
+ *     are replaced by the constant or by the other local, respectively. Where control flow merges, only the facts true
+ *     on every path are kept, and any local assigned anywhere in a loop or switch is forgotten on entry to it. No
+ *     propagation is performed within {@code native} functions, since native statements may modify locals through the
+ *     stack pointer.
+ * </p>
+ *
+ * @see CodeGenerator
+ */
+final class ConstantFolder extends ScopeAwareWalker {
+    private final Compiler compiler;
+
+    private final Map<Node, TypeToken> types;
+
+    /**
+     * What is known about the locals of the current function at the current point in the walk, or {@code null} if no
+     * propagation is being performed.
+     */
+    private Facts facts;
+
+    public ConstantFolder(Compiler compiler) {
+        super(compiler.getScopeSource());
+        checkNotNull(compiler);
+        this.compiler = compiler;
+        this.types = Maps.newHashMap(compiler.getTypes());
+    }
+
+    public Map<Node, TypeToken> getTypes() {
+        return ImmutableMap.copyOf(types);
+    }
+
+    @Override
+    protected void onExitScope(Node scopeKey) {
+        if (facts != null) {
+            for (LocalSymbol local : getScope(scopeKey).getLocals()) {
+                facts.kill(local);
+            }
+        }
+        super.onExitScope(scopeKey);
+    }
+
+    @Override
+    public void inAFunctionDeclaration(AFunctionDeclaration declaration) {
+        super.inAFunctionDeclaration(declaration);
+        onEnterFunction(declaration.getModifiers());
+    }
+
+    @Override
+    public void inAVoidFunctionDeclaration(AVoidFunctionDeclaration declaration) {
+        super.inAVoidFunctionDeclaration(declaration);
+        onEnterFunction(declaration.getModifiers());
+    }
+
+    @Override
+    public void inAConstructorDeclaration(AConstructorDeclaration declaration) {
+        super.inAConstructorDeclaration(declaration);
+        onEnterFunction(declaration.getModifiers());
+    }
+
+    @Override
+    public void inACastDeclaration(ACastDeclaration declaration) {
+        super.inACastDeclaration(declaration);
+        onEnterFunction(declaration.getModifiers());
+    }
+
+    private void onEnterFunction(List<PModifier> modifiers) {
+        facts = new Facts();
+        for (PModifier modifier : modifiers) {
+            if (Modifier.fromNode(modifier) == Modifier.NATIVE) {
+                facts = null;
+            }
+        }
+    }
+
+    @Override
+    public void caseAIfThenStatement(AIfThenStatement statement) {
+        inAIfThenStatement(statement);
+        statement.getCondition().apply(this);
+        Facts skipped = copyFacts();
+        statement.getThen().apply(this);
+        mergeFacts(skipped);
+        outAIfThenStatement(statement);
+    }
+
+    @Override
+    public void caseAIfThenElseStatement(AIfThenElseStatement statement) {
+        inAIfThenElseStatement(statement);
+        statement.getCondition().apply(this);
+        Facts beforeElse = copyFacts();
+        statement.getThen().apply(this);
+        Facts afterThen = facts;
+        facts = beforeElse;
+        statement.getElse().apply(this);
+        mergeFacts(afterThen);
+        outAIfThenElseStatement(statement);
+    }
+
+    @Override
+    public void caseAWhileStatement(AWhileStatement statement) {
+        inAWhileStatement(statement);
+        Facts loopFacts = onEnterLoop(statement);
+        statement.getCondition().apply(this);
+        statement.getBody().apply(this);
+        facts = loopFacts;
+        outAWhileStatement(statement);
+    }
+
+    @Override
+    public void caseADoStatement(ADoStatement statement) {
+        inADoStatement(statement);
+        Facts loopFacts = onEnterLoop(statement);
+        statement.getBody().apply(this);
+        statement.getCondition().apply(this);
+        facts = loopFacts;
+        outADoStatement(statement);
+    }
+
+    @Override
+    public void caseAForStatement(AForStatement statement) {
+        inAForStatement(statement);
+        if (statement.getInit() != null) {
+            statement.getInit().apply(this);
+        }
+        Facts loopFacts = onEnterLoop(statement.getCondition(), statement.getUpdate(), statement.getBody());
+        if (statement.getCondition() != null) {
+            statement.getCondition().apply(this);
+        }
+        if (statement.getBody() != null) {
+            statement.getBody().apply(this);
+        }
+        if (statement.getUpdate() != null) {
+            statement.getUpdate().apply(this);
+        }
+        facts = loopFacts;
+        outAForStatement(statement);
+    }
+
+    @Override
+    public void caseASwitchStatement(ASwitchStatement statement) {
+        inASwitchStatement(statement);
+        statement.getValue().apply(this);
+        // any case group may be reached by falling through from the one before, so treat the body like a loop
+        Facts switchFacts = onEnterLoop(statement.getBody().toArray(new Node[0]));
+        for (PCaseGroup caseGroup : statement.getBody()) {
+            facts = (switchFacts != null) ? new Facts(switchFacts) : null;
+            caseGroup.apply(this);
+        }
+        facts = switchFacts;
+        outASwitchStatement(statement);
+    }
+
+    /**
+     * Forgets everything known about the locals assigned within the specified nodes, which together make up the body
+     * of a loop or similar structure. What remains is true at every point within the structure, and after it.
+     *
+     * @param nodes the nodes which may be executed repeatedly
+     * @return the facts which hold throughout the structure
+     */
+    private Facts onEnterLoop(Node... nodes) {
+        if (facts != null) {
+            facts.killAll(getAssignedNames(nodes));
+        }
+        return copyFacts();
+    }
+
+    @Override
+    public void caseAConditionalAndExpression(AConditionalAndExpression expression) {
+        inAConditionalAndExpression(expression);
+        expression.getLeft().apply(this);
+        Facts skipped = copyFacts();
+        expression.getRight().apply(this);
+        mergeFacts(skipped);
+        outAConditionalAndExpression(expression);
+    }
+
+    @Override
+    public void caseAConditionalOrExpression(AConditionalOrExpression expression) {
+        inAConditionalOrExpression(expression);
+        expression.getLeft().apply(this);
+        Facts skipped = copyFacts();
+        expression.getRight().apply(this);
+        mergeFacts(skipped);
+        outAConditionalOrExpression(expression);
+    }
+
+    @Override
+    public void caseAConditionalExpression(AConditionalExpression expression) {
+        inAConditionalExpression(expression);
+        expression.getCondition().apply(this);
+        Facts beforeFalse = copyFacts();
+        expression.getIfTrue().apply(this);
+        Facts afterTrue = facts;
+        facts = beforeFalse;
+        expression.getIfFalse().apply(this);
+        mergeFacts(afterTrue);
+        outAConditionalExpression(expression);
+    }
+
+    private Facts copyFacts() {
+        return (facts != null) ? new Facts(facts) : null;
+    }
+
+    private void mergeFacts(Facts other) {
+        if (facts != null) {
+            facts.retainAll(other);
+        }
+    }
+
+    @Override
+    public void inALocalDeclaration(ALocalDeclaration declaration) {
+        if (facts != null) {
+            try {
+                facts.kill(getScope().resolveLocal(declaration.getName().getText()));
+            } catch (SemanticException sx) {
+                compiler.raise(sx);
+            }
+        }
+    }
+
+    @Override
+    public void outAAssignment(AAssignment assignment) {
+        if (facts == null) {
+            return;
+        }
+        LocalSymbol local = getAssignedLocal(assignment.getTarget());
+        if (local == null) {
+            return;
+        }
+
+        facts.kill(local);
+        Constant value = getConstant(assignment.getValue());
+        LocalSymbol copy = getLocal(assignment.getValue());
+        if (value != null && !local.getType().isReference()) {
+            facts.constants.put(local, new Constant(local.getType(), value.value));
+        } else if (copy != null && copy != local && copy.getType().equals(local.getType())) {
+            facts.copies.put(local, copy);
+        }
+    }
+
+    @Override
+    public void outAAssignmentExpression(AAssignmentExpression expression) {
+        // a compound assignment leaves its local with a value which is no longer known
+        PAssignment assignment = expression.getAssignment();
+        if (facts != null && !(assignment instanceof AAssignment)) {
+            LocalSymbol local = getAssignedLocal(CodeGenerator.getAssignmentTarget(assignment));
+            if (local != null) {
+                facts.kill(local);
+            }
+        }
+    }
+
+    private LocalSymbol getAssignedLocal(PAssignmentTarget target) {
+        try {
+            if (target instanceof ALocalDeclarationAssignmentTarget) {
+                ALocalDeclaration declaration = (ALocalDeclaration) ((ALocalDeclarationAssignmentTarget) target).getLocalDeclaration();
+                return getScope().resolveLocal(declaration.getName().getText());
+            } else if (target instanceof AIdentifierAssignmentTarget) {
+                return getScope().resolveLocal(((AIdentifierAssignmentTarget) target).getIdentifier().getText());
+            } else {
+                return null;
+            }
+        } catch (SemanticException sx) {
+            // the target is a field
+            return null;
+        }
+    }
+
+    @Override
+    public void outAIdentifierPrimaryExpression(AIdentifierPrimaryExpression primaryExpression) {
+        if (facts == null) {
+            return;
+        }
+        try {
+            LocalSymbol local = getScope().resolveLocal(primaryExpression.getIdentifier().getText());
+            if (facts.constants.containsKey(local)) {
+                Constant constant = facts.constants.get(local);
+                primaryExpression.replaceBy(createLiteral(constant.type, constant.value));
+            } else if (facts.copies.containsKey(local)) {
+                LocalSymbol copy = facts.copies.get(local);
+                primaryExpression.setIdentifier(new TIdentifier(copy.getName()));
+            }
+        } catch (SemanticException sx) {
+            // the identifier is a field
+        }
+    }
+
+    @Override
+    public void outANumericNegationExpression(ANumericNegationExpression expression) {
+        Constant value = getConstant(expression.getValue());
+        if (value != null) {
+            replace(expression, -value.value);
+        }
+    }
+
+    @Override
+    public void outAConditionalNotExpression(AConditionalNotExpression expression) {
+        Constant value = getConstant(expression.getValue());
+        if (value != null) {
+            replace(expression, value.value ^ 0x0001);
+        }
+    }
+
+    @Override
+    public void outABitwiseComplementExpression(ABitwiseComplementExpression expression) {
+        Constant value = getConstant(expression.getValue());
+        if (value != null) {
+            replace(expression, ~value.value);
+        }
+    }
+
+    @Override
+    public void outAMultiplyExpression(AMultiplyExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.value * right.value);
+        }
+    }
+
+    @Override
+    public void outADivideExpression(ADivideExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            if (right.value == 0) {
+                replace(expression, 0);
+            } else if (types.get(expression).isSigned()) {
+                replace(expression, left.signedValue() / right.signedValue());
+            } else {
+                replace(expression, left.value / right.value);
+            }
+        }
+    }
+
+    @Override
+    public void outAModulusExpression(AModulusExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            if (right.value == 0) {
+                replace(expression, 0);
+            } else if (types.get(expression).isSigned()) {
+                replace(expression, left.signedValue() % right.signedValue());
+            } else {
+                replace(expression, left.value % right.value);
+            }
+        }
+    }
+
+    @Override
+    public void outAAddExpression(AAddExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.value + right.value);
+        }
+    }
+
+    @Override
+    public void outASubtractExpression(ASubtractExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.value - right.value);
+        }
+    }
+
+    @Override
+    public void outAShiftLeftExpression(AShiftLeftExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, (right.value < 16) ? (left.value << right.value) : 0);
+        }
+    }
+
+    @Override
+    public void outAShiftRightExpression(AShiftRightExpression expression) {
+        // the code generator always uses ASR, even for unsigned operands
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.signedValue() >> Math.min(right.value, 15));
+        }
+    }
+
+    @Override
+    public void outAUnsignedShiftRightExpression(AUnsignedShiftRightExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, (right.value < 16) ? (left.value >>> right.value) : 0);
+        }
+    }
+
+    @Override
+    public void outALessThanExpression(ALessThanExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.compareTo(right) < 0);
+        }
+    }
+
+    @Override
+    public void outAGreaterThanExpression(AGreaterThanExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.compareTo(right) > 0);
+        }
+    }
+
+    @Override
+    public void outALessOrEqualExpression(ALessOrEqualExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.compareTo(right) <= 0);
+        }
+    }
+
+    @Override
+    public void outAGreaterOrEqualExpression(AGreaterOrEqualExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.compareTo(right) >= 0);
+        }
+    }
+
+    @Override
+    public void outAEqualExpression(AEqualExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.value == right.value);
+        }
+    }
+
+    @Override
+    public void outANotEqualExpression(ANotEqualExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.value != right.value);
+        }
+    }
+
+    @Override
+    public void outABitwiseAndExpression(ABitwiseAndExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.value & right.value);
+        }
+    }
+
+    @Override
+    public void outABitwiseXorExpression(ABitwiseXorExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.value ^ right.value);
+        }
+    }
+
+    @Override
+    public void outABitwiseOrExpression(ABitwiseOrExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        Constant right = getConstant(expression.getRight());
+        if (left != null && right != null) {
+            replace(expression, left.value | right.value);
+        }
+    }
+
+    @Override
+    public void outAConditionalAndExpression(AConditionalAndExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        if (left != null) {
+            expression.replaceBy((left.value != 0) ? expression.getRight() : expression.getLeft());
+        }
+    }
+
+    @Override
+    public void outAConditionalOrExpression(AConditionalOrExpression expression) {
+        Constant left = getConstant(expression.getLeft());
+        if (left != null) {
+            expression.replaceBy((left.value != 0) ? expression.getLeft() : expression.getRight());
+        }
+    }
+
+    @Override
+    public void outAConditionalExpression(AConditionalExpression expression) {
+        Constant condition = getConstant(expression.getCondition());
+        if (condition != null) {
+            expression.replaceBy((condition.value != 0) ? expression.getIfTrue() : expression.getIfFalse());
+        }
+    }
+
+    /**
+     * Returns the value of the specified expression if it is a literal, or {@code null} if it is not. The value is
+     * always truncated to 16 bits, so that an integral literal whose text is out of range behaves as it would in the
+     * generated code.
+     *
+     * @param expression the expression
+     * @return the constant value of the expression, or {@code null} if it has none
+     */
+    private Constant getConstant(Node expression) {
+        if (expression instanceof APrimaryExpression) {
+            return getConstant(((APrimaryExpression) expression).getPrimaryExpression());
+        } else if (expression instanceof AParentheticalPrimaryExpression) {
+            return getConstant(((AParentheticalPrimaryExpression) expression).getExpression());
+        } else if (expression instanceof ALiteralPrimaryExpression) {
+            PLiteral literal = ((ALiteralPrimaryExpression) expression).getLiteral();
+            if (literal instanceof AIntegralLiteral) {
+                try {
+                    int value = TypeTokenUtil.parseIntegralLiteral(((AIntegralLiteral) literal).getIntegralLiteral()).intValue();
+                    return new Constant(types.get(literal), value);
+                } catch (SemanticException sx) {
+                    return null;
+                }
+            } else if (literal instanceof ATrueLiteral) {
+                return new Constant(PrimitiveTypeToken.BOOLEAN, 1);
+            } else if (literal instanceof AFalseLiteral) {
+                return new Constant(PrimitiveTypeToken.BOOLEAN, 0);
+            } else {
+                return null;
+            }
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the local which the specified expression names, or {@code null} if it does not simply name a local.
+     *
+     * @param expression the expression
+     * @return the local named by the expression, or {@code null} if there is none
+     */
+    private LocalSymbol getLocal(Node expression) {
+        if (expression instanceof APrimaryExpression) {
+            return getLocal(((APrimaryExpression) expression).getPrimaryExpression());
+        } else if (expression instanceof AParentheticalPrimaryExpression) {
+            return getLocal(((AParentheticalPrimaryExpression) expression).getExpression());
+        } else if (expression instanceof AIdentifierPrimaryExpression) {
+            try {
+                return getScope().resolveLocal(((AIdentifierPrimaryExpression) expression).getIdentifier().getText());
+            } catch (SemanticException sx) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+    }
+
+    private void replace(PExpression expression, boolean value) {
+        replace(expression, value ? 1 : 0);
+    }
+
+    private void replace(PExpression expression, int value) {
+        TypeToken type = types.get(expression);
+        APrimaryExpression replacement = new APrimaryExpression(createLiteral(type, value));
+        types.put(replacement, type);
+        expression.replaceBy(replacement);
+    }
+
+    private PPrimaryExpression createLiteral(TypeToken type, int value) {
+        PLiteral literal = toLiteral(type, value);
+        if (literal instanceof AIntegralLiteral) {
+            types.put(((AIntegralLiteral) literal).getIntegralLiteral(), type);
+        }
+        types.put(literal, type);
+        ALiteralPrimaryExpression primaryExpression = new ALiteralPrimaryExpression(literal);
+        types.put(primaryExpression, type);
+        return primaryExpression;
+    }
+
+    /**
+     * Returns a literal of the specified primitive type with the specified value, which is truncated to 16 bits.
+     *
+     * @param type the type of the literal, which must be {@code boolean}, {@code int} or {@code uint}
+     * @param value the value of the literal
+     * @return a new literal node
+     */
+    static PLiteral toLiteral(TypeToken type, int value) {
+        if (type == PrimitiveTypeToken.BOOLEAN) {
+            return (value != 0) ? new ATrueLiteral() : new AFalseLiteral();
+        } else {
+            // a signed constant may be negative, which only a decimal literal can express
+            PIntegralLiteral integralLiteral;
+            if (type.isSigned()) {
+                integralLiteral = new ADecimalIntegralLiteral(new TDecimalLiteral(Integer.toString((short) value)));
+            } else {
+                integralLiteral = new AHexIntegralLiteral(new THexLiteral(String.format("0x%04xU", value & 0xffff)));
+            }
+            return new AIntegralLiteral(integralLiteral);
+        }
+    }
+
+    /**
+     * Returns the names of all locals which are assigned or declared within the specified nodes. Names are used rather
+     * than symbols so that the nodes need not be within the current scope.
+     *
+     * @param nodes the nodes to search, any of which may be {@code null}
+     * @return the names of the locals assigned within the nodes
+     */
+    private static Set<String> getAssignedNames(Node... nodes) {
+        final Set<String> names = Sets.newHashSet();
+        DepthFirstAdapter finder = new DepthFirstAdapter() {
+            @Override
+            public void inAIdentifierAssignmentTarget(AIdentifierAssignmentTarget target) {
+                names.add(target.getIdentifier().getText());
+            }
+
+            @Override
+            public void inALocalDeclaration(ALocalDeclaration declaration) {
+                names.add(declaration.getName().getText());
+            }
+        };
+        for (Node node : nodes) {
+            if (node != null) {
+                node.apply(finder);
+            }
+        }
+        return names;
+    }
+
+    private static final class Constant implements Comparable<Constant> {
+        private final TypeToken type;
+
+        private final int value;
+
+        private Constant(TypeToken type, int value) {
+            checkNotNull(type);
+            this.type = type;
+            this.value = value & 0xffff;
+        }
+
+        private int signedValue() {
+            return (short) value;
+        }
+
+        @Override
+        public int compareTo(Constant other) {
+            if (type.isSigned()) {
+                return Integer.compare(signedValue(), other.signedValue());
+            } else {
+                return Integer.compare(value, other.value);
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Constant) {
+                Constant other = (Constant) obj;
+                return (type.equals(other.type) && value == other.value);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + value;
+        }
+    }
+
+    private static final class Facts {
+        private final Map<LocalSymbol, Constant> constants;
+
+        private final Map<LocalSymbol, LocalSymbol> copies;
+
+        private Facts() {
+            constants = Maps.newHashMap();
+            copies = Maps.newHashMap();
+        }
+
+        private Facts(Facts facts) {
+            constants = Maps.newHashMap(facts.constants);
+            copies = Maps.newHashMap(facts.copies);
+        }
+
+        private void kill(LocalSymbol local) {
+            constants.remove(local);
+            copies.remove(local);
+            copies.values().removeAll(Sets.newHashSet(local));
+        }
+
+        private void killAll(Set<String> names) {
+            Iterator<LocalSymbol> constantIterator = constants.keySet().iterator();
+            while (constantIterator.hasNext()) {
+                if (names.contains(constantIterator.next().getName())) {
+                    constantIterator.remove();
+                }
+            }
+            Iterator<Map.Entry<LocalSymbol, LocalSymbol>> copyIterator = copies.entrySet().iterator();
+            while (copyIterator.hasNext()) {
+                Map.Entry<LocalSymbol, LocalSymbol> copy = copyIterator.next();
+                if (names.contains(copy.getKey().getName()) || names.contains(copy.getValue().getName())) {
+                    copyIterator.remove();
+                }
+            }
+        }
+
+        private void retainAll(Facts other) {
+            constants.entrySet().retainAll(other.constants.entrySet());
+            copies.entrySet().retainAll(other.copies.entrySet());
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * ControlFlowGraph.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.node.Node;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>
+ *     The body of a single function, lowered into {@linkplain BasicBlock basic blocks} of {@linkplain Instruction
+ *     instructions} in static single assignment form by the {@link ControlFlowGraphBuilder}. Unlike the syntax tree,
+ *     the graph makes every path of control and every definition of a local explicit, so that analyses can see across
+ *     statements: each use of a local is an operand referring directly to the instruction which computed its value,
+ *     and a phi instruction merges the values reaching a block from its predecessors.
+ * </p>
+ *
+ * <p>
+ *     Dominators are computed on demand, using the iterative algorithm of Cooper, Harvey and Kennedy, and discarded
+ *     whenever blocks are removed.
+ * </p>
+ *
+ * @see ControlFlowGraphBuilder
+ */
+final class ControlFlowGraph {
+    private final Node function;
+
+    private final List<BasicBlock> blocks;
+
+    private int nextIndex;
+
+    private Map<BasicBlock, BasicBlock> immediateDominators;
+
+    ControlFlowGraph(Node function) {
+        checkNotNull(function);
+        this.function = function;
+        blocks = Lists.newArrayList();
+        createBlock();
+    }
+
+    /**
+     * Returns the declaration of the function whose body this graph represents.
+     *
+     * @return the function declaration
+     */
+    public Node getFunction() {
+        return function;
+    }
+
+    public BasicBlock getEntry() {
+        return blocks.get(0);
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return ImmutableList.copyOf(blocks);
+    }
+
+    BasicBlock createBlock() {
+        BasicBlock block = new BasicBlock(nextIndex++);
+        blocks.add(block);
+        immediateDominators = null;
+        return block;
+    }
+
+    /**
+     * Returns the blocks of this graph in reverse postorder, in which every block comes before its successors except
+     * along back edges.
+     *
+     * @return the blocks reachable from the entry, in reverse postorder
+     */
+    public List<BasicBlock> getReversePostorder() {
+        List<BasicBlock> postorder = Lists.newArrayList();
+        Set<BasicBlock> visited = Sets.newHashSet();
+        // an explicit stack of successor iterators, since deeply nested code would overflow the Java stack
+        List<BasicBlock> path = Lists.newArrayList(getEntry());
+        List<Iterator<BasicBlock>> iterators = Lists.newArrayList();
+        iterators.add(getEntry().getSuccessors().iterator());
+        visited.add(getEntry());
+        while (!path.isEmpty()) {
+            Iterator<BasicBlock> iterator = iterators.get(iterators.size() - 1);
+            if (iterator.hasNext()) {
+                BasicBlock successor = iterator.next();
+                if (visited.add(successor)) {
+                    path.add(successor);
+                    iterators.add(successor.getSuccessors().iterator());
+                }
+            } else {
+                postorder.add(path.remove(path.size() - 1));
+                iterators.remove(iterators.size() - 1);
+            }
+        }
+        Collections.reverse(postorder);
+        return postorder;
+    }
+
+    /**
+     * Removes every block which cannot be reached from the entry, such as the code following a {@code return}.
+     */
+    void removeUnreachableBlocks() {
+        Set<BasicBlock> reachable = Sets.newHashSet(getReversePostorder());
+        Iterator<BasicBlock> iterator = blocks.iterator();
+        while (iterator.hasNext()) {
+            BasicBlock block = iterator.next();
+            if (!reachable.contains(block)) {
+                for (BasicBlock successor : block.getSuccessors()) {
+                    if (reachable.contains(successor)) {
+                        successor.removePredecessor(block);
+                    }
+                }
+                iterator.remove();
+            }
+        }
+        immediateDominators = null;
+    }
+
+    /**
+     * Replaces every use of one value with another, throughout the graph.
+     *
+     * @param value the value being replaced
+     * @param replacement the value to use instead
+     * @return the instructions which used the value
+     */
+    List<Instruction> replaceAllUses(Instruction value, Instruction replacement) {
+        List<Instruction> users = Lists.newArrayList();
+        for (BasicBlock block : blocks) {
+            for (Instruction instruction : block.getInstructions()) {
+                if (instruction.replaceOperand(value, replacement)) {
+                    users.add(instruction);
+                }
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Returns the immediate dominator of a block: the last block other than itself through which every path from the
+     * entry to the block must pass.
+     *
+     * @param block a block reachable from the entry
+     * @return the immediate dominator of the block, or {@code null} for the entry
+     */
+    public BasicBlock getImmediateDominator(BasicBlock block) {
+        if (immediateDominators == null) {
+            computeDominators();
+        }
+        checkArgument(immediateDominators.containsKey(block));
+        return (block == getEntry() ? null : immediateDominators.get(block));
+    }
+
+    /**
+     * Returns {@code true} if every path from the entry to {@code block} passes through {@code dominator}. Every block
+     * dominates itself.
+     */
+    public boolean dominates(BasicBlock dominator, BasicBlock block) {
+        for (BasicBlock current = block; current != null; current = getImmediateDominator(current)) {
+            if (current == dominator) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void computeDominators() {
+        List<BasicBlock> order = getReversePostorder();
+        final Map<BasicBlock, Integer> orderIndices = Maps.newHashMap();
+        for (int i = 0; i < order.size(); i++) {
+            orderIndices.put(order.get(i), i);
+        }
+        Map<BasicBlock, BasicBlock> dominators = Maps.newHashMap();
+        dominators.put(getEntry(), getEntry());
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : order.subList(1, order.size())) {
+                BasicBlock dominator = null;
+                for (BasicBlock predecessor : block.getPredecessors()) {
+                    if (!dominators.containsKey(predecessor)) {
+                        continue;
+                    } else if (dominator == null) {
+                        dominator = predecessor;
+                    } else {
+                        BasicBlock left = dominator;
+                        BasicBlock right = predecessor;
+                        while (left != right) {
+                            while (orderIndices.get(left) > orderIndices.get(right)) {
+                                left = dominators.get(left);
+                            }
+                            while (orderIndices.get(right) > orderIndices.get(left)) {
+                                right = dominators.get(right);
+                            }
+                        }
+                        dominator = left;
+                    }
+                }
+                if (dominators.get(block) != dominator) {
+                    dominators.put(block, dominator);
+                    changed = true;
+                }
+            }
+        }
+        immediateDominators = dominators;
+    }
+
+    /**
+     * Checks that this graph is well-formed: every block ends with its only terminator, its successors match that
+     * terminator, its phis come first with one operand per predecessor, and the definition of every operand dominates
+     * its use.
+     *
+     * @throws IllegalStateException if the graph is malformed
+     */
+    void verify() {
+        Set<BasicBlock> blockSet = Sets.newHashSet(blocks);
+        for (BasicBlock block : blocks) {
+            List<Instruction> instructions = block.getInstructions();
+            Instruction terminator = block.getTerminator();
+            checkState(terminator != null, "%s is not terminated", block);
+            checkState(block.getSuccessors().size() == getSuccessorCount(terminator), "%s has the wrong successors", block);
+            for (BasicBlock successor : block.getSuccessors()) {
+                checkState(blockSet.contains(successor) && successor.getPredecessors().contains(block),
+                        "%s has a dangling successor %s", block, successor);
+            }
+            for (BasicBlock predecessor : block.getPredecessors()) {
+                checkState(blockSet.contains(predecessor) && predecessor.getSuccessors().contains(block),
+                        "%s has a dangling predecessor %s", block, predecessor);
+            }
+
+            boolean pastPhis = false;
+            for (int i = 0; i < instructions.size(); i++) {
+                Instruction instruction = instructions.get(i);
+                checkState(instruction.getBlock() == block);
+                checkState(!instruction.getOpcode().isTerminator() || i == instructions.size() - 1,
+                        "%s has a terminator before its end", block);
+                if (instruction.getOpcode() == Instruction.Opcode.PHI) {
+                    checkState(!pastPhis, "%s has a phi after other instructions", block);
+                    checkState(instruction.getOperands().size() == block.getPredecessors().size(),
+                            "%s has a phi with the wrong number of operands", block);
+                    for (int j = 0; j < instruction.getOperands().size(); j++) {
+                        BasicBlock predecessor = block.getPredecessors().get(j);
+                        checkDefinition(instruction.getOperands().get(j), predecessor, Integer.MAX_VALUE);
+                    }
+                } else {
+                    pastPhis = true;
+                    for (Instruction operand : instruction.getOperands()) {
+                        checkDefinition(operand, block, i);
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkDefinition(Instruction operand, BasicBlock block, int index) {
+        BasicBlock definingBlock = operand.getBlock();
+        checkState(definingBlock != null && blocks.contains(definingBlock), "operand is not in the graph");
+        checkState(operand.getType() != null, "operand has no value");
+        if (definingBlock == block) {
+            checkState(block.getInstructions().indexOf(operand) < index, "operand is used before it is defined");
+        } else {
+            checkState(dominates(definingBlock, block), "operand does not dominate its use in %s", block);
+        }
+    }
+
+    private static int getSuccessorCount(Instruction terminator) {
+        switch (terminator.getOpcode()) {
+            case JUMP:
+                return 1;
+            case BRANCH:
+                return 2;
+            case SWITCH:
+                return ((List<?>) terminator.getConstant()).size() + 1;
+            case RETURN:
+                return 0;
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    @Override
+    public String toString() {
+        Map<Instruction, Integer> numbers = Maps.newHashMap();
+        for (BasicBlock block : blocks) {
+            for (Instruction instruction : block.getInstructions()) {
+                if (instruction.getType() != null) {
+                    numbers.put(instruction, numbers.size());
+                }
+            }
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (BasicBlock block : blocks) {
+            builder.append(block).append(':');
+            if (!block.getPredecessors().isEmpty()) {
+                builder.append(" ; preds ").append(block.getPredecessors());
+            }
+            builder.append('\n');
+            for (Instruction instruction : block.getInstructions()) {
+                builder.append("    ");
+                if (instruction.getType() != null) {
+                    builder.append('%').append(numbers.get(instruction)).append(" = ");
+                }
+                builder.append(instruction.getOpcode().name().toLowerCase());
+                if (instruction.getType() != null) {
+                    builder.append(' ').append(instruction.getType());
+                }
+                if (instruction.getConstant() instanceof LocalSymbol) {
+                    builder.append(' ').append(((LocalSymbol) instruction.getConstant()).getName());
+                } else if (instruction.getConstant() != null) {
+                    builder.append(' ').append(instruction.getConstant());
+                }
+                for (Instruction operand : instruction.getOperands()) {
+                    builder.append(" %").append(numbers.get(operand));
+                }
+                if (!block.getSuccessors().isEmpty() && instruction == block.getTerminator()) {
+                    builder.append(" -> ").append(block.getSuccessors());
+                }
+                builder.append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,934 @@
+/*
+ * ControlFlowGraphBuilder.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.node.AAddExpression;
+import com.prealpha.diamond.compiler.node.AArrayAccess;
+import com.prealpha.diamond.compiler.node.AArrayAccessAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AArrayAccessPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AAssignment;
+import com.prealpha.diamond.compiler.node.AAssignmentExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseAndExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseComplementExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseOrExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseXorExpression;
+import com.prealpha.diamond.compiler.node.ABlockStatement;
+import com.prealpha.diamond.compiler.node.ABreakStatement;
+import com.prealpha.diamond.compiler.node.ACaseGroup;
+import com.prealpha.diamond.compiler.node.ACastDeclaration;
+import com.prealpha.diamond.compiler.node.ACastInvocation;
+import com.prealpha.diamond.compiler.node.ACastInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AClassDeclaration;
+import com.prealpha.diamond.compiler.node.AConditionalAndExpression;
+import com.prealpha.diamond.compiler.node.AConditionalExpression;
+import com.prealpha.diamond.compiler.node.AConditionalNotExpression;
+import com.prealpha.diamond.compiler.node.AConditionalOrExpression;
+import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
+import com.prealpha.diamond.compiler.node.AConstructorInvocation;
+import com.prealpha.diamond.compiler.node.AConstructorInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AContinueStatement;
+import com.prealpha.diamond.compiler.node.ADefaultCaseGroup;
+import com.prealpha.diamond.compiler.node.ADeleteStatement;
+import com.prealpha.diamond.compiler.node.ADivideExpression;
+import com.prealpha.diamond.compiler.node.ADoStatement;
+import com.prealpha.diamond.compiler.node.AEmptyStatement;
+import com.prealpha.diamond.compiler.node.AEqualExpression;
+import com.prealpha.diamond.compiler.node.AExpressionFieldAccess;
+import com.prealpha.diamond.compiler.node.AExpressionFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AExpressionStatement;
+import com.prealpha.diamond.compiler.node.AFalseLiteral;
+import com.prealpha.diamond.compiler.node.AFieldAccessAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AFieldAccessPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AForStatement;
+import com.prealpha.diamond.compiler.node.AFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AFunctionInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AGreaterOrEqualExpression;
+import com.prealpha.diamond.compiler.node.AGreaterThanExpression;
+import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
+import com.prealpha.diamond.compiler.node.AIfThenStatement;
+import com.prealpha.diamond.compiler.node.AIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ALessOrEqualExpression;
+import com.prealpha.diamond.compiler.node.ALessThanExpression;
+import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ALocalDeclaration;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationAssignmentTarget;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationStatement;
+import com.prealpha.diamond.compiler.node.AModulusExpression;
+import com.prealpha.diamond.compiler.node.AMultiplyExpression;
+import com.prealpha.diamond.compiler.node.ANativeStatement;
+import com.prealpha.diamond.compiler.node.ANotEqualExpression;
+import com.prealpha.diamond.compiler.node.ANumericNegationExpression;
+import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.AReturnStatement;
+import com.prealpha.diamond.compiler.node.AShiftLeftExpression;
+import com.prealpha.diamond.compiler.node.AShiftRightExpression;
+import com.prealpha.diamond.compiler.node.AStringLiteral;
+import com.prealpha.diamond.compiler.node.ASubtractExpression;
+import com.prealpha.diamond.compiler.node.ASwitchStatement;
+import com.prealpha.diamond.compiler.node.AThisPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ATrueLiteral;
+import com.prealpha.diamond.compiler.node.ATypeTokenFieldAccess;
+import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnsignedShiftRightExpression;
+import com.prealpha.diamond.compiler.node.AVoidFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AWhileStatement;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PAssignment;
+import com.prealpha.diamond.compiler.node.PAssignmentTarget;
+import com.prealpha.diamond.compiler.node.PCaseGroup;
+import com.prealpha.diamond.compiler.node.PExpression;
+import com.prealpha.diamond.compiler.node.PFieldAccess;
+import com.prealpha.diamond.compiler.node.PFunctionInvocation;
+import com.prealpha.diamond.compiler.node.PIntegralLiteral;
+import com.prealpha.diamond.compiler.node.PLiteral;
+import com.prealpha.diamond.compiler.node.PLocalDeclaration;
+import com.prealpha.diamond.compiler.node.PModifier;
+import com.prealpha.diamond.compiler.node.PStatement;
+import com.prealpha.diamond.compiler.node.TIdentifier;
+
+import java.math.BigInteger;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ *     Lowers the body of each function into a {@link ControlFlowGraph}, after the syntax tree has been typed and
+ *     simplified. Structured statements become blocks joined by jumps and branches; {@code &&}, {@code ||} and
+ *     {@code ?:} become branches whose values are merged by phis, so that every operand of an instruction is evaluated
+ *     unconditionally. Assignments of every kind are lowered by locating the target only once; a compound assignment,
+ *     increment or decrement loads the current value of its target with the same operands as the store which follows,
+ *     before its value is lowered, and combines the two with a single operation.
+ * </p>
+ *
+ * <p>
+ *     Locals are put into static single assignment form during the walk itself, using the algorithm of Braun et al.:
+ *     the value of a local is looked up in the current block, and otherwise in its predecessors, with a phi placed
+ *     wherever the predecessors disagree. A block is <i>sealed</i> once all of its predecessors are known, and until
+ *     then the phis placed in it are left incomplete. Phis which turn out to merge a single value are removed as soon
+ *     as they are completed. Fields and array elements are not put into SSA form; they are accessed by explicit loads
+ *     and stores. Native functions are not lowered, since native statements may read and write locals through the
+ *     stack pointer.
+ * </p>
+ *
+ * @see ControlFlowGraph
+ */
+final class ControlFlowGraphBuilder extends ScopeAwareWalker {
+    private static final Map<Class<? extends Node>, Instruction.Opcode> BINARY_OPCODES =
+            ImmutableMap.<Class<? extends Node>, Instruction.Opcode>builder()
+                    .put(AMultiplyExpression.class, Instruction.Opcode.MULTIPLY)
+                    .put(ADivideExpression.class, Instruction.Opcode.DIVIDE)
+                    .put(AModulusExpression.class, Instruction.Opcode.MODULUS)
+                    .put(AAddExpression.class, Instruction.Opcode.ADD)
+                    .put(ASubtractExpression.class, Instruction.Opcode.SUBTRACT)
+                    .put(AShiftLeftExpression.class, Instruction.Opcode.SHIFT_LEFT)
+                    .put(AShiftRightExpression.class, Instruction.Opcode.SHIFT_RIGHT)
+                    .put(AUnsignedShiftRightExpression.class, Instruction.Opcode.UNSIGNED_SHIFT_RIGHT)
+                    .put(ALessThanExpression.class, Instruction.Opcode.LESS_THAN)
+                    .put(AGreaterThanExpression.class, Instruction.Opcode.GREATER_THAN)
+                    .put(ALessOrEqualExpression.class, Instruction.Opcode.LESS_OR_EQUAL)
+                    .put(AGreaterOrEqualExpression.class, Instruction.Opcode.GREATER_OR_EQUAL)
+                    .put(AEqualExpression.class, Instruction.Opcode.EQUAL)
+                    .put(ANotEqualExpression.class, Instruction.Opcode.NOT_EQUAL)
+                    .put(ABitwiseAndExpression.class, Instruction.Opcode.AND)
+                    .put(ABitwiseXorExpression.class, Instruction.Opcode.XOR)
+                    .put(ABitwiseOrExpression.class, Instruction.Opcode.OR)
+                    .build();
+
+    private final Compiler compiler;
+
+    private final Map<Node, TypeToken> types;
+
+    private final Map<Node, ControlFlowGraph> graphs;
+
+    private ControlFlowGraph graph;
+
+    /**
+     * The block to which instructions are currently being appended, or {@code null} if the current point in the walk
+     * is unreachable.
+     */
+    private BasicBlock current;
+
+    private Instruction thisValue;
+
+    private final Map<BasicBlock, Map<LocalSymbol, Instruction>> definitions;
+
+    private final Map<BasicBlock, Map<LocalSymbol, Instruction>> incompletePhis;
+
+    private final Set<BasicBlock> sealedBlocks;
+
+    private final Map<LocalSymbol, Instruction> undefinedValues;
+
+    /**
+     * The value which replaced each trivial phi removed from the current graph. A value read before its phi was
+     * removed may still be held while lowering continues, so every value is looked up here before it is used.
+     */
+    private final Map<Instruction, Instruction> replacements;
+
+    private final Deque<BasicBlock> breakTargets;
+
+    private final Deque<BasicBlock> continueTargets;
+
+    public ControlFlowGraphBuilder(Compiler compiler) {
+        super(compiler.getScopeSource());
+        this.compiler = compiler;
+        types = compiler.getTypes();
+        graphs = Maps.newLinkedHashMap();
+        definitions = Maps.newHashMap();
+        incompletePhis = Maps.newHashMap();
+        sealedBlocks = Sets.newHashSet();
+        undefinedValues = Maps.newHashMap();
+        replacements = Maps.newHashMap();
+        breakTargets = Lists.newLinkedList();
+        continueTargets = Lists.newLinkedList();
+    }
+
+    /**
+     * Returns the graph built for each function, keyed by its declaration. Native functions have no graph.
+     *
+     * @return the control flow graph of each non-native function
+     */
+    public Map<Node, ControlFlowGraph> getGraphs() {
+        return ImmutableMap.copyOf(graphs);
+    }
+
+    @Override
+    public void caseAFunctionDeclaration(AFunctionDeclaration declaration) {
+        inAFunctionDeclaration(declaration);
+        lowerFunction(declaration, declaration.getModifiers(), declaration.getParameters(), declaration.getBody());
+        outAFunctionDeclaration(declaration);
+    }
+
+    @Override
+    public void caseAVoidFunctionDeclaration(AVoidFunctionDeclaration declaration) {
+        inAVoidFunctionDeclaration(declaration);
+        lowerFunction(declaration, declaration.getModifiers(), declaration.getParameters(), declaration.getBody());
+        outAVoidFunctionDeclaration(declaration);
+    }
+
+    @Override
+    public void caseAConstructorDeclaration(AConstructorDeclaration declaration) {
+        inAConstructorDeclaration(declaration);
+        lowerFunction(declaration, declaration.getModifiers(), declaration.getParameters(), declaration.getBody());
+        outAConstructorDeclaration(declaration);
+    }
+
+    @Override
+    public void caseACastDeclaration(ACastDeclaration declaration) {
+        inACastDeclaration(declaration);
+        lowerFunction(declaration, declaration.getModifiers(), ImmutableList.of(declaration.getParameter()),
+                declaration.getBody());
+        outACastDeclaration(declaration);
+    }
+
+    private void lowerFunction(Node declaration, List<PModifier> modifiers, List<PLocalDeclaration> parameters,
+                               PStatement body) {
+        try {
+            for (PModifier modifier : modifiers) {
+                if (Modifier.fromNode(modifier) == Modifier.NATIVE) {
+                    return;
+                }
+            }
+
+            graph = new ControlFlowGraph(declaration);
+            current = graph.getEntry();
+            sealBlock(current);
+            for (PLocalDeclaration parameter : parameters) {
+                String name = ((ALocalDeclaration) parameter).getName().getText();
+                LocalSymbol symbol = getScope().resolveLocal(name);
+                Instruction value = append(Instruction.Opcode.PARAMETER, symbol.getType(), parameter, symbol);
+                writeLocal(symbol, current, value);
+            }
+
+            lowerStatement(body);
+            if (current != null) {
+                terminate(Instruction.Opcode.RETURN, null, ImmutableList.<Instruction>of());
+            }
+            for (BasicBlock block : graph.getBlocks()) {
+                sealBlock(block);
+            }
+            graph.removeUnreachableBlocks();
+            graph.verify();
+            graphs.put(declaration, graph);
+        } catch (SemanticException sx) {
+            compiler.raise(sx);
+        } finally {
+            graph = null;
+            current = null;
+            thisValue = null;
+            definitions.clear();
+            incompletePhis.clear();
+            sealedBlocks.clear();
+            undefinedValues.clear();
+            replacements.clear();
+        }
+    }
+
+    private void lowerStatement(PStatement statement) throws SemanticException {
+        if (current == null) {
+            // unreachable statements are lowered into a block of their own, which is removed at the end
+            current = graph.createBlock();
+            sealBlock(current);
+        }
+
+        if (statement instanceof AIfThenStatement) {
+            AIfThenStatement ifThen = (AIfThenStatement) statement;
+            BasicBlock thenBlock = graph.createBlock();
+            BasicBlock join = graph.createBlock();
+            branch(lowerExpression(ifThen.getCondition()), thenBlock, join);
+            sealBlock(thenBlock);
+            current = thenBlock;
+            lowerStatement(ifThen.getThen());
+            jump(join);
+            sealBlock(join);
+            current = reachable(join);
+        } else if (statement instanceof AIfThenElseStatement) {
+            AIfThenElseStatement ifThenElse = (AIfThenElseStatement) statement;
+            BasicBlock thenBlock = graph.createBlock();
+            BasicBlock elseBlock = graph.createBlock();
+            BasicBlock join = graph.createBlock();
+            branch(lowerExpression(ifThenElse.getCondition()), thenBlock, elseBlock);
+            sealBlock(thenBlock);
+            sealBlock(elseBlock);
+            current = thenBlock;
+            lowerStatement(ifThenElse.getThen());
+            jump(join);
+            current = elseBlock;
+            lowerStatement(ifThenElse.getElse());
+            jump(join);
+            sealBlock(join);
+            current = reachable(join);
+        } else if (statement instanceof AWhileStatement) {
+            AWhileStatement whileStatement = (AWhileStatement) statement;
+            BasicBlock header = graph.createBlock();
+            BasicBlock body = graph.createBlock();
+            BasicBlock exit = graph.createBlock();
+            jump(header);
+            current = header;
+            branch(lowerExpression(whileStatement.getCondition()), body, exit);
+            sealBlock(body);
+            current = body;
+            lowerLoopBody(whileStatement.getBody(), exit, header);
+            jump(header);
+            sealBlock(header);
+            sealBlock(exit);
+            current = reachable(exit);
+        } else if (statement instanceof ADoStatement) {
+            ADoStatement doStatement = (ADoStatement) statement;
+            BasicBlock body = graph.createBlock();
+            BasicBlock condition = graph.createBlock();
+            BasicBlock exit = graph.createBlock();
+            jump(body);
+            current = body;
+            lowerLoopBody(doStatement.getBody(), exit, condition);
+            jump(condition);
+            sealBlock(condition);
+            if (reachable(condition) != null) {
+                current = condition;
+                branch(lowerExpression(doStatement.getCondition()), body, exit);
+            }
+            sealBlock(body);
+            sealBlock(exit);
+            current = reachable(exit);
+        } else if (statement instanceof AForStatement) {
+            AForStatement forStatement = (AForStatement) statement;
+            onEnterScope(forStatement);
+            if (forStatement.getInit() != null) {
+                lowerExpression(forStatement.getInit());
+            }
+            BasicBlock header = graph.createBlock();
+            BasicBlock body = graph.createBlock();
+            BasicBlock update = graph.createBlock();
+            BasicBlock exit = graph.createBlock();
+            jump(header);
+            current = header;
+            if (forStatement.getCondition() != null) {
+                branch(lowerExpression(forStatement.getCondition()), body, exit);
+            } else {
+                jump(body);
+            }
+            sealBlock(body);
+            current = body;
+            lowerLoopBody(forStatement.getBody(), exit, update);
+            jump(update);
+            sealBlock(update);
+            if (reachable(update) != null) {
+                current = update;
+                if (forStatement.getUpdate() != null) {
+                    lowerExpression(forStatement.getUpdate());
+                }
+                jump(header);
+            }
+            sealBlock(header);
+            sealBlock(exit);
+            current = reachable(exit);
+            onExitScope(forStatement);
+        } else if (statement instanceof ASwitchStatement) {
+            lowerSwitch((ASwitchStatement) statement);
+        } else if (statement instanceof ADeleteStatement) {
+            Instruction object = lowerExpression(((ADeleteStatement) statement).getObject());
+            append(Instruction.Opcode.DELETE, null, statement, null, object);
+        } else if (statement instanceof ABreakStatement) {
+            jump(breakTargets.peek());
+            current = null;
+        } else if (statement instanceof AContinueStatement) {
+            jump(continueTargets.peek());
+            current = null;
+        } else if (statement instanceof AReturnStatement) {
+            PExpression returnValue = ((AReturnStatement) statement).getReturnValue();
+            if (returnValue != null) {
+                Instruction value = lowerExpression(returnValue);
+                terminate(Instruction.Opcode.RETURN, statement, ImmutableList.of(value));
+            } else {
+                terminate(Instruction.Opcode.RETURN, statement, ImmutableList.<Instruction>of());
+            }
+            current = null;
+        } else if (statement instanceof ALocalDeclarationStatement) {
+            // the local is undefined until it is assigned, which readLocal takes care of
+        } else if (statement instanceof AExpressionStatement) {
+            lowerExpression(((AExpressionStatement) statement).getExpression());
+        } else if (statement instanceof ANativeStatement) {
+            append(Instruction.Opcode.NATIVE, null, statement, null);
+        } else if (statement instanceof ABlockStatement) {
+            ABlockStatement block = (ABlockStatement) statement;
+            onEnterScope(block);
+            for (PStatement enclosedStatement : block.getStatement()) {
+                lowerStatement(enclosedStatement);
+            }
+            onExitScope(block);
+        } else if (!(statement instanceof AEmptyStatement)) {
+            throw new UnsupportedOperationException("unknown statement flavor");
+        }
+    }
+
+    private void lowerLoopBody(PStatement body, BasicBlock breakTarget, BasicBlock continueTarget)
+            throws SemanticException {
+        breakTargets.push(breakTarget);
+        continueTargets.push(continueTarget);
+        lowerStatement(body);
+        continueTargets.pop();
+        breakTargets.pop();
+    }
+
+    /**
+     * Lowers a switch statement into a single {@link Instruction.Opcode#SWITCH} whose successors are the case groups.
+     * As in the code generator, control falls through from each case group into the next, and a value which appears in
+     * more than one case group selects the first of them.
+     */
+    private void lowerSwitch(ASwitchStatement statement) throws SemanticException {
+        Instruction value = lowerExpression(statement.getValue());
+        BasicBlock dispatch = current;
+        BasicBlock exit = graph.createBlock();
+
+        Map<BigInteger, BasicBlock> cases = Maps.newLinkedHashMap();
+        List<BasicBlock> groupBlocks = Lists.newArrayList();
+        BasicBlock defaultBlock = exit;
+        for (PCaseGroup caseGroup : statement.getBody()) {
+            BasicBlock groupBlock = graph.createBlock();
+            groupBlocks.add(groupBlock);
+            List<PIntegralLiteral> literals;
+            if (caseGroup instanceof ADefaultCaseGroup) {
+                defaultBlock = groupBlock;
+                literals = ((ADefaultCaseGroup) caseGroup).getValues();
+            } else {
+                literals = ((ACaseGroup) caseGroup).getValues();
+            }
+            for (PIntegralLiteral literal : literals) {
+                BigInteger caseValue = TypeTokenUtil.parseIntegralLiteral(literal);
+                if (!cases.containsKey(caseValue)) {
+                    cases.put(caseValue, groupBlock);
+                }
+            }
+        }
+
+        Instruction terminator = new Instruction(Instruction.Opcode.SWITCH, null, statement,
+                ImmutableList.copyOf(cases.keySet()), ImmutableList.of(value));
+        dispatch.append(terminator);
+        dispatch.addSuccessor(defaultBlock);
+        for (BasicBlock caseBlock : cases.values()) {
+            dispatch.addSuccessor(caseBlock);
+        }
+
+        current = null;
+        breakTargets.push(exit);
+        for (int i = 0; i < groupBlocks.size(); i++) {
+            BasicBlock groupBlock = groupBlocks.get(i);
+            jump(groupBlock);
+            sealBlock(groupBlock);
+            current = groupBlock;
+            PCaseGroup caseGroup = statement.getBody().get(i);
+            List<PStatement> body;
+            if (caseGroup instanceof ADefaultCaseGroup) {
+                body = ((ADefaultCaseGroup) caseGroup).getBody();
+            } else {
+                body = ((ACaseGroup) caseGroup).getBody();
+            }
+            for (PStatement enclosedStatement : body) {
+                lowerStatement(enclosedStatement);
+            }
+        }
+        breakTargets.pop();
+        jump(exit);
+        sealBlock(exit);
+        current = reachable(exit);
+    }
+
+    private Instruction lowerExpression(Node expression) throws SemanticException {
+        if (expression instanceof APrimaryExpression) {
+            return lowerExpression(((APrimaryExpression) expression).getPrimaryExpression());
+        } else if (expression instanceof AParentheticalPrimaryExpression) {
+            return lowerExpression(((AParentheticalPrimaryExpression) expression).getExpression());
+        } else if (expression instanceof ALiteralPrimaryExpression) {
+            PLiteral literal = ((ALiteralPrimaryExpression) expression).getLiteral();
+            TypeToken type = types.get(expression);
+            if (literal instanceof AIntegralLiteral) {
+                PIntegralLiteral integralLiteral = ((AIntegralLiteral) literal).getIntegralLiteral();
+                BigInteger value = TypeTokenUtil.parseIntegralLiteral(integralLiteral);
+                return append(Instruction.Opcode.CONSTANT, type, expression, value);
+            } else if (literal instanceof ATrueLiteral || literal instanceof AFalseLiteral) {
+                return append(Instruction.Opcode.CONSTANT, type, expression, literal instanceof ATrueLiteral);
+            } else {
+                String text = ((AStringLiteral) literal).getStringLiteral().getText();
+                return append(Instruction.Opcode.STRING, type, expression, text);
+            }
+        } else if (expression instanceof AIdentifierPrimaryExpression) {
+            TIdentifier identifier = ((AIdentifierPrimaryExpression) expression).getIdentifier();
+            LocalSymbol local = resolveLocal(identifier);
+            if (local != null) {
+                return readLocal(local, current);
+            } else {
+                return append(Instruction.Opcode.LOAD_FIELD, types.get(expression), expression, identifier.getText(),
+                        getThisValue());
+            }
+        } else if (expression instanceof AThisPrimaryExpression) {
+            return getThisValue();
+        } else if (expression instanceof AFunctionInvocationPrimaryExpression) {
+            return lowerInvocation(((AFunctionInvocationPrimaryExpression) expression).getFunctionInvocation());
+        } else if (expression instanceof AConstructorInvocationPrimaryExpression) {
+            AConstructorInvocation invocation = (AConstructorInvocation)
+                    ((AConstructorInvocationPrimaryExpression) expression).getConstructorInvocation();
+            List<Instruction> arguments = lowerExpressions(invocation.getParameters());
+            return append(Instruction.Opcode.NEW, types.get(expression), invocation, null, arguments);
+        } else if (expression instanceof ACastInvocationPrimaryExpression) {
+            ACastInvocation invocation = (ACastInvocation)
+                    ((ACastInvocationPrimaryExpression) expression).getCastInvocation();
+            Instruction value = lowerExpression(invocation.getValue());
+            return append(Instruction.Opcode.CAST, types.get(expression), invocation, null, value);
+        } else if (expression instanceof AFieldAccessPrimaryExpression) {
+            PFieldAccess fieldAccess = ((AFieldAccessPrimaryExpression) expression).getFieldAccess();
+            if (fieldAccess instanceof AExpressionFieldAccess) {
+                AExpressionFieldAccess expressionFieldAccess = (AExpressionFieldAccess) fieldAccess;
+                Instruction target = lowerExpression(expressionFieldAccess.getTarget());
+                return append(Instruction.Opcode.LOAD_FIELD, types.get(expression), fieldAccess,
+                        expressionFieldAccess.getFieldName().getText(), target);
+            } else {
+                return append(Instruction.Opcode.LOAD_FIELD, types.get(expression), fieldAccess,
+                        ((ATypeTokenFieldAccess) fieldAccess).getFieldName().getText());
+            }
+        } else if (expression instanceof AArrayAccessPrimaryExpression) {
+            AArrayAccess arrayAccess = (AArrayAccess) ((AArrayAccessPrimaryExpression) expression).getArrayAccess();
+            Instruction array = lowerExpression(arrayAccess.getArray());
+            Instruction index = lowerExpression(arrayAccess.getIndex());
+            return append(Instruction.Opcode.LOAD_ELEMENT, types.get(expression), arrayAccess, null, array, index);
+        } else if (expression instanceof ANumericNegationExpression) {
+            Instruction value = lowerExpression(((ANumericNegationExpression) expression).getValue());
+            return append(Instruction.Opcode.NEGATE, types.get(expression), expression, null, value);
+        } else if (expression instanceof ABitwiseComplementExpression) {
+            Instruction value = lowerExpression(((ABitwiseComplementExpression) expression).getValue());
+            return append(Instruction.Opcode.COMPLEMENT, types.get(expression), expression, null, value);
+        } else if (expression instanceof AConditionalNotExpression) {
+            Instruction value = lowerExpression(((AConditionalNotExpression) expression).getValue());
+            return append(Instruction.Opcode.NOT, types.get(expression), expression, null, value);
+        } else if (expression instanceof AConditionalAndExpression) {
+            AConditionalAndExpression conjunction = (AConditionalAndExpression) expression;
+            return lowerShortCircuit(conjunction, conjunction.getLeft(), conjunction.getRight(), false);
+        } else if (expression instanceof AConditionalOrExpression) {
+            AConditionalOrExpression disjunction = (AConditionalOrExpression) expression;
+            return lowerShortCircuit(disjunction, disjunction.getLeft(), disjunction.getRight(), true);
+        } else if (expression instanceof AConditionalExpression) {
+            AConditionalExpression conditional = (AConditionalExpression) expression;
+            BasicBlock ifTrue = graph.createBlock();
+            BasicBlock ifFalse = graph.createBlock();
+            BasicBlock join = graph.createBlock();
+            branch(lowerExpression(conditional.getCondition()), ifTrue, ifFalse);
+            sealBlock(ifTrue);
+            sealBlock(ifFalse);
+            current = ifTrue;
+            Instruction trueValue = lowerExpression(conditional.getIfTrue());
+            jump(join);
+            current = ifFalse;
+            Instruction falseValue = lowerExpression(conditional.getIfFalse());
+            jump(join);
+            sealBlock(join);
+            current = join;
+            return mergeValues(types.get(expression), expression, trueValue, falseValue);
+        } else if (expression instanceof AAssignmentExpression) {
+            return lowerAssignment(((AAssignmentExpression) expression).getAssignment());
+        } else if (BINARY_OPCODES.containsKey(expression.getClass())) {
+            List<PExpression> operands = CodeGenerator.getBinaryOperands(expression);
+            Instruction left = lowerExpression(operands.get(0));
+            Instruction right = lowerExpression(operands.get(1));
+            return append(BINARY_OPCODES.get(expression.getClass()), types.get(expression), expression, null,
+                    left, right);
+        } else {
+            throw new UnsupportedOperationException("unknown expression flavor: " + expression.getClass());
+        }
+    }
+
+    private List<Instruction> lowerExpressions(List<PExpression> expressions) throws SemanticException {
+        List<Instruction> values = Lists.newArrayList();
+        for (PExpression expression : expressions) {
+            values.add(lowerExpression(expression));
+        }
+        return values;
+    }
+
+    private Instruction lowerInvocation(PFunctionInvocation invocation) throws SemanticException {
+        List<Instruction> operands = Lists.newArrayList();
+        List<PExpression> parameters;
+        if (invocation instanceof AUnqualifiedFunctionInvocation) {
+            parameters = ((AUnqualifiedFunctionInvocation) invocation).getParameters();
+        } else if (invocation instanceof AExpressionFunctionInvocation) {
+            AExpressionFunctionInvocation expressionInvocation = (AExpressionFunctionInvocation) invocation;
+            operands.add(lowerExpression(expressionInvocation.getTarget()));
+            parameters = expressionInvocation.getParameters();
+        } else {
+            parameters = ((ATypeTokenFunctionInvocation) invocation).getParameters();
+        }
+        operands.addAll(lowerExpressions(parameters));
+        return append(Instruction.Opcode.CALL, types.get(invocation), invocation, null, operands);
+    }
+
+    /**
+     * Lowers a conditional and or a conditional or. If the left operand alone decides the result, which is
+     * {@code shortValue}, the right operand is not evaluated.
+     */
+    private Instruction lowerShortCircuit(PExpression expression, PExpression left, PExpression right,
+                                          boolean shortValue) throws SemanticException {
+        Instruction leftValue = lowerExpression(left);
+        Instruction shortResult = append(Instruction.Opcode.CONSTANT, PrimitiveTypeToken.BOOLEAN, null, shortValue);
+        BasicBlock rightBlock = graph.createBlock();
+        BasicBlock join = graph.createBlock();
+        BasicBlock shortBlock = current;
+        if (shortValue) {
+            branch(leftValue, join, rightBlock);
+        } else {
+            branch(leftValue, rightBlock, join);
+        }
+        sealBlock(rightBlock);
+        current = rightBlock;
+        Instruction rightValue = lowerExpression(right);
+        jump(join);
+        sealBlock(join);
+        current = join;
+        // the order of the phi operands must match the order in which the predecessors were added
+        if (join.getPredecessors().get(0) == shortBlock) {
+            return mergeValues(types.get(expression), expression, shortResult, rightValue);
+        } else {
+            return mergeValues(types.get(expression), expression, rightValue, shortResult);
+        }
+    }
+
+    /**
+     * Merges the values reaching the current block from its two predecessors, in order.
+     */
+    private Instruction mergeValues(TypeToken type, Node origin, Instruction first, Instruction second) {
+        if (resolve(first) == resolve(second)) {
+            return resolve(first);
+        }
+        Instruction phi = new Instruction(Instruction.Opcode.PHI, type, origin, null,
+                ImmutableList.of(resolve(first), resolve(second)));
+        current.prepend(phi);
+        return phi;
+    }
+
+    /**
+     * Lowers an assignment of any kind. The target is located only once: a compound assignment loads the current value
+     * of its target using the same operands as the store which follows.
+     */
+    private Instruction lowerAssignment(PAssignment assignment) throws SemanticException {
+        PAssignmentTarget target = CodeGenerator.getAssignmentTarget(assignment);
+        boolean compound = !(assignment instanceof AAssignment);
+        TypeToken type = types.get(assignment);
+        if (target instanceof ALocalDeclarationAssignmentTarget) {
+            ALocalDeclaration declaration = (ALocalDeclaration) ((ALocalDeclarationAssignmentTarget) target).getLocalDeclaration();
+            LocalSymbol local = getScope().resolveLocal(declaration.getName().getText());
+            Instruction value = lowerAssignedValue(assignment, compound ? readLocal(local, current) : null);
+            writeLocal(local, current, value);
+            return value;
+        } else if (target instanceof AIdentifierAssignmentTarget) {
+            TIdentifier identifier = ((AIdentifierAssignmentTarget) target).getIdentifier();
+            LocalSymbol local = resolveLocal(identifier);
+            if (local != null) {
+                Instruction value = lowerAssignedValue(assignment, compound ? readLocal(local, current) : null);
+                writeLocal(local, current, value);
+                return value;
+            } else {
+                Instruction object = getThisValue();
+                Instruction previous = compound ? append(Instruction.Opcode.LOAD_FIELD, type, target,
+                        identifier.getText(), object) : null;
+                Instruction value = lowerAssignedValue(assignment, previous);
+                append(Instruction.Opcode.STORE_FIELD, null, target, identifier.getText(), object, value);
+                return value;
+            }
+        } else if (target instanceof AFieldAccessAssignmentTarget) {
+            PFieldAccess fieldAccess = ((AFieldAccessAssignmentTarget) target).getFieldAccess();
+            if (fieldAccess instanceof AExpressionFieldAccess) {
+                AExpressionFieldAccess expressionFieldAccess = (AExpressionFieldAccess) fieldAccess;
+                String fieldName = expressionFieldAccess.getFieldName().getText();
+                Instruction object = lowerExpression(expressionFieldAccess.getTarget());
+                Instruction previous = compound ? append(Instruction.Opcode.LOAD_FIELD, type, fieldAccess, fieldName,
+                        object) : null;
+                Instruction value = lowerAssignedValue(assignment, previous);
+                append(Instruction.Opcode.STORE_FIELD, null, fieldAccess, fieldName, object, value);
+                return value;
+            } else {
+                String fieldName = ((ATypeTokenFieldAccess) fieldAccess).getFieldName().getText();
+                Instruction previous = compound ? append(Instruction.Opcode.LOAD_FIELD, type, fieldAccess, fieldName)
+                        : null;
+                Instruction value = lowerAssignedValue(assignment, previous);
+                append(Instruction.Opcode.STORE_FIELD, null, fieldAccess, fieldName, value);
+                return value;
+            }
+        } else {
+            AArrayAccess arrayAccess = (AArrayAccess) ((AArrayAccessAssignmentTarget) target).getArrayAccess();
+            Instruction array = lowerExpression(arrayAccess.getArray());
+            Instruction index = lowerExpression(arrayAccess.getIndex());
+            Instruction previous = compound ? append(Instruction.Opcode.LOAD_ELEMENT, type, arrayAccess, null, array,
+                    index) : null;
+            Instruction value = lowerAssignedValue(assignment, previous);
+            append(Instruction.Opcode.STORE_ELEMENT, null, arrayAccess, null, array, index, value);
+            return value;
+        }
+    }
+
+    /**
+     * Lowers the value stored by an assignment: the value itself for a plain assignment, or the result of a compound
+     * assignment's operation on the previous value of its target and its value, which is one for an increment or
+     * decrement.
+     *
+     * @param assignment the assignment
+     * @param previous the value of the target before the assignment, or {@code null} for a plain assignment
+     * @return the value to be stored
+     */
+    private Instruction lowerAssignedValue(PAssignment assignment, Instruction previous) throws SemanticException {
+        PExpression value = CodeGenerator.getAssignmentValue(assignment);
+        Class<? extends PExpression> operator = CodeGenerator.getCompoundOperator(assignment);
+        if (operator == null) {
+            return lowerExpression(value);
+        }
+        TypeToken type = types.get(assignment);
+        Instruction operand;
+        if (value == null) {
+            operand = append(Instruction.Opcode.CONSTANT, type, null, BigInteger.ONE);
+        } else {
+            operand = lowerExpression(value);
+        }
+        return append(BINARY_OPCODES.get(operator), type, assignment, null, previous, operand);
+    }
+
+    private LocalSymbol resolveLocal(TIdentifier identifier) {
+        try {
+            return getScope().resolveLocal(identifier.getText());
+        } catch (SemanticException sx) {
+            return null;
+        }
+    }
+
+    private Instruction getThisValue() {
+        if (thisValue == null) {
+            TypeToken type = null;
+            for (Node node = graph.getFunction(); node != null && type == null; node = node.parent()) {
+                if (node instanceof AClassDeclaration) {
+                    String name = ((AClassDeclaration) node).getName().getText();
+                    type = new UserDefinedTypeToken(name);
+                }
+            }
+            thisValue = new Instruction(Instruction.Opcode.THIS, type, null, null, ImmutableList.<Instruction>of());
+            graph.getEntry().prepend(thisValue);
+        }
+        return thisValue;
+    }
+
+    private Instruction append(Instruction.Opcode opcode, TypeToken type, Node origin, Object constant,
+                               Instruction... operands) {
+        return append(opcode, type, origin, constant, ImmutableList.copyOf(operands));
+    }
+
+    private Instruction append(Instruction.Opcode opcode, TypeToken type, Node origin, Object constant,
+                               List<Instruction> operands) {
+        Instruction instruction = new Instruction(opcode, type, origin, constant, resolveAll(operands));
+        current.append(instruction);
+        return instruction;
+    }
+
+    private void terminate(Instruction.Opcode opcode, Node origin, List<Instruction> operands) {
+        current.append(new Instruction(opcode, null, origin, null, resolveAll(operands)));
+    }
+
+    /**
+     * Returns the value which has taken the place of the specified value, if it was a trivial phi which has since been
+     * removed, or the value itself otherwise.
+     */
+    private Instruction resolve(Instruction value) {
+        Instruction resolved = value;
+        while (replacements.containsKey(resolved)) {
+            resolved = replacements.get(resolved);
+        }
+        return resolved;
+    }
+
+    private List<Instruction> resolveAll(List<Instruction> values) {
+        List<Instruction> resolved = Lists.newArrayList();
+        for (Instruction value : values) {
+            resolved.add(resolve(value));
+        }
+        return resolved;
+    }
+
+    private void jump(BasicBlock target) {
+        if (current != null) {
+            terminate(Instruction.Opcode.JUMP, null, ImmutableList.<Instruction>of());
+            current.addSuccessor(target);
+            current = null;
+        }
+    }
+
+    private void branch(Instruction condition, BasicBlock ifTrue, BasicBlock ifFalse) {
+        terminate(Instruction.Opcode.BRANCH, null, ImmutableList.of(condition));
+        current.addSuccessor(ifTrue);
+        current.addSuccessor(ifFalse);
+        current = null;
+    }
+
+    /**
+     * Returns the specified block if anything jumps to it, or {@code null} if it is unreachable.
+     */
+    private static BasicBlock reachable(BasicBlock block) {
+        return (block.getPredecessors().isEmpty() ? null : block);
+    }
+
+    private void writeLocal(LocalSymbol local, BasicBlock block, Instruction value) {
+        if (!definitions.containsKey(block)) {
+            definitions.put(block, Maps.<LocalSymbol, Instruction>newHashMap());
+        }
+        definitions.get(block).put(local, value);
+    }
+
+    private Instruction readLocal(LocalSymbol local, BasicBlock block) {
+        if (definitions.containsKey(block) && definitions.get(block).containsKey(local)) {
+            return definitions.get(block).get(local);
+        }
+
+        Instruction value;
+        if (!sealedBlocks.contains(block)) {
+            value = createPhi(local, block);
+            if (!incompletePhis.containsKey(block)) {
+                incompletePhis.put(block, Maps.<LocalSymbol, Instruction>newHashMap());
+            }
+            incompletePhis.get(block).put(local, value);
+        } else if (block.getPredecessors().size() == 1) {
+            value = readLocal(local, block.getPredecessors().get(0));
+        } else if (block.getPredecessors().isEmpty()) {
+            value = getUndefinedValue(local);
+        } else {
+            Instruction phi = createPhi(local, block);
+            writeLocal(local, block, phi);
+            value = completePhi(local, phi);
+        }
+        // removing a trivial phi may also have removed the value it was replaced with
+        value = resolve(value);
+        writeLocal(local, block, value);
+        return value;
+    }
+
+    private Instruction createPhi(LocalSymbol local, BasicBlock block) {
+        Instruction phi = new Instruction(Instruction.Opcode.PHI, local.getType(), null, local,
+                ImmutableList.<Instruction>of());
+        block.prepend(phi);
+        return phi;
+    }
+
+    private Instruction completePhi(LocalSymbol local, Instruction phi) {
+        for (BasicBlock predecessor : phi.getBlock().getPredecessors()) {
+            phi.addOperand(readLocal(local, predecessor));
+        }
+        return resolve(removeTrivialPhi(phi));
+    }
+
+    /**
+     * Removes a phi whose operands are all the same value, or the phi itself, replacing it with that value. Phis which
+     * used the removed phi may become trivial in turn.
+     */
+    private Instruction removeTrivialPhi(Instruction phi) {
+        Instruction same = null;
+        for (Instruction operand : phi.getOperands()) {
+            if (operand == same || operand == phi) {
+                continue;
+            } else if (same != null) {
+                return phi;
+            }
+            same = operand;
+        }
+        if (same == null) {
+            same = getUndefinedValue((LocalSymbol) phi.getConstant());
+        }
+
+        phi.getBlock().remove(phi);
+        replacements.put(phi, same);
+        List<Instruction> users = graph.replaceAllUses(phi, same);
+        for (Map<LocalSymbol, Instruction> blockDefinitions : Iterables.concat(definitions.values(),
+                incompletePhis.values())) {
+            for (Map.Entry<LocalSymbol, Instruction> entry : blockDefinitions.entrySet()) {
+                if (entry.getValue() == phi) {
+                    entry.setValue(same);
+                }
+            }
+        }
+        if (thisValue == phi) {
+            thisValue = same;
+        }
+        for (Instruction user : users) {
+            // phis which are still incomplete, or which merge expression values rather than locals, are left alone
+            if (user.getOpcode() == Instruction.Opcode.PHI && user.getBlock() != null && user.getConstant() != null
+                    && user.getOperands().size() == user.getBlock().getPredecessors().size()) {
+                removeTrivialPhi(user);
+            }
+        }
+        // the recursive removals may have removed the value itself
+        return resolve(same);
+    }
+
+    private void sealBlock(BasicBlock block) {
+        if (sealedBlocks.add(block) && incompletePhis.containsKey(block)) {
+            for (Map.Entry<LocalSymbol, Instruction> entry : incompletePhis.remove(block).entrySet()) {
+                completePhi(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private Instruction getUndefinedValue(LocalSymbol local) {
+        if (!undefinedValues.containsKey(local)) {
+            Instruction value = new Instruction(Instruction.Opcode.UNDEFINED, local.getType(), null, local,
+                    ImmutableList.<Instruction>of());
+            graph.getEntry().prepend(value);
+            undefinedValues.put(local, value);
+        }
+        return undefinedValues.get(local);
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ * DeadCodeEliminator.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.prealpha.diamond.compiler.analysis.DepthFirstAdapter;
+import com.prealpha.diamond.compiler.node.AAssignment;
+import com.prealpha.diamond.compiler.node.AAssignmentExpression;
+import com.prealpha.diamond.compiler.node.ABlockStatement;
+import com.prealpha.diamond.compiler.node.ABreakStatement;
+import com.prealpha.diamond.compiler.node.ACaseGroup;
+import com.prealpha.diamond.compiler.node.ACastDeclaration;
+import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
+import com.prealpha.diamond.compiler.node.AContinueStatement;
+import com.prealpha.diamond.compiler.node.ADefaultCaseGroup;
+import com.prealpha.diamond.compiler.node.ADoStatement;
+import com.prealpha.diamond.compiler.node.AEmptyStatement;
+import com.prealpha.diamond.compiler.node.AExpressionStatement;
+import com.prealpha.diamond.compiler.node.AFalseLiteral;
+import com.prealpha.diamond.compiler.node.AForStatement;
+import com.prealpha.diamond.compiler.node.AFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
+import com.prealpha.diamond.compiler.node.AIfThenStatement;
+import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ALocalDeclaration;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationAssignmentTarget;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationStatement;
+import com.prealpha.diamond.compiler.node.ANativeStatement;
+import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.AReturnStatement;
+import com.prealpha.diamond.compiler.node.ASwitchStatement;
+import com.prealpha.diamond.compiler.node.ATrueLiteral;
+import com.prealpha.diamond.compiler.node.AVoidFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AWhileStatement;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PAssignment;
+import com.prealpha.diamond.compiler.node.PAssignmentTarget;
+import com.prealpha.diamond.compiler.node.PCastInvocation;
+import com.prealpha.diamond.compiler.node.PConstructorInvocation;
+import com.prealpha.diamond.compiler.node.PExpression;
+import com.prealpha.diamond.compiler.node.PFunctionInvocation;
+import com.prealpha.diamond.compiler.node.PLiteral;
+import com.prealpha.diamond.compiler.node.PModifier;
+import com.prealpha.diamond.compiler.node.PStatement;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *     Removes statements which can never be executed and stores to locals which are never read, rewriting the syntax
+ *     tree in place after constants have been folded and before registers are allocated. This phase never adds or
+ *     removes local declarations, since the {@link CodeGenerator} expects to find every local of a scope on the stack
+ *     when the scope is reclaimed; a declaration with an initializer is merely stripped of the initializer.
+ * </p>
+ *
+ * <p>
+ *     Unreachable statements are found as in Java: a statement which follows a {@code return}, {@code break} or
+ *     {@code continue}, or any other statement which cannot complete normally, is unreachable. So is the untaken
+ *     branch of an {@code if} statement whose condition is a constant, or the body of a {@code while} or {@code for}
+ *     loop whose condition is {@code false}.
+ * </p>
+ *
+ * <p>
+ *     A store to a local is dead if the local is never read anywhere in its function, or if it is followed in the same
+ *     block by another store to the local, with no intervening reads or jumps; the later store may be made by both
+ *     branches of an {@code if} statement. Dead stores are removed entirely, unless
+ *     the stored value has side effects, in which case it is kept as an expression statement. Reads of a local within a
+ *     value stored to that same local, such as the {@code x} in {@code x = x + 1}, do not count unless the value has
+ *     side effects, and neither does the read of a local by a compound assignment statement such as {@code x += 1}.
+ *     Nothing at all is removed within {@code native} functions, since native statements may jump to labels
+ *     and read locals through the stack pointer.
+ * </p>
+ *
+ * @see ConstantFolder
+ */
+final class DeadCodeEliminator extends ScopeAwareWalker {
+    /**
+     * The number of reads of each local in the current function, or {@code null} if nothing is being removed from the
+     * current function.
+     */
+    private Multiset<LocalSymbol> reads;
+
+    /**
+     * The assignments in the current function which could be removed if their targets are never read.
+     */
+    private final Map<PAssignment, LocalSymbol> stores;
+
+    /**
+     * The locals being assigned pure values by the assignments enclosing the current point in the walk.
+     */
+    private final Deque<LocalSymbol> pureTargets;
+
+    public DeadCodeEliminator(Compiler compiler) {
+        super(compiler.getScopeSource());
+        stores = Maps.newLinkedHashMap();
+        pureTargets = Lists.newLinkedList();
+    }
+
+    @Override
+    public void inAFunctionDeclaration(AFunctionDeclaration declaration) {
+        super.inAFunctionDeclaration(declaration);
+        onEnterFunction(declaration.getModifiers());
+    }
+
+    @Override
+    public void outAFunctionDeclaration(AFunctionDeclaration declaration) {
+        onExitFunction();
+        super.outAFunctionDeclaration(declaration);
+    }
+
+    @Override
+    public void inAVoidFunctionDeclaration(AVoidFunctionDeclaration declaration) {
+        super.inAVoidFunctionDeclaration(declaration);
+        onEnterFunction(declaration.getModifiers());
+    }
+
+    @Override
+    public void outAVoidFunctionDeclaration(AVoidFunctionDeclaration declaration) {
+        onExitFunction();
+        super.outAVoidFunctionDeclaration(declaration);
+    }
+
+    @Override
+    public void inAConstructorDeclaration(AConstructorDeclaration declaration) {
+        super.inAConstructorDeclaration(declaration);
+        onEnterFunction(declaration.getModifiers());
+    }
+
+    @Override
+    public void outAConstructorDeclaration(AConstructorDeclaration declaration) {
+        onExitFunction();
+        super.outAConstructorDeclaration(declaration);
+    }
+
+    @Override
+    public void inACastDeclaration(ACastDeclaration declaration) {
+        super.inACastDeclaration(declaration);
+        onEnterFunction(declaration.getModifiers());
+    }
+
+    @Override
+    public void outACastDeclaration(ACastDeclaration declaration) {
+        onExitFunction();
+        super.outACastDeclaration(declaration);
+    }
+
+    private void onEnterFunction(List<PModifier> modifiers) {
+        reads = HashMultiset.create();
+        stores.clear();
+        for (PModifier modifier : modifiers) {
+            if (Modifier.fromNode(modifier) == Modifier.NATIVE) {
+                reads = null;
+            }
+        }
+    }
+
+    private void onExitFunction() {
+        if (reads != null) {
+            for (Map.Entry<PAssignment, LocalSymbol> entry : stores.entrySet()) {
+                if (isAttached(entry.getKey()) && !reads.contains(entry.getValue())) {
+                    removeStore(entry.getKey());
+                }
+            }
+        }
+        reads = null;
+        stores.clear();
+    }
+
+    @Override
+    public void inAAssignmentExpression(AAssignmentExpression expression) {
+        PAssignment assignment = expression.getAssignment();
+        LocalSymbol local = getAssignedLocal(CodeGenerator.getAssignmentTarget(assignment));
+        PExpression value = CodeGenerator.getAssignmentValue(assignment);
+        pureTargets.push((local != null && (value == null || !hasSideEffects(value))) ? local : null);
+        if (reads != null && local != null) {
+            if (isStoreStatement(assignment)) {
+                stores.put(assignment, local);
+            } else if (!(assignment instanceof AAssignment)) {
+                // the value of the compound assignment is used, and it depends on the previous value of the local
+                reads.add(local);
+            }
+        }
+    }
+
+    @Override
+    public void outAAssignmentExpression(AAssignmentExpression expression) {
+        pureTargets.pop();
+    }
+
+    @Override
+    public void outAIdentifierPrimaryExpression(AIdentifierPrimaryExpression primaryExpression) {
+        if (reads != null) {
+            LocalSymbol local = resolveLocal(primaryExpression.getIdentifier().getText());
+            if (local != null && !pureTargets.contains(local)) {
+                reads.add(local);
+            }
+        }
+    }
+
+    @Override
+    public void outAIfThenStatement(AIfThenStatement statement) {
+        if (reads == null) {
+            return;
+        }
+        Boolean condition = getBooleanConstant(statement.getCondition());
+        if (condition == Boolean.TRUE) {
+            replaceStatement(statement, ImmutableList.of(statement.getThen()));
+        } else if (condition == Boolean.FALSE && !declaresLocals(statement.getThen())) {
+            replaceStatement(statement, ImmutableList.<PStatement>of());
+        }
+    }
+
+    @Override
+    public void outAIfThenElseStatement(AIfThenElseStatement statement) {
+        if (reads == null) {
+            return;
+        }
+        Boolean condition = getBooleanConstant(statement.getCondition());
+        if (condition == Boolean.TRUE && !declaresLocals(statement.getElse())) {
+            replaceStatement(statement, ImmutableList.of(statement.getThen()));
+        } else if (condition == Boolean.FALSE && !declaresLocals(statement.getThen())) {
+            replaceStatement(statement, ImmutableList.of(statement.getElse()));
+        }
+    }
+
+    @Override
+    public void outAWhileStatement(AWhileStatement statement) {
+        if (reads != null && getBooleanConstant(statement.getCondition()) == Boolean.FALSE
+                && !declaresLocals(statement.getBody())) {
+            replaceStatement(statement, ImmutableList.<PStatement>of());
+        }
+    }
+
+    @Override
+    public void outAForStatement(AForStatement statement) {
+        super.outAForStatement(statement);
+        if (reads != null && statement.getCondition() != null
+                && getBooleanConstant(statement.getCondition()) == Boolean.FALSE) {
+            // a local declared by the initializer is in the scope of the loop, so only the value it is given matters
+            PExpression init = statement.getInit();
+            if (init instanceof AAssignmentExpression && CodeGenerator.getAssignmentTarget(
+                    ((AAssignmentExpression) init).getAssignment()) instanceof ALocalDeclarationAssignmentTarget) {
+                init = CodeGenerator.getAssignmentValue(((AAssignmentExpression) init).getAssignment());
+            }
+            if (init == null || !hasSideEffects(init)) {
+                replaceStatement(statement, ImmutableList.<PStatement>of());
+            } else if (!containsLocalDeclaration(init)) {
+                replaceStatement(statement, ImmutableList.<PStatement>of(new AExpressionStatement(init)));
+            }
+        }
+    }
+
+    @Override
+    public void outABlockStatement(ABlockStatement statement) {
+        simplifyStatements(statement.getStatement());
+        super.outABlockStatement(statement);
+    }
+
+    @Override
+    public void outACaseGroup(ACaseGroup caseGroup) {
+        simplifyStatements(caseGroup.getBody());
+    }
+
+    @Override
+    public void outADefaultCaseGroup(ADefaultCaseGroup caseGroup) {
+        simplifyStatements(caseGroup.getBody());
+    }
+
+    /**
+     * Removes the overwritten stores and unreachable statements from a list of statements executed in sequence.
+     *
+     * @param statements the body of a block or case group
+     */
+    private void simplifyStatements(List<PStatement> statements) {
+        if (reads == null) {
+            return;
+        }
+
+        for (PStatement statement : ImmutableList.copyOf(statements)) {
+            PAssignment store = getStore(statement);
+            if (store != null && isOverwritten(store, statements.subList(statements.indexOf(statement) + 1,
+                    statements.size()))) {
+                removeStore(store);
+            }
+        }
+
+        boolean reachable = true;
+        for (PStatement statement : ImmutableList.copyOf(statements)) {
+            if (!reachable) {
+                PAssignment store = getStore(statement);
+                PAssignmentTarget target = (store == null) ? null : CodeGenerator.getAssignmentTarget(store);
+                if (target instanceof ALocalDeclarationAssignmentTarget) {
+                    replaceStatement(statement, ImmutableList.<PStatement>of(new ALocalDeclarationStatement(
+                            ((ALocalDeclarationAssignmentTarget) target).getLocalDeclaration())));
+                } else if (!declaresLocals(statement)) {
+                    replaceStatement(statement, ImmutableList.<PStatement>of());
+                }
+            } else if (!canCompleteNormally(statement)) {
+                reachable = false;
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the specified store is followed by another store to the same local in the specified
+     * statements, without any intervening statement which reads or assigns the local or which might jump elsewhere.
+     * Only a plain assignment overwrites the local, since a compound assignment reads it first.
+     */
+    private boolean isOverwritten(PAssignment store, List<PStatement> following) {
+        String name = getAssignedLocal(CodeGenerator.getAssignmentTarget(store)).getName();
+        return getOverwrite(following, name) == Boolean.TRUE;
+    }
+
+    /**
+     * Determines whether the specified statements, executed in sequence, overwrite the named local before doing
+     * anything else with it.
+     *
+     * @return {@code true} if they store to the local first, {@code false} if they might read it or jump elsewhere
+     * first, or {@code null} if they do neither
+     */
+    private Boolean getOverwrite(List<PStatement> statements, String name) {
+        for (PStatement statement : statements) {
+            Boolean overwrite = getOverwrite(statement, name);
+            if (overwrite != null) {
+                return overwrite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether the specified statement overwrites the named local before doing anything else with it. A
+     * block does so if its statements do, and an {@code if} statement does so if both of its branches do.
+     *
+     * @return {@code true} if it stores to the local first, {@code false} if it might read it or jump elsewhere
+     * first, or {@code null} if it does neither
+     */
+    private Boolean getOverwrite(PStatement statement, String name) {
+        PAssignment store = getStore(statement);
+        PAssignmentTarget target = (store == null) ? null : CodeGenerator.getAssignmentTarget(store);
+        if (store instanceof AAssignment && target instanceof AIdentifierAssignmentTarget
+                && ((AIdentifierAssignmentTarget) target).getIdentifier().getText().equals(name)
+                && !mentions(((AAssignment) store).getValue(), name)) {
+            return true;
+        } else if (statement instanceof ABlockStatement) {
+            return getOverwrite(((ABlockStatement) statement).getStatement(), name);
+        } else if (statement instanceof AIfThenElseStatement
+                && !mentions(((AIfThenElseStatement) statement).getCondition(), name)) {
+            AIfThenElseStatement ifThenElse = (AIfThenElseStatement) statement;
+            Boolean then = getOverwrite(ifThenElse.getThen(), name);
+            Boolean otherwise = getOverwrite(ifThenElse.getElse(), name);
+            if (then == Boolean.TRUE && otherwise == Boolean.TRUE) {
+                return true;
+            } else if (then == null && otherwise == null) {
+                return null;
+            } else {
+                return false;
+            }
+        } else if (mentions(statement, name) || containsJump(statement)) {
+            return false;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces a dead store with its value, if the value has side effects, or otherwise removes it. If the store
+     * initializes a newly declared local, the declaration is kept.
+     */
+    private void removeStore(PAssignment store) {
+        PStatement statement = (PStatement) store.parent().parent();
+        PAssignmentTarget target = CodeGenerator.getAssignmentTarget(store);
+        PExpression value = CodeGenerator.getAssignmentValue(store);
+        List<PStatement> replacement = Lists.newArrayList();
+        if (target instanceof ALocalDeclarationAssignmentTarget) {
+            replacement.add(new ALocalDeclarationStatement(
+                    ((ALocalDeclarationAssignmentTarget) target).getLocalDeclaration()));
+        }
+        if (value != null && hasSideEffects(value)) {
+            replacement.add(new AExpressionStatement(value));
+        }
+        replaceStatement(statement, replacement);
+    }
+
+    /**
+     * Replaces a statement with any number of others. If the statement is not in a block or case group, then it can
+     * only be replaced by one statement, or by an empty statement; otherwise, this method does nothing.
+     */
+    private void replaceStatement(PStatement statement, List<PStatement> replacement) {
+        Node parent = statement.parent();
+        List<PStatement> statements;
+        if (parent instanceof ABlockStatement) {
+            statements = ((ABlockStatement) parent).getStatement();
+        } else if (parent instanceof ACaseGroup) {
+            statements = ((ACaseGroup) parent).getBody();
+        } else if (parent instanceof ADefaultCaseGroup) {
+            statements = ((ADefaultCaseGroup) parent).getBody();
+        } else {
+            statements = null;
+        }
+
+        if (statements != null && replacement.isEmpty() && statements.size() > 1) {
+            statement.replaceBy(null);
+        } else if (statements != null && replacement.size() > 1) {
+            // the generated list setters only work properly for nodes which have no parent
+            List<PStatement> updated = Lists.newArrayList(statements);
+            int index = updated.indexOf(statement);
+            updated.remove(index);
+            updated.addAll(index, replacement);
+            for (PStatement enclosedStatement : ImmutableList.copyOf(statements)) {
+                enclosedStatement.replaceBy(null);
+            }
+            if (parent instanceof ABlockStatement) {
+                ((ABlockStatement) parent).setStatement(updated);
+            } else if (parent instanceof ACaseGroup) {
+                ((ACaseGroup) parent).setBody(updated);
+            } else {
+                ((ADefaultCaseGroup) parent).setBody(updated);
+            }
+        } else if (replacement.isEmpty()) {
+            statement.replaceBy(new AEmptyStatement());
+        } else if (replacement.size() == 1) {
+            statement.replaceBy(replacement.get(0));
+        }
+    }
+
+    private static boolean isAttached(Node node) {
+        while (node != null && !(node instanceof AFunctionDeclaration || node instanceof AVoidFunctionDeclaration
+                || node instanceof AConstructorDeclaration || node instanceof ACastDeclaration)) {
+            node = node.parent();
+        }
+        return (node != null);
+    }
+
+    /**
+     * Returns the assignment which makes up the specified statement, if it is a store to a local.
+     */
+    private PAssignment getStore(PStatement statement) {
+        if (statement instanceof AExpressionStatement) {
+            PExpression expression = ((AExpressionStatement) statement).getExpression();
+            if (expression instanceof AAssignmentExpression) {
+                PAssignment assignment = ((AAssignmentExpression) expression).getAssignment();
+                if (getAssignedLocal(CodeGenerator.getAssignmentTarget(assignment)) != null) {
+                    return assignment;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isStoreStatement(PAssignment assignment) {
+        return (assignment.parent() instanceof AAssignmentExpression
+                && assignment.parent().parent() instanceof AExpressionStatement);
+    }
+
+    private LocalSymbol getAssignedLocal(PAssignmentTarget target) {
+        if (target instanceof ALocalDeclarationAssignmentTarget) {
+            ALocalDeclaration declaration = (ALocalDeclaration) ((ALocalDeclarationAssignmentTarget) target).getLocalDeclaration();
+            return resolveLocal(declaration.getName().getText());
+        } else if (target instanceof AIdentifierAssignmentTarget) {
+            return resolveLocal(((AIdentifierAssignmentTarget) target).getIdentifier().getText());
+        } else {
+            return null;
+        }
+    }
+
+    private LocalSymbol resolveLocal(String name) {
+        try {
+            return getScope().resolveLocal(name);
+        } catch (SemanticException sx) {
+            // the name is a field
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if control might flow out of the end of the specified statement. This is conservative:
+     * only statements which certainly jump elsewhere, or loop forever, cannot complete normally.
+     */
+    static boolean canCompleteNormally(PStatement statement) {
+        if (statement instanceof AReturnStatement || statement instanceof ABreakStatement
+                || statement instanceof AContinueStatement) {
+            return false;
+        } else if (statement instanceof ABlockStatement) {
+            for (PStatement enclosedStatement : ((ABlockStatement) statement).getStatement()) {
+                if (!canCompleteNormally(enclosedStatement)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (statement instanceof AIfThenElseStatement) {
+            AIfThenElseStatement ifThenElse = (AIfThenElseStatement) statement;
+            return canCompleteNormally(ifThenElse.getThen()) || canCompleteNormally(ifThenElse.getElse());
+        } else if (statement instanceof AWhileStatement) {
+            AWhileStatement loop = (AWhileStatement) statement;
+            return getBooleanConstant(loop.getCondition()) != Boolean.TRUE || containsBreak(loop.getBody());
+        } else if (statement instanceof AForStatement) {
+            AForStatement loop = (AForStatement) statement;
+            return (loop.getCondition() != null && getBooleanConstant(loop.getCondition()) != Boolean.TRUE)
+                    || containsBreak(loop.getBody());
+        } else if (statement instanceof ADoStatement) {
+            ADoStatement loop = (ADoStatement) statement;
+            return getBooleanConstant(loop.getCondition()) != Boolean.TRUE || containsBreak(loop.getBody());
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the specified loop body contains a {@code break} statement which exits the loop, rather
+     * than some loop or {@code switch} statement nested within it.
+     */
+    private static boolean containsBreak(Node body) {
+        final boolean[] found = { false };
+        body.apply(new DepthFirstAdapter() {
+            @Override
+            public void inABreakStatement(ABreakStatement statement) {
+                found[0] = true;
+            }
+
+            @Override
+            public void caseAWhileStatement(AWhileStatement statement) {
+            }
+
+            @Override
+            public void caseAForStatement(AForStatement statement) {
+            }
+
+            @Override
+            public void caseADoStatement(ADoStatement statement) {
+            }
+
+            @Override
+            public void caseASwitchStatement(ASwitchStatement statement) {
+            }
+        });
+        return found[0];
+    }
+
+    private static boolean containsJump(Node node) {
+        final boolean[] found = { false };
+        node.apply(new DepthFirstAdapter() {
+            @Override
+            public void defaultIn(Node node) {
+                if (node instanceof AReturnStatement || node instanceof ABreakStatement
+                        || node instanceof AContinueStatement || node instanceof ANativeStatement) {
+                    found[0] = true;
+                }
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * Returns {@code true} if the specified node reads or assigns anything with the specified name.
+     */
+    private static boolean mentions(Node node, final String name) {
+        final boolean[] found = { false };
+        node.apply(new DepthFirstAdapter() {
+            @Override
+            public void inAIdentifierPrimaryExpression(AIdentifierPrimaryExpression primaryExpression) {
+                found[0] |= primaryExpression.getIdentifier().getText().equals(name);
+            }
+
+            @Override
+            public void inAIdentifierAssignmentTarget(AIdentifierAssignmentTarget target) {
+                found[0] |= target.getIdentifier().getText().equals(name);
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * Returns {@code true} if evaluating the specified expression might do anything other than compute a value: that
+     * is, if it contains an invocation or an assignment.
+     */
+    static boolean hasSideEffects(Node expression) {
+        final boolean[] found = { false };
+        expression.apply(new DepthFirstAdapter() {
+            @Override
+            public void defaultIn(Node node) {
+                if (node instanceof PFunctionInvocation || node instanceof PConstructorInvocation
+                        || node instanceof PCastInvocation || node instanceof PAssignment) {
+                    found[0] = true;
+                }
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * Returns {@code true} if the specified statement declares locals in the enclosing scope, rather than in a block or
+     * {@code for} statement of its own.
+     */
+    private static boolean declaresLocals(Node statement) {
+        final boolean[] found = { false };
+        statement.apply(new DepthFirstAdapter() {
+            @Override
+            public void inALocalDeclaration(ALocalDeclaration declaration) {
+                found[0] = true;
+            }
+
+            @Override
+            public void caseABlockStatement(ABlockStatement statement) {
+            }
+
+            @Override
+            public void caseAForStatement(AForStatement statement) {
+            }
+        });
+        return found[0];
+    }
+
+    private static boolean containsLocalDeclaration(Node node) {
+        final boolean[] found = { false };
+        node.apply(new DepthFirstAdapter() {
+            @Override
+            public void inALocalDeclaration(ALocalDeclaration declaration) {
+                found[0] = true;
+            }
+        });
+        return found[0];
+    }
+
+    static Boolean getBooleanConstant(PExpression expression) {
+        Node node = expression;
+        while (node instanceof APrimaryExpression || node instanceof AParentheticalPrimaryExpression) {
+            if (node instanceof APrimaryExpression) {
+                node = ((APrimaryExpression) node).getPrimaryExpression();
+            } else {
+                node = ((AParentheticalPrimaryExpression) node).getExpression();
+            }
+        }
+        if (node instanceof ALiteralPrimaryExpression) {
+            PLiteral literal = ((ALiteralPrimaryExpression) node).getLiteral();
+            if (literal instanceof ATrueLiteral) {
+                return Boolean.TRUE;
+            } else if (literal instanceof AFalseLiteral) {
+                return Boolean.FALSE;
+            }
+        }
+        return null;
+    }
+}
@@ -32,7 +32,7 @@ final class DoFlowStructure implements FlowStructure {
             codeGenerator.doReclaimScope(scope);
             scope = scope.getParent();
         }
-        codeGenerator.write("SET PC " + codeGenerator.getEndLabel(doStatement.getCondition()));
+        codeGenerator.write("SET PC " + codeGenerator.getEndLabel(doStatement));
         return true;
     }
 
@@ -0,0 +1,420 @@
+/*
+ * EscapeAnalyzer.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.node.ABlockStatement;
+import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
+import com.prealpha.diamond.compiler.node.AConstructorInvocation;
+import com.prealpha.diamond.compiler.node.ADeleteStatement;
+import com.prealpha.diamond.compiler.node.AExpressionFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AForStatement;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.AProgram;
+import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PExpression;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ *     Finds the objects and arrays which never outlive the function that allocates them, so that the
+ *     {@link CodeGenerator} can place them in that function's stack frame rather than calling {@code heapalloc}, and
+ *     drop the {@code delete} statements which free them. The analysis works on the {@linkplain ControlFlowGraph
+ *     control flow graphs} of the program, in which every reference to a newly allocated object is a use of the
+ *     instruction which allocated it.
+ * </p>
+ *
+ * <p>
+ *     A value <i>escapes</i> if it might be reachable once the function using it returns: if it is returned, stored in a
+ *     field or array element, merged with other values by a phi, cast, or passed to a function which lets it escape.
+ *     Each function is summarized by whether its {@code this} and each of its parameters escape, and the summaries are
+ *     computed for all functions together, starting from the assumption that nothing escapes and iterating until no
+ *     summary changes. A constructor returning {@code this} does not let it escape, since its caller receives the
+ *     object it allocated. Native functions, and functions containing native statements, let everything escape.
+ * </p>
+ *
+ * <p>
+ *     An allocation may be placed on the stack if it does not escape, it has a fixed size of at most
+ *     {@link #MAX_STACK_WORDS} words, and every use of it is within the block which encloses the allocation. Its frame
+ *     slots can then be shared with the locals of sibling blocks, just as those of the block's own locals are. A
+ *     reference which survives from one iteration of a loop to the next must pass through a phi, so an allocation
+ *     within a loop may reuse the same slots on each iteration. Inlined bodies have no frame of their own, so an
+ *     allocation within a function which is inlined, and its {@code delete}, use the heap in the inlined copy.
+ * </p>
+ *
+ * @see CodeGenerator
+ */
+final class EscapeAnalyzer extends ScopeAwareWalker {
+    /**
+     * The largest object or array, in words, which may be allocated on the stack.
+     */
+    static final int MAX_STACK_WORDS = 32;
+
+    private final Map<Node, ControlFlowGraph> graphs;
+
+    private final Map<Node, TypeToken> types;
+
+    /**
+     * The function or constructor invoked by each invocation node.
+     */
+    private final Map<Node, ParametrizedSymbol> callees;
+
+    /**
+     * The width of the object allocated by each constructor invocation of a user-defined class.
+     */
+    private final Map<Node, Integer> objectWidths;
+
+    private final Set<Node> escapingThis;
+
+    private final Map<Node, Set<Integer>> escapingParameters;
+
+    private final Map<Node, Integer> stackAllocations;
+
+    private final Map<Node, Node> deletedAllocations;
+
+    public EscapeAnalyzer(Compiler compiler) {
+        super(compiler.getScopeSource());
+        graphs = compiler.getControlFlowGraphs();
+        types = compiler.getTypes();
+        callees = Maps.newHashMap();
+        objectWidths = Maps.newHashMap();
+        escapingThis = Sets.newHashSet();
+        escapingParameters = Maps.newHashMap();
+        stackAllocations = Maps.newHashMap();
+        deletedAllocations = Maps.newHashMap();
+    }
+
+    /**
+     * Returns the number of words to reserve in the frame of the allocating function for each allocation which may be
+     * placed on the stack, keyed by its constructor invocation.
+     *
+     * @return the width of each stack allocation
+     */
+    public Map<Node, Integer> getStackAllocations() {
+        return ImmutableMap.copyOf(stackAllocations);
+    }
+
+    /**
+     * Returns the allocation freed by the specified {@code delete} statement, if that allocation may be placed on the
+     * stack and the statement names it by a local.
+     *
+     * @param statement a {@code delete} statement
+     * @return the constructor invocation of the freed allocation, or {@code null} if the statement must free the heap
+     */
+    public Node getDeletedAllocation(Node statement) {
+        return deletedAllocations.get(statement);
+    }
+
+    @Override
+    public void outAProgram(AProgram program) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ControlFlowGraph graph : graphs.values()) {
+                changed |= summarize(graph);
+            }
+        }
+        for (ControlFlowGraph graph : graphs.values()) {
+            findStackAllocations(graph);
+        }
+    }
+
+    @Override
+    public void outAUnqualifiedFunctionInvocation(AUnqualifiedFunctionInvocation invocation) {
+        try {
+            List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
+            callees.put(invocation, getScope().resolveFunction(invocation.getFunctionName().getText(), parameterTypes));
+        } catch (SemanticException sx) {
+            // the invocation is treated as letting everything escape
+        }
+    }
+
+    @Override
+    public void outAExpressionFunctionInvocation(AExpressionFunctionInvocation invocation) {
+        try {
+            String className = ((UserDefinedTypeToken) types.get(invocation.getTarget())).getTypeName();
+            Scope scope = getScope(getScope().resolveClass(className).getDeclaration());
+            List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
+            callees.put(invocation, scope.resolveFunction(invocation.getFunctionName().getText(), parameterTypes));
+        } catch (SemanticException sx) {
+            // the invocation is treated as letting everything escape
+        }
+    }
+
+    @Override
+    public void outATypeTokenFunctionInvocation(ATypeTokenFunctionInvocation invocation) {
+        try {
+            Scope scope = getScope();
+            if (invocation.getTarget() != null) {
+                TypeToken enclosingType = TypeTokenUtil.fromNode(invocation.getTarget());
+                scope = getScope(getScope().resolveClass(((UserDefinedTypeToken) enclosingType).getTypeName())
+                        .getDeclaration());
+            }
+            List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
+            callees.put(invocation, scope.resolveFunction(invocation.getFunctionName().getText(), parameterTypes));
+        } catch (SemanticException sx) {
+            // the invocation is treated as letting everything escape
+        }
+    }
+
+    @Override
+    public void outAConstructorInvocation(AConstructorInvocation invocation) {
+        try {
+            Scope scope = getScope();
+            if (invocation.getTarget() != null) {
+                TypeToken scopeToken = TypeTokenUtil.fromNode(invocation.getTarget());
+                if (!(scopeToken instanceof UserDefinedTypeToken)) {
+                    return;
+                }
+                scope = getScope(getScope().resolveClass(((UserDefinedTypeToken) scopeToken).getTypeName())
+                        .getDeclaration());
+            }
+            List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
+            ConstructorSymbol symbol = scope.resolveConstructor(parameterTypes);
+            callees.put(invocation, symbol);
+            objectWidths.put(invocation, getScope(symbol.getDeclaringClass().getDeclaration()).getFields().size());
+        } catch (SemanticException sx) {
+            // the invocation is treated as letting everything escape
+        }
+    }
+
+    /**
+     * Updates the summary of the function represented by the specified graph.
+     *
+     * @param graph the graph of a function
+     * @return whether the summary changed
+     */
+    private boolean summarize(ControlFlowGraph graph) {
+        Node function = graph.getFunction();
+        Set<Instruction> escaping = findEscapingValues(graph);
+        boolean thisEscapes = escaping.contains(null);
+        Set<Integer> parameters = Sets.newHashSet();
+        int index = 0;
+        for (Instruction instruction : graph.getEntry().getInstructions()) {
+            if (instruction.getOpcode() == Instruction.Opcode.THIS) {
+                thisEscapes |= escaping.contains(instruction);
+            } else if (instruction.getOpcode() == Instruction.Opcode.PARAMETER) {
+                if (escaping.contains(instruction)) {
+                    parameters.add(index);
+                }
+                index++;
+            }
+        }
+
+        boolean changed = false;
+        if (thisEscapes && escapingThis.add(function)) {
+            changed = true;
+        }
+        if (!escapingParameters.containsKey(function)) {
+            escapingParameters.put(function, Sets.<Integer>newHashSet());
+        }
+        changed |= escapingParameters.get(function).addAll(parameters);
+        return changed;
+    }
+
+    /**
+     * Returns the values in the specified graph which escape, according to the current summaries. The set contains
+     * {@code null} if {@code this} escapes without being an operand: through an invocation of an instance function
+     * without a target, or a constructor returning something other than {@code this}.
+     */
+    private Set<Instruction> findEscapingValues(ControlFlowGraph graph) {
+        Set<Instruction> escaping = Sets.newHashSet();
+        boolean hasNative = false;
+        for (BasicBlock block : graph.getBlocks()) {
+            for (Instruction instruction : block.getInstructions()) {
+                List<Instruction> operands = instruction.getOperands();
+                for (int i = 0; i < operands.size(); i++) {
+                    if (escapes(graph, instruction, i)) {
+                        escaping.add(operands.get(i));
+                    }
+                }
+                if (instruction.getOpcode() == Instruction.Opcode.RETURN && isConstructor(graph)
+                        && (operands.isEmpty() || operands.get(0).getOpcode() != Instruction.Opcode.THIS)) {
+                    // the caller takes the value returned to be the object it allocated
+                    escaping.add(null);
+                } else if (instruction.getOrigin() instanceof AUnqualifiedFunctionInvocation) {
+                    ParametrizedSymbol callee = callees.get(instruction.getOrigin());
+                    if (callee == null || (isInstanceFunction(callee) && thisEscapes(callee))) {
+                        escaping.add(null);
+                    }
+                }
+                hasNative |= (instruction.getOpcode() == Instruction.Opcode.NATIVE);
+            }
+        }
+        if (hasNative) {
+            // native code may read any local through the stack pointer
+            for (BasicBlock block : graph.getBlocks()) {
+                escaping.addAll(block.getInstructions());
+            }
+            escaping.add(null);
+        }
+        return escaping;
+    }
+
+    /**
+     * Returns {@code true} if the specified use of a value lets it escape.
+     *
+     * @param graph the graph containing the use
+     * @param user the instruction using the value
+     * @param index the index of the value among the operands of {@code user}
+     * @return whether the value escapes through this use
+     */
+    private boolean escapes(ControlFlowGraph graph, Instruction user, int index) {
+        Instruction value = user.getOperands().get(index);
+        switch (user.getOpcode()) {
+            case LOAD_FIELD:
+            case LOAD_ELEMENT:
+            case EQUAL:
+            case NOT_EQUAL:
+            case BRANCH:
+                return false;
+            case STORE_FIELD:
+            case STORE_ELEMENT:
+                // only the stored value escapes, not the object or array it is stored into
+                return (index == user.getOperands().size() - 1);
+            case RETURN:
+                return !(isConstructor(graph) && value.getOpcode() == Instruction.Opcode.THIS);
+            case DELETE:
+                // the code generator only drops a delete statement which names the object by a local
+                PExpression object = ((ADeleteStatement) user.getOrigin()).getObject();
+                return (value.getOpcode() != Instruction.Opcode.NEW || !isLocal(object));
+            case CALL:
+            case NEW:
+                ParametrizedSymbol callee = callees.get(user.getOrigin());
+                if (callee == null || !graphs.containsKey(callee.getDeclaration())) {
+                    return true;
+                } else if (user.getOrigin() instanceof AExpressionFunctionInvocation) {
+                    return (index == 0) ? thisEscapes(callee) : parameterEscapes(callee, index - 1);
+                } else {
+                    return parameterEscapes(callee, index);
+                }
+            default:
+                return true;
+        }
+    }
+
+    private boolean thisEscapes(ParametrizedSymbol callee) {
+        return !graphs.containsKey(callee.getDeclaration()) || escapingThis.contains(callee.getDeclaration());
+    }
+
+    private boolean parameterEscapes(ParametrizedSymbol callee, int index) {
+        Set<Integer> parameters = escapingParameters.get(callee.getDeclaration());
+        return (parameters != null && parameters.contains(index));
+    }
+
+    private static boolean isConstructor(ControlFlowGraph graph) {
+        return (graph.getFunction() instanceof AConstructorDeclaration);
+    }
+
+    private static boolean isInstanceFunction(ParametrizedSymbol symbol) {
+        return (!(symbol instanceof ConstructorSymbol) && !symbol.getModifiers().contains(Modifier.STATIC)
+                && symbol.getDeclaringClass() != null);
+    }
+
+    private static boolean isLocal(PExpression expression) {
+        return (expression instanceof APrimaryExpression
+                && ((APrimaryExpression) expression).getPrimaryExpression() instanceof AIdentifierPrimaryExpression);
+    }
+
+    /**
+     * Records the allocations in the specified graph which may be placed on the stack, along with the {@code delete}
+     * statements which free them.
+     */
+    private void findStackAllocations(ControlFlowGraph graph) {
+        Set<Instruction> escaping = findEscapingValues(graph);
+        Map<Instruction, List<Instruction>> users = Maps.newHashMap();
+        for (BasicBlock block : graph.getBlocks()) {
+            for (Instruction instruction : block.getInstructions()) {
+                for (Instruction operand : instruction.getOperands()) {
+                    if (!users.containsKey(operand)) {
+                        users.put(operand, Lists.<Instruction>newArrayList());
+                    }
+                    users.get(operand).add(instruction);
+                }
+            }
+        }
+
+        for (BasicBlock block : graph.getBlocks()) {
+            for (Instruction allocation : block.getInstructions()) {
+                if (allocation.getOpcode() != Instruction.Opcode.NEW || escaping.contains(allocation)) {
+                    continue;
+                }
+                Integer width = getWidth(allocation);
+                Node scope = getEnclosingBlock(allocation.getOrigin());
+                ParametrizedSymbol constructor = callees.get(allocation.getOrigin());
+                if (width == null || width > MAX_STACK_WORDS || scope == null
+                        || (constructor != null && thisEscapes(constructor))) {
+                    continue;
+                }
+                List<Instruction> uses = users.containsKey(allocation) ? users.get(allocation)
+                        : Lists.<Instruction>newArrayList();
+                boolean contained = true;
+                for (Instruction use : uses) {
+                    contained &= isWithin(use.getOrigin(), scope);
+                }
+                if (contained) {
+                    stackAllocations.put(allocation.getOrigin(), Math.max(width, 1));
+                    for (Instruction use : uses) {
+                        if (use.getOpcode() == Instruction.Opcode.DELETE) {
+                            deletedAllocations.put(use.getOrigin(), allocation.getOrigin());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of words allocated by the specified {@code NEW} instruction, or {@code null} if it is not
+     * known at compile time.
+     */
+    private Integer getWidth(Instruction allocation) {
+        if (allocation.getType() instanceof ArrayTypeToken) {
+            Instruction length = allocation.getOperands().get(0);
+            if (length.getOpcode() == Instruction.Opcode.CONSTANT) {
+                BigInteger words = (BigInteger) length.getConstant();
+                return (words.compareTo(BigInteger.valueOf(MAX_STACK_WORDS)) <= 0) ? words.intValue() : null;
+            }
+            return null;
+        } else {
+            return objectWidths.get(allocation.getOrigin());
+        }
+    }
+
+    /**
+     * Returns the nearest block or {@code for} statement enclosing the specified node, which are the scopes within
+     * which the code generator assigns frame slots.
+     */
+    private static Node getEnclosingBlock(Node node) {
+        for (Node ancestor = node; ancestor != null; ancestor = ancestor.parent()) {
+            if (ancestor instanceof ABlockStatement || ancestor instanceof AForStatement) {
+                return ancestor;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWithin(Node node, Node ancestor) {
+        for (Node current = node; current != null; current = current.parent()) {
+            if (current == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -32,7 +32,7 @@ final class ForFlowStructure implements FlowStructure {
             codeGenerator.doReclaimScope(scope);
             scope = scope.getParent();
         }
-        codeGenerator.write("SET PC " + codeGenerator.getEndLabel(forStatement.getBody()));
+        codeGenerator.write("SET PC reclaim_" + codeGenerator.getBaseLabel(forStatement));
         return true;
     }
 
@@ -43,7 +43,7 @@ final class ForFlowStructure implements FlowStructure {
             codeGenerator.doReclaimScope(scope);
             scope = scope.getParent();
         }
-        codeGenerator.write("SET PC " + codeGenerator.getStartLabel(forStatement.getUpdate()));
+        codeGenerator.write("SET PC next_" + codeGenerator.getBaseLabel(forStatement.getBody()));
         return true;
     }
 
@@ -0,0 +1,712 @@
+/*
+ * FunctionEvaluator.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.node.AAddExpression;
+import com.prealpha.diamond.compiler.node.AArrayAccess;
+import com.prealpha.diamond.compiler.node.AArrayAccessAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AArrayAccessPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AAssignment;
+import com.prealpha.diamond.compiler.node.AAssignmentExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseAndExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseComplementExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseOrExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseXorExpression;
+import com.prealpha.diamond.compiler.node.ABlockStatement;
+import com.prealpha.diamond.compiler.node.ABreakStatement;
+import com.prealpha.diamond.compiler.node.ACaseGroup;
+import com.prealpha.diamond.compiler.node.ACastInvocation;
+import com.prealpha.diamond.compiler.node.ACastInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AConditionalAndExpression;
+import com.prealpha.diamond.compiler.node.AConditionalExpression;
+import com.prealpha.diamond.compiler.node.AConditionalNotExpression;
+import com.prealpha.diamond.compiler.node.AConditionalOrExpression;
+import com.prealpha.diamond.compiler.node.AConstructorInvocation;
+import com.prealpha.diamond.compiler.node.AConstructorInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AContinueStatement;
+import com.prealpha.diamond.compiler.node.ADefaultCaseGroup;
+import com.prealpha.diamond.compiler.node.ADeleteStatement;
+import com.prealpha.diamond.compiler.node.ADivideExpression;
+import com.prealpha.diamond.compiler.node.ADoStatement;
+import com.prealpha.diamond.compiler.node.AEmptyStatement;
+import com.prealpha.diamond.compiler.node.AEqualExpression;
+import com.prealpha.diamond.compiler.node.AExpressionFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AExpressionStatement;
+import com.prealpha.diamond.compiler.node.AFalseLiteral;
+import com.prealpha.diamond.compiler.node.AForStatement;
+import com.prealpha.diamond.compiler.node.AFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AFunctionInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AGreaterOrEqualExpression;
+import com.prealpha.diamond.compiler.node.AGreaterThanExpression;
+import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
+import com.prealpha.diamond.compiler.node.AIfThenStatement;
+import com.prealpha.diamond.compiler.node.AIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ALessOrEqualExpression;
+import com.prealpha.diamond.compiler.node.ALessThanExpression;
+import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ALocalDeclaration;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationAssignmentTarget;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationStatement;
+import com.prealpha.diamond.compiler.node.AModulusExpression;
+import com.prealpha.diamond.compiler.node.AMultiplyExpression;
+import com.prealpha.diamond.compiler.node.ANotEqualExpression;
+import com.prealpha.diamond.compiler.node.ANumericNegationExpression;
+import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.AReturnStatement;
+import com.prealpha.diamond.compiler.node.AShiftLeftExpression;
+import com.prealpha.diamond.compiler.node.AShiftRightExpression;
+import com.prealpha.diamond.compiler.node.ASubtractExpression;
+import com.prealpha.diamond.compiler.node.ASwitchStatement;
+import com.prealpha.diamond.compiler.node.ATrueLiteral;
+import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnsignedShiftRightExpression;
+import com.prealpha.diamond.compiler.node.AWhileStatement;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PAssignment;
+import com.prealpha.diamond.compiler.node.PAssignmentTarget;
+import com.prealpha.diamond.compiler.node.PCaseGroup;
+import com.prealpha.diamond.compiler.node.PExpression;
+import com.prealpha.diamond.compiler.node.PFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.PIntegralLiteral;
+import com.prealpha.diamond.compiler.node.PLiteral;
+import com.prealpha.diamond.compiler.node.PStatement;
+import com.prealpha.diamond.compiler.node.Start;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>
+ *     Evaluates invocations of functions at compile time, replacing each invocation whose arguments are all constants
+ *     by the value it returns. The body of the function is run by an interpreter over the syntax tree, which follows
+ *     the DCPU-16 instructions which the {@link CodeGenerator} would have emitted, just as the {@link ConstantFolder}
+ *     does. Only functions which return a {@code boolean}, {@code int} or {@code uint} are evaluated.
+ * </p>
+ *
+ * <p>
+ *     The interpreter gives up on an invocation as soon as it meets anything whose effects could be seen outside the
+ *     invocation, or which it cannot reproduce exactly: fields, {@code this}, invocations through an object, native
+ *     functions and native statements, constructors and casts of user-defined types, and reads of locals or array
+ *     elements which have not yet been assigned. Arrays may be created, used and deleted within the evaluation, since
+ *     none of them can outlive it. It also gives up once an invocation has taken more steps than the budget set on the
+ *     {@link Compiler}, where a step is the execution of a single statement or expression, or once invocations are
+ *     nested too deeply.
+ * </p>
+ *
+ * <p>
+ *     Each call to {@link #evaluate(Start)} evaluates what it can, after which the symbol table, types and constants
+ *     must be recomputed. Since folding may make the arguments of other invocations constant, evaluation is repeated
+ *     until it changes nothing. A function is removed once every invocation of it from elsewhere has been evaluated.
+ * </p>
+ *
+ * @see ConstantFolder
+ */
+final class FunctionEvaluator {
+    /**
+     * The greatest depth to which invocations may be nested within an evaluation.
+     */
+    private static final int MAX_DEPTH = 256;
+
+    private final Compiler compiler;
+
+    /**
+     * The functions of which some invocation has been evaluated, which may be removed once no other invocation of them
+     * remains.
+     */
+    private final Set<PFunctionDeclaration> evaluatedFunctions;
+
+    private Map<Node, TypeToken> types;
+
+    private Map<Node, FunctionSymbol> invocations;
+
+    /**
+     * The locals of the invocation being interpreted, with one map for each scope, innermost first.
+     */
+    private Deque<Map<String, Object>> locals;
+
+    private Object returnValue;
+
+    private int remainingSteps;
+
+    private int depth;
+
+    public FunctionEvaluator(Compiler compiler) {
+        checkNotNull(compiler);
+        this.compiler = compiler;
+        evaluatedFunctions = Sets.newHashSet();
+    }
+
+    /**
+     * Evaluates every invocation in the specified tree which can be evaluated, whose symbol table and types must be up
+     * to date.
+     *
+     * @param tree the syntax tree
+     * @return whether the tree was changed, in which case its symbol table and types are no longer up to date
+     */
+    public boolean evaluate(Start tree) {
+        InvocationCollector collector = new InvocationCollector(compiler);
+        tree.apply(collector);
+        types = compiler.getTypes();
+        invocations = collector.getInvocations();
+
+        Set<Node> evaluated = Sets.newHashSet();
+        for (Map.Entry<Node, FunctionSymbol> entry : invocations.entrySet()) {
+            Node invocation = entry.getKey();
+            FunctionSymbol symbol = entry.getValue();
+            if (invocation instanceof AExpressionFunctionInvocation
+                    || !(symbol.getDeclaration() instanceof AFunctionDeclaration)
+                    || !(symbol.getReturnType() instanceof PrimitiveTypeToken)) {
+                continue;
+            }
+            List<Object> arguments = Lists.newArrayList();
+            for (PExpression argument : getArguments(invocation)) {
+                arguments.add(getConstant(argument));
+            }
+            if (arguments.contains(null)) {
+                continue;
+            }
+
+            try {
+                remainingSteps = compiler.getEvaluationSteps();
+                depth = 0;
+                int value = (Integer) invoke(symbol, arguments);
+                invocation.parent().replaceBy(new ALiteralPrimaryExpression(ConstantFolder.toLiteral(
+                        symbol.getReturnType(), value)));
+                evaluatedFunctions.add(symbol.getDeclaration());
+                evaluated.add(invocation);
+            } catch (EvaluationException ex) {
+                // the invocation is left for the code generator
+            }
+        }
+
+        boolean removed = false;
+        for (PFunctionDeclaration function : Lists.newArrayList(evaluatedFunctions)) {
+            if (!isInvokedElsewhere(function, evaluated)) {
+                function.parent().replaceBy(null);
+                evaluatedFunctions.remove(function);
+                removed = true;
+            }
+        }
+        return (!evaluated.isEmpty() || removed);
+    }
+
+    /**
+     * Returns {@code true} if the specified function is invoked by anything other than itself, ignoring the
+     * invocations which have just been evaluated.
+     */
+    private boolean isInvokedElsewhere(PFunctionDeclaration function, Set<Node> evaluated) {
+        for (Map.Entry<Node, FunctionSymbol> entry : invocations.entrySet()) {
+            if (entry.getValue().getDeclaration() == function && !evaluated.contains(entry.getKey())
+                    && !isWithin(entry.getKey(), function)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object invoke(FunctionSymbol symbol, List<Object> arguments) throws EvaluationException {
+        if (symbol.getModifiers().contains(Modifier.NATIVE)) {
+            throw new EvaluationException("native function");
+        } else if (depth == MAX_DEPTH) {
+            throw new EvaluationException("invocations nested too deeply");
+        }
+
+        Deque<Map<String, Object>> callerLocals = locals;
+        locals = Queues.newArrayDeque();
+        locals.push(Maps.<String, Object>newHashMap());
+        for (int i = 0; i < arguments.size(); i++) {
+            locals.peek().put(symbol.getParameters().get(i).getName(), arguments.get(i));
+        }
+        depth++;
+        Completion completion = execute(CodeGenerator.getBody(symbol.getDeclaration()));
+        depth--;
+        locals = callerLocals;
+
+        if (completion == Completion.RETURN) {
+            return returnValue;
+        } else if (symbol.getReturnType() == null) {
+            return null;
+        } else {
+            throw new EvaluationException("no value returned");
+        }
+    }
+
+    private Completion execute(Node statement) throws EvaluationException {
+        step();
+        if (statement instanceof AIfThenStatement) {
+            AIfThenStatement ifThen = (AIfThenStatement) statement;
+            return test(ifThen.getCondition()) ? execute(ifThen.getThen()) : Completion.NORMAL;
+        } else if (statement instanceof AIfThenElseStatement) {
+            AIfThenElseStatement ifThenElse = (AIfThenElseStatement) statement;
+            return execute(test(ifThenElse.getCondition()) ? ifThenElse.getThen() : ifThenElse.getElse());
+        } else if (statement instanceof AWhileStatement) {
+            AWhileStatement whileStatement = (AWhileStatement) statement;
+            while (test(whileStatement.getCondition())) {
+                Completion completion = execute(whileStatement.getBody());
+                if (completion == Completion.BREAK) {
+                    break;
+                } else if (completion == Completion.RETURN) {
+                    return completion;
+                }
+            }
+            return Completion.NORMAL;
+        } else if (statement instanceof ADoStatement) {
+            ADoStatement doStatement = (ADoStatement) statement;
+            do {
+                Completion completion = execute(doStatement.getBody());
+                if (completion == Completion.BREAK) {
+                    break;
+                } else if (completion == Completion.RETURN) {
+                    return completion;
+                }
+            } while (test(doStatement.getCondition()));
+            return Completion.NORMAL;
+        } else if (statement instanceof AForStatement) {
+            return executeFor((AForStatement) statement);
+        } else if (statement instanceof ASwitchStatement) {
+            return executeSwitch((ASwitchStatement) statement);
+        } else if (statement instanceof ABlockStatement) {
+            locals.push(Maps.<String, Object>newHashMap());
+            Completion completion = Completion.NORMAL;
+            for (PStatement child : ((ABlockStatement) statement).getStatement()) {
+                completion = execute(child);
+                if (completion != Completion.NORMAL) {
+                    break;
+                }
+            }
+            locals.pop();
+            return completion;
+        } else if (statement instanceof ABreakStatement) {
+            return Completion.BREAK;
+        } else if (statement instanceof AContinueStatement) {
+            return Completion.CONTINUE;
+        } else if (statement instanceof AReturnStatement) {
+            PExpression value = ((AReturnStatement) statement).getReturnValue();
+            returnValue = (value != null) ? evaluate(value) : null;
+            return Completion.RETURN;
+        } else if (statement instanceof ALocalDeclarationStatement) {
+            declare(((ALocalDeclarationStatement) statement).getLocalDeclaration());
+            return Completion.NORMAL;
+        } else if (statement instanceof AExpressionStatement) {
+            evaluate(((AExpressionStatement) statement).getExpression());
+            return Completion.NORMAL;
+        } else if (statement instanceof ADeleteStatement) {
+            // only arrays created within the evaluation can be deleted here, and they are simply forgotten
+            getArray(((ADeleteStatement) statement).getObject());
+            return Completion.NORMAL;
+        } else if (statement instanceof AEmptyStatement) {
+            return Completion.NORMAL;
+        } else {
+            throw new EvaluationException("cannot execute " + statement.getClass().getSimpleName());
+        }
+    }
+
+    private Completion executeFor(AForStatement statement) throws EvaluationException {
+        locals.push(Maps.<String, Object>newHashMap());
+        if (statement.getInit() != null) {
+            evaluate(statement.getInit());
+        }
+        Completion completion = Completion.NORMAL;
+        while (statement.getCondition() == null || test(statement.getCondition())) {
+            Completion bodyCompletion = execute(statement.getBody());
+            if (bodyCompletion == Completion.BREAK) {
+                break;
+            } else if (bodyCompletion == Completion.RETURN) {
+                completion = bodyCompletion;
+                break;
+            }
+            if (statement.getUpdate() != null) {
+                evaluate(statement.getUpdate());
+            }
+        }
+        locals.pop();
+        return completion;
+    }
+
+    private Completion executeSwitch(ASwitchStatement statement) throws EvaluationException {
+        int value = getInt(statement.getValue());
+        List<PCaseGroup> caseGroups = statement.getBody();
+        int start = -1;
+        for (int i = 0; i < caseGroups.size() && start < 0; i++) {
+            for (PIntegralLiteral caseValue : getCaseValues(caseGroups.get(i))) {
+                if (parseIntegralLiteral(caseValue) == value) {
+                    start = i;
+                }
+            }
+        }
+        for (int i = 0; i < caseGroups.size() && start < 0; i++) {
+            if (caseGroups.get(i) instanceof ADefaultCaseGroup) {
+                start = i;
+            }
+        }
+        if (start < 0) {
+            return Completion.NORMAL;
+        }
+
+        // control falls through from each case group into the next
+        for (PCaseGroup caseGroup : caseGroups.subList(start, caseGroups.size())) {
+            List<PStatement> body;
+            if (caseGroup instanceof ACaseGroup) {
+                body = ((ACaseGroup) caseGroup).getBody();
+            } else {
+                body = ((ADefaultCaseGroup) caseGroup).getBody();
+            }
+            for (PStatement child : body) {
+                Completion completion = execute(child);
+                if (completion == Completion.BREAK) {
+                    return Completion.NORMAL;
+                } else if (completion != Completion.NORMAL) {
+                    return completion;
+                }
+            }
+        }
+        return Completion.NORMAL;
+    }
+
+    private Object evaluate(Node expression) throws EvaluationException {
+        // nodes which merely wrap another expression take no steps of their own
+        if (expression instanceof APrimaryExpression) {
+            return evaluate(((APrimaryExpression) expression).getPrimaryExpression());
+        } else if (expression instanceof AParentheticalPrimaryExpression) {
+            return evaluate(((AParentheticalPrimaryExpression) expression).getExpression());
+        }
+
+        step();
+        if (expression instanceof ALiteralPrimaryExpression) {
+            Integer value = getConstant(expression);
+            if (value == null) {
+                throw new EvaluationException("not a constant");
+            }
+            return value;
+        } else if (expression instanceof AIdentifierPrimaryExpression) {
+            return locate(((AIdentifierPrimaryExpression) expression).getIdentifier().getText()).get();
+        } else if (expression instanceof AArrayAccessPrimaryExpression) {
+            return locate((AArrayAccess) ((AArrayAccessPrimaryExpression) expression).getArrayAccess()).get();
+        } else if (expression instanceof AFunctionInvocationPrimaryExpression) {
+            Node invocation = ((AFunctionInvocationPrimaryExpression) expression).getFunctionInvocation();
+            if (invocation instanceof AExpressionFunctionInvocation) {
+                throw new EvaluationException("invocation through an object");
+            }
+            List<Object> arguments = Lists.newArrayList();
+            for (PExpression argument : getArguments(invocation)) {
+                arguments.add(evaluate(argument));
+            }
+            return invoke(invocations.get(invocation), arguments);
+        } else if (expression instanceof AConstructorInvocationPrimaryExpression) {
+            AConstructorInvocation invocation = (AConstructorInvocation)
+                    ((AConstructorInvocationPrimaryExpression) expression).getConstructorInvocation();
+            if (!(types.get(invocation) instanceof ArrayTypeToken)) {
+                throw new EvaluationException("constructor invocation");
+            }
+            return new Object[getInt(invocation.getParameters().get(0))];
+        } else if (expression instanceof ACastInvocationPrimaryExpression) {
+            ACastInvocation invocation = (ACastInvocation)
+                    ((ACastInvocationPrimaryExpression) expression).getCastInvocation();
+            if (!(types.get(invocation) instanceof PrimitiveTypeToken)
+                    || !(types.get(invocation.getValue()) instanceof PrimitiveTypeToken)) {
+                throw new EvaluationException("cast invocation");
+            }
+            // casts between primitive types leave the value alone
+            return getInt(invocation.getValue());
+        } else if (expression instanceof ANumericNegationExpression) {
+            return -getInt(((ANumericNegationExpression) expression).getValue()) & 0xffff;
+        } else if (expression instanceof AConditionalNotExpression) {
+            return getInt(((AConditionalNotExpression) expression).getValue()) ^ 0x0001;
+        } else if (expression instanceof ABitwiseComplementExpression) {
+            return ~getInt(((ABitwiseComplementExpression) expression).getValue()) & 0xffff;
+        } else if (expression instanceof AConditionalAndExpression) {
+            AConditionalAndExpression conjunction = (AConditionalAndExpression) expression;
+            return (test(conjunction.getLeft()) && test(conjunction.getRight())) ? 1 : 0;
+        } else if (expression instanceof AConditionalOrExpression) {
+            AConditionalOrExpression disjunction = (AConditionalOrExpression) expression;
+            return (test(disjunction.getLeft()) || test(disjunction.getRight())) ? 1 : 0;
+        } else if (expression instanceof AConditionalExpression) {
+            AConditionalExpression conditional = (AConditionalExpression) expression;
+            return evaluate(test(conditional.getCondition()) ? conditional.getIfTrue() : conditional.getIfFalse());
+        } else if (expression instanceof AAssignmentExpression) {
+            return assign(((AAssignmentExpression) expression).getAssignment());
+        } else if (CodeGenerator.getBinaryOperands(expression) != null) {
+            List<PExpression> operands = CodeGenerator.getBinaryOperands(expression);
+            int left = getInt(operands.get(0));
+            int right = getInt(operands.get(1));
+            // comparisons depend on the signedness of their operands, and arithmetic on that of its result
+            boolean signed;
+            if (types.get(expression) == PrimitiveTypeToken.BOOLEAN) {
+                signed = types.get(operands.get(0)).isSigned();
+            } else {
+                signed = types.get(expression).isSigned();
+            }
+            return operate(expression.getClass(), signed, left, right);
+        } else {
+            throw new EvaluationException("cannot evaluate " + expression.getClass().getSimpleName());
+        }
+    }
+
+    private Object assign(PAssignment assignment) throws EvaluationException {
+        // the target is located before the value is evaluated, as in the generated code
+        Location location = locate(CodeGenerator.getAssignmentTarget(assignment));
+        Object value;
+        if (assignment instanceof AAssignment) {
+            value = evaluate(((AAssignment) assignment).getValue());
+        } else {
+            PExpression operand = CodeGenerator.getAssignmentValue(assignment);
+            int current = (Integer) location.get();
+            int right = (operand != null) ? getInt(operand) : 1;
+            boolean signed = types.get(assignment).isSigned();
+            value = operate(CodeGenerator.getCompoundOperator(assignment), signed, current, right);
+        }
+        location.set(value);
+        return value;
+    }
+
+    private static int operate(Class<? extends Node> operator, boolean signed, int left, int right) {
+        int result;
+        if (operator == AMultiplyExpression.class) {
+            result = left * right;
+        } else if (operator == ADivideExpression.class) {
+            // DIV and DVI yield zero on division by zero
+            if (right == 0) {
+                result = 0;
+            } else {
+                result = signed ? ((short) left / (short) right) : (left / right);
+            }
+        } else if (operator == AModulusExpression.class) {
+            if (right == 0) {
+                result = 0;
+            } else {
+                result = signed ? ((short) left % (short) right) : (left % right);
+            }
+        } else if (operator == AAddExpression.class) {
+            result = left + right;
+        } else if (operator == ASubtractExpression.class) {
+            result = left - right;
+        } else if (operator == AShiftLeftExpression.class) {
+            result = (right < 16) ? (left << right) : 0;
+        } else if (operator == AShiftRightExpression.class) {
+            // the code generator always uses ASR, even for unsigned operands
+            result = (short) left >> Math.min(right, 15);
+        } else if (operator == AUnsignedShiftRightExpression.class) {
+            result = (right < 16) ? (left >>> right) : 0;
+        } else if (operator == ABitwiseAndExpression.class) {
+            result = left & right;
+        } else if (operator == ABitwiseXorExpression.class) {
+            result = left ^ right;
+        } else if (operator == ABitwiseOrExpression.class) {
+            result = left | right;
+        } else if (operator == AEqualExpression.class) {
+            result = (left == right) ? 1 : 0;
+        } else if (operator == ANotEqualExpression.class) {
+            result = (left != right) ? 1 : 0;
+        } else {
+            int comparison = signed ? Integer.compare((short) left, (short) right) : Integer.compare(left, right);
+            if (operator == ALessThanExpression.class) {
+                result = (comparison < 0) ? 1 : 0;
+            } else if (operator == AGreaterThanExpression.class) {
+                result = (comparison > 0) ? 1 : 0;
+            } else if (operator == ALessOrEqualExpression.class) {
+                result = (comparison <= 0) ? 1 : 0;
+            } else {
+                assert (operator == AGreaterOrEqualExpression.class);
+                result = (comparison >= 0) ? 1 : 0;
+            }
+        }
+        return result & 0xffff;
+    }
+
+    private boolean test(Node condition) throws EvaluationException {
+        return (getInt(condition) != 0);
+    }
+
+    private int getInt(Node expression) throws EvaluationException {
+        Object value = evaluate(expression);
+        if (!(value instanceof Integer)) {
+            throw new EvaluationException("not a primitive value");
+        }
+        return (Integer) value;
+    }
+
+    private Object[] getArray(Node expression) throws EvaluationException {
+        Object value = evaluate(expression);
+        if (!(value instanceof Object[])) {
+            throw new EvaluationException("not an array created within the evaluation");
+        }
+        return (Object[]) value;
+    }
+
+    private String declare(Node localDeclaration) {
+        String name = ((ALocalDeclaration) localDeclaration).getName().getText();
+        // a local has no value until it is assigned
+        locals.peek().put(name, null);
+        return name;
+    }
+
+    private void step() throws EvaluationException {
+        if (--remainingSteps < 0) {
+            throw new EvaluationException("step budget exhausted");
+        }
+    }
+
+    /**
+     * Returns the value of the specified expression if it is a literal, or {@code null} if it is not. The value is
+     * truncated to 16 bits.
+     */
+    private static Integer getConstant(Node expression) {
+        if (expression instanceof APrimaryExpression) {
+            return getConstant(((APrimaryExpression) expression).getPrimaryExpression());
+        } else if (expression instanceof AParentheticalPrimaryExpression) {
+            return getConstant(((AParentheticalPrimaryExpression) expression).getExpression());
+        } else if (expression instanceof ALiteralPrimaryExpression) {
+            PLiteral literal = ((ALiteralPrimaryExpression) expression).getLiteral();
+            if (literal instanceof AIntegralLiteral) {
+                try {
+                    return parseIntegralLiteral(((AIntegralLiteral) literal).getIntegralLiteral());
+                } catch (EvaluationException ex) {
+                    return null;
+                }
+            } else if (literal instanceof ATrueLiteral) {
+                return 1;
+            } else if (literal instanceof AFalseLiteral) {
+                return 0;
+            }
+        }
+        return null;
+    }
+
+    private static int parseIntegralLiteral(PIntegralLiteral literal) throws EvaluationException {
+        try {
+            return TypeTokenUtil.parseIntegralLiteral(literal).intValue() & 0xffff;
+        } catch (SemanticException sx) {
+            throw new EvaluationException(sx.getMessage());
+        }
+    }
+
+    private static List<PIntegralLiteral> getCaseValues(PCaseGroup caseGroup) {
+        if (caseGroup instanceof ACaseGroup) {
+            return ((ACaseGroup) caseGroup).getValues();
+        } else {
+            return ((ADefaultCaseGroup) caseGroup).getValues();
+        }
+    }
+
+    private static List<PExpression> getArguments(Node invocation) {
+        if (invocation instanceof AUnqualifiedFunctionInvocation) {
+            return ((AUnqualifiedFunctionInvocation) invocation).getParameters();
+        } else if (invocation instanceof AExpressionFunctionInvocation) {
+            return ((AExpressionFunctionInvocation) invocation).getParameters();
+        } else {
+            return ((ATypeTokenFunctionInvocation) invocation).getParameters();
+        }
+    }
+
+    private static boolean isWithin(Node node, Node ancestor) {
+        for (Node current = node; current != null; current = current.parent()) {
+            if (current == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Location locate(String name) throws EvaluationException {
+        for (Map<String, Object> scope : locals) {
+            if (scope.containsKey(name)) {
+                return new Location(scope, name, null, 0);
+            }
+        }
+        throw new EvaluationException("field " + name);
+    }
+
+    private Location locate(AArrayAccess arrayAccess) throws EvaluationException {
+        Object[] array = getArray(arrayAccess.getArray());
+        int index = getInt(arrayAccess.getIndex());
+        if (index >= array.length) {
+            throw new EvaluationException("array index out of bounds");
+        }
+        return new Location(null, null, array, index);
+    }
+
+    private Location locate(PAssignmentTarget target) throws EvaluationException {
+        if (target instanceof ALocalDeclarationAssignmentTarget) {
+            return locate(declare(((ALocalDeclarationAssignmentTarget) target).getLocalDeclaration()));
+        } else if (target instanceof AIdentifierAssignmentTarget) {
+            return locate(((AIdentifierAssignmentTarget) target).getIdentifier().getText());
+        } else if (target instanceof AArrayAccessAssignmentTarget) {
+            return locate((AArrayAccess) ((AArrayAccessAssignmentTarget) target).getArrayAccess());
+        } else {
+            throw new EvaluationException("assignment to a field");
+        }
+    }
+
+    /**
+     * A local or array element which may be read or assigned.
+     */
+    private static final class Location {
+        private final Map<String, Object> scope;
+
+        private final String name;
+
+        private final Object[] array;
+
+        private final int index;
+
+        private Location(Map<String, Object> scope, String name, Object[] array, int index) {
+            this.scope = scope;
+            this.name = name;
+            this.array = array;
+            this.index = index;
+        }
+
+        private Object get() throws EvaluationException {
+            Object value = (array != null) ? array[index] : scope.get(name);
+            if (value == null) {
+                throw new EvaluationException("read before assignment");
+            }
+            return value;
+        }
+
+        private void set(Object value) {
+            if (array != null) {
+                array[index] = value;
+            } else {
+                scope.put(name, value);
+            }
+        }
+    }
+
+    /**
+     * The way in which the execution of a statement completed.
+     */
+    private static enum Completion {
+        NORMAL,
+        BREAK,
+        CONTINUE,
+        RETURN
+    }
+
+    /**
+     * Thrown when an invocation cannot be evaluated at compile time.
+     */
+    private static final class EvaluationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private EvaluationException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ * FunctionSpecializer.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.analysis.DepthFirstAdapter;
+import com.prealpha.diamond.compiler.node.ABitwiseComplementExpression;
+import com.prealpha.diamond.compiler.node.ACastDeclaration;
+import com.prealpha.diamond.compiler.node.AClassDeclaration;
+import com.prealpha.diamond.compiler.node.AConditionalAndExpression;
+import com.prealpha.diamond.compiler.node.AConditionalExpression;
+import com.prealpha.diamond.compiler.node.AConditionalNotExpression;
+import com.prealpha.diamond.compiler.node.AConditionalOrExpression;
+import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
+import com.prealpha.diamond.compiler.node.ADoStatement;
+import com.prealpha.diamond.compiler.node.AExpressionFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AFalseLiteral;
+import com.prealpha.diamond.compiler.node.AForStatement;
+import com.prealpha.diamond.compiler.node.AFunctionClassStatement;
+import com.prealpha.diamond.compiler.node.AFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AFunctionTopLevelStatement;
+import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
+import com.prealpha.diamond.compiler.node.AIfThenStatement;
+import com.prealpha.diamond.compiler.node.AIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ALocalDeclaration;
+import com.prealpha.diamond.compiler.node.ANumericNegationExpression;
+import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.AProgram;
+import com.prealpha.diamond.compiler.node.ASwitchStatement;
+import com.prealpha.diamond.compiler.node.ATrueLiteral;
+import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AVoidFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AWhileStatement;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PClassStatement;
+import com.prealpha.diamond.compiler.node.PExpression;
+import com.prealpha.diamond.compiler.node.PFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.PFunctionInvocation;
+import com.prealpha.diamond.compiler.node.PLiteral;
+import com.prealpha.diamond.compiler.node.PLocalDeclaration;
+import com.prealpha.diamond.compiler.node.PPrimaryExpression;
+import com.prealpha.diamond.compiler.node.PTopLevelStatement;
+import com.prealpha.diamond.compiler.node.Start;
+import com.prealpha.diamond.compiler.node.TIdentifier;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>
+ *     Propagates constant arguments from invocations into the functions they invoke, rewriting the syntax tree after
+ *     constants have been folded. A parameter may be specialized if the function reads it, but never assigns it or
+ *     declares a local of the same name. Specializing a parameter replaces each use of it within the body by the
+ *     constant, removes it from the declaration, and removes the argument from each invocation, so that the
+ *     {@link ConstantFolder} can then fold the body further.
+ * </p>
+ *
+ * <p>
+ *     If every invocation of a function passes the same constant for a parameter, or passes the parameter along
+ *     unchanged from within the function itself, the function is specialized in place. Otherwise, each invocation
+ *     which passes constants is redirected to a copy of the function specialized for those constants, shared with any
+ *     other invocation passing the same constants. Copies are only made while their estimated sizes fit within the
+ *     budget set on the {@link Compiler}, only for constants which the body could fold, and never for an invocation
+ *     from a function which the callee might itself invoke, so that recursion with changing arguments does not copy
+ *     a function over and over. A function of which copies have been
+ *     made is removed once nothing but the function itself invokes it. Native functions, functions containing native
+ *     statements, constructors and casts are never specialized.
+ * </p>
+ *
+ * <p>
+ *     Each call to {@link #specialize(Start)} performs one round of specialization, after which the symbol table,
+ *     types and constants must be recomputed. Since the arguments of invocations within a specialized body may then
+ *     be constant in turn, rounds are repeated until one changes nothing. A specialized function is renamed to a name
+ *     which no identifier in the source can have, so that it never clashes with another overload.
+ * </p>
+ *
+ * @see ConstantFolder
+ */
+final class FunctionSpecializer {
+    private final Compiler compiler;
+
+    /**
+     * The specialized copies of each function, keyed by the constants they were specialized for. Each key maps the
+     * index of a specialized parameter to the type and value of its constant.
+     */
+    private final Map<PFunctionDeclaration, Map<Map<Integer, List<Object>>, PFunctionDeclaration>> copies;
+
+    /**
+     * The function from which each specialized copy was made.
+     */
+    private final Map<Node, Node> originals;
+
+    private int remainingWords;
+
+    private int nextSuffix;
+
+    public FunctionSpecializer(Compiler compiler) {
+        checkNotNull(compiler);
+        this.compiler = compiler;
+        copies = Maps.newHashMap();
+        originals = Maps.newHashMap();
+        remainingWords = compiler.getSpecializationWords();
+    }
+
+    /**
+     * Performs one round of specialization on the specified tree, whose symbol table and types must be up to date.
+     *
+     * @param tree the syntax tree
+     * @return whether the tree was changed, in which case its symbol table and types are no longer up to date
+     */
+    public boolean specialize(Start tree) {
+        InvocationCollector collector = new InvocationCollector(compiler);
+        tree.apply(collector);
+        Map<Node, TypeToken> types = compiler.getTypes();
+        ListMultimap<PFunctionDeclaration, Invocation> invocations = LinkedListMultimap.create();
+        for (Map.Entry<Node, FunctionSymbol> entry : collector.getInvocations().entrySet()) {
+            invocations.put(entry.getValue().getDeclaration(), new Invocation(entry.getKey(), entry.getValue()));
+        }
+        SetMultimap<Node, Node> calls = HashMultimap.create();
+        for (Invocation invocation : invocations.values()) {
+            calls.put(getOriginal(getEnclosingFunction(invocation.node)), getOriginal(invocation.symbol.getDeclaration()));
+        }
+        Set<Invocation> redirected = Sets.newHashSet();
+        boolean copied = false;
+
+        for (PFunctionDeclaration function : ImmutableList.copyOf(invocations.keySet())) {
+            FunctionSymbol symbol = invocations.get(function).get(0).symbol;
+            Set<Integer> parameters = getSpecializableParameters(symbol);
+            if (parameters.isEmpty()) {
+                continue;
+            }
+
+            Map<Integer, ALiteralPrimaryExpression> common = findCommonConstants(function, symbol, parameters,
+                    invocations.get(function), types);
+            if (!common.isEmpty()) {
+                String name = createName(function);
+                for (Invocation invocation : invocations.get(function)) {
+                    redirect(invocation, common.keySet(), name);
+                    redirected.add(invocation);
+                }
+                setName(function, name);
+                bind(function, common);
+                // the indices of the remaining parameters have changed
+                copies.remove(function);
+                continue;
+            }
+
+            Set<Integer> foldedParameters = getFoldedParameters(symbol, parameters);
+            for (Invocation invocation : invocations.get(function)) {
+                Map<Integer, ALiteralPrimaryExpression> constants = getConstants(invocation, parameters,
+                        types);
+                if (Sets.intersection(constants.keySet(), foldedParameters).isEmpty()) {
+                    continue;
+                }
+                Map<Integer, List<Object>> key = getKey(constants, types);
+                if (!copies.containsKey(function)) {
+                    copies.put(function, Maps.<Map<Integer, List<Object>>, PFunctionDeclaration>newHashMap());
+                }
+                PFunctionDeclaration copy = copies.get(function).get(key);
+                if (copy == null && !isRecursive(getEnclosingFunction(invocation.node), function, calls)) {
+                    int words = CodeGenerator.estimateCost(CodeGenerator.getBody(function))[0];
+                    if (words <= remainingWords) {
+                        remainingWords -= words;
+                        copy = createCopy(function, constants);
+                        copies.get(function).put(key, copy);
+                        copied = true;
+                    }
+                }
+                if (copy != null) {
+                    redirect(invocation, constants.keySet(), getName(copy));
+                    redirected.add(invocation);
+                }
+            }
+        }
+
+        // a copy may invoke any function, and its invocations have not been collected yet
+        boolean removed = false;
+        if (!copied) {
+            Iterator<PFunctionDeclaration> iterator = copies.keySet().iterator();
+            while (iterator.hasNext()) {
+                PFunctionDeclaration function = iterator.next();
+                if (function.parent() == null) {
+                    // every invocation of the function has been evaluated, and the function removed
+                    iterator.remove();
+                } else if (!isInvokedElsewhere(function, invocations.get(function), redirected)) {
+                    function.parent().replaceBy(null);
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+        }
+        return (!redirected.isEmpty() || removed);
+    }
+
+    /**
+     * Returns the indices of the parameters of the specified function which may be specialized: those which are read
+     * by the body, but never assigned or redeclared within it.
+     */
+    private Set<Integer> getSpecializableParameters(FunctionSymbol symbol) {
+        Node body = CodeGenerator.getBody(symbol.getDeclaration());
+        if (symbol.getModifiers().contains(Modifier.NATIVE) || CodeGenerator.estimateCost(body) == null) {
+            // native code finds the parameters on the stack
+            return Sets.newHashSet();
+        }
+
+        final Set<String> readNames = Sets.newHashSet();
+        final Set<String> assignedNames = Sets.newHashSet();
+        body.apply(new DepthFirstAdapter() {
+            @Override
+            public void inAIdentifierPrimaryExpression(AIdentifierPrimaryExpression primaryExpression) {
+                readNames.add(primaryExpression.getIdentifier().getText());
+            }
+
+            @Override
+            public void inAIdentifierAssignmentTarget(AIdentifierAssignmentTarget target) {
+                assignedNames.add(target.getIdentifier().getText());
+            }
+
+            @Override
+            public void inALocalDeclaration(ALocalDeclaration declaration) {
+                assignedNames.add(declaration.getName().getText());
+            }
+        });
+
+        Set<Integer> parameters = Sets.newHashSet();
+        for (int i = 0; i < symbol.getParameters().size(); i++) {
+            String name = symbol.getParameters().get(i).getName();
+            if (readNames.contains(name) && !assignedNames.contains(name)) {
+                parameters.add(i);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Returns the indices of those of the specified parameters which the body uses in a way that the
+     * {@link ConstantFolder} can fold, if they are constant: as an operand, a condition, the value of a {@code switch},
+     * or an argument which may be propagated further. A copy specialized only for other parameters would merely save
+     * passing the arguments, which is not worth the space it takes.
+     */
+    private static Set<Integer> getFoldedParameters(FunctionSymbol symbol, Set<Integer> parameters) {
+        final Set<String> foldedNames = Sets.newHashSet();
+        CodeGenerator.getBody(symbol.getDeclaration()).apply(new DepthFirstAdapter() {
+            @Override
+            public void inAIdentifierPrimaryExpression(AIdentifierPrimaryExpression primaryExpression) {
+                Node user = primaryExpression.parent();
+                while (user instanceof APrimaryExpression || user instanceof AParentheticalPrimaryExpression) {
+                    user = user.parent();
+                }
+                if (CodeGenerator.getBinaryOperands(user) != null || user instanceof ANumericNegationExpression
+                        || user instanceof AConditionalNotExpression || user instanceof ABitwiseComplementExpression
+                        || user instanceof AConditionalExpression || user instanceof AConditionalAndExpression
+                        || user instanceof AConditionalOrExpression || user instanceof AIfThenStatement
+                        || user instanceof AIfThenElseStatement || user instanceof AWhileStatement
+                        || user instanceof ADoStatement || user instanceof AForStatement
+                        || user instanceof ASwitchStatement || user instanceof PFunctionInvocation) {
+                    foldedNames.add(primaryExpression.getIdentifier().getText());
+                }
+            }
+        });
+
+        Set<Integer> foldedParameters = Sets.newHashSet();
+        for (int index : parameters) {
+            if (foldedNames.contains(symbol.getParameters().get(index).getName())) {
+                foldedParameters.add(index);
+            }
+        }
+        return foldedParameters;
+    }
+
+    /**
+     * Returns the constants on which all the invocations of the specified function agree, keyed by the index of the
+     * parameter. An invocation within the function itself which passes a parameter along unchanged agrees with any
+     * constant for that parameter.
+     */
+    private Map<Integer, ALiteralPrimaryExpression> findCommonConstants(PFunctionDeclaration function,
+            FunctionSymbol symbol, Set<Integer> parameters, List<Invocation> invocations, Map<Node, TypeToken> types) {
+        Map<Integer, ALiteralPrimaryExpression> common = Maps.newTreeMap();
+        for (int index : parameters) {
+            String name = symbol.getParameters().get(index).getName();
+            ALiteralPrimaryExpression literal = null;
+            List<Object> value = null;
+            boolean agreed = true;
+            for (Invocation invocation : invocations) {
+                PExpression argument = getArguments(invocation.node).get(index);
+                ALiteralPrimaryExpression argumentLiteral = getConstants(invocation, ImmutableList.of(index), types)
+                        .get(index);
+                if (argumentLiteral != null) {
+                    List<Object> argumentValue = getValue(argumentLiteral, types);
+                    if (value == null) {
+                        literal = argumentLiteral;
+                        value = argumentValue;
+                    } else if (!value.equals(argumentValue)) {
+                        agreed = false;
+                    }
+                } else if (!(isWithin(invocation.node, function) && name.equals(getIdentifier(argument)))) {
+                    agreed = false;
+                }
+            }
+            if (agreed && literal != null) {
+                common.put(index, literal);
+            }
+        }
+        return common;
+    }
+
+    /**
+     * Returns the arguments of the specified invocation which are constants of exactly the type of the corresponding
+     * parameter, keyed by the index of the parameter, considering only the specified parameters.
+     */
+    private static Map<Integer, ALiteralPrimaryExpression> getConstants(Invocation invocation,
+            Iterable<Integer> parameters, Map<Node, TypeToken> types) {
+        Map<Integer, ALiteralPrimaryExpression> constants = Maps.newTreeMap();
+        List<PExpression> arguments = getArguments(invocation.node);
+        for (int index : parameters) {
+            ALiteralPrimaryExpression literal = getLiteral(arguments.get(index));
+            TypeToken parameterType = invocation.symbol.getParameters().get(index).getType();
+            if (literal != null && parameterType.equals(types.get(arguments.get(index)))
+                    && getValue(literal, types) != null) {
+                constants.put(index, literal);
+            }
+        }
+        return constants;
+    }
+
+    private static Map<Integer, List<Object>> getKey(Map<Integer, ALiteralPrimaryExpression> constants,
+            Map<Node, TypeToken> types) {
+        ImmutableSortedMap.Builder<Integer, List<Object>> builder = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<Integer, ALiteralPrimaryExpression> entry : constants.entrySet()) {
+            builder.put(entry.getKey(), getValue(entry.getValue(), types));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the type and value of the specified literal, or {@code null} if it is not an integral or boolean
+     * literal.
+     */
+    private static List<Object> getValue(ALiteralPrimaryExpression primaryExpression, Map<Node, TypeToken> types) {
+        PLiteral literal = primaryExpression.getLiteral();
+        if (literal instanceof AIntegralLiteral) {
+            try {
+                AIntegralLiteral integralLiteral = (AIntegralLiteral) literal;
+                return ImmutableList.<Object>of(types.get(literal),
+                        TypeTokenUtil.parseIntegralLiteral(integralLiteral.getIntegralLiteral()));
+            } catch (SemanticException sx) {
+                return null;
+            }
+        } else if (literal instanceof ATrueLiteral || literal instanceof AFalseLiteral) {
+            return ImmutableList.<Object>of(PrimitiveTypeToken.BOOLEAN, literal instanceof ATrueLiteral);
+        } else {
+            return null;
+        }
+    }
+
+    private static ALiteralPrimaryExpression getLiteral(PExpression expression) {
+        if (expression instanceof APrimaryExpression) {
+            PPrimaryExpression primaryExpression = ((APrimaryExpression) expression).getPrimaryExpression();
+            if (primaryExpression instanceof ALiteralPrimaryExpression) {
+                return (ALiteralPrimaryExpression) primaryExpression;
+            } else if (primaryExpression instanceof AParentheticalPrimaryExpression) {
+                return getLiteral(((AParentheticalPrimaryExpression) primaryExpression).getExpression());
+            }
+        }
+        return null;
+    }
+
+    private static String getIdentifier(PExpression expression) {
+        if (expression instanceof APrimaryExpression) {
+            PPrimaryExpression primaryExpression = ((APrimaryExpression) expression).getPrimaryExpression();
+            if (primaryExpression instanceof AIdentifierPrimaryExpression) {
+                return ((AIdentifierPrimaryExpression) primaryExpression).getIdentifier().getText();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes a copy of the specified function, specialized for the specified constants, and places it just after the
+     * function in the enclosing program or class.
+     */
+    private PFunctionDeclaration createCopy(PFunctionDeclaration function,
+            Map<Integer, ALiteralPrimaryExpression> constants) {
+        PFunctionDeclaration copy = NodeCopier.copyOf(function);
+        setName(copy, createName(function));
+        Node container = function.parent().parent();
+        // appended rather than inserted, so that functions which fall through into each other stay adjacent
+        // the generated list setters only work properly for nodes which have no parent
+        if (container instanceof AProgram) {
+            AProgram program = (AProgram) container;
+            List<PTopLevelStatement> statements = Lists.newArrayList(program.getTopLevelStatement());
+            statements.add(new AFunctionTopLevelStatement(copy));
+            for (PTopLevelStatement statement : ImmutableList.copyOf(program.getTopLevelStatement())) {
+                statement.replaceBy(null);
+            }
+            program.setTopLevelStatement(statements);
+        } else {
+            AClassDeclaration classDeclaration = (AClassDeclaration) container;
+            List<PClassStatement> statements = Lists.newArrayList(classDeclaration.getBody());
+            statements.add(new AFunctionClassStatement(copy));
+            for (PClassStatement statement : ImmutableList.copyOf(classDeclaration.getBody())) {
+                statement.replaceBy(null);
+            }
+            classDeclaration.setBody(statements);
+        }
+        bind(copy, constants);
+        originals.put(copy, function);
+        return copy;
+    }
+
+    /**
+     * Removes the specified parameters from a function, replacing each use of them within its body by a copy of the
+     * corresponding constant.
+     */
+    private static void bind(PFunctionDeclaration function, Map<Integer, ALiteralPrimaryExpression> constants) {
+        List<PLocalDeclaration> parameters = getParameters(function);
+        final Map<String, ALiteralPrimaryExpression> values = Maps.newHashMap();
+        for (Map.Entry<Integer, ALiteralPrimaryExpression> entry : constants.entrySet()) {
+            values.put(((ALocalDeclaration) parameters.get(entry.getKey())).getName().getText(), entry.getValue());
+        }
+        for (int index : Lists.reverse(ImmutableList.copyOf(constants.keySet()))) {
+            parameters.get(index).replaceBy(null);
+        }
+        CodeGenerator.getBody(function).apply(new DepthFirstAdapter() {
+            @Override
+            public void outAIdentifierPrimaryExpression(AIdentifierPrimaryExpression primaryExpression) {
+                ALiteralPrimaryExpression value = values.get(primaryExpression.getIdentifier().getText());
+                if (value != null) {
+                    primaryExpression.replaceBy(NodeCopier.copyOf(value));
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the specified arguments from an invocation, and redirects it to the function of the specified name.
+     */
+    private static void redirect(Invocation invocation, Set<Integer> removed, String name) {
+        List<PExpression> arguments = getArguments(invocation.node);
+        for (int index : Lists.reverse(ImmutableList.copyOf(Sets.newTreeSet(removed)))) {
+            arguments.get(index).replaceBy(null);
+        }
+        if (invocation.node instanceof AUnqualifiedFunctionInvocation) {
+            ((AUnqualifiedFunctionInvocation) invocation.node).setFunctionName(new TIdentifier(name));
+        } else if (invocation.node instanceof AExpressionFunctionInvocation) {
+            ((AExpressionFunctionInvocation) invocation.node).setFunctionName(new TIdentifier(name));
+        } else {
+            ((ATypeTokenFunctionInvocation) invocation.node).setFunctionName(new TIdentifier(name));
+        }
+    }
+
+    /**
+     * Returns {@code true} if the specified function is invoked by anything other than itself, ignoring the
+     * invocations which have been redirected elsewhere.
+     */
+    private static boolean isInvokedElsewhere(Node function, List<Invocation> invocations, Set<Invocation> redirected) {
+        for (Invocation invocation : invocations) {
+            if (!redirected.contains(invocation) && !isWithin(invocation.node, function)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if the specified callee may invoke the specified caller, directly or indirectly, in which
+     * case copying the callee for the caller could go on indefinitely. Copies are treated as the functions they were
+     * copied from.
+     */
+    private boolean isRecursive(Node caller, Node callee, SetMultimap<Node, Node> calls) {
+        Node target = getOriginal(caller);
+        Set<Node> visited = Sets.newHashSet();
+        Deque<Node> pending = Queues.newArrayDeque();
+        pending.push(getOriginal(callee));
+        while (!pending.isEmpty()) {
+            Node function = pending.pop();
+            if (function == target) {
+                return true;
+            } else if (visited.add(function)) {
+                for (Node next : calls.get(function)) {
+                    pending.push(next);
+                }
+            }
+        }
+        return false;
+    }
+
+    private Node getOriginal(Node function) {
+        Node original = function;
+        while (originals.containsKey(original)) {
+            original = originals.get(original);
+        }
+        return original;
+    }
+
+    /**
+     * Returns a new name for a specialization of the specified function. Since {@code $} cannot appear in an
+     * identifier, no function in the source can have the name.
+     */
+    private String createName(PFunctionDeclaration function) {
+        String name = getName(function);
+        if (name.contains("$")) {
+            name = name.substring(0, name.indexOf('$'));
+        }
+        return String.format("%s$%d", name, nextSuffix++);
+    }
+
+    private static String getName(PFunctionDeclaration function) {
+        if (function instanceof AFunctionDeclaration) {
+            return ((AFunctionDeclaration) function).getName().getText();
+        } else {
+            return ((AVoidFunctionDeclaration) function).getName().getText();
+        }
+    }
+
+    private static void setName(PFunctionDeclaration function, String name) {
+        if (function instanceof AFunctionDeclaration) {
+            ((AFunctionDeclaration) function).setName(new TIdentifier(name));
+        } else {
+            ((AVoidFunctionDeclaration) function).setName(new TIdentifier(name));
+        }
+    }
+
+    private static List<PLocalDeclaration> getParameters(PFunctionDeclaration function) {
+        if (function instanceof AFunctionDeclaration) {
+            return ((AFunctionDeclaration) function).getParameters();
+        } else {
+            return ((AVoidFunctionDeclaration) function).getParameters();
+        }
+    }
+
+    private static List<PExpression> getArguments(Node invocation) {
+        if (invocation instanceof AUnqualifiedFunctionInvocation) {
+            return ((AUnqualifiedFunctionInvocation) invocation).getParameters();
+        } else if (invocation instanceof AExpressionFunctionInvocation) {
+            return ((AExpressionFunctionInvocation) invocation).getParameters();
+        } else {
+            return ((ATypeTokenFunctionInvocation) invocation).getParameters();
+        }
+    }
+
+    private static Node getEnclosingFunction(Node node) {
+        for (Node ancestor = node; ancestor != null; ancestor = ancestor.parent()) {
+            if (ancestor instanceof PFunctionDeclaration || ancestor instanceof AConstructorDeclaration
+                    || ancestor instanceof ACastDeclaration) {
+                return ancestor;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWithin(Node node, Node ancestor) {
+        for (Node current = node; current != null; current = current.parent()) {
+            if (current == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Invocation {
+        private final Node node;
+
+        private final FunctionSymbol symbol;
+
+        private Invocation(Node node, FunctionSymbol symbol) {
+            this.node = node;
+            this.symbol = symbol;
+        }
+    }
+}
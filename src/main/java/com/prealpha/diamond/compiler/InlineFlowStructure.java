@@ -0,0 +1,46 @@
+/*
+ * InlineFlowStructure.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import static com.google.common.base.Preconditions.*;
+
+final class InlineFlowStructure implements FlowStructure {
+    private final CodeGenerator codeGenerator;
+
+    private final Scope enclosingScope;
+
+    private final String returnLabel;
+
+    public InlineFlowStructure(CodeGenerator codeGenerator, String returnLabel) {
+        checkNotNull(codeGenerator);
+        checkNotNull(returnLabel);
+        this.codeGenerator = codeGenerator;
+        this.enclosingScope = this.codeGenerator.getScope();
+        this.returnLabel = returnLabel;
+    }
+
+    @Override
+    public boolean onBreak() {
+        return false;
+    }
+
+    @Override
+    public boolean onContinue() {
+        return false;
+    }
+
+    @Override
+    public boolean onReturn() {
+        Scope scope = codeGenerator.getScope();
+        while (scope != enclosingScope) {
+            codeGenerator.doReclaimScope(scope);
+            scope = scope.getParent();
+        }
+        codeGenerator.write("SET PC " + returnLabel);
+        return true;
+    }
+}
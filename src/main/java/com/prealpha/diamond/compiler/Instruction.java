@@ -0,0 +1,156 @@
+/*
+ * Instruction.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.prealpha.diamond.compiler.node.Node;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>
+ *     An instruction in a {@link ControlFlowGraph}. The graph is in static single assignment form, so an instruction
+ *     which produces a value is also the only definition of that value, and its operands are simply the instructions
+ *     which define them. Instructions which produce no value, such as stores and terminators, have a {@code null} type.
+ * </p>
+ *
+ * <p>
+ *     Besides its operands, an instruction may carry a constant attribute, whose meaning depends on the opcode: the
+ *     value of a {@link Opcode#CONSTANT}, the text of a {@link Opcode#STRING}, the {@link LocalSymbol} of a
+ *     {@link Opcode#PARAMETER} or {@link Opcode#UNDEFINED} value, the field name of a field load or store, or the case
+ *     values of a {@link Opcode#SWITCH}. Instructions lowered from invocations keep the invocation node as their origin,
+ *     from which the code generator can resolve the symbol invoked.
+ * </p>
+ *
+ * @see BasicBlock
+ */
+final class Instruction {
+    enum Opcode {
+        PARAMETER, THIS, UNDEFINED, CONSTANT, STRING, PHI,
+        NEGATE, COMPLEMENT, NOT,
+        ADD, SUBTRACT, MULTIPLY, DIVIDE, MODULUS, SHIFT_LEFT, SHIFT_RIGHT, UNSIGNED_SHIFT_RIGHT, AND, XOR, OR,
+        LESS_THAN, GREATER_THAN, LESS_OR_EQUAL, GREATER_OR_EQUAL, EQUAL, NOT_EQUAL,
+        LOAD_FIELD, STORE_FIELD, LOAD_ELEMENT, STORE_ELEMENT,
+        CALL, NEW, CAST, DELETE, NATIVE,
+        JUMP, BRANCH, SWITCH, RETURN;
+
+        /**
+         * Returns {@code true} if instructions with this opcode end a basic block.
+         */
+        boolean isTerminator() {
+            return (this == JUMP || this == BRANCH || this == SWITCH || this == RETURN);
+        }
+
+        /**
+         * Returns {@code true} if instructions with this opcode may have effects other than producing their value, so
+         * that they cannot be removed or reordered with other such instructions. Loads are not considered side
+         * effects, but may not be moved past them.
+         */
+        boolean hasSideEffects() {
+            switch (this) {
+                case STORE_FIELD:
+                case STORE_ELEMENT:
+                case CALL:
+                case NEW:
+                case CAST:
+                case DELETE:
+                case NATIVE:
+                    return true;
+                default:
+                    return isTerminator();
+            }
+        }
+    }
+
+    private final Opcode opcode;
+
+    private final TypeToken type;
+
+    private final Node origin;
+
+    private final Object constant;
+
+    private final List<Instruction> operands;
+
+    private BasicBlock block;
+
+    Instruction(Opcode opcode, TypeToken type, Node origin, Object constant, List<Instruction> operands) {
+        checkNotNull(opcode);
+        this.opcode = opcode;
+        this.type = type;
+        this.origin = origin;
+        this.constant = constant;
+        this.operands = Lists.newArrayList(operands);
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Returns the type of the value produced by this instruction.
+     *
+     * @return the type of this instruction's value, or {@code null} if it produces no value
+     */
+    public TypeToken getType() {
+        return type;
+    }
+
+    /**
+     * Returns the syntax tree node from which this instruction was lowered.
+     *
+     * @return the node from which this instruction was lowered, or {@code null} if it was created by the lowering
+     */
+    public Node getOrigin() {
+        return origin;
+    }
+
+    public Object getConstant() {
+        return constant;
+    }
+
+    public List<Instruction> getOperands() {
+        return ImmutableList.copyOf(operands);
+    }
+
+    public BasicBlock getBlock() {
+        return block;
+    }
+
+    void setBlock(BasicBlock block) {
+        this.block = block;
+    }
+
+    void addOperand(Instruction operand) {
+        checkNotNull(operand);
+        operands.add(operand);
+    }
+
+    void removeOperand(int index) {
+        operands.remove(index);
+    }
+
+    /**
+     * Replaces every use of one value as an operand of this instruction with another value.
+     *
+     * @return whether this instruction used the value
+     */
+    boolean replaceOperand(Instruction value, Instruction replacement) {
+        checkNotNull(replacement);
+        boolean replaced = false;
+        for (int i = 0; i < operands.size(); i++) {
+            if (operands.get(i) == value) {
+                operands.set(i, replacement);
+                replaced = true;
+            }
+        }
+        return replaced;
+    }
+}
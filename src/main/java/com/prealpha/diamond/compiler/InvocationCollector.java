@@ -0,0 +1,129 @@
+/*
+ * InvocationCollector.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.prealpha.diamond.compiler.node.AConstructorInvocation;
+import com.prealpha.diamond.compiler.node.AExpressionFunctionInvocation;
+import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.Node;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * Finds every function and constructor invocation in a program, and resolves the function or constructor which each
+ * one invokes just as the {@link TypeEnforcer} does. The symbol table and types must be up to date when the collector
+ * is applied.
+ *
+ * @see FunctionSpecializer
+ * @see FunctionEvaluator
+ * @see CodeGenerator
+ */
+final class InvocationCollector extends ScopeAwareWalker {
+    private final Compiler compiler;
+
+    private final Map<Node, TypeToken> types;
+
+    private final Map<Node, FunctionSymbol> invocations;
+
+    private final Map<Node, ConstructorSymbol> constructorInvocations;
+
+    public InvocationCollector(Compiler compiler) {
+        super(compiler.getScopeSource());
+        checkNotNull(compiler);
+        this.compiler = compiler;
+        types = compiler.getTypes();
+        invocations = Maps.newLinkedHashMap();
+        constructorInvocations = Maps.newLinkedHashMap();
+    }
+
+    /**
+     * Returns the function which each invocation invokes. The invocations are in the order in which the walk left
+     * them, so an invocation within the arguments of another comes before it.
+     *
+     * @return the function invoked by each invocation
+     */
+    public Map<Node, FunctionSymbol> getInvocations() {
+        return ImmutableMap.copyOf(invocations);
+    }
+
+    /**
+     * Returns the constructor which each constructor invocation of a user-defined class invokes, in the same order as
+     * {@link #getInvocations()}.
+     *
+     * @return the constructor invoked by each constructor invocation
+     */
+    public Map<Node, ConstructorSymbol> getConstructorInvocations() {
+        return ImmutableMap.copyOf(constructorInvocations);
+    }
+
+    @Override
+    public void outAUnqualifiedFunctionInvocation(AUnqualifiedFunctionInvocation invocation) {
+        try {
+            List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
+            invocations.put(invocation, getScope().resolveFunction(invocation.getFunctionName().getText(),
+                    parameterTypes));
+        } catch (SemanticException sx) {
+            compiler.raise(sx);
+        }
+    }
+
+    @Override
+    public void outAExpressionFunctionInvocation(AExpressionFunctionInvocation invocation) {
+        try {
+            String className = ((UserDefinedTypeToken) types.get(invocation.getTarget())).getTypeName();
+            Scope scope = getScope(getScope().resolveClass(className).getDeclaration());
+            List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
+            invocations.put(invocation, scope.resolveFunction(invocation.getFunctionName().getText(), parameterTypes));
+        } catch (SemanticException sx) {
+            compiler.raise(sx);
+        }
+    }
+
+    @Override
+    public void outATypeTokenFunctionInvocation(ATypeTokenFunctionInvocation invocation) {
+        try {
+            Scope scope = getScope();
+            if (invocation.getTarget() != null) {
+                TypeToken enclosingType = TypeTokenUtil.fromNode(invocation.getTarget());
+                scope = getScope(getScope().resolveClass(((UserDefinedTypeToken) enclosingType).getTypeName())
+                        .getDeclaration());
+            }
+            List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
+            invocations.put(invocation, scope.resolveFunction(invocation.getFunctionName().getText(), parameterTypes));
+        } catch (SemanticException sx) {
+            compiler.raise(sx);
+        }
+    }
+
+    @Override
+    public void outAConstructorInvocation(AConstructorInvocation invocation) {
+        try {
+            Scope scope = getScope();
+            if (invocation.getTarget() != null) {
+                TypeToken scopeToken = TypeTokenUtil.fromNode(invocation.getTarget());
+                if (!(scopeToken instanceof UserDefinedTypeToken)) {
+                    // arrays and other built-in types are allocated directly
+                    return;
+                }
+                scope = getScope(getScope().resolveClass(((UserDefinedTypeToken) scopeToken).getTypeName())
+                        .getDeclaration());
+            }
+            List<TypeToken> parameterTypes = Lists.transform(invocation.getParameters(), Functions.forMap(types));
+            constructorInvocations.put(invocation, scope.resolveConstructor(parameterTypes));
+        } catch (SemanticException sx) {
+            compiler.raise(sx);
+        }
+    }
+}
@@ -39,6 +39,7 @@ import com.prealpha.diamond.compiler.node.AConstructorInvocation;
 import com.prealpha.diamond.compiler.node.AConstructorInvocationPrimaryExpression;
 import com.prealpha.diamond.compiler.node.AContinueStatement;
 import com.prealpha.diamond.compiler.node.ADecimalIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ADecrementAssignment;
 import com.prealpha.diamond.compiler.node.ADefaultCaseGroup;
 import com.prealpha.diamond.compiler.node.ADeleteStatement;
 import com.prealpha.diamond.compiler.node.ADivideAssignment;
@@ -67,6 +68,7 @@ import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
 import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
 import com.prealpha.diamond.compiler.node.AIfThenStatement;
 import com.prealpha.diamond.compiler.node.AIncludeTopLevelStatement;
+import com.prealpha.diamond.compiler.node.AIncrementAssignment;
 import com.prealpha.diamond.compiler.node.AIntTypeToken;
 import com.prealpha.diamond.compiler.node.AIntegralLiteral;
 import com.prealpha.diamond.compiler.node.ALessOrEqualExpression;
@@ -514,6 +516,14 @@ final class LineNumberFinder extends AnalysisAdapter {
         node.getTarget().apply(this);
     }
 
+    public void caseAIncrementAssignment(AIncrementAssignment node) {
+        node.getTarget().apply(this);
+    }
+
+    public void caseADecrementAssignment(ADecrementAssignment node) {
+        node.getTarget().apply(this);
+    }
+
     public void caseALocalDeclarationAssignmentTarget(ALocalDeclarationAssignmentTarget node) {
         node.getLocalDeclaration().apply(this);
     }
@@ -0,0 +1,273 @@
+/*
+ * LoopInvariantFinder.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.analysis.DepthFirstAdapter;
+import com.prealpha.diamond.compiler.node.AArrayAccess;
+import com.prealpha.diamond.compiler.node.AArrayAccessAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AArrayAccessPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseComplementExpression;
+import com.prealpha.diamond.compiler.node.AConditionalAndExpression;
+import com.prealpha.diamond.compiler.node.AConditionalExpression;
+import com.prealpha.diamond.compiler.node.AConditionalNotExpression;
+import com.prealpha.diamond.compiler.node.AConditionalOrExpression;
+import com.prealpha.diamond.compiler.node.ADeleteStatement;
+import com.prealpha.diamond.compiler.node.AExpressionFieldAccess;
+import com.prealpha.diamond.compiler.node.AFalseLiteral;
+import com.prealpha.diamond.compiler.node.AFieldAccessAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AFieldAccessPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ALocalDeclaration;
+import com.prealpha.diamond.compiler.node.ANativeStatement;
+import com.prealpha.diamond.compiler.node.ANumericNegationExpression;
+import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.AThisPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ATrueLiteral;
+import com.prealpha.diamond.compiler.node.ATypeTokenFieldAccess;
+import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PCastInvocation;
+import com.prealpha.diamond.compiler.node.PConstructorInvocation;
+import com.prealpha.diamond.compiler.node.PExpression;
+import com.prealpha.diamond.compiler.node.PFieldAccess;
+import com.prealpha.diamond.compiler.node.PFunctionInvocation;
+import com.prealpha.diamond.compiler.node.PLiteral;
+import com.prealpha.diamond.compiler.node.TIdentifier;
+
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>
+ *     Determines which expressions within a loop compute the same value on every iteration, so that the
+ *     {@link CodeGenerator} can evaluate them once, before the loop begins. The loop is given as its region: the
+ *     condition, body and (for {@code for} loops) update, which together make up everything executed on each
+ *     iteration.
+ * </p>
+ *
+ * <p>
+ *     An expression is invariant if it is built only from literals, {@code this}, locals which are not assigned
+ *     anywhere in the region, and loads of fields or array elements which nothing in the region could store to,
+ *     combined with operators which have no side effects. Names are compared as strings, so assigning a local or
+ *     field of some name makes every local and field of that name variant within the region. Any invocation, native
+ *     statement or {@code delete} statement might store to any field or array element; locals, which cannot be
+ *     reached through a pointer, remain invariant. Evaluating an invariant expression before a loop which turns out
+ *     not to execute at all is harmless, since no DCPU instruction traps.
+ * </p>
+ *
+ * @see CodeGenerator
+ */
+final class LoopInvariantFinder {
+    private final Scope scope;
+
+    private final Set<String> assignedNames;
+
+    private final Set<Node> invariants;
+
+    private boolean storesArrays;
+
+    private boolean hasSideEffects;
+
+    private int invocations;
+
+    private int thisUses;
+
+    /**
+     * Analyzes the specified loop region.
+     *
+     * @param scope the scope enclosing the loop, in which names used but not declared in the region are resolved
+     * @param region the parts of the loop executed on every iteration; {@code null} parts are ignored
+     */
+    public LoopInvariantFinder(Scope scope, Node... region) {
+        checkNotNull(scope);
+        this.scope = scope;
+        assignedNames = Sets.newHashSet();
+        invariants = Sets.newHashSet();
+        for (Node part : region) {
+            if (part != null) {
+                part.apply(new EffectCollector());
+            }
+        }
+        for (Node part : region) {
+            if (part != null) {
+                part.apply(new InvariantCollector());
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the specified node, which must be within the region, computes the same value on every
+     * iteration of the loop.
+     *
+     * @param node an expression, primary expression, field access or array access within the region
+     * @return whether the node is loop-invariant
+     */
+    public boolean isInvariant(Node node) {
+        return invariants.contains(node);
+    }
+
+    /**
+     * Returns {@code true} if a local or field of the specified name is assigned or declared anywhere in the region.
+     *
+     * @param name the name of the local or field
+     * @return whether the name is assigned within the region
+     */
+    public boolean isAssigned(String name) {
+        return assignedNames.contains(name);
+    }
+
+    /**
+     * Returns the number of invocations within the region. Since registers are caller-saved, each of these must save
+     * and restore every register holding a hoisted expression.
+     *
+     * @return the number of invocations within the region
+     */
+    public int getInvocations() {
+        return invocations;
+    }
+
+    /**
+     * Returns the number of places in the region which evaluate {@code this}, whether explicitly or implicitly, by
+     * naming a field or an instance function without a target.
+     *
+     * @return the number of uses of {@code this} within the region
+     */
+    public int getThisUses() {
+        return thisUses;
+    }
+
+    private boolean isLocal(String name) {
+        try {
+            scope.resolveLocal(name);
+            return true;
+        } catch (SemanticException sx) {
+            return false;
+        }
+    }
+
+    private boolean isFieldInvariant(TIdentifier fieldName) {
+        return !hasSideEffects && !assignedNames.contains(fieldName.getText());
+    }
+
+    private final class EffectCollector extends DepthFirstAdapter {
+        @Override
+        public void defaultIn(Node node) {
+            if (node instanceof PFunctionInvocation || node instanceof PConstructorInvocation
+                    || node instanceof PCastInvocation) {
+                hasSideEffects = true;
+                invocations += 1;
+            } else if (node instanceof ANativeStatement || node instanceof ADeleteStatement) {
+                hasSideEffects = true;
+            } else if (node instanceof AArrayAccessAssignmentTarget) {
+                storesArrays = true;
+            }
+
+            if (node instanceof AThisPrimaryExpression || node instanceof AUnqualifiedFunctionInvocation) {
+                thisUses += 1;
+            } else if (node instanceof AIdentifierPrimaryExpression) {
+                if (!isLocal(((AIdentifierPrimaryExpression) node).getIdentifier().getText())) {
+                    thisUses += 1;
+                }
+            }
+        }
+
+        @Override
+        public void outALocalDeclaration(ALocalDeclaration declaration) {
+            assignedNames.add(declaration.getName().getText());
+        }
+
+        @Override
+        public void outAIdentifierAssignmentTarget(AIdentifierAssignmentTarget target) {
+            String name = target.getIdentifier().getText();
+            assignedNames.add(name);
+            if (!isLocal(name)) {
+                thisUses += 1;
+            }
+        }
+
+        @Override
+        public void outAFieldAccessAssignmentTarget(AFieldAccessAssignmentTarget target) {
+            PFieldAccess fieldAccess = target.getFieldAccess();
+            if (fieldAccess instanceof AExpressionFieldAccess) {
+                assignedNames.add(((AExpressionFieldAccess) fieldAccess).getFieldName().getText());
+            } else {
+                assignedNames.add(((ATypeTokenFieldAccess) fieldAccess).getFieldName().getText());
+            }
+        }
+    }
+
+    private final class InvariantCollector extends DepthFirstAdapter {
+        @Override
+        public void defaultOut(Node node) {
+            if (isInvariantNode(node)) {
+                invariants.add(node);
+            }
+        }
+
+        private boolean isInvariantNode(Node node) {
+            if (node instanceof ALiteralPrimaryExpression) {
+                PLiteral literal = ((ALiteralPrimaryExpression) node).getLiteral();
+                return (literal instanceof AIntegralLiteral || literal instanceof ATrueLiteral
+                        || literal instanceof AFalseLiteral);
+            } else if (node instanceof AThisPrimaryExpression) {
+                return true;
+            } else if (node instanceof AIdentifierPrimaryExpression) {
+                TIdentifier identifier = ((AIdentifierPrimaryExpression) node).getIdentifier();
+                if (isLocal(identifier.getText())) {
+                    return !assignedNames.contains(identifier.getText());
+                } else {
+                    return isFieldInvariant(identifier);
+                }
+            } else if (node instanceof APrimaryExpression) {
+                return isInvariant(((APrimaryExpression) node).getPrimaryExpression());
+            } else if (node instanceof AParentheticalPrimaryExpression) {
+                return isInvariant(((AParentheticalPrimaryExpression) node).getExpression());
+            } else if (node instanceof AFieldAccessPrimaryExpression) {
+                return isInvariant(((AFieldAccessPrimaryExpression) node).getFieldAccess());
+            } else if (node instanceof AExpressionFieldAccess) {
+                AExpressionFieldAccess fieldAccess = (AExpressionFieldAccess) node;
+                return isInvariant(fieldAccess.getTarget()) && isFieldInvariant(fieldAccess.getFieldName());
+            } else if (node instanceof ATypeTokenFieldAccess) {
+                return isFieldInvariant(((ATypeTokenFieldAccess) node).getFieldName());
+            } else if (node instanceof AArrayAccessPrimaryExpression) {
+                return isInvariant(((AArrayAccessPrimaryExpression) node).getArrayAccess());
+            } else if (node instanceof AArrayAccess) {
+                AArrayAccess arrayAccess = (AArrayAccess) node;
+                return !storesArrays && !hasSideEffects && isInvariant(arrayAccess.getArray())
+                        && isInvariant(arrayAccess.getIndex());
+            } else if (node instanceof ANumericNegationExpression) {
+                return isInvariant(((ANumericNegationExpression) node).getValue());
+            } else if (node instanceof ABitwiseComplementExpression) {
+                return isInvariant(((ABitwiseComplementExpression) node).getValue());
+            } else if (node instanceof AConditionalNotExpression) {
+                return isInvariant(((AConditionalNotExpression) node).getValue());
+            } else if (node instanceof AConditionalExpression) {
+                AConditionalExpression conditional = (AConditionalExpression) node;
+                return isInvariant(conditional.getCondition()) && isInvariant(conditional.getIfTrue())
+                        && isInvariant(conditional.getIfFalse());
+            } else if (node instanceof AConditionalAndExpression) {
+                AConditionalAndExpression conjunction = (AConditionalAndExpression) node;
+                return isInvariant(conjunction.getLeft()) && isInvariant(conjunction.getRight());
+            } else if (node instanceof AConditionalOrExpression) {
+                AConditionalOrExpression disjunction = (AConditionalOrExpression) node;
+                return isInvariant(disjunction.getLeft()) && isInvariant(disjunction.getRight());
+            } else if (CodeGenerator.getBinaryOperands(node) != null) {
+                List<PExpression> operands = CodeGenerator.getBinaryOperands(node);
+                return isInvariant(operands.get(0)) && isInvariant(operands.get(1));
+            } else {
+                return false;
+            }
+        }
+    }
+}
@@ -6,13 +6,16 @@
 
 package com.prealpha.diamond.compiler;
 
+import com.prealpha.diamond.compiler.node.AInlineModifier;
 import com.prealpha.diamond.compiler.node.ANativeModifier;
+import com.prealpha.diamond.compiler.node.ANoinlineModifier;
 import com.prealpha.diamond.compiler.node.APrivateModifier;
 import com.prealpha.diamond.compiler.node.AStaticModifier;
 import com.prealpha.diamond.compiler.node.PModifier;
 
 enum Modifier {
-    PRIVATE(false, true, true, false), STATIC(false, true, true, false), NATIVE(false, true, false, false);
+    PRIVATE(false, true, true, false), STATIC(false, true, true, false), NATIVE(false, true, false, false),
+    INLINE(false, true, false, false), NOINLINE(false, true, false, false);
 
     private final boolean modifiesClasses;
 
@@ -52,6 +55,10 @@ enum Modifier {
             return STATIC;
         } else if (modifierNode instanceof ANativeModifier) {
             return NATIVE;
+        } else if (modifierNode instanceof AInlineModifier) {
+            return INLINE;
+        } else if (modifierNode instanceof ANoinlineModifier) {
+            return NOINLINE;
         } else {
             throw new UnsupportedOperationException("unknown modifier node type: " + modifierNode.getClass().getSimpleName());
         }
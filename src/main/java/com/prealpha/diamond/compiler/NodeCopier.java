@@ -0,0 +1,629 @@
+/*
+ * NodeCopier.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.Lists;
+import com.prealpha.diamond.compiler.analysis.AnalysisAdapter;
+import com.prealpha.diamond.compiler.node.AAddAssignment;
+import com.prealpha.diamond.compiler.node.AAddExpression;
+import com.prealpha.diamond.compiler.node.AArrayAccess;
+import com.prealpha.diamond.compiler.node.AArrayAccessAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AArrayAccessPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AArrayTypeToken;
+import com.prealpha.diamond.compiler.node.AAssignment;
+import com.prealpha.diamond.compiler.node.AAssignmentExpression;
+import com.prealpha.diamond.compiler.node.ABinaryIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ABitwiseAndAssignment;
+import com.prealpha.diamond.compiler.node.ABitwiseAndExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseComplementExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseOrAssignment;
+import com.prealpha.diamond.compiler.node.ABitwiseOrExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseXorAssignment;
+import com.prealpha.diamond.compiler.node.ABitwiseXorExpression;
+import com.prealpha.diamond.compiler.node.ABlockStatement;
+import com.prealpha.diamond.compiler.node.ABooleanTypeToken;
+import com.prealpha.diamond.compiler.node.ABreakStatement;
+import com.prealpha.diamond.compiler.node.ACaseGroup;
+import com.prealpha.diamond.compiler.node.ACastClassStatement;
+import com.prealpha.diamond.compiler.node.ACastDeclaration;
+import com.prealpha.diamond.compiler.node.ACastInvocation;
+import com.prealpha.diamond.compiler.node.ACastInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AClassDeclaration;
+import com.prealpha.diamond.compiler.node.AClassTopLevelStatement;
+import com.prealpha.diamond.compiler.node.AConditionalAndExpression;
+import com.prealpha.diamond.compiler.node.AConditionalExpression;
+import com.prealpha.diamond.compiler.node.AConditionalNotExpression;
+import com.prealpha.diamond.compiler.node.AConditionalOrExpression;
+import com.prealpha.diamond.compiler.node.AConstructorClassStatement;
+import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
+import com.prealpha.diamond.compiler.node.AConstructorInvocation;
+import com.prealpha.diamond.compiler.node.AConstructorInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AContinueStatement;
+import com.prealpha.diamond.compiler.node.ADecimalIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ADecrementAssignment;
+import com.prealpha.diamond.compiler.node.ADefaultCaseGroup;
+import com.prealpha.diamond.compiler.node.ADeleteStatement;
+import com.prealpha.diamond.compiler.node.ADivideAssignment;
+import com.prealpha.diamond.compiler.node.ADivideExpression;
+import com.prealpha.diamond.compiler.node.ADoStatement;
+import com.prealpha.diamond.compiler.node.AEmptyStatement;
+import com.prealpha.diamond.compiler.node.AEqualExpression;
+import com.prealpha.diamond.compiler.node.AExpressionFieldAccess;
+import com.prealpha.diamond.compiler.node.AExpressionFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AExpressionStatement;
+import com.prealpha.diamond.compiler.node.AFalseLiteral;
+import com.prealpha.diamond.compiler.node.AFieldAccessAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AFieldAccessPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AFieldClassStatement;
+import com.prealpha.diamond.compiler.node.AFieldDeclaration;
+import com.prealpha.diamond.compiler.node.AForStatement;
+import com.prealpha.diamond.compiler.node.AFunctionClassStatement;
+import com.prealpha.diamond.compiler.node.AFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AFunctionInvocationPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AFunctionTopLevelStatement;
+import com.prealpha.diamond.compiler.node.AGreaterOrEqualExpression;
+import com.prealpha.diamond.compiler.node.AGreaterThanExpression;
+import com.prealpha.diamond.compiler.node.AHexIntegralLiteral;
+import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
+import com.prealpha.diamond.compiler.node.AIfThenStatement;
+import com.prealpha.diamond.compiler.node.AIncludeTopLevelStatement;
+import com.prealpha.diamond.compiler.node.AIncrementAssignment;
+import com.prealpha.diamond.compiler.node.AInlineModifier;
+import com.prealpha.diamond.compiler.node.AIntTypeToken;
+import com.prealpha.diamond.compiler.node.AIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ALessOrEqualExpression;
+import com.prealpha.diamond.compiler.node.ALessThanExpression;
+import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ALocalDeclaration;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationAssignmentTarget;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationStatement;
+import com.prealpha.diamond.compiler.node.AModulusAssignment;
+import com.prealpha.diamond.compiler.node.AModulusExpression;
+import com.prealpha.diamond.compiler.node.AMultiplyAssignment;
+import com.prealpha.diamond.compiler.node.AMultiplyExpression;
+import com.prealpha.diamond.compiler.node.ANativeModifier;
+import com.prealpha.diamond.compiler.node.ANativeStatement;
+import com.prealpha.diamond.compiler.node.ANoinlineModifier;
+import com.prealpha.diamond.compiler.node.ANotEqualExpression;
+import com.prealpha.diamond.compiler.node.ANumericNegationExpression;
+import com.prealpha.diamond.compiler.node.AOctalIntegralLiteral;
+import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrimaryExpression;
+import com.prealpha.diamond.compiler.node.APrivateModifier;
+import com.prealpha.diamond.compiler.node.AProgram;
+import com.prealpha.diamond.compiler.node.AReturnStatement;
+import com.prealpha.diamond.compiler.node.AShiftLeftAssignment;
+import com.prealpha.diamond.compiler.node.AShiftLeftExpression;
+import com.prealpha.diamond.compiler.node.AShiftRightAssignment;
+import com.prealpha.diamond.compiler.node.AShiftRightExpression;
+import com.prealpha.diamond.compiler.node.AStandardInclude;
+import com.prealpha.diamond.compiler.node.AStaticModifier;
+import com.prealpha.diamond.compiler.node.AStringLiteral;
+import com.prealpha.diamond.compiler.node.ASubtractAssignment;
+import com.prealpha.diamond.compiler.node.ASubtractExpression;
+import com.prealpha.diamond.compiler.node.ASwitchStatement;
+import com.prealpha.diamond.compiler.node.AThisPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ATrueLiteral;
+import com.prealpha.diamond.compiler.node.ATypeTokenFieldAccess;
+import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUintTypeToken;
+import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnsignedShiftRightAssignment;
+import com.prealpha.diamond.compiler.node.AUnsignedShiftRightExpression;
+import com.prealpha.diamond.compiler.node.AUserDefinedTypeToken;
+import com.prealpha.diamond.compiler.node.AUserInclude;
+import com.prealpha.diamond.compiler.node.AVoidFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AWhileStatement;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.Token;
+
+import java.util.List;
+
+/**
+ * Makes deep copies of syntax trees. The generated {@code clone()} methods cannot be used for this, since they move the
+ * elements of each list child into the clone rather than cloning them. Instead, each alternative is rebuilt through its
+ * full constructor from copies of its children, so that a child added to the grammar cannot be left out of a copy
+ * without the copier failing to compile. Only tokens, which have no children, are cloned.
+ *
+ * @see FunctionSpecializer
+ */
+final class NodeCopier extends AnalysisAdapter {
+    private Node copy;
+
+    private NodeCopier() {
+    }
+
+    /**
+     * Returns a deep copy of the specified node, which shares nothing with it and has no parent.
+     *
+     * @param node the node to copy, or {@code null}
+     * @return a copy of the node, or {@code null} if the node is {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Node> T copyOf(T node) {
+        if (node == null) {
+            return null;
+        }
+        NodeCopier copier = new NodeCopier();
+        node.apply(copier);
+        return (T) copier.copy;
+    }
+
+    private static <T extends Node> List<T> copyAll(List<T> nodes) {
+        List<T> copies = Lists.newArrayList();
+        for (T node : nodes) {
+            copies.add(copyOf(node));
+        }
+        return copies;
+    }
+
+    public void defaultCase(Node node) {
+        if (node instanceof Token) {
+            copy = (Node) node.clone();
+        } else {
+            throw new UnsupportedOperationException("cannot copy " + node.getClass().getSimpleName());
+        }
+    }
+
+    public void caseAAddAssignment(AAddAssignment node) {
+        copy = new AAddAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseAAddExpression(AAddExpression node) {
+        copy = new AAddExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAArrayAccess(AArrayAccess node) {
+        copy = new AArrayAccess(copyOf(node.getArray()), copyOf(node.getIndex()));
+    }
+
+    public void caseAArrayAccessAssignmentTarget(AArrayAccessAssignmentTarget node) {
+        copy = new AArrayAccessAssignmentTarget(copyOf(node.getArrayAccess()));
+    }
+
+    public void caseAArrayAccessPrimaryExpression(AArrayAccessPrimaryExpression node) {
+        copy = new AArrayAccessPrimaryExpression(copyOf(node.getArrayAccess()));
+    }
+
+    public void caseAArrayTypeToken(AArrayTypeToken node) {
+        copy = new AArrayTypeToken(copyOf(node.getElementType()));
+    }
+
+    public void caseAAssignment(AAssignment node) {
+        copy = new AAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseAAssignmentExpression(AAssignmentExpression node) {
+        copy = new AAssignmentExpression(copyOf(node.getAssignment()));
+    }
+
+    public void caseABinaryIntegralLiteral(ABinaryIntegralLiteral node) {
+        copy = new ABinaryIntegralLiteral(copyOf(node.getBinaryLiteral()));
+    }
+
+    public void caseABitwiseAndAssignment(ABitwiseAndAssignment node) {
+        copy = new ABitwiseAndAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseABitwiseAndExpression(ABitwiseAndExpression node) {
+        copy = new ABitwiseAndExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseABitwiseComplementExpression(ABitwiseComplementExpression node) {
+        copy = new ABitwiseComplementExpression(copyOf(node.getValue()));
+    }
+
+    public void caseABitwiseOrAssignment(ABitwiseOrAssignment node) {
+        copy = new ABitwiseOrAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseABitwiseOrExpression(ABitwiseOrExpression node) {
+        copy = new ABitwiseOrExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseABitwiseXorAssignment(ABitwiseXorAssignment node) {
+        copy = new ABitwiseXorAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseABitwiseXorExpression(ABitwiseXorExpression node) {
+        copy = new ABitwiseXorExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseABlockStatement(ABlockStatement node) {
+        copy = new ABlockStatement(copyAll(node.getStatement()));
+    }
+
+    public void caseABooleanTypeToken(ABooleanTypeToken node) {
+        copy = new ABooleanTypeToken();
+    }
+
+    public void caseABreakStatement(ABreakStatement node) {
+        copy = new ABreakStatement();
+    }
+
+    public void caseACaseGroup(ACaseGroup node) {
+        copy = new ACaseGroup(copyAll(node.getValues()), copyAll(node.getBody()));
+    }
+
+    public void caseACastClassStatement(ACastClassStatement node) {
+        copy = new ACastClassStatement(copyOf(node.getCastDeclaration()));
+    }
+
+    public void caseACastDeclaration(ACastDeclaration node) {
+        copy = new ACastDeclaration(copyAll(node.getModifiers()), copyOf(node.getReturnType()),
+                copyOf(node.getParameter()), copyOf(node.getBody()));
+    }
+
+    public void caseACastInvocation(ACastInvocation node) {
+        copy = new ACastInvocation(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseACastInvocationPrimaryExpression(ACastInvocationPrimaryExpression node) {
+        copy = new ACastInvocationPrimaryExpression(copyOf(node.getCastInvocation()));
+    }
+
+    public void caseAClassDeclaration(AClassDeclaration node) {
+        copy = new AClassDeclaration(copyAll(node.getModifiers()), copyOf(node.getName()), copyAll(node.getBody()));
+    }
+
+    public void caseAClassTopLevelStatement(AClassTopLevelStatement node) {
+        copy = new AClassTopLevelStatement(copyOf(node.getClassDeclaration()));
+    }
+
+    public void caseAConditionalAndExpression(AConditionalAndExpression node) {
+        copy = new AConditionalAndExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAConditionalExpression(AConditionalExpression node) {
+        copy = new AConditionalExpression(copyOf(node.getCondition()), copyOf(node.getIfTrue()),
+                copyOf(node.getIfFalse()));
+    }
+
+    public void caseAConditionalNotExpression(AConditionalNotExpression node) {
+        copy = new AConditionalNotExpression(copyOf(node.getValue()));
+    }
+
+    public void caseAConditionalOrExpression(AConditionalOrExpression node) {
+        copy = new AConditionalOrExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAConstructorClassStatement(AConstructorClassStatement node) {
+        copy = new AConstructorClassStatement(copyOf(node.getConstructorDeclaration()));
+    }
+
+    public void caseAConstructorDeclaration(AConstructorDeclaration node) {
+        copy = new AConstructorDeclaration(copyAll(node.getModifiers()), copyOf(node.getReturnType()),
+                copyAll(node.getParameters()), copyOf(node.getBody()));
+    }
+
+    public void caseAConstructorInvocation(AConstructorInvocation node) {
+        copy = new AConstructorInvocation(copyOf(node.getTarget()), copyAll(node.getParameters()));
+    }
+
+    public void caseAConstructorInvocationPrimaryExpression(AConstructorInvocationPrimaryExpression node) {
+        copy = new AConstructorInvocationPrimaryExpression(copyOf(node.getConstructorInvocation()));
+    }
+
+    public void caseAContinueStatement(AContinueStatement node) {
+        copy = new AContinueStatement();
+    }
+
+    public void caseADecimalIntegralLiteral(ADecimalIntegralLiteral node) {
+        copy = new ADecimalIntegralLiteral(copyOf(node.getDecimalLiteral()));
+    }
+
+    public void caseADecrementAssignment(ADecrementAssignment node) {
+        copy = new ADecrementAssignment(copyOf(node.getTarget()));
+    }
+
+    public void caseADefaultCaseGroup(ADefaultCaseGroup node) {
+        copy = new ADefaultCaseGroup(copyAll(node.getValues()), copyAll(node.getBody()));
+    }
+
+    public void caseADeleteStatement(ADeleteStatement node) {
+        copy = new ADeleteStatement(copyOf(node.getObject()));
+    }
+
+    public void caseADivideAssignment(ADivideAssignment node) {
+        copy = new ADivideAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseADivideExpression(ADivideExpression node) {
+        copy = new ADivideExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseADoStatement(ADoStatement node) {
+        copy = new ADoStatement(copyOf(node.getBody()), copyOf(node.getCondition()));
+    }
+
+    public void caseAEmptyStatement(AEmptyStatement node) {
+        copy = new AEmptyStatement();
+    }
+
+    public void caseAEqualExpression(AEqualExpression node) {
+        copy = new AEqualExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAExpressionFieldAccess(AExpressionFieldAccess node) {
+        copy = new AExpressionFieldAccess(copyOf(node.getTarget()), copyOf(node.getFieldName()));
+    }
+
+    public void caseAExpressionFunctionInvocation(AExpressionFunctionInvocation node) {
+        copy = new AExpressionFunctionInvocation(copyOf(node.getTarget()), copyOf(node.getFunctionName()),
+                copyAll(node.getParameters()));
+    }
+
+    public void caseAExpressionStatement(AExpressionStatement node) {
+        copy = new AExpressionStatement(copyOf(node.getExpression()));
+    }
+
+    public void caseAFalseLiteral(AFalseLiteral node) {
+        copy = new AFalseLiteral();
+    }
+
+    public void caseAFieldAccessAssignmentTarget(AFieldAccessAssignmentTarget node) {
+        copy = new AFieldAccessAssignmentTarget(copyOf(node.getFieldAccess()));
+    }
+
+    public void caseAFieldAccessPrimaryExpression(AFieldAccessPrimaryExpression node) {
+        copy = new AFieldAccessPrimaryExpression(copyOf(node.getFieldAccess()));
+    }
+
+    public void caseAFieldClassStatement(AFieldClassStatement node) {
+        copy = new AFieldClassStatement(copyOf(node.getFieldDeclaration()));
+    }
+
+    public void caseAFieldDeclaration(AFieldDeclaration node) {
+        copy = new AFieldDeclaration(copyAll(node.getModifiers()), copyOf(node.getType()), copyOf(node.getName()));
+    }
+
+    public void caseAForStatement(AForStatement node) {
+        copy = new AForStatement(copyOf(node.getInit()), copyOf(node.getCondition()), copyOf(node.getUpdate()),
+                copyOf(node.getBody()));
+    }
+
+    public void caseAFunctionClassStatement(AFunctionClassStatement node) {
+        copy = new AFunctionClassStatement(copyOf(node.getFunctionDeclaration()));
+    }
+
+    public void caseAFunctionDeclaration(AFunctionDeclaration node) {
+        copy = new AFunctionDeclaration(copyAll(node.getModifiers()), copyOf(node.getReturnType()),
+                copyOf(node.getName()), copyAll(node.getParameters()), copyOf(node.getBody()));
+    }
+
+    public void caseAFunctionInvocationPrimaryExpression(AFunctionInvocationPrimaryExpression node) {
+        copy = new AFunctionInvocationPrimaryExpression(copyOf(node.getFunctionInvocation()));
+    }
+
+    public void caseAFunctionTopLevelStatement(AFunctionTopLevelStatement node) {
+        copy = new AFunctionTopLevelStatement(copyOf(node.getFunctionDeclaration()));
+    }
+
+    public void caseAGreaterOrEqualExpression(AGreaterOrEqualExpression node) {
+        copy = new AGreaterOrEqualExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAGreaterThanExpression(AGreaterThanExpression node) {
+        copy = new AGreaterThanExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAHexIntegralLiteral(AHexIntegralLiteral node) {
+        copy = new AHexIntegralLiteral(copyOf(node.getHexLiteral()));
+    }
+
+    public void caseAIdentifierAssignmentTarget(AIdentifierAssignmentTarget node) {
+        copy = new AIdentifierAssignmentTarget(copyOf(node.getIdentifier()));
+    }
+
+    public void caseAIdentifierPrimaryExpression(AIdentifierPrimaryExpression node) {
+        copy = new AIdentifierPrimaryExpression(copyOf(node.getIdentifier()));
+    }
+
+    public void caseAIfThenElseStatement(AIfThenElseStatement node) {
+        copy = new AIfThenElseStatement(copyOf(node.getCondition()), copyOf(node.getThen()), copyOf(node.getElse()));
+    }
+
+    public void caseAIfThenStatement(AIfThenStatement node) {
+        copy = new AIfThenStatement(copyOf(node.getCondition()), copyOf(node.getThen()));
+    }
+
+    public void caseAIncludeTopLevelStatement(AIncludeTopLevelStatement node) {
+        copy = new AIncludeTopLevelStatement(copyOf(node.getInclude()));
+    }
+
+    public void caseAIncrementAssignment(AIncrementAssignment node) {
+        copy = new AIncrementAssignment(copyOf(node.getTarget()));
+    }
+
+    public void caseAInlineModifier(AInlineModifier node) {
+        copy = new AInlineModifier();
+    }
+
+    public void caseAIntTypeToken(AIntTypeToken node) {
+        copy = new AIntTypeToken();
+    }
+
+    public void caseAIntegralLiteral(AIntegralLiteral node) {
+        copy = new AIntegralLiteral(copyOf(node.getIntegralLiteral()));
+    }
+
+    public void caseALessOrEqualExpression(ALessOrEqualExpression node) {
+        copy = new ALessOrEqualExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseALessThanExpression(ALessThanExpression node) {
+        copy = new ALessThanExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseALiteralPrimaryExpression(ALiteralPrimaryExpression node) {
+        copy = new ALiteralPrimaryExpression(copyOf(node.getLiteral()));
+    }
+
+    public void caseALocalDeclaration(ALocalDeclaration node) {
+        copy = new ALocalDeclaration(copyAll(node.getModifiers()), copyOf(node.getType()), copyOf(node.getName()));
+    }
+
+    public void caseALocalDeclarationAssignmentTarget(ALocalDeclarationAssignmentTarget node) {
+        copy = new ALocalDeclarationAssignmentTarget(copyOf(node.getLocalDeclaration()));
+    }
+
+    public void caseALocalDeclarationStatement(ALocalDeclarationStatement node) {
+        copy = new ALocalDeclarationStatement(copyOf(node.getLocalDeclaration()));
+    }
+
+    public void caseAModulusAssignment(AModulusAssignment node) {
+        copy = new AModulusAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseAModulusExpression(AModulusExpression node) {
+        copy = new AModulusExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAMultiplyAssignment(AMultiplyAssignment node) {
+        copy = new AMultiplyAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseAMultiplyExpression(AMultiplyExpression node) {
+        copy = new AMultiplyExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseANativeModifier(ANativeModifier node) {
+        copy = new ANativeModifier();
+    }
+
+    public void caseANativeStatement(ANativeStatement node) {
+        copy = new ANativeStatement(copyOf(node.getNativeLiteral()));
+    }
+
+    public void caseANoinlineModifier(ANoinlineModifier node) {
+        copy = new ANoinlineModifier();
+    }
+
+    public void caseANotEqualExpression(ANotEqualExpression node) {
+        copy = new ANotEqualExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseANumericNegationExpression(ANumericNegationExpression node) {
+        copy = new ANumericNegationExpression(copyOf(node.getValue()));
+    }
+
+    public void caseAOctalIntegralLiteral(AOctalIntegralLiteral node) {
+        copy = new AOctalIntegralLiteral(copyOf(node.getOctalLiteral()));
+    }
+
+    public void caseAParentheticalPrimaryExpression(AParentheticalPrimaryExpression node) {
+        copy = new AParentheticalPrimaryExpression(copyOf(node.getExpression()));
+    }
+
+    public void caseAPrimaryExpression(APrimaryExpression node) {
+        copy = new APrimaryExpression(copyOf(node.getPrimaryExpression()));
+    }
+
+    public void caseAPrivateModifier(APrivateModifier node) {
+        copy = new APrivateModifier();
+    }
+
+    public void caseAProgram(AProgram node) {
+        copy = new AProgram(copyAll(node.getTopLevelStatement()));
+    }
+
+    public void caseAReturnStatement(AReturnStatement node) {
+        copy = new AReturnStatement(copyOf(node.getReturnValue()));
+    }
+
+    public void caseAShiftLeftAssignment(AShiftLeftAssignment node) {
+        copy = new AShiftLeftAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseAShiftLeftExpression(AShiftLeftExpression node) {
+        copy = new AShiftLeftExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAShiftRightAssignment(AShiftRightAssignment node) {
+        copy = new AShiftRightAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseAShiftRightExpression(AShiftRightExpression node) {
+        copy = new AShiftRightExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAStandardInclude(AStandardInclude node) {
+        copy = new AStandardInclude(copyOf(node.getClassName()));
+    }
+
+    public void caseAStaticModifier(AStaticModifier node) {
+        copy = new AStaticModifier();
+    }
+
+    public void caseAStringLiteral(AStringLiteral node) {
+        copy = new AStringLiteral(copyOf(node.getStringLiteral()));
+    }
+
+    public void caseASubtractAssignment(ASubtractAssignment node) {
+        copy = new ASubtractAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseASubtractExpression(ASubtractExpression node) {
+        copy = new ASubtractExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseASwitchStatement(ASwitchStatement node) {
+        copy = new ASwitchStatement(copyOf(node.getValue()), copyAll(node.getBody()));
+    }
+
+    public void caseAThisPrimaryExpression(AThisPrimaryExpression node) {
+        copy = new AThisPrimaryExpression();
+    }
+
+    public void caseATrueLiteral(ATrueLiteral node) {
+        copy = new ATrueLiteral();
+    }
+
+    public void caseATypeTokenFieldAccess(ATypeTokenFieldAccess node) {
+        copy = new ATypeTokenFieldAccess(copyOf(node.getTarget()), copyOf(node.getFieldName()));
+    }
+
+    public void caseATypeTokenFunctionInvocation(ATypeTokenFunctionInvocation node) {
+        copy = new ATypeTokenFunctionInvocation(copyOf(node.getTarget()), copyOf(node.getFunctionName()),
+                copyAll(node.getParameters()));
+    }
+
+    public void caseAUintTypeToken(AUintTypeToken node) {
+        copy = new AUintTypeToken();
+    }
+
+    public void caseAUnqualifiedFunctionInvocation(AUnqualifiedFunctionInvocation node) {
+        copy = new AUnqualifiedFunctionInvocation(copyOf(node.getFunctionName()), copyAll(node.getParameters()));
+    }
+
+    public void caseAUnsignedShiftRightAssignment(AUnsignedShiftRightAssignment node) {
+        copy = new AUnsignedShiftRightAssignment(copyOf(node.getTarget()), copyOf(node.getValue()));
+    }
+
+    public void caseAUnsignedShiftRightExpression(AUnsignedShiftRightExpression node) {
+        copy = new AUnsignedShiftRightExpression(copyOf(node.getLeft()), copyOf(node.getRight()));
+    }
+
+    public void caseAUserDefinedTypeToken(AUserDefinedTypeToken node) {
+        copy = new AUserDefinedTypeToken(copyOf(node.getIdentifier()));
+    }
+
+    public void caseAUserInclude(AUserInclude node) {
+        copy = new AUserInclude(copyOf(node.getFileName()));
+    }
+
+    public void caseAVoidFunctionDeclaration(AVoidFunctionDeclaration node) {
+        copy = new AVoidFunctionDeclaration(copyAll(node.getModifiers()), copyOf(node.getName()),
+                copyAll(node.getParameters()), copyOf(node.getBody()));
+    }
+
+    public void caseAWhileStatement(AWhileStatement node) {
+        copy = new AWhileStatement(copyOf(node.getCondition()), copyOf(node.getBody()));
+    }
+}
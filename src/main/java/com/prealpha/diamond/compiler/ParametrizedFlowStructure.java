@@ -36,6 +36,7 @@ final class ParametrizedFlowStructure implements FlowStructure {
             codeGenerator.doReclaimScope(scope);
             scope = scope.getParent();
         }
+        codeGenerator.doReclaimFrame();
         codeGenerator.write("SET PC POP");
         return true;
     }
@@ -0,0 +1,427 @@
+/*
+ * PeepholeOptimizer.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>
+ *     Improves the DCPU-16 assembly emitted by the {@link CodeGenerator} by repeatedly applying the rules in the
+ *     {@link PeepholeRule} table to short windows of instructions, until no rule applies anywhere. The optimizer also
+ *     maintains the information the rules need about the program as a whole: which labels are referenced, where each
+ *     label is, and whether a register is dead at some point.
+ * </p>
+ *
+ * <p>
+ *     Instructions are recognized in the form the code generator writes them ({@code SET A B}), but the rules are
+ *     careful to be correct for any assembly. Code which must not be touched at all, such as the bodies of
+ *     {@code native} functions which refer to the stack by hard-coded offsets, can be marked as opaque using the labels
+ *     which begin and end it. Opaque code, like the external code passed to the constructor, is still scanned for label
+ *     references.
+ * </p>
+ *
+ * @see PeepholeRule
+ */
+final class PeepholeOptimizer {
+    private static final Set<String> REGISTERS = ImmutableSet.of("A", "B", "C", "X", "Y", "Z", "I", "J");
+
+    private static final Set<String> BASIC_OPCODES = ImmutableSet.of("SET", "ADD", "SUB", "MUL", "MLI", "DIV", "DVI",
+            "MOD", "MDI", "AND", "BOR", "XOR", "SHR", "ASR", "SHL", "IFB", "IFC", "IFE", "IFN", "IFG", "IFA", "IFL",
+            "IFU", "ADX", "SBX", "STI", "STD");
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /**
+     * The number of instructions {@link #isDead(String, int)} will examine before giving up.
+     */
+    private static final int LIVENESS_WINDOW = 32;
+
+    private final List<PeepholeRule> rules;
+
+    private final Multiset<String> references;
+
+    private final List<String> lines;
+
+    private final List<Boolean> opaque;
+
+    /**
+     * Constructs a new optimizer for the specified program, which may refer to labels in the specified external code.
+     * The external code is never modified.
+     *
+     * @param program the instructions to optimize
+     * @param opaqueRegions the labels which begin and end each region of the program which must not be modified
+     * @param externalCode other code whose label references should be respected
+     */
+    public PeepholeOptimizer(List<String> program, Map<String, String> opaqueRegions, Iterable<String> externalCode) {
+        rules = ImmutableList.copyOf(PeepholeRule.values());
+        references = HashMultiset.create();
+        lines = Lists.newArrayList();
+        opaque = Lists.newArrayList();
+
+        String regionEnd = null;
+        for (String line : program) {
+            String label = line.startsWith(":") ? line.substring(1) : null;
+            if (regionEnd == null && opaqueRegions.containsKey(label)) {
+                regionEnd = opaqueRegions.get(label);
+            }
+            lines.add(line);
+            opaque.add(regionEnd != null);
+            addReferences(line);
+            if (regionEnd != null && regionEnd.equals(label)) {
+                regionEnd = null;
+            }
+        }
+        for (String line : externalCode) {
+            addReferences(line);
+        }
+    }
+
+    public PeepholeOptimizer(List<String> program) {
+        this(program, ImmutableMap.<String, String>of(), ImmutableList.<String>of());
+    }
+
+    /**
+     * Applies the rules until no more apply, and returns the optimized program.
+     *
+     * @return the optimized instructions
+     */
+    public List<String> optimize() {
+        boolean changed;
+        do {
+            changed = false;
+            for (int i = 0; i < lines.size(); i++) {
+                if (opaque.get(i)) {
+                    continue;
+                }
+                for (PeepholeRule rule : rules) {
+                    if ((rule.isGuardable() || !isGuarded(i)) && rule.apply(this, i)) {
+                        changed = true;
+                        if (i >= lines.size() || opaque.get(i)) {
+                            break;
+                        }
+                    }
+                }
+            }
+        } while (changed);
+        return Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * Replaces some instructions with others, keeping track of label references.
+     *
+     * @param index the index of the first instruction to replace
+     * @param count the number of instructions to replace
+     * @param replacement the instructions to insert in their place
+     */
+    void replace(int index, int count, String... replacement) {
+        for (int i = 0; i < count; i++) {
+            checkArgument(!opaque.get(index));
+            removeReferences(lines.remove(index));
+            opaque.remove(index);
+        }
+        for (int i = 0; i < replacement.length; i++) {
+            lines.add(index + i, replacement[i]);
+            opaque.add(index + i, false);
+            addReferences(replacement[i]);
+        }
+    }
+
+    /**
+     * Returns the instruction at the specified index, or {@code null} if there is no instruction there which may be
+     * rewritten: that is, if the index is out of range, or refers to a label, to opaque code or to a line which cannot
+     * be parsed.
+     *
+     * @param index the index of the instruction
+     * @return the instruction, or {@code null} if there is none
+     */
+    Instruction getInstruction(int index) {
+        if (index < 0 || index >= lines.size() || opaque.get(index)) {
+            return null;
+        }
+        return Instruction.parse(lines.get(index));
+    }
+
+    /**
+     * Returns the label defined at the specified index, or {@code null} if there is no label definition there.
+     *
+     * @param index the index of the line
+     * @return the label defined at the index, or {@code null} if there is none
+     */
+    String getLabel(int index) {
+        if (index < 0 || index >= lines.size() || !lines.get(index).startsWith(":")) {
+            return null;
+        }
+        return lines.get(index).substring(1);
+    }
+
+    boolean isReferenced(String label) {
+        return references.contains(label);
+    }
+
+    /**
+     * Returns the index of the first line after the definition of the specified label which is not itself a label, or
+     * -1 if the label is not defined in the program.
+     *
+     * @param label the label
+     * @return the index of the first instruction at the label, or -1
+     */
+    int findLabelTarget(String label) {
+        int index = lines.indexOf(":" + label);
+        if (index < 0) {
+            return -1;
+        }
+        while (getLabel(index) != null) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns {@code true} if the instruction at the specified index is conditionally executed, because the instruction
+     * before it is an {@code IF} instruction. A line which cannot be parsed might be a conditional, unless it has no
+     * operands at all, like {@code BRK}.
+     *
+     * @param index the index of the instruction
+     * @return whether the instruction is guarded by a conditional
+     */
+    boolean isGuarded(int index) {
+        do {
+            index--;
+        } while (getLabel(index) != null);
+        if (index < 0) {
+            return false;
+        }
+        Instruction previous = Instruction.parse(lines.get(index));
+        return (previous == null) ? lines.get(index).trim().contains(" ") : previous.isConditional();
+    }
+
+    /**
+     * Returns {@code true} if the specified register is certainly dead at the specified index; that is, if it is
+     * certain to be written before it is read along every path from that index. This is a conservative, purely local
+     * analysis: it follows straight-line code only, and gives up at any jump, call, conditional, unrecognized or opaque
+     * instruction.
+     *
+     * @param register the register
+     * @param index the index from which the register must be dead
+     * @return whether the register is known to be dead
+     */
+    boolean isDead(String register, int index) {
+        for (int i = index; i < lines.size() && i < index + LIVENESS_WINDOW; i++) {
+            if (getLabel(i) != null) {
+                // falling through a label does not change what is read afterward
+                continue;
+            }
+            Instruction instruction = getInstruction(i);
+            if (instruction == null || !instruction.isBasic() || instruction.isConditional()) {
+                return false;
+            } else if (instruction.b.equals("PC") || mentions(instruction.a, register)) {
+                return false;
+            } else if ((instruction.is("STI") || instruction.is("STD")) && (register.equals("I") || register.equals("J"))) {
+                return false;
+            } else if (instruction.b.equals(register)) {
+                return instruction.is("SET") || instruction.is("STI") || instruction.is("STD");
+            } else if (mentions(instruction.b, register)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void addReferences(String line) {
+        if (!line.startsWith(":")) {
+            Matcher matcher = IDENTIFIER.matcher(line);
+            while (matcher.find()) {
+                references.add(matcher.group());
+            }
+        }
+    }
+
+    private void removeReferences(String line) {
+        if (!line.startsWith(":")) {
+            Matcher matcher = IDENTIFIER.matcher(line);
+            while (matcher.find()) {
+                references.remove(matcher.group());
+            }
+        }
+    }
+
+    static boolean isRegister(String operand) {
+        return REGISTERS.contains(operand);
+    }
+
+    /**
+     * Returns {@code true} if the specified operand could be a label reference; that is, if it is an identifier other
+     * than a register or a special value such as {@code POP}.
+     *
+     * @param operand the operand
+     * @return whether the operand is a label reference
+     */
+    static boolean isLabelReference(String operand) {
+        return IDENTIFIER.matcher(operand).matches() && !isRegister(operand) && !touchesStack(operand)
+                && !operand.equals("PC") && !operand.equals("EX");
+    }
+
+    /**
+     * Returns {@code true} if the specified operand names the specified register anywhere, including within an
+     * address.
+     *
+     * @param operand the operand
+     * @param register the register
+     * @return whether the operand mentions the register
+     */
+    static boolean mentions(String operand, String register) {
+        Matcher matcher = IDENTIFIER.matcher(operand);
+        while (matcher.find()) {
+            if (matcher.group().equalsIgnoreCase(register)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if evaluating the specified operand reads or modifies the stack pointer.
+     *
+     * @param operand the operand
+     * @return whether the operand involves the stack
+     */
+    static boolean touchesStack(String operand) {
+        return mentions(operand, "SP") || mentions(operand, "PUSH") || mentions(operand, "POP")
+                || mentions(operand, "PEEK") || mentions(operand, "PICK");
+    }
+
+    /**
+     * Returns the number of words the specified instruction removes from the stack without reading them, if it is
+     * {@code ADD SP n} or {@code SET EX POP}, and 0 otherwise.
+     *
+     * @param instruction the instruction, which may be {@code null}
+     * @return the number of words discarded from the stack
+     */
+    static int getStackAdjustment(Instruction instruction) {
+        if (instruction == null) {
+            return 0;
+        } else if (instruction.is("SET") && instruction.b.equals("EX") && instruction.a.equals("POP")) {
+            return 1;
+        } else if (instruction.is("ADD") && instruction.b.equals("SP")) {
+            try {
+                int words = Integer.decode(instruction.a);
+                return (words < 0x8000) ? words : 0;
+            } catch (NumberFormatException nfx) {
+                return 0;
+            }
+        } else {
+            return 0;
+        }
+    }
+
+    static String stackAdjustment(int words) {
+        return (words == 1) ? "SET EX POP" : String.format("ADD SP 0x%04x", words);
+    }
+
+    /**
+     * A parsed assembly instruction. Basic instructions have both a {@link #b} and an {@link #a} operand, while
+     * special instructions, such as {@code JSR}, have only an {@code a} operand.
+     */
+    static final class Instruction {
+        final String opcode;
+
+        final String b;
+
+        final String a;
+
+        private Instruction(String opcode, String b, String a) {
+            this.opcode = opcode;
+            this.b = b;
+            this.a = a;
+        }
+
+        /**
+         * Parses a line of assembly, returning {@code null} if it is a label or if it cannot be understood.
+         *
+         * @param line the line of assembly
+         * @return the parsed instruction, or {@code null}
+         */
+        static Instruction parse(String line) {
+            if (line.startsWith(":")) {
+                return null;
+            }
+            String[] tokens = line.trim().split("[\\s,]+");
+            if (tokens.length == 3 && BASIC_OPCODES.contains(tokens[0].toUpperCase())) {
+                return new Instruction(tokens[0].toUpperCase(), tokens[1], tokens[2]);
+            } else if (tokens.length == 2) {
+                return new Instruction(tokens[0].toUpperCase(), null, tokens[1]);
+            } else {
+                return null;
+            }
+        }
+
+        boolean is(String opcode) {
+            return this.opcode.equals(opcode);
+        }
+
+        boolean isBasic() {
+            return (b != null);
+        }
+
+        boolean isConditional() {
+            return opcode.startsWith("IF");
+        }
+
+        /**
+         * Returns {@code true} if this is an unconditional jump, {@code SET PC x}.
+         *
+         * @return whether this instruction is a jump
+         */
+        boolean isJump() {
+            return is("SET") && b.equals("PC");
+        }
+
+        /**
+         * Returns {@code true} if this instruction never continues to the one after it: that is, if it is an
+         * unconditional jump, or if it is {@code SUB PC 1}, which jumps to itself and so halts the program. Other
+         * relative jumps are not recognized, since removing the instructions they cross would change their targets.
+         *
+         * @return whether execution never falls through this instruction
+         */
+        boolean isTerminal() {
+            if (isJump()) {
+                return true;
+            } else if (is("SUB") && b.equals("PC")) {
+                try {
+                    return (Integer.decode(a) == 1);
+                } catch (NumberFormatException nfx) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+
+        Instruction withA(String a) {
+            return new Instruction(opcode, b, a);
+        }
+
+        @Override
+        public String toString() {
+            return isBasic() ? String.format("%s %s %s", opcode, b, a) : String.format("%s %s", opcode, a);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * PeepholeRule.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.prealpha.diamond.compiler.PeepholeOptimizer.Instruction;
+
+/**
+ * <p>
+ *     The rule table used by the {@link PeepholeOptimizer}. Each rule examines the instructions beginning at some index,
+ *     and rewrites them if they match the rule's pattern. Rules are tried in the order declared, at every index, until
+ *     no rule matches anywhere in the program. To add a new optimization, simply add a new constant to this enum.
+ * </p>
+ *
+ * <p>
+ *     Every rule must preserve the meaning of any program, not just the code emitted by {@link CodeGenerator}; in
+ *     particular, a rule must not assume anything about registers or the stack which it cannot see in the instructions
+ *     themselves. The optimizer never offers a rule an instruction which is guarded by a preceding {@code IF}
+ *     instruction unless the rule is {@linkplain #isGuardable() guardable}, meaning that it only ever replaces that one
+ *     instruction with exactly one other instruction.
+ * </p>
+ *
+ * @see PeepholeOptimizer
+ */
+enum PeepholeRule {
+    /**
+     * Labels which nothing refers to are removed, which allows other rules to operate across them.
+     */
+    REMOVE_UNREFERENCED_LABEL(true) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            String label = optimizer.getLabel(index);
+            if (label != null && !optimizer.isReferenced(label)) {
+                optimizer.replace(index, 1);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * Instructions which directly follow an unconditional jump or a halt, and which are not labeled, can never be
+     * executed.
+     */
+    REMOVE_UNREACHABLE(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction jump = optimizer.getInstruction(index);
+            if (jump != null && jump.isTerminal() && optimizer.getInstruction(index + 1) != null) {
+                optimizer.replace(index + 1, 1);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * {@code SET PC label}, followed by nothing but labels up to and including {@code label} itself, does nothing.
+     */
+    REMOVE_JUMP_TO_NEXT(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction jump = optimizer.getInstruction(index);
+            if (jump != null && jump.isJump()) {
+                for (int i = index + 1; optimizer.getLabel(i) != null; i++) {
+                    if (optimizer.getLabel(i).equals(jump.a)) {
+                        optimizer.replace(index, 1);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    },
+
+    /**
+     * A jump or subroutine call to a label whose first instruction is itself an unconditional jump is redirected to
+     * the final destination. A jump (but not a call) to a return instruction becomes a return.
+     */
+    THREAD_JUMP(true) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction jump = optimizer.getInstruction(index);
+            if (jump == null || !(jump.isJump() || jump.is("JSR")) || !PeepholeOptimizer.isLabelReference(jump.a)) {
+                return false;
+            }
+            Instruction target = optimizer.getInstruction(optimizer.findLabelTarget(jump.a));
+            if (target == null || !target.isJump() || target.a.equals(jump.a)) {
+                return false;
+            }
+            if (PeepholeOptimizer.isLabelReference(target.a)) {
+                optimizer.replace(index, 1, jump.withA(target.a).toString());
+                return true;
+            } else if (target.a.equals("POP") && jump.isJump()) {
+                optimizer.replace(index, 1, target.toString());
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * A conditional jump over an unconditional jump, {@code IFx b a; SET PC skip; SET PC label; :skip}, becomes a
+     * single conditional jump with the opposite condition, so that the path which skipped the jump falls through.
+     */
+    INVERT_BRANCH(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction condition = optimizer.getInstruction(index);
+            Instruction skip = optimizer.getInstruction(index + 1);
+            Instruction jump = optimizer.getInstruction(index + 2);
+            if (condition == null || !condition.isConditional() || !condition.isBasic() || skip == null
+                    || !skip.isJump() || jump == null || !jump.isJump()) {
+                return false;
+            }
+            boolean fallsToSkip = false;
+            for (int i = index + 3; optimizer.getLabel(i) != null; i++) {
+                fallsToSkip |= optimizer.getLabel(i).equals(skip.a);
+            }
+            String inverse = invert(condition);
+            if (fallsToSkip && inverse != null) {
+                optimizer.replace(index, 3, inverse, jump.toString());
+                return true;
+            }
+            return false;
+        }
+
+        private String invert(Instruction condition) {
+            if (condition.is("IFE") || condition.is("IFN") || condition.is("IFB") || condition.is("IFC")) {
+                String opcode = condition.is("IFE") ? "IFN" : condition.is("IFN") ? "IFE"
+                        : condition.is("IFB") ? "IFC" : "IFB";
+                return String.format("%s %s %s", opcode, condition.b, condition.a);
+            }
+            // b > a is b < a + 1, and b < a is b > a - 1, so long as the literal does not overflow
+            int literal;
+            try {
+                literal = Integer.decode(condition.a);
+            } catch (NumberFormatException nfx) {
+                return null;
+            }
+            if (condition.is("IFG") && literal >= 0 && literal < 0xffff) {
+                return String.format("IFL %s 0x%04x", condition.b, literal + 1);
+            } else if (condition.is("IFL") && literal > 0 && literal <= 0xffff) {
+                return String.format("IFG %s 0x%04x", condition.b, literal - 1);
+            }
+            return null;
+        }
+    },
+
+    /**
+     * {@code SET r r} does nothing.
+     */
+    REMOVE_SELF_MOVE(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction move = optimizer.getInstruction(index);
+            if (move != null && move.is("SET") && PeepholeOptimizer.isRegister(move.b) && move.b.equals(move.a)) {
+                optimizer.replace(index, 1);
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * A value pushed and then immediately discarded by {@code ADD SP n} or {@code SET EX POP} need not be pushed at
+     * all.
+     */
+    DISCARD_PUSH(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction push = optimizer.getInstruction(index);
+            Instruction discard = optimizer.getInstruction(index + 1);
+            if (push != null && push.is("SET") && push.b.equals("PUSH") && !PeepholeOptimizer.touchesStack(push.a)) {
+                int discarded = PeepholeOptimizer.getStackAdjustment(discard);
+                if (discarded == 1) {
+                    optimizer.replace(index, 2);
+                    return true;
+                } else if (discarded > 1) {
+                    optimizer.replace(index, 2, PeepholeOptimizer.stackAdjustment(discarded - 1));
+                    return true;
+                }
+            }
+            return false;
+        }
+    },
+
+    /**
+     * {@code SET PUSH x} followed by an instruction which pops that value into a register becomes a single
+     * instruction which uses {@code x} directly.
+     */
+    FOLD_PUSH_POP(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction push = optimizer.getInstruction(index);
+            Instruction pop = optimizer.getInstruction(index + 1);
+            if (push != null && push.is("SET") && push.b.equals("PUSH") && !PeepholeOptimizer.touchesStack(push.a)
+                    && pop != null && pop.isBasic() && !pop.isConditional() && pop.a.equals("POP")
+                    && (PeepholeOptimizer.isRegister(pop.b) || pop.b.equals("EX"))) {
+                optimizer.replace(index, 2, pop.withA(push.a).toString());
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * Consecutive adjustments to the stack pointer are combined into one.
+     */
+    MERGE_STACK_ADJUSTMENTS(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            int first = PeepholeOptimizer.getStackAdjustment(optimizer.getInstruction(index));
+            int second = PeepholeOptimizer.getStackAdjustment(optimizer.getInstruction(index + 1));
+            if (first > 0 && second > 0) {
+                optimizer.replace(index, 2, PeepholeOptimizer.stackAdjustment(first + second));
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * {@code SET r x} followed by an instruction which reads {@code r} as its source operand, after which {@code r} is
+     * dead, becomes a single instruction which uses {@code x} directly.
+     */
+    FORWARD_MOVE(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction move = optimizer.getInstruction(index);
+            Instruction use = optimizer.getInstruction(index + 1);
+            if (move != null && move.is("SET") && PeepholeOptimizer.isRegister(move.b)
+                    && !PeepholeOptimizer.touchesStack(move.a) && use != null && use.isBasic() && !use.isConditional()
+                    && !use.is("STI") && !use.is("STD") && !use.b.equals("PC")
+                    && use.a.equals(move.b) && !PeepholeOptimizer.mentions(use.b, move.b)
+                    && optimizer.isDead(move.b, index + 2)) {
+                optimizer.replace(index, 2, use.withA(move.a).toString());
+                return true;
+            }
+            return false;
+        }
+    },
+
+    /**
+     * {@code SET r x}, where {@code r} is dead afterward, does nothing.
+     */
+    REMOVE_DEAD_MOVE(false) {
+        @Override
+        boolean apply(PeepholeOptimizer optimizer, int index) {
+            Instruction move = optimizer.getInstruction(index);
+            if (move != null && move.is("SET") && PeepholeOptimizer.isRegister(move.b)
+                    && !PeepholeOptimizer.touchesStack(move.a) && optimizer.isDead(move.b, index + 1)) {
+                optimizer.replace(index, 1);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final boolean guardable;
+
+    private PeepholeRule(boolean guardable) {
+        this.guardable = guardable;
+    }
+
+    /**
+     * Returns {@code true} if this rule may be applied to an instruction which is conditionally skipped by a preceding
+     * {@code IF} instruction. Such a rule must only ever replace the instruction at the index it is given with exactly
+     * one other instruction, or apply only to labels.
+     *
+     * @return whether this rule may be applied to guarded instructions
+     */
+    boolean isGuardable() {
+        return guardable;
+    }
+
+    /**
+     * Attempts to apply this rule to the instructions beginning at the specified index. If the rule matches, it
+     * rewrites the instructions using {@link PeepholeOptimizer#replace(int, int, String...)} and returns {@code true}.
+     *
+     * @param optimizer the optimizer holding the instructions
+     * @param index the index at which the pattern must begin
+     * @return whether the instructions were rewritten
+     */
+    abstract boolean apply(PeepholeOptimizer optimizer, int index);
+}
@@ -0,0 +1,15 @@
+/*
+ * Register.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+/**
+ * The eight general-purpose registers of the DCPU-16. The name of each constant is the assembly name of the register,
+ * so {@link #toString()} may be used directly when emitting instructions.
+ */
+enum Register {
+    A, B, C, X, Y, Z, I, J
+}
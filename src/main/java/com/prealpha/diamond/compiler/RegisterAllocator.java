@@ -0,0 +1,631 @@
+/*
+ * RegisterAllocator.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.node.AAssignment;
+import com.prealpha.diamond.compiler.node.AAssignmentExpression;
+import com.prealpha.diamond.compiler.node.ACastDeclaration;
+import com.prealpha.diamond.compiler.node.ACastInvocation;
+import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
+import com.prealpha.diamond.compiler.node.AConstructorInvocation;
+import com.prealpha.diamond.compiler.node.ADoStatement;
+import com.prealpha.diamond.compiler.node.AExpressionFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AForStatement;
+import com.prealpha.diamond.compiler.node.AFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ALocalDeclaration;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationAssignmentTarget;
+import com.prealpha.diamond.compiler.node.ALocalDeclarationStatement;
+import com.prealpha.diamond.compiler.node.AThisPrimaryExpression;
+import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AVoidFunctionDeclaration;
+import com.prealpha.diamond.compiler.node.AWhileStatement;
+import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PAssignment;
+import com.prealpha.diamond.compiler.node.PAssignmentTarget;
+import com.prealpha.diamond.compiler.node.PClassStatement;
+import com.prealpha.diamond.compiler.node.PModifier;
+import com.prealpha.diamond.compiler.node.TIdentifier;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ *     Assigns registers to local variables, so that the {@link CodeGenerator} does not have to keep every local on the
+ *     DCPU stack. The allocator walks each function body once, numbering the definitions and uses of every local in
+ *     evaluation order to build a live interval for it, and then performs a linear scan over those intervals. When
+ *     there are more overlapping intervals than {@linkplain #ALLOCATABLE allocatable registers}, the interval which
+ *     ends last is spilled; spilled locals simply stay on the stack, as all locals did before this phase existed.
+ * </p>
+ *
+ * <p>
+ *     A few kinds of locals are never assigned a register:
+ * </p>
+ * <ul>
+ *     <li>Parameters of functions which take their arguments on the stack, as explained below.</li>
+ *     <li>All locals of {@code native} functions, because native statements may refer to them by stack offset (see
+ *     {@code Device.locateDevice()}) and may clobber any register.</li>
+ * </ul>
+ *
+ * <p>
+ *     A leaf function, which invokes nothing, and which takes no more than {@link #MAX_REGISTER_ARGUMENTS} arguments
+ *     (counting {@code this}), takes its arguments in registers rather than on the stack. {@code this} and the
+ *     parameters are passed in the first allocatable registers, in order, and each parameter stays in its register
+ *     for its whole lifetime; the register holding {@code this} is reserved for the whole function. Every other
+ *     function, and every {@code native} function in particular, takes its arguments on the stack, where native
+ *     statements expect to find them at fixed offsets. Since only leaf functions qualify, a function taking its
+ *     arguments in registers never needs to preserve them around a call of its own.
+ * </p>
+ *
+ * <p>
+ *     In an instance function which takes its arguments on the stack, {@code this} is a candidate as well, if it is used
+ *     at least {@link #MIN_THIS_USES} times, whether explicitly, to access a field, or to invoke another instance
+ *     function. Its interval spans the whole function, so it is the first to be spilled when registers run out. The code
+ *     generator loads it from its stack slot on entry, and since the slot remains, it can reload {@code this} after an
+ *     invocation rather than preserving the register.
+ * </p>
+ *
+ * <p>
+ *     The registers are caller-saved: a called function is free to overwrite all of them. For this reason, the
+ *     allocator also records which registers hold locals that are live across each invocation, so that the code
+ *     generator can preserve those registers around the {@code JSR}, or rather those of them which the called function
+ *     may actually overwrite (see {@link CodeGenerator}).
+ * </p>
+ *
+ * @see CodeGenerator
+ */
+final class RegisterAllocator extends ScopeAwareWalker {
+    /**
+     * The registers which may be assigned to locals, in order of preference. Registers A, B and Y are left out, since
+     * the code generator uses them as scratch registers while evaluating expressions. X is the least preferred
+     * register, because it must be preserved around calls to {@code heapalloc}, which takes its argument in X.
+     */
+    private static final List<Register> ALLOCATABLE = ImmutableList.of(Register.C, Register.Z, Register.I, Register.J, Register.X);
+
+    /**
+     * The largest number of arguments, including {@code this}, which a function may take in registers.
+     */
+    private static final int MAX_REGISTER_ARGUMENTS = 3;
+
+    /**
+     * The number of uses of {@code this} needed for it to be worth loading into a register.
+     */
+    private static final int MIN_THIS_USES = 2;
+
+    private final Map<LocalSymbol, Register> registers;
+
+    private final Map<Node, Set<Register>> liveRegisters;
+
+    private final Map<Node, Set<Register>> usedRegisters;
+
+    private final Map<Node, List<Register>> argumentRegisters;
+
+    private final Map<Node, Register> thisRegisters;
+
+    /**
+     * The live intervals of the locals in the function currently being walked, or {@code null} if no registers are
+     * being allocated for the current function.
+     */
+    private Map<LocalSymbol, Interval> intervals;
+
+    /**
+     * Whether the function currently being walked takes {@code this} as an implicit argument.
+     */
+    private boolean hasThis;
+
+    /**
+     * The number of uses of {@code this} in the function currently being walked.
+     */
+    private int thisUses;
+
+    /**
+     * The position of each invocation in the function currently being walked.
+     */
+    private final Map<Node, Integer> invocations;
+
+    /**
+     * The loops enclosing the code currently being walked, innermost first.
+     */
+    private final Deque<Loop> loops;
+
+    /**
+     * A counter which is incremented for every event of interest to the allocator, so that definitions, uses,
+     * invocations and loop boundaries are numbered in the order in which they are evaluated.
+     */
+    private int position;
+
+    public RegisterAllocator(Compiler compiler) {
+        super(compiler.getScopeSource());
+        registers = Maps.newHashMap();
+        liveRegisters = Maps.newHashMap();
+        usedRegisters = Maps.newHashMap();
+        argumentRegisters = Maps.newHashMap();
+        thisRegisters = Maps.newHashMap();
+        invocations = Maps.newHashMap();
+        loops = Lists.newLinkedList();
+    }
+
+    /**
+     * Returns the register which holds the specified local throughout its lifetime, or {@code null} if the local
+     * lives on the stack.
+     *
+     * @param symbol the local variable
+     * @return the register assigned to the local, or {@code null} if there is none
+     */
+    public Register getRegister(TypedSymbol symbol) {
+        return registers.get(symbol);
+    }
+
+    /**
+     * Returns the registers which hold locals that are live across the specified invocation, and so must be preserved
+     * by the caller.
+     *
+     * @param invocation an invocation node
+     * @return the registers which must be preserved across the invocation
+     */
+    public Set<Register> getLiveRegisters(Node invocation) {
+        return liveRegisters.containsKey(invocation) ? liveRegisters.get(invocation) : ImmutableSet.<Register>of();
+    }
+
+    /**
+     * Returns all the registers which are assigned to some local within the specified function declaration.
+     *
+     * @param declaration a function, constructor or cast declaration
+     * @return the registers used for locals within the declaration
+     */
+    public Set<Register> getUsedRegisters(Node declaration) {
+        return usedRegisters.containsKey(declaration) ? usedRegisters.get(declaration) : ImmutableSet.<Register>of();
+    }
+
+    /**
+     * Returns the registers in which the specified function takes its arguments: the register for {@code this}, if the
+     * function has one, followed by the register for each parameter in order. Returns {@code null} if the function
+     * takes its arguments on the stack.
+     *
+     * @param declaration a function, constructor or cast declaration
+     * @return the argument registers of the function, or {@code null} if it takes its arguments on the stack
+     */
+    public List<Register> getArgumentRegisters(Node declaration) {
+        return argumentRegisters.get(declaration);
+    }
+
+    /**
+     * Returns the register which holds {@code this} throughout the specified function, if it takes {@code this} on the
+     * stack and {@code this} has been assigned a register. A function which takes {@code this} in a register keeps it
+     * in its first {@linkplain #getArgumentRegisters(Node) argument register} instead.
+     *
+     * @param declaration a function, constructor or cast declaration
+     * @return the register holding {@code this}, or {@code null} if there is none
+     */
+    public Register getThisRegister(Node declaration) {
+        return thisRegisters.get(declaration);
+    }
+
+    /**
+     * Returns the allocatable registers which are not assigned to any local within the specified function declaration,
+     * in order of preference. The code generator may hold temporaries in these registers. There are no free registers
+     * within a {@code native} function.
+     *
+     * @param declaration a function, constructor or cast declaration
+     * @return the registers not used for locals within the declaration
+     */
+    public List<Register> getFreeRegisters(Node declaration) {
+        if (!usedRegisters.containsKey(declaration)) {
+            return ImmutableList.of();
+        }
+        List<Register> free = Lists.newArrayList();
+        for (Register register : ALLOCATABLE) {
+            if (!usedRegisters.get(declaration).contains(register)) {
+                free.add(register);
+            }
+        }
+        return free;
+    }
+
+    @Override
+    public void inAFunctionDeclaration(AFunctionDeclaration declaration) {
+        super.inAFunctionDeclaration(declaration);
+        onEnterFunction(declaration, declaration.getModifiers());
+    }
+
+    @Override
+    public void outAFunctionDeclaration(AFunctionDeclaration declaration) {
+        onExitFunction(declaration);
+        super.outAFunctionDeclaration(declaration);
+    }
+
+    @Override
+    public void inAVoidFunctionDeclaration(AVoidFunctionDeclaration declaration) {
+        super.inAVoidFunctionDeclaration(declaration);
+        onEnterFunction(declaration, declaration.getModifiers());
+    }
+
+    @Override
+    public void outAVoidFunctionDeclaration(AVoidFunctionDeclaration declaration) {
+        onExitFunction(declaration);
+        super.outAVoidFunctionDeclaration(declaration);
+    }
+
+    @Override
+    public void inAConstructorDeclaration(AConstructorDeclaration declaration) {
+        super.inAConstructorDeclaration(declaration);
+        onEnterFunction(declaration, declaration.getModifiers());
+    }
+
+    @Override
+    public void outAConstructorDeclaration(AConstructorDeclaration declaration) {
+        onExitFunction(declaration);
+        super.outAConstructorDeclaration(declaration);
+    }
+
+    @Override
+    public void inACastDeclaration(ACastDeclaration declaration) {
+        super.inACastDeclaration(declaration);
+        onEnterFunction(declaration, declaration.getModifiers());
+    }
+
+    @Override
+    public void outACastDeclaration(ACastDeclaration declaration) {
+        onExitFunction(declaration);
+        super.outACastDeclaration(declaration);
+    }
+
+    private void onEnterFunction(Node declaration, List<PModifier> modifiers) {
+        assert (intervals == null && loops.isEmpty());
+        boolean isStatic = false;
+        for (PModifier modifier : modifiers) {
+            if (Modifier.fromNode(modifier) == Modifier.NATIVE) {
+                return;
+            } else if (Modifier.fromNode(modifier) == Modifier.STATIC) {
+                isStatic = true;
+            }
+        }
+        hasThis = (declaration instanceof AConstructorDeclaration
+                || (!isStatic && declaration.parent() instanceof PClassStatement));
+        intervals = Maps.newLinkedHashMap();
+        invocations.clear();
+        position = 0;
+        thisUses = 0;
+    }
+
+    private void onExitFunction(Node declaration) {
+        if (intervals != null) {
+            allocate(declaration);
+            intervals = null;
+        }
+    }
+
+    @Override
+    public void inALocalDeclaration(ALocalDeclaration declaration) {
+        // parameters come first, so if they are passed in registers, they are live from the start of the function
+        boolean isParameter = !(declaration.parent() instanceof ALocalDeclarationStatement
+                || declaration.parent() instanceof ALocalDeclarationAssignmentTarget);
+        if (intervals != null) {
+            LocalSymbol local = resolveLocal(declaration.getName());
+            if (local != null) {
+                Interval interval = new Interval(local, ++position);
+                interval.parameter = isParameter;
+                intervals.put(local, interval);
+            }
+        }
+    }
+
+    @Override
+    public void outAAssignment(AAssignment assignment) {
+        // a local which is declared and assigned at once does not become live until the value has been computed
+        if (intervals != null && assignment.getTarget() instanceof ALocalDeclarationAssignmentTarget) {
+            ALocalDeclaration declaration = (ALocalDeclaration) ((ALocalDeclarationAssignmentTarget) assignment.getTarget()).getLocalDeclaration();
+            Interval interval = intervals.get(resolveLocal(declaration.getName()));
+            if (interval != null) {
+                interval.start = ++position;
+                interval.end = Math.max(interval.end, interval.start);
+            }
+        }
+    }
+
+    @Override
+    public void outAAssignmentExpression(AAssignmentExpression expression) {
+        // a compound assignment reads its target again once the value has been computed
+        PAssignment assignment = expression.getAssignment();
+        PAssignmentTarget target = CodeGenerator.getAssignmentTarget(assignment);
+        if (!(assignment instanceof AAssignment) && target instanceof AIdentifierAssignmentTarget) {
+            onUse(((AIdentifierAssignmentTarget) target).getIdentifier());
+        }
+    }
+
+    @Override
+    public void outAIdentifierPrimaryExpression(AIdentifierPrimaryExpression primaryExpression) {
+        onUse(primaryExpression.getIdentifier());
+    }
+
+    @Override
+    public void outAIdentifierAssignmentTarget(AIdentifierAssignmentTarget assignmentTarget) {
+        onUse(assignmentTarget.getIdentifier());
+    }
+
+    @Override
+    public void outAThisPrimaryExpression(AThisPrimaryExpression primaryExpression) {
+        thisUses += 1;
+    }
+
+    private void onUse(TIdentifier identifier) {
+        if (intervals != null) {
+            LocalSymbol local = resolveLocal(identifier);
+            if (local == null) {
+                // fields are accessed through this
+                thisUses += 1;
+            } else if (intervals.containsKey(local)) {
+                intervals.get(local).end = ++position;
+                for (Loop loop : loops) {
+                    loop.used.add(local);
+                }
+            }
+        }
+    }
+
+    private LocalSymbol resolveLocal(TIdentifier identifier) {
+        try {
+            return getScope().resolveLocal(identifier.getText());
+        } catch (SemanticException sx) {
+            // not a local, so it must be a field
+            return null;
+        }
+    }
+
+    @Override
+    public void outAUnqualifiedFunctionInvocation(AUnqualifiedFunctionInvocation invocation) {
+        // this is passed on to instance functions, which cannot be told apart from static ones here
+        thisUses += 1;
+        onInvocation(invocation);
+    }
+
+    @Override
+    public void outAExpressionFunctionInvocation(AExpressionFunctionInvocation invocation) {
+        onInvocation(invocation);
+    }
+
+    @Override
+    public void outATypeTokenFunctionInvocation(ATypeTokenFunctionInvocation invocation) {
+        onInvocation(invocation);
+    }
+
+    @Override
+    public void outAConstructorInvocation(AConstructorInvocation invocation) {
+        onInvocation(invocation);
+    }
+
+    @Override
+    public void outACastInvocation(ACastInvocation invocation) {
+        onInvocation(invocation);
+    }
+
+    private void onInvocation(Node invocation) {
+        if (intervals != null) {
+            invocations.put(invocation, ++position);
+        }
+    }
+
+    @Override
+    public void inAWhileStatement(AWhileStatement statement) {
+        onEnterLoop();
+    }
+
+    @Override
+    public void outAWhileStatement(AWhileStatement statement) {
+        onExitLoop();
+    }
+
+    @Override
+    public void inADoStatement(ADoStatement statement) {
+        onEnterLoop();
+    }
+
+    @Override
+    public void outADoStatement(ADoStatement statement) {
+        onExitLoop();
+    }
+
+    /*
+     * The initializer of a for statement is only executed once, so the loop proper begins after it.
+     */
+    @Override
+    public void caseAForStatement(AForStatement statement) {
+        inAForStatement(statement);
+        if (statement.getInit() != null) {
+            statement.getInit().apply(this);
+        }
+        onEnterLoop();
+        if (statement.getCondition() != null) {
+            statement.getCondition().apply(this);
+        }
+        if (statement.getUpdate() != null) {
+            statement.getUpdate().apply(this);
+        }
+        if (statement.getBody() != null) {
+            statement.getBody().apply(this);
+        }
+        onExitLoop();
+        outAForStatement(statement);
+    }
+
+    private void onEnterLoop() {
+        if (intervals != null) {
+            loops.push(new Loop(++position));
+        }
+    }
+
+    /*
+     * A local which was defined before a loop and used within it may be used again on the next iteration, so it must
+     * remain live until the end of the loop.
+     */
+    private void onExitLoop() {
+        if (intervals != null) {
+            Loop loop = loops.pop();
+            int end = ++position;
+            for (LocalSymbol local : loop.used) {
+                Interval interval = intervals.get(local);
+                if (interval.start < loop.start) {
+                    interval.end = Math.max(interval.end, end);
+                }
+            }
+        }
+    }
+
+    private void allocate(Node declaration) {
+        Set<Register> free = EnumSet.copyOf(ALLOCATABLE);
+        Set<Register> used = EnumSet.noneOf(Register.class);
+        List<Interval> parameters = Lists.newArrayList();
+        for (Interval interval : intervals.values()) {
+            if (interval.parameter) {
+                parameters.add(interval);
+            }
+        }
+        int argumentCount = parameters.size() + (hasThis ? 1 : 0);
+        if (invocations.isEmpty() && argumentCount <= MAX_REGISTER_ARGUMENTS) {
+            List<Register> arguments = ImmutableList.copyOf(ALLOCATABLE.subList(0, argumentCount));
+            argumentRegisters.put(declaration, arguments);
+            if (hasThis) {
+                free.remove(arguments.get(0));
+                used.add(arguments.get(0));
+            }
+            for (int i = 0; i < parameters.size(); i++) {
+                parameters.get(i).register = arguments.get(argumentCount - parameters.size() + i);
+                free.remove(parameters.get(i).register);
+            }
+        } else {
+            // the parameters stay on the stack
+            for (Interval parameter : parameters) {
+                intervals.remove(parameter.local);
+            }
+        }
+        Interval thisInterval = null;
+        if (hasThis && !argumentRegisters.containsKey(declaration) && thisUses >= MIN_THIS_USES) {
+            thisInterval = new Interval(null, 0);
+            thisInterval.end = ++position;
+        }
+
+        List<Interval> sorted = Lists.newArrayList(intervals.values());
+        if (thisInterval != null) {
+            sorted.add(thisInterval);
+        }
+        Collections.sort(sorted, new Comparator<Interval>() {
+            @Override
+            public int compare(Interval o1, Interval o2) {
+                return Integer.compare(o1.start, o2.start);
+            }
+        });
+
+        List<Interval> active = Lists.newArrayList();
+        for (Interval interval : sorted) {
+            // expire the intervals which ended before this one starts
+            for (Interval activeInterval : ImmutableList.copyOf(active)) {
+                if (activeInterval.end < interval.start) {
+                    active.remove(activeInterval);
+                    free.add(activeInterval.register);
+                }
+            }
+
+            if (interval.parameter) {
+                // the register was chosen by the calling convention, and was never free
+                active.add(interval);
+            } else if (!free.isEmpty()) {
+                interval.register = preferredRegister(free);
+                free.remove(interval.register);
+                active.add(interval);
+            } else {
+                // spill whichever interval ends last; it stays on the stack for its entire lifetime
+                Interval spill = interval;
+                for (Interval activeInterval : active) {
+                    if (!activeInterval.parameter && activeInterval.end > spill.end) {
+                        spill = activeInterval;
+                    }
+                }
+                if (spill != interval) {
+                    interval.register = spill.register;
+                    spill.register = null;
+                    active.remove(spill);
+                    active.add(interval);
+                }
+            }
+        }
+
+        for (Interval interval : sorted) {
+            if (interval == thisInterval && interval.register != null) {
+                thisRegisters.put(declaration, interval.register);
+                used.add(interval.register);
+            } else if (interval.register != null) {
+                registers.put(interval.local, interval.register);
+                used.add(interval.register);
+            }
+        }
+        usedRegisters.put(declaration, Collections.unmodifiableSet(used));
+
+        for (Map.Entry<Node, Integer> invocation : invocations.entrySet()) {
+            Set<Register> live = EnumSet.noneOf(Register.class);
+            for (Interval interval : sorted) {
+                if (interval.register != null && interval.start < invocation.getValue() && interval.end > invocation.getValue()) {
+                    live.add(interval.register);
+                }
+            }
+            liveRegisters.put(invocation.getKey(), Collections.unmodifiableSet(live));
+        }
+    }
+
+    private static Register preferredRegister(Set<Register> free) {
+        for (Register register : ALLOCATABLE) {
+            if (free.contains(register)) {
+                return register;
+            }
+        }
+        throw new IllegalArgumentException();
+    }
+
+    private static final class Interval {
+        /**
+         * The local whose live interval this is, or {@code null} for {@code this}.
+         */
+        private final LocalSymbol local;
+
+        private int start;
+
+        private int end;
+
+        private Register register;
+
+        private boolean parameter;
+
+        private Interval(LocalSymbol local, int start) {
+            this.local = local;
+            this.start = start;
+            this.end = start;
+        }
+    }
+
+    private static final class Loop {
+        private final int start;
+
+        private final Set<LocalSymbol> used;
+
+        private Loop(int start) {
+            this.start = start;
+            this.used = Sets.newHashSet();
+        }
+    }
+}
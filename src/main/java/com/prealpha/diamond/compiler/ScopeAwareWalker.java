@@ -68,6 +68,10 @@ class ScopeAwareWalker extends DepthFirstAdapter {
         return scopes.get(scopeKey);
     }
 
+    protected final void setScope(Scope scope) {
+        current = scope;
+    }
+
     protected void onEnterScope(Node scopeKey) {
         if (!scopes.containsKey(scopeKey)) {
             current = new Scope(current);
@@ -13,6 +13,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.prealpha.diamond.compiler.node.AAddAssignment;
 import com.prealpha.diamond.compiler.node.AAddExpression;
 import com.prealpha.diamond.compiler.node.AArrayAccess;
 import com.prealpha.diamond.compiler.node.AArrayAccessAssignmentTarget;
@@ -20,9 +21,12 @@ import com.prealpha.diamond.compiler.node.AArrayAccessPrimaryExpression;
 import com.prealpha.diamond.compiler.node.AAssignment;
 import com.prealpha.diamond.compiler.node.AAssignmentExpression;
 import com.prealpha.diamond.compiler.node.ABinaryIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ABitwiseAndAssignment;
 import com.prealpha.diamond.compiler.node.ABitwiseAndExpression;
 import com.prealpha.diamond.compiler.node.ABitwiseComplementExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseOrAssignment;
 import com.prealpha.diamond.compiler.node.ABitwiseOrExpression;
+import com.prealpha.diamond.compiler.node.ABitwiseXorAssignment;
 import com.prealpha.diamond.compiler.node.ABitwiseXorExpression;
 import com.prealpha.diamond.compiler.node.ACaseGroup;
 import com.prealpha.diamond.compiler.node.ACastDeclaration;
@@ -37,8 +41,10 @@ import com.prealpha.diamond.compiler.node.AConstructorDeclaration;
 import com.prealpha.diamond.compiler.node.AConstructorInvocation;
 import com.prealpha.diamond.compiler.node.AConstructorInvocationPrimaryExpression;
 import com.prealpha.diamond.compiler.node.ADecimalIntegralLiteral;
+import com.prealpha.diamond.compiler.node.ADecrementAssignment;
 import com.prealpha.diamond.compiler.node.ADefaultCaseGroup;
 import com.prealpha.diamond.compiler.node.ADeleteStatement;
+import com.prealpha.diamond.compiler.node.ADivideAssignment;
 import com.prealpha.diamond.compiler.node.ADivideExpression;
 import com.prealpha.diamond.compiler.node.ADoStatement;
 import com.prealpha.diamond.compiler.node.AEqualExpression;
@@ -58,13 +64,16 @@ import com.prealpha.diamond.compiler.node.AIdentifierAssignmentTarget;
 import com.prealpha.diamond.compiler.node.AIdentifierPrimaryExpression;
 import com.prealpha.diamond.compiler.node.AIfThenElseStatement;
 import com.prealpha.diamond.compiler.node.AIfThenStatement;
+import com.prealpha.diamond.compiler.node.AIncrementAssignment;
 import com.prealpha.diamond.compiler.node.AIntegralLiteral;
 import com.prealpha.diamond.compiler.node.ALessOrEqualExpression;
 import com.prealpha.diamond.compiler.node.ALessThanExpression;
 import com.prealpha.diamond.compiler.node.ALiteralPrimaryExpression;
 import com.prealpha.diamond.compiler.node.ALocalDeclaration;
 import com.prealpha.diamond.compiler.node.ALocalDeclarationAssignmentTarget;
+import com.prealpha.diamond.compiler.node.AModulusAssignment;
 import com.prealpha.diamond.compiler.node.AModulusExpression;
+import com.prealpha.diamond.compiler.node.AMultiplyAssignment;
 import com.prealpha.diamond.compiler.node.AMultiplyExpression;
 import com.prealpha.diamond.compiler.node.ANativeStatement;
 import com.prealpha.diamond.compiler.node.ANotEqualExpression;
@@ -73,9 +82,12 @@ import com.prealpha.diamond.compiler.node.AOctalIntegralLiteral;
 import com.prealpha.diamond.compiler.node.AParentheticalPrimaryExpression;
 import com.prealpha.diamond.compiler.node.APrimaryExpression;
 import com.prealpha.diamond.compiler.node.AReturnStatement;
+import com.prealpha.diamond.compiler.node.AShiftLeftAssignment;
 import com.prealpha.diamond.compiler.node.AShiftLeftExpression;
+import com.prealpha.diamond.compiler.node.AShiftRightAssignment;
 import com.prealpha.diamond.compiler.node.AShiftRightExpression;
 import com.prealpha.diamond.compiler.node.AStringLiteral;
+import com.prealpha.diamond.compiler.node.ASubtractAssignment;
 import com.prealpha.diamond.compiler.node.ASubtractExpression;
 import com.prealpha.diamond.compiler.node.ASwitchStatement;
 import com.prealpha.diamond.compiler.node.AThisPrimaryExpression;
@@ -83,10 +95,13 @@ import com.prealpha.diamond.compiler.node.ATrueLiteral;
 import com.prealpha.diamond.compiler.node.ATypeTokenFieldAccess;
 import com.prealpha.diamond.compiler.node.ATypeTokenFunctionInvocation;
 import com.prealpha.diamond.compiler.node.AUnqualifiedFunctionInvocation;
+import com.prealpha.diamond.compiler.node.AUnsignedShiftRightAssignment;
 import com.prealpha.diamond.compiler.node.AUnsignedShiftRightExpression;
 import com.prealpha.diamond.compiler.node.AVoidFunctionDeclaration;
 import com.prealpha.diamond.compiler.node.AWhileStatement;
 import com.prealpha.diamond.compiler.node.Node;
+import com.prealpha.diamond.compiler.node.PAssignment;
+import com.prealpha.diamond.compiler.node.PAssignmentTarget;
 import com.prealpha.diamond.compiler.node.PCaseGroup;
 import com.prealpha.diamond.compiler.node.PExpression;
 import com.prealpha.diamond.compiler.node.PFunctionInvocation;
@@ -838,6 +853,102 @@ final class TypeEnforcer extends ScopeAwareWalker {
         types.put(assignment, targetType);
     }
 
+    @Override
+    public void outAAddAssignment(AAddAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outASubtractAssignment(ASubtractAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outAMultiplyAssignment(AMultiplyAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outADivideAssignment(ADivideAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outAModulusAssignment(AModulusAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outABitwiseAndAssignment(ABitwiseAndAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outABitwiseXorAssignment(ABitwiseXorAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outABitwiseOrAssignment(ABitwiseOrAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outAShiftLeftAssignment(AShiftLeftAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outAShiftRightAssignment(AShiftRightAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outAUnsignedShiftRightAssignment(AUnsignedShiftRightAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outAIncrementAssignment(AIncrementAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    @Override
+    public void outADecrementAssignment(ADecrementAssignment assignment) {
+        enforceCompoundAssignment(assignment);
+    }
+
+    /**
+     * Type-checks a compound assignment, increment or decrement, whose target must be a valid left operand of the
+     * operation it performs, and whose value must be a valid right operand. The result has the type of the target.
+     *
+     * @param assignment the compound assignment
+     */
+    private void enforceCompoundAssignment(PAssignment assignment) {
+        PAssignmentTarget target = CodeGenerator.getAssignmentTarget(assignment);
+        PExpression value = CodeGenerator.getAssignmentValue(assignment);
+        Class<? extends PExpression> operator = CodeGenerator.getCompoundOperator(assignment);
+        TypeToken targetType = types.get(target);
+        if (target instanceof ALocalDeclarationAssignmentTarget) {
+            compiler.raise(new SemanticException(assignment, "cannot read a local in its own declaration"));
+        }
+        if (operator == AShiftLeftExpression.class || operator == AShiftRightExpression.class
+                || operator == AUnsignedShiftRightExpression.class) {
+            assertIntegral(target);
+            assertAssignableTo(value, PrimitiveTypeToken.UINT);
+        } else if (operator == ABitwiseAndExpression.class || operator == ABitwiseXorExpression.class
+                || operator == ABitwiseOrExpression.class) {
+            assertPrimitive(target);
+            assertAssignableTo(value, targetType);
+        } else {
+            assertIntegral(target);
+            if (value != null) {
+                assertAssignableTo(value, targetType);
+            }
+        }
+        types.put(assignment, targetType);
+    }
+
     @Override
     public void outALocalDeclarationAssignmentTarget(ALocalDeclarationAssignmentTarget assignmentTarget) {
         types.put(assignmentTarget, types.get(assignmentTarget.getLocalDeclaration()));
@@ -32,7 +32,7 @@ final class WhileFlowStructure implements FlowStructure {
             codeGenerator.doReclaimScope(scope);
             scope = scope.getParent();
         }
-        codeGenerator.write("SET PC " + codeGenerator.getEndLabel(whileStatement.getBody()));
+        codeGenerator.write("SET PC " + codeGenerator.getEndLabel(whileStatement));
         return true;
     }
 
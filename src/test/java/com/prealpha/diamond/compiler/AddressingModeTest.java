@@ -0,0 +1,71 @@
+/*
+ * AddressingModeTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class AddressingModeTest extends PipelineTest {
+    @Test
+    public void testLocalsInPlace() throws Exception {
+        String diamond = "noinline int twice(int x) { return x * 2; } " +
+                "void main() { int a = 3; int b = 10; int c = 7; int d = 2; int e = 5; int f = 1; int g = 4; int h = 9; " +
+                "a += twice(b); b -= a; c *= 4; d <<= 3U; e = e % 4; f = 6 + f; g ^= h; h = h - twice(d); " +
+                "pipeline(a + b + c + d + e + f + g + h); pipeline(b); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(52, (char) getPipeline().remove());
+        assertEquals((char) -13, (char) getPipeline().remove());
+        List<String> main = getMainFunction(code);
+        assertTrue(containsMatch(main, "(ADD|SUB|MLI|SHL|XOR) \\[SP(\\+0x[0-9a-f]{4})?\\] .*"));
+        assertNoLoadAndStore(main);
+    }
+
+    @Test
+    public void testFieldOperands() throws Exception {
+        String diamond = "class Pair { static int created; int first; int second; " +
+                "static Pair new(int f, int s) { first = f; second = s; Pair::created += 1; return this; } } " +
+                "void main() { Pair p = Pair::new(4, 6); Pair q = Pair::new(1, 2); " +
+                "p.second = p.first + q.second; q.first += p.second; Pair::created = Pair::created * 10; " +
+                "pipeline(p.second); pipeline(q.first); pipeline(Pair::created); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(6, (char) getPipeline().remove());
+        assertEquals(7, (char) getPipeline().remove());
+        assertEquals(20, (char) getPipeline().remove());
+        List<String> main = getMainFunction(code);
+        assertTrue(containsMatch(main, "ADD \\[[A-Z]\\+0x0001\\] \\[[A-Z]\\+0x0002\\]"));
+        assertTrue(containsMatch(main, "MLI \\[start_AFieldDeclaration_\\d+\\] 0x000a"));
+        assertNoLoadAndStore(main);
+    }
+
+    private static boolean containsMatch(List<String> function, String regex) {
+        for (String line : function) {
+            if (line.matches(regex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asserts that the specified function never loads a memory operand into register A, operates on it, and stores it
+     * back, which an instruction on the memory operand itself would do in one.
+     */
+    private static void assertNoLoadAndStore(List<String> function) {
+        for (int i = 2; i < function.size(); i++) {
+            String line = function.get(i);
+            if (line.startsWith("SET [") && line.endsWith(" A")) {
+                String operand = line.substring("SET ".length(), line.length() - " A".length());
+                assertFalse(function.get(i - 2).equals("SET A " + operand) && function.get(i - 1).contains(" A "));
+            }
+        }
+    }
+}
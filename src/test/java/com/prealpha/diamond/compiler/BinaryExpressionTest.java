@@ -0,0 +1,60 @@
+/*
+ * BinaryExpressionTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public final class BinaryExpressionTest extends PipelineTest {
+    @Test
+    public void testLeafOperands() throws Exception {
+        String diamond = "void main() { int a = 20; int b = 6; pipeline(a - b); pipeline(100 - a); pipeline(a / 3); " +
+                "pipeline(3 < a ? 1 : 0); }";
+        testWithPipeline(diamond);
+        assertEquals(14, (char) getPipeline().remove());
+        assertEquals(80, (char) getPipeline().remove());
+        assertEquals(6, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testNestedTemporaries() throws Exception {
+        String diamond = "void main() { int a = 2; int b = 3; pipeline((a * b) - ((a + b) * (b - a)) - (b * (a + (b * a)))); }";
+        testWithPipeline(diamond);
+        assertEquals((char) -23, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testTemporaryAcrossInvocation() throws Exception {
+        String diamond = "int square(int x) { int y = x * x; return y + 0; } " +
+                "void main() { int a = 3; pipeline((a + 1) * square(a - 1) - square(square(a))); }";
+        testWithPipeline(diamond);
+        assertEquals((char) -65, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testSideEffectOrder() throws Exception {
+        String diamond = "class Counter { static int count; static int next() { Counter::count += 1; return Counter::count; } } " +
+                "void main() { Counter::count = 0; pipeline(Counter::next() - Counter::next() * 10); }";
+        testWithPipeline(diamond);
+        assertEquals((char) -19, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testFieldReadBeforeSpilledSideEffect() throws Exception {
+        String diamond = "class O { int v; static O new() { v = 20; return this; } " +
+                "noinline int mix(int d) { v = v * 3 + d; return d; } } " +
+                "noinline int f(O o, int a, int b, int c, int d, int e) { int g = a + 1; int h = b + 2; int i = c + 3; " +
+                "int j = d + 4; int k = e + 5; int x = (o.v & o.mix(4)) ^ 1; " +
+                "return x + a + b + c + d + e + g + h + i + j + k - 55; } " +
+                "void main() { O o = O::new(); G::z = 1; pipeline(f(o, G::z, G::z + 1, G::z + 2, G::z + 3, G::z + 4)); } " +
+                "class G { static int z; }";
+        testWithPipeline(diamond);
+        assertEquals((char) -5, (char) getPipeline().remove());
+    }
+}
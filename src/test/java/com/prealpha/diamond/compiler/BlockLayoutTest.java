@@ -0,0 +1,64 @@
+/*
+ * BlockLayoutTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class BlockLayoutTest extends PipelineTest {
+    @Test
+    public void testWhileWithBreakAndContinue() throws Exception {
+        String diamond = "void main() { int i = 0; int sum = 0; int never = 0; " +
+                "while (i < 20) { i += 1; if (i == 3) continue; if (i > 6) break; sum += i; } " +
+                "while (never > 0) { never -= 1; } " +
+                "pipeline(i); pipeline(sum); pipeline(never); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(7, (char) getPipeline().remove());
+        assertEquals(18, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        List<String> main = getMainFunction(code);
+        List<List<String>> loops = getLoops(main);
+        assertEquals(2, loops.size());
+        for (List<String> loop : loops) {
+            // entered by a jump to the test, which is the only way back to the top
+            String backEdge = loop.get(loop.size() - 1);
+            assertTrue(main.get(main.indexOf(loop.get(0)) - 1).startsWith("SET PC "));
+            assertTrue(loop.get(loop.size() - 2).startsWith("IF"));
+            assertEquals(1, Collections.frequency(loop, backEdge));
+        }
+    }
+
+    @Test
+    public void testForWithContinue() throws Exception {
+        String diamond = "void main() { int odd = 0; int none = 0; " +
+                "for (int i = 0; i < 10; i += 1) { if (i % 2 == 0) continue; odd += i; } " +
+                "for (int j = 5; j < 5; j += 1) { none += 1; } " +
+                "int count = 0; for (int k = 0; true; k += 1) { count += 1; if (count == 4) break; } " +
+                "pipeline(odd); pipeline(none); pipeline(count); }";
+        testWithPipeline(diamond);
+        assertEquals(25, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(4, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testElseWhichReturns() throws Exception {
+        String diamond = "noinline int clamp(int x) { if (x < 10) { x += 1; } else { return 10; } return x; } " +
+                "noinline int sign(int x) { if (x > 0) { return 1; } else { x = 0 - x; } return 0 - x; } " +
+                "void main() { pipeline(clamp(3)); pipeline(clamp(12)); pipeline(sign(5)); pipeline(sign(0 - 2)); }";
+        testWithPipeline(diamond);
+        assertEquals(4, (char) getPipeline().remove());
+        assertEquals(10, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(0xfffe, (char) getPipeline().remove());
+    }
+}
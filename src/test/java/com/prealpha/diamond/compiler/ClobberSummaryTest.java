@@ -0,0 +1,151 @@
+/*
+ * ClobberSummaryTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public final class ClobberSummaryTest extends PipelineTest {
+    private static final Set<String> REGISTERS = ImmutableSet.of("A", "B", "C", "X", "Y", "Z", "I", "J");
+
+    private static final Pattern WRITE = Pattern.compile("(SET|ADD|SUB|MUL|MLI|DIV|DVI|MOD|MDI|AND|BOR|XOR|SHR|ASR|SHL" +
+            "|ADX|SBX|STI|STD) ([A-Z]) .*");
+
+    @Test
+    public void testLiveAcrossCalls() throws Exception {
+        String diamond = "noinline int twice(int v) { return v + v; } class G { static int n; } " +
+                "void main() { G::n = 10; int n = G::n; int sum = 0; int last = 0; " +
+                "for (int i = 0; i < n; i += 1) { last = twice(i); sum = sum + last; } " +
+                "pipeline(sum); pipeline(last); pipeline(n); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(90, (char) getPipeline().remove());
+        assertEquals(18, (char) getPipeline().remove());
+        assertEquals(10, (char) getPipeline().remove());
+        assertSavesClobbered(code);
+
+        // sum, last and i stay in their registers across twice, which only writes A
+        List<String> loop = getLoops(getMainFunction(code)).get(0);
+        int pushes = 0;
+        for (String line : loop) {
+            if (line.startsWith("SET PUSH ")) {
+                pushes++;
+            }
+        }
+        assertEquals(1, pushes);
+    }
+
+    @Test
+    public void testRecursiveCallees() throws Exception {
+        String diamond = "noinline int down(int n, int acc) { if (n == 0) { return acc; } int m = n - 1; " +
+                "int r = up(m, acc + n); return r; } " +
+                "noinline int up(int n, int acc) { if (n == 0) { return acc; } int k = n * 2; " +
+                "int r = down(n - 1, acc + k); return r; } class G { static int a; static int b; } " +
+                "void main() { G::a = 3; G::b = 4; int a = G::a; int b = G::b; int total = down(a, 0) + up(b, 1); " +
+                "pipeline(total); pipeline(a * b); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(25, (char) getPipeline().remove());
+        assertEquals(12, (char) getPipeline().remove());
+        assertSavesClobbered(code);
+    }
+
+    /**
+     * Asserts that every register which the main function saves around a call, that is, every register popped right
+     * after it returns, is either overwritten by the callee, directly or through the functions it calls, or overwritten
+     * while the arguments are passed.
+     *
+     * @param code the compiled program
+     */
+    private static void assertSavesClobbered(List<String> code) {
+        Map<String, Set<String>> clobbered = getClobberedRegisters(code);
+        List<String> main = getMainFunction(code);
+        int calls = 0;
+        for (int i = 0; i < main.size(); i++) {
+            if (main.get(i).startsWith("JSR ")) {
+                // the registers written after the saves, which include those receiving arguments
+                int start = i;
+                while (start > 0 && !main.get(start - 1).startsWith("JSR ") && !main.get(start - 1).startsWith(":")) {
+                    start--;
+                }
+                while (start < i && !main.get(start).startsWith("SET PUSH ")) {
+                    start++;
+                }
+                Set<String> overwritten = Sets.newHashSet(getWrittenRegisters(main.subList(start, i)));
+                String callee = main.get(i).substring("JSR ".length());
+                overwritten.addAll(clobbered.containsKey(callee) ? clobbered.get(callee) : REGISTERS);
+                for (int j = i + 1; j < main.size() && main.get(j).endsWith(" POP"); j++) {
+                    String register = main.get(j).substring("SET ".length(), main.get(j).length() - " POP".length());
+                    if (REGISTERS.contains(register)) {
+                        assertTrue(overwritten.contains(register));
+                    }
+                }
+                calls++;
+            }
+        }
+        assertTrue(calls > 0);
+    }
+
+    /**
+     * Returns the registers which each function may overwrite, including those overwritten by the functions it calls.
+     * A call to a function outside the program, or an interrupt, may overwrite any register.
+     *
+     * @param code the compiled program
+     * @return the registers clobbered by each function
+     */
+    private static Map<String, Set<String>> getClobberedRegisters(List<String> code) {
+        Map<String, List<String>> functions = getFunctions(code);
+        Map<String, Set<String>> clobbered = Maps.newHashMap();
+        for (Map.Entry<String, List<String>> function : functions.entrySet()) {
+            Set<String> written = Sets.newHashSet(getWrittenRegisters(function.getValue()));
+            for (String line : function.getValue()) {
+                if (line.startsWith("HWI ") || (line.startsWith("JSR ")
+                        && !functions.containsKey(line.substring("JSR ".length())))) {
+                    written.addAll(REGISTERS);
+                }
+            }
+            clobbered.put(function.getKey(), written);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, List<String>> function : functions.entrySet()) {
+                for (String line : function.getValue()) {
+                    if (line.startsWith("JSR ") && functions.containsKey(line.substring("JSR ".length()))) {
+                        changed |= clobbered.get(function.getKey()).addAll(clobbered.get(line.substring("JSR ".length())));
+                    }
+                }
+            }
+        }
+        return clobbered;
+    }
+
+    private static Set<String> getWrittenRegisters(List<String> lines) {
+        Set<String> written = Sets.newHashSet();
+        for (String line : lines) {
+            Matcher matcher = WRITE.matcher(line);
+            if (matcher.matches() && REGISTERS.contains(matcher.group(2))) {
+                written.add(matcher.group(2));
+                if (matcher.group(1).equals("STI") || matcher.group(1).equals("STD")) {
+                    written.add("I");
+                    written.add("J");
+                }
+            }
+        }
+        return written;
+    }
+}
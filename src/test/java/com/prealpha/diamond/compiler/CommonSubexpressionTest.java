@@ -0,0 +1,81 @@
+/*
+ * CommonSubexpressionTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class CommonSubexpressionTest extends PipelineTest {
+    @Test
+    public void testCommonElements() throws Exception {
+        String diamond = "class Vectors { int[] a; int[] b; " +
+                "static Vectors new() { a = int[]::new(4U); b = int[]::new(4U); return this; } " +
+                "noinline int combine(uint i) { a[i] = 2; b[i] = 5; a[i] = a[i] + b[i] * b[i]; " +
+                "int t = b[i] * b[i] - a[i]; return t; } } class G { static uint i; } " +
+                "void main() { Vectors v = Vectors::new(); G::i = 1U; pipeline(v.combine(G::i)); pipeline(v.a[1U]); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals((char) -2, (char) getPipeline().remove());
+        assertEquals(27, (char) getPipeline().remove());
+
+        // each square loads b[i] once, but the store to a[i] between them may change it
+        List<String> combine = getCallee(code, "MLI ");
+        int squares = 0;
+        for (int i = 1; i < combine.size(); i++) {
+            if (combine.get(i).startsWith("MLI ")) {
+                String operand = combine.get(i).substring("MLI A ".length());
+                assertEquals("SET A " + operand, combine.get(i - 1));
+                squares++;
+            }
+        }
+        assertEquals(2, squares);
+    }
+
+    @Test
+    public void testKilledValues() throws Exception {
+        String diamond = "class Cells { int[] a; int n; static Cells new() { a = int[]::new(2U); return this; } " +
+                "noinline void bump(uint i) { a[i] += 1; } " +
+                "noinline int run(uint i) { a[i] = 4; int x = a[i] * 3; bump(i); int y = a[i] * 3; n = x + y; " +
+                "int z = n * 2 + n * 2; n = 1; z += n * 2; return z; } } class G { static uint i; } " +
+                "void main() { Cells c = Cells::new(); G::i = 0U; pipeline(c.run(G::i)); pipeline(c.a[0U]); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(110, (char) getPipeline().remove());
+        assertEquals(5, (char) getPipeline().remove());
+
+        // n * 2 is computed once for both terms and again after n changes, and a[i] * 3 again after the call
+        List<String> run = getCallee(code, "SHL ");
+        assertEquals(2, Collections.frequency(run, "SHL A 0x0001"));
+        assertEquals(2, Collections.frequency(run, "MLI A 0x0003"));
+    }
+
+    /**
+     * Returns the code of the first function called by the main function which contains an instruction beginning with
+     * the specified prefix.
+     *
+     * @param code the compiled program
+     * @param prefix the beginning of an instruction
+     * @return the code of the callee
+     */
+    private static List<String> getCallee(List<String> code, String prefix) {
+        for (String line : getMainFunction(code)) {
+            if (line.startsWith("JSR ") && getFunctions(code).containsKey(line.substring("JSR ".length()))) {
+                List<String> callee = getFunctions(code).get(line.substring("JSR ".length()));
+                for (String instruction : callee) {
+                    if (instruction.startsWith(prefix)) {
+                        return callee;
+                    }
+                }
+            }
+        }
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * CompoundAssignmentTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public final class CompoundAssignmentTest extends PipelineTest {
+    @Test
+    public void testTargetEvaluatedOnce() throws Exception {
+        String diamond = "class Counter { static uint count; static uint next() { Counter::count += 1U; " +
+                "return Counter::count; } } " +
+                "void main() { int[] a = int[]::new(4U); a[1U] = 5; a[2U] = 7; Counter::count = 0U; " +
+                "a[Counter::next()] += 10; a[Counter::next()] *= 3; a[Counter::next()]++; " +
+                "pipeline(a[1U]); pipeline(a[2U]); pipeline(a[3U]); pipeline(Counter::count); }";
+        testWithPipeline(diamond);
+        assertEquals(15, (char) getPipeline().remove());
+        assertEquals(21, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(3, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testIncrementAndDecrement() throws Exception {
+        String diamond = "class Tally { int hits; static Tally new() { hits = 0; return this; } } " +
+                "void main() { Tally t = Tally::new(); int sum = 0; " +
+                "for (int i = 0; i < 5; i++) { sum += i; t.hits++; } int down = 10; down--; --down; ++sum; " +
+                "pipeline(sum); pipeline(down); pipeline(t.hits); }";
+        testWithPipeline(diamond);
+        assertEquals(11, (char) getPipeline().remove());
+        assertEquals(8, (char) getPipeline().remove());
+        assertEquals(5, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testValueOfCompoundAssignment() throws Exception {
+        String diamond = "class Box { int v; static Box new() { v = 6; return this; } } " +
+                "noinline int two() { return 2; } " +
+                "void main() { Box b = Box::new(); int x = 3; int y = (x += two()) * 2; int z = (b.v -= x) + 100; " +
+                "pipeline(x); pipeline(y); pipeline(z); pipeline(b.v); }";
+        testWithPipeline(diamond);
+        assertEquals(5, (char) getPipeline().remove());
+        assertEquals(10, (char) getPipeline().remove());
+        assertEquals(101, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testTargetReadBeforeValue() throws Exception {
+        String diamond = "class G { static int g; static int bump() { G::g += 10; return 1; } } " +
+                "class O { int v; int[] a; static O new() { v = 5; a = int[]::new(2U); a[1U] = 5; return this; } " +
+                "noinline int add() { v += 10; a[1U] += 10; return 1; } noinline int self() { v += add(); return v; } } " +
+                "noinline O pick(O o) { pipeline(99); return o; } " +
+                "void main() { G::g = 5; G::g += G::bump(); pipeline(G::g); G::g = 5; G::g = G::g + G::bump(); " +
+                "pipeline(G::g); O o = O::new(); pick(o).v += o.add(); pipeline(o.v); pipeline(o.self()); " +
+                "o.a[1U] += o.add(); pipeline(o.a[1U]); int r = (G::g -= G::bump()); pipeline(r); }";
+        testWithPipeline(diamond);
+        assertEquals(6, (char) getPipeline().remove());
+        assertEquals(6, (char) getPipeline().remove());
+        assertEquals(99, (char) getPipeline().remove());
+        assertEquals(6, (char) getPipeline().remove());
+        assertEquals(7, (char) getPipeline().remove());
+        assertEquals(26, (char) getPipeline().remove());
+        assertEquals(5, (char) getPipeline().remove());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * ConditionTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class ConditionTest extends PipelineTest {
+    @Test
+    public void testComparisonBranches() throws Exception {
+        String diamond = "noinline void check(int a, int b, uint c) { int flags = 0; " +
+                "if (a < b) { flags += 1; } if (a > b) { flags += 2; } if (a <= b) { flags += 4; } " +
+                "if (a >= b) { flags += 8; } if (a == b) { flags += 16; } if (a != b) { flags += 32; } " +
+                "if (a <= 32767) { flags += 64; } if (a >= (-32767 - 1)) { flags += 128; } if (c >= 0U) { flags += 256; } " +
+                "if (!(c <= 1U)) { flags += 512; } if (3 < a) { flags += 1024; } pipeline(flags); } " +
+                "class G { static int[] a; static int[] b; static uint[] c; } " +
+                "void main() { G::a = int[]::new(3U); G::b = int[]::new(3U); G::c = uint[]::new(3U); " +
+                "G::a[0U] = -5; G::b[0U] = 3; G::c[0U] = 0U; G::a[1U] = 7; G::b[1U] = 7; G::c[1U] = 2U; " +
+                "G::a[2U] = 4; G::b[2U] = -2; G::c[2U] = 1U; " +
+                "for (uint i = 0U; i < 3U; i += 1U) { check(G::a[i], G::b[i], G::c[i]); } }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(0x1e5, (char) getPipeline().remove());
+        assertEquals(0x7dc, (char) getPipeline().remove());
+        assertEquals(0x5ea, (char) getPipeline().remove());
+        List<String> main = getMainFunction(code);
+        String check = null;
+        for (String line : main) {
+            if (line.startsWith("JSR ") && getFunctions(code).containsKey(line.substring("JSR ".length()))) {
+                check = line.substring("JSR ".length());
+            }
+        }
+        assertBranchesDirectly(getFunctions(code).get(check));
+    }
+
+    @Test
+    public void testLogicalBranches() throws Exception {
+        String diamond = "class Counter { static int count; static boolean touch(boolean value) { " +
+                "Counter::count += 1; return value; } } " +
+                "class G { static int a; static int b; static boolean t; } " +
+                "void main() { G::a = 2; G::b = 5; G::t = true; int a = G::a; int b = G::b; int n = 0; boolean t = G::t; " +
+                "if (a < b && b < 10 && t) { n += 1; } " +
+                "if (a > b || !(b != 5)) { n += 2; } " +
+                "if (Counter::touch(false) && Counter::touch(true)) { n += 4; } " +
+                "if (Counter::touch(true) || Counter::touch(true)) { n += 8; } " +
+                "if (!(a < b && Counter::touch(false)) && b <= 5) { n += 16; } " +
+                "pipeline(n); pipeline(Counter::count); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(27, (char) getPipeline().remove());
+        assertEquals(3, (char) getPipeline().remove());
+        assertBranchesDirectly(getMainFunction(code));
+    }
+
+    @Test
+    public void testConditionValues() throws Exception {
+        String diamond = "class G { static int a; } void main() { G::a = -1; int a = G::a; int b = 1; " +
+                "boolean less = a < b; boolean both = less && a >= b; " +
+                "boolean either = both || b <= a || !both; " +
+                "pipeline(less ? 1 : 0); pipeline(both ? 1 : 0); pipeline(either ? 1 : 0); }";
+        testWithPipeline(diamond);
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testLoopConditions() throws Exception {
+        String diamond = "class G { static int n; } void main() { G::n = 10; int n = G::n; int i = 0; int sum = 0; " +
+                "while (i < n) { i += 1; if (i == 3) { continue; } if (i > 7) { break; } sum += i; } " +
+                "pipeline(sum); " +
+                "for (int j = n; j >= 0; j -= 3) { sum += j; if (j < 3) { break; } } pipeline(sum); " +
+                "do { sum -= 5; if (sum < 0) { break; } } while (sum > 0 && i != 0); pipeline(sum); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(25, (char) getPipeline().remove());
+        assertEquals(47, (char) getPipeline().remove());
+        assertEquals((char) -3, (char) getPipeline().remove());
+        assertBranchesDirectly(getMainFunction(code));
+    }
+
+    /**
+     * Asserts that the specified code never materializes the result of a condition as a boolean value before
+     * branching on it; that is, that no instruction conditional on a test sets a register to a constant.
+     *
+     * @param code some code, such as a single function
+     */
+    private static void assertBranchesDirectly(List<String> code) {
+        assertNotNull(code);
+        boolean tested = false;
+        for (int i = 1; i < code.size(); i++) {
+            if (code.get(i - 1).startsWith("IF")) {
+                assertFalse(code.get(i).matches("SET [A-Z] 0x[0-9a-f]{4}"));
+                tested = true;
+            }
+        }
+        assertTrue(tested);
+    }
+}
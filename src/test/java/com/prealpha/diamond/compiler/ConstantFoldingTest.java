@@ -0,0 +1,112 @@
+/*
+ * ConstantFoldingTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class ConstantFoldingTest extends PipelineTest {
+    @Test
+    public void testFoldedArithmetic() throws Exception {
+        String diamond = "void main() { pipeline(3 * 4 + 5); pipeline(2 - 7); pipeline(32767 + 1); pipeline(-7 / 2); " +
+                "pipeline(-7 % 2); pipeline(5 / 0); pipeline(int::cast(0xfff0U >> 4U)); pipeline(int::cast(0xfff0U >>> 4U)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(17, (char) getPipeline().remove());
+        assertEquals((char) -5, (char) getPipeline().remove());
+        assertEquals(0x8000, (char) getPipeline().remove());
+        assertEquals((char) -3, (char) getPipeline().remove());
+        assertEquals((char) -1, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(0xffff, (char) getPipeline().remove());
+        assertEquals(0x0fff, (char) getPipeline().remove());
+        assertFolded(getMainFunction(code), 0x0011, 0xfffb, 0x8000, 0xfffd, 0xffff, 0x0000, 0xffff, 0x0fff);
+    }
+
+    @Test
+    public void testFoldedConditions() throws Exception {
+        String diamond = "void main() { pipeline(-1 < 1 ? 1 : 0); pipeline(0xffffU < 1U ? 1 : 0); " +
+                "pipeline(true && 2 > 1 ? 1 : 0); pipeline(false || 1 != 1 ? 1 : 0); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertFolded(getMainFunction(code), 0x0001, 0x0000, 0x0001, 0x0000);
+    }
+
+    @Test
+    public void testPropagation() throws Exception {
+        String diamond = "class G { static int z; } void main() { G::z = 1; int a = 6; int b = a * 7; int c = b; " +
+                "pipeline(c - 2); b = G::z; pipeline(c); pipeline(b); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(40, (char) getPipeline().remove());
+        assertEquals(42, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertFolded(getMainFunction(code), 0x0028, 0x002a);
+    }
+
+    @Test
+    public void testPropagationAcrossBranches() throws Exception {
+        String diamond = "noinline int choose(boolean flag) { int a = 1; int b = 2; if (flag) { a = 3; b = 2; } " +
+                "else { a = 4; } return a * 10 + b; } class G { static boolean f; } " +
+                "void main() { G::f = true; pipeline(choose(G::f)); G::f = false; pipeline(choose(G::f)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(32, (char) getPipeline().remove());
+        assertEquals(42, (char) getPipeline().remove());
+
+        // b is 2 along both branches, so it is added as a constant
+        String choose = null;
+        for (String line : getMainFunction(code)) {
+            if (choose == null && line.startsWith("JSR ")) {
+                choose = line.substring("JSR ".length());
+            }
+        }
+        assertTrue(getFunctions(code).get(choose).contains("ADD A 0x0002"));
+    }
+
+    @Test
+    public void testPropagationIntoLoop() throws Exception {
+        String diamond = "class G { static int n; } void main() { G::n = 4; int n = G::n; int step = 3; int total = 0; " +
+                "for (int i = 0; i < n; i += 1) { total += step; if (i == 1) { step = 10; } } " +
+                "pipeline(total); pipeline(step); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(26, (char) getPipeline().remove());
+        assertEquals(10, (char) getPipeline().remove());
+
+        // step changes inside the loop, so it must still be added from its register there
+        List<String> loop = getLoops(getMainFunction(code)).get(0);
+        boolean added = false;
+        for (String line : loop) {
+            added |= line.matches("ADD [A-Z] [A-Z]");
+        }
+        assertTrue(added);
+    }
+
+    /**
+     * Asserts that the specified code computes nothing at run time, and that each of the specified values is set into
+     * register A by a single instruction.
+     *
+     * @param code some code, such as a single function
+     * @param values the folded values
+     */
+    private static void assertFolded(List<String> code, int... values) {
+        for (String line : code) {
+            assertFalse(line.matches("(ADD|SUB|MUL|MLI|DIV|DVI|MOD|MDI|AND|BOR|XOR|SHR|ASR|SHL|IF[A-Z]) .*"));
+        }
+        for (int value : values) {
+            assertTrue(code.contains(String.format("SET A 0x%04x", value)));
+        }
+    }
+}
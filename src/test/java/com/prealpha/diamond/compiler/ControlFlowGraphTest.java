@@ -0,0 +1,39 @@
+/*
+ * ControlFlowGraphTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public final class ControlFlowGraphTest extends PipelineTest {
+    @Test
+    public void testStructuredFlow() throws Exception {
+        String diamond = "int f(int n, boolean b) { int s = 0; int i = 0; " +
+                "while (i < n) { if (b && i > 2) { s += i; } else { s -= 1; } i += 1; } " +
+                "switch (s + 4) { case 1: s = 5; case 2: s += 1; break; default: return s; } " +
+                "int j; for (j = 0; j < 3; j += 1) { if (j == 1) { continue; } s = b ? s : j; } " +
+                "do { s += 10; } while (s < 0 || j == 0); return s; } " +
+                "void main() { pipeline(f(3, true)); pipeline(f(3, false)); pipeline(f(4, true)); }";
+        testWithPipeline(diamond);
+        assertEquals(16, (char) getPipeline().remove());
+        assertEquals(12, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testTrivialPhisInLoopConditions() throws Exception {
+        String diamond = "int f(int n, int k) { int i = 0; while (i < k && k > 7) { i += 1; } return n; } " +
+                "int g(int n, int k) { int s = 0; while (s < k || n > 100) { int j = 0; " +
+                "while (j < 2 && k > 0) { j += 1; } s += j; } return s + n; } " +
+                "void main() { G::h = 9; pipeline(f(G::h, G::h)); pipeline(g(G::h, G::h)); } " +
+                "class G { static int h; }";
+        testWithPipeline(diamond);
+        assertEquals(9, (char) getPipeline().remove());
+        assertEquals(19, (char) getPipeline().remove());
+    }
+}
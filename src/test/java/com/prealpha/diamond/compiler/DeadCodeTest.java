@@ -0,0 +1,122 @@
+/*
+ * DeadCodeTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public final class DeadCodeTest extends PipelineTest {
+    @Test
+    public void testUnreachableStatements() throws Exception {
+        String diamond = "noinline int pick(int x) { if (x > 0) { return 1; pipeline(99); } else { return 2; } " +
+                "pipeline(98); return 3; } " +
+                "noinline int branches(int n) { int total = n; while (false) { total += 100; } " +
+                "if (false) { total = 0; } else { total += 1; } if (true) { total += 2; } " +
+                "for (int i = 0; false; i += 1) { total = 0; } return total; } class G { static int x; static int n; } " +
+                "void main() { G::x = 5; G::n = 10; pipeline(pick(G::x)); pipeline(pick(-G::x)); " +
+                "pipeline(branches(G::n)); int k = 0; while (true) { k += 1; if (k == G::x) { break; } } pipeline(k); " +
+                "switch (k) { case 5: pipeline(50); break; pipeline(51); default: pipeline(52); } }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(2, (char) getPipeline().remove());
+        assertEquals(13, (char) getPipeline().remove());
+        assertEquals(5, (char) getPipeline().remove());
+        assertEquals(50, (char) getPipeline().remove());
+
+        // none of the values only used by unreachable statements are ever loaded
+        Map<String, List<String>> functions = getFunctions(code);
+        for (List<String> function : functions.values()) {
+            for (String line : function) {
+                assertFalse(line.matches(".*0x00(62|63|64|33).*"));
+            }
+        }
+
+        // branches only adds to its argument, since the loop which never runs is gone along with its initializer
+        List<String> branches = getCallees(code).get(2);
+        for (String line : branches) {
+            assertFalse(line.matches("SET [A-Z] 0x[0-9a-f]{4}"));
+        }
+    }
+
+    @Test
+    public void testDeadStores() throws Exception {
+        String diamond = "class Counter { static int calls; static int touch() { Counter::calls += 1; return 4; } } " +
+                "noinline int overwrite(int n) { int unused = n * 5; int value = n; value = 7; int total = value + n; " +
+                "unused += 1; return total; } class G { static int n; } " +
+                "void main() { G::n = 10; pipeline(overwrite(G::n)); int ignored = Counter::touch(); " +
+                "ignored = Counter::touch(); int kept = Counter::touch(); if (kept > 3) { kept = 1; } pipeline(kept); " +
+                "pipeline(Counter::calls); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(17, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(3, (char) getPipeline().remove());
+
+        // overwrite never computes unused, nor stores n to value
+        List<String> overwrite = getCallees(code).get(0);
+        assertEquals("ADD C 0x0007", overwrite.get(1));
+        assertEquals("SET A C", overwrite.get(2));
+        assertEquals("SET PC POP", overwrite.get(3));
+
+        // the stores to ignored are gone, but the calls to touch are kept
+        int touches = 0;
+        for (String line : getMainFunction(code)) {
+            if (line.startsWith("ADD [") && line.endsWith("] 0x0001")) {
+                touches++;
+            }
+        }
+        assertEquals(3, touches);
+    }
+
+    @Test
+    public void testStoresOverwrittenByBranches() throws Exception {
+        String diamond = "noinline int choose(boolean flag) { int a = 1; int b = 2; if (flag) { a = 3; b = 5; } " +
+                "else { a = 4; b = 6; } return a * 10 + b; } " +
+                "noinline int keep(boolean flag) { int a = 1; if (flag) { a = 3; } else { return a; } return a + 8; } " +
+                "class G { static boolean t; static boolean f; } " +
+                "void main() { G::t = true; G::f = false; pipeline(choose(G::t)); pipeline(choose(G::f)); " +
+                "pipeline(keep(G::t)); pipeline(keep(G::f)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(35, (char) getPipeline().remove());
+        assertEquals(46, (char) getPipeline().remove());
+        assertEquals(11, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+
+        // both branches of choose overwrite a and b, so their initial values are never stored
+        List<String> choose = getCallees(code).get(0);
+        for (String line : choose) {
+            assertFalse(line.matches("SET [A-Z] 0x000[12]"));
+        }
+    }
+
+    /**
+     * Returns the code of each distinct function called by the main function, in the order of their first calls.
+     *
+     * @param code the compiled program
+     * @return the code of each callee
+     */
+    private static List<List<String>> getCallees(List<String> code) {
+        Map<String, List<String>> functions = getFunctions(code);
+        List<String> labels = Lists.newArrayList();
+        List<List<String>> callees = Lists.newArrayList();
+        for (String line : getMainFunction(code)) {
+            String label = line.startsWith("JSR ") ? line.substring("JSR ".length()) : null;
+            if (label != null && functions.containsKey(label) && !labels.contains(label)) {
+                labels.add(label);
+                callees.add(functions.get(label));
+            }
+        }
+        return callees;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * EscapeAnalysisTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class EscapeAnalysisTest extends PipelineTest {
+    private static final String POINT = "class Point { int x; int y; " +
+            "static Point new(int x, int y) { this.x = x; this.y = y; return this; } " +
+            "noinline int sum() { return x + y; } }";
+
+    @Test
+    public void testLocalObjectAndArray() throws Exception {
+        String diamond = POINT + " void main() { Point p = Point::new(3, 4); p.x += 10; pipeline(p.sum()); delete p; " +
+                "int[] a = int[]::new(4U); for (uint i = 0U; i < 4U; i++) { a[i] = 5; } a[2U] = 1; " +
+                "pipeline(a[0U] + a[1U] + a[2U] + a[3U]); delete a; }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(17, (char) getPipeline().remove());
+        assertEquals(16, (char) getPipeline().remove());
+        List<String> main = getMainFunction(code);
+        assertEquals(0, Collections.frequency(main, "JSR heapalloc"));
+        assertFalse(main.contains("JSR heapfree"));
+    }
+
+    @Test
+    public void testAllocationInLoop() throws Exception {
+        String diamond = POINT + " noinline int length(Point p) { return p.x + p.y; } " +
+                "void main() { int total = 0; int i = 0; while (i < 5) { Point p = Point::new(i, 1); " +
+                "total += length(p); delete p; i += 1; } pipeline(total); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(15, (char) getPipeline().remove());
+        List<String> main = getMainFunction(code);
+        assertEquals(0, Collections.frequency(main, "JSR heapalloc"));
+        assertFalse(main.contains("JSR heapfree"));
+    }
+
+    @Test
+    public void testEscapingObjects() throws Exception {
+        String diamond = POINT + " class Holder { Point point; static Holder new() { return this; } } " +
+                "noinline void keep(Holder h, Point p) { h.point = p; } " +
+                "noinline Point make(int x) { Point p = Point::new(x, x); return p; } " +
+                "noinline Holder fill() { Holder h = Holder::new(); keep(h, Point::new(6, 7)); " +
+                "int[] spill = int[]::new(8U); spill[0U] = 99; return h; } " +
+                "void main() { Holder h = fill(); Point q = make(20); pipeline(h.point.sum()); pipeline(q.sum()); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(13, (char) getPipeline().remove());
+        assertEquals(40, (char) getPipeline().remove());
+
+        // the two arrays in pipeline and one in Device, the holder and its point in fill, and the point made by make
+        int allocations = 0;
+        boolean spilled = false;
+        for (List<String> function : getFunctions(code).values()) {
+            allocations += Collections.frequency(function, "JSR heapalloc");
+            spilled |= function.contains("SET A 0x0063") && function.contains("SUB SP 0x0008");
+        }
+        assertEquals(6, allocations);
+        assertTrue(spilled);
+    }
+}
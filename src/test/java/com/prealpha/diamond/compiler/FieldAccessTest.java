@@ -66,4 +66,16 @@ public final class FieldAccessTest extends PipelineTest {
         testWithPipeline(diamond);
         assertEquals(42, (char) getPipeline().remove());
     }
+
+    @Test
+    public void testInternalFieldOffsets() throws Exception {
+        String diamond = "class TestClass { int first; int second; int third; " +
+                "static TestClass new() { first = 1; second = 2; third = 3; return this; } " +
+                "int getDigits() { return first * 100 + second * 10 + third; } } " +
+                "void main() { TestClass testClass = TestClass::new(); pipeline(testClass.getDigits()); " +
+                "pipeline(testClass.second); }";
+        testWithPipeline(diamond);
+        assertEquals(123, (char) getPipeline().remove());
+        assertEquals(2, (char) getPipeline().remove());
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * FunctionEvaluationTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class FunctionEvaluationTest extends PipelineTest {
+    @Test
+    public void testCalendarMath() throws Exception {
+        String diamond = "boolean isLeap(int year) { return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0); } " +
+                "int getDayOfWeek(int year, int month, int day) { int m = month; int y = year; " +
+                "if (m < 3) { m += 12; y -= 1; } int k = y % 100; int j = y / 100; " +
+                "return (day + 13 * (m + 1) / 5 + k + k / 4 + j / 4 + 5 * j) % 7; } " +
+                "int countSundays(int first, int last) { int count = 0; " +
+                "for (int year = first; year <= last; year += 1) { for (int month = 1; month <= 12; month += 1) { " +
+                "if (getDayOfWeek(year, month, 1) == 1) { count += 1; } } } return count; } " +
+                "void main() { pipeline(countSundays(1901, 2000)); pipeline(isLeap(1900) ? 1 : 0); " +
+                "pipeline(getDayOfWeek(2012, 2, 29)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(171, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(4, (char) getPipeline().remove());
+        assertEvaluated(getMainFunction(code), "0x00ab", "0x0000", "0x0004");
+    }
+
+    @Test
+    public void testTablesAndRecursion() throws Exception {
+        String diamond = "uint sumOfSquares(uint n) { uint[] table = uint[]::new(n); " +
+                "for (uint i = 0U; i < n; i++) { table[i] = i * i; } uint sum = 0U; " +
+                "for (uint i = 0U; i < n; i++) { sum += table[i]; } delete table; return sum; } " +
+                "int fib(int n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); } " +
+                "int mask(uint bits) { return ~(-1 << bits); } " +
+                "void main() { pipeline(sumOfSquares(10U)); pipeline(fib(15)); pipeline(mask(5U)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(285, (char) getPipeline().remove());
+        assertEquals(610, (char) getPipeline().remove());
+        assertEquals(31, (char) getPipeline().remove());
+        assertEvaluated(getMainFunction(code), "0x011d", "0x0262", "0x001f");
+    }
+
+    @Test
+    public void testAbandonedEvaluation() throws Exception {
+        String diamond = "class Box { int value; static Box new(int value) { this.value = value; return this; } " +
+                "int plus(int x) { return value + x; } int twice() { return plus(plus(0)); } } " +
+                "int noisy(int x) { pipeline(x); return x + 1; } " +
+                "int spin(int n) { int s = 0; for (int i = 0; i < n; i += 1) { s += i & 3; } return s; } " +
+                "void main() { Box box = Box::new(5); pipeline(box.twice()); pipeline(noisy(7)); " +
+                "pipeline(spin(10000)); }";
+        testWithPipeline(diamond);
+        assertEquals(10, (char) getPipeline().remove());
+        assertEquals(7, (char) getPipeline().remove());
+        assertEquals(8, (char) getPipeline().remove());
+        assertEquals(15000, (char) getPipeline().remove());
+    }
+
+    /**
+     * Asserts that the only calls made by the specified function are those to {@code pipeline}, one for each of the
+     * specified constants, and that each constant is loaded directly in place of the invocation which computed it.
+     */
+    private static void assertEvaluated(List<String> function, String... constants) {
+        int calls = 0;
+        for (String line : function) {
+            if (line.startsWith("JSR ")) {
+                calls++;
+            }
+        }
+        assertEquals(constants.length, calls);
+        for (String constant : constants) {
+            assertTrue(function.contains("SET A " + constant));
+        }
+    }
+}
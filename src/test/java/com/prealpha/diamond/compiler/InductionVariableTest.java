@@ -0,0 +1,55 @@
+/*
+ * InductionVariableTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class InductionVariableTest extends PipelineTest {
+    @Test
+    public void testForwardPointers() throws Exception {
+        String diamond = "class Buffers { int[] src; int[] dst; static Buffers new() { src = int[]::new(8U); " +
+                "dst = int[]::new(8U); return this; } " +
+                "void fill(uint n) { int v = 1; for (uint i = 0U; i < n; i += 1U) { src[i] = v; v += 3; } } " +
+                "void pairs(uint n) { for (uint i = 0U; i < n; i += 1U) { dst[i] = src[i] + src[i + 1U]; } } " +
+                "int evens(uint n) { int sum = 0; for (uint i = 0U; i < n; i += 2U) { sum += dst[i]; } return sum; } } " +
+                "void main() { Buffers buffers = Buffers::new(); buffers.fill(8U); buffers.pairs(7U); " +
+                "pipeline(buffers.evens(7U)); pipeline(buffers.dst[6U]); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(92, (char) getPipeline().remove());
+        assertEquals(41, (char) getPipeline().remove());
+        List<String> pairs = null;
+        for (List<String> function : getFunctions(code).values()) {
+            for (List<String> loop : getLoops(function)) {
+                if (loop.contains("STI EX EX")) {
+                    pairs = loop;
+                }
+            }
+        }
+        assertNotNull(pairs);
+        assertTrue(pairs.contains("SET [I] A"));
+        assertTrue(pairs.contains("ADD A [J]"));
+    }
+
+    @Test
+    public void testBackwardAndModified() throws Exception {
+        String diamond = "class Buffer { int[] data; static Buffer new() { data = int[]::new(6U); int v = 0; " +
+                "for (uint i = 0U; i < 6U; i += 1U) { data[i] = v; v += 1; } return this; } " +
+                "int weigh() { int weighted = 0; for (uint i = 5U; i > 0U; i -= 1U) { " +
+                "weighted += data[i] * data[i - 1U]; } return weighted; } " +
+                "int skip() { int skipped = 0; for (uint i = 0U; i < 6U; i += 1U) { skipped += data[i]; " +
+                "if (data[i] == 2) { i += 1U; } } return skipped; } } " +
+                "void main() { Buffer buffer = Buffer::new(); pipeline(buffer.weigh()); pipeline(buffer.skip()); }";
+        testWithPipeline(diamond);
+        assertEquals(40, (char) getPipeline().remove());
+        assertEquals(12, (char) getPipeline().remove());
+    }
+}
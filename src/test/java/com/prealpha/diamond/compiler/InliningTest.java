@@ -0,0 +1,80 @@
+/*
+ * InliningTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class InliningTest extends PipelineTest {
+    @Test
+    public void testInlinedMethods() throws Exception {
+        String diamond = "class Counter { int value; static Counter new(int start) { value = start; return this; } " +
+                "int getValue() { return value; } void increment() { value += 1; } " +
+                "inline int clamp(int limit) { int i = 0; while (i < 3) { if (value > limit) { return limit; } i += 1; } " +
+                "return value; } noinline int twice() { return value * 2; } } " +
+                "void main() { Counter c = Counter::new(5); int total = 0; int k = 7; " +
+                "for (int i = 0; i < 4; i += 1) { c.increment(); total += c.getValue(); } " +
+                "pipeline(total); pipeline(c.clamp(8)); pipeline(c.clamp(20)); pipeline(c.twice()); pipeline(k + total); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(30, (char) getPipeline().remove());
+        assertEquals(8, (char) getPipeline().remove());
+        assertEquals(9, (char) getPipeline().remove());
+        assertEquals(18, (char) getPipeline().remove());
+        assertEquals(37, (char) getPipeline().remove());
+
+        // only the constructor, twice() and pipeline() are called, and the inlined bodies save no registers
+        List<String> main = getMainFunction(code);
+        int calls = 0;
+        for (String line : main) {
+            if (line.startsWith("JSR ")) {
+                calls++;
+            }
+        }
+        assertEquals(7, calls);
+        for (List<String> loop : getLoops(main)) {
+            for (String line : loop) {
+                assertFalse(line.startsWith("SET PUSH ") || line.startsWith("JSR "));
+            }
+        }
+    }
+
+    @Test
+    public void testNestedAndRecursiveFunctions() throws Exception {
+        String diamond = "int square(int x) { return x * x; } int sumSquares(int a, int b) { return square(a) + square(b); } " +
+                "int fact(int n) { if (n <= 1) { return 1; } return n * fact(n - 1); } " +
+                "inline int callFact(int n) { return fact(n) + 1; } " +
+                "void main() { int k = 7; pipeline(sumSquares(3, k)); pipeline(callFact(5)); pipeline(k); }";
+        testWithPipeline(diamond);
+        assertEquals(58, (char) getPipeline().remove());
+        assertEquals(121, (char) getPipeline().remove());
+        assertEquals(7, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testFunctionInlinedEverywhere() throws Exception {
+        String diamond = "int offset(int x) { return x + 1234; } noinline int unused(int x) { return x + 4321; } " +
+                "void main() { pipeline(offset(G::z)); pipeline(offset(G::z + 1)); } class G { static int z; }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(1234, (char) getPipeline().remove());
+        assertEquals(1235, (char) getPipeline().remove());
+
+        // the two inlined copies are the only code for the function, and the uncalled function is left out
+        int copies = 0;
+        for (String line : code) {
+            if (line.contains("0x04d2")) {
+                copies++;
+            }
+            assertFalse(line.contains("0x10e1"));
+        }
+        assertEquals(2, copies);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * LoopInvariantTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class LoopInvariantTest extends PipelineTest {
+    @Test
+    public void testInvariantFields() throws Exception {
+        String diamond = "class Grid { int width; int height; int scale; " +
+                "static Grid new(int w, int h) { width = w; height = h; scale = 3; return this; } " +
+                "int total() { int sum = 0; for (int y = 0; y < height; y += 1) { " +
+                "for (int x = 0; x < width; x += 1) { sum += x * scale + y * width; } } return sum; } } " +
+                "void main() { Grid g = Grid::new(6, 5); pipeline(g.total()); }";
+        testWithPipeline(diamond);
+        assertEquals(585, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testInvariantExpressions() throws Exception {
+        String diamond = "void main() { int[] a = int[]::new(2U); a[0U] = 2; a[1U] = 3; int k = 5; int s = 0; " +
+                "int i = 0; while (i < 10) { s += a[0U] * a[1U] + k * 7; i += 1; } pipeline(s); " +
+                "int m = 4; int n = 0; int t = 0; do { t += k * m + 1; n += 1; } while (n < 3); pipeline(t); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(410, (char) getPipeline().remove());
+        assertEquals(63, (char) getPipeline().remove());
+        List<String> main = getMainFunction(code);
+        List<String> loop = getLoops(main).get(0);
+        for (String line : loop) {
+            assertFalse(line, line.startsWith("MLI "));
+        }
+        boolean multipliesBefore = false;
+        for (String line : main.subList(0, main.indexOf(loop.get(0)))) {
+            multipliesBefore |= line.startsWith("MLI ");
+        }
+        assertTrue(multipliesBefore);
+    }
+
+    @Test
+    public void testVariantLoads() throws Exception {
+        String diamond = "class Box { int v; static Box new() { v = 1; return this; } noinline void bump() { v += 1; } " +
+                "int run() { int s = 0; for (int i = 0; i < 4; i += 1) { s += v * 10; bump(); } return s; } } " +
+                "void main() { Box box = Box::new(); pipeline(box.run()); " +
+                "int[] a = int[]::new(2U); a[0U] = 1; int s = 0; uint i = 0U; " +
+                "while (i < 3U) { s += a[0U] * 5; a[0U] = a[0U] + 1; i += 1U; } pipeline(s); }";
+        testWithPipeline(diamond);
+        assertEquals(100, (char) getPipeline().remove());
+        assertEquals(30, (char) getPipeline().remove());
+    }
+}
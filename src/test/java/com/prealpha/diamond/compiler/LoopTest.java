@@ -0,0 +1,26 @@
+/*
+ * LoopTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public final class LoopTest extends PipelineTest {
+    @Test
+    public void testBreak() throws Exception {
+        String diamond = "void main() { int i = 0; while (i < 10) { i += 1; if (i == 3) { break; } } pipeline(i); " +
+                "int j; int s = 0; for (j = 0; j < 10; j += 1) { int k = j * 2; if (k > 6) { break; } s += k; } " +
+                "pipeline(j); pipeline(s); int n = 0; do { n += 1; if (n == 4) { break; } } while (n < 10); " +
+                "pipeline(n); }";
+        testWithPipeline(diamond);
+        assertEquals(3, (char) getPipeline().remove());
+        assertEquals(4, (char) getPipeline().remove());
+        assertEquals(12, (char) getPipeline().remove());
+        assertEquals(4, (char) getPipeline().remove());
+    }
+}
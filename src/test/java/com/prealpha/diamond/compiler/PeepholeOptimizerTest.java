@@ -0,0 +1,61 @@
+/*
+ * PeepholeOptimizerTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class PeepholeOptimizerTest {
+    private static List<String> optimize(String... program) {
+        return new PeepholeOptimizer(ImmutableList.copyOf(program)).optimize();
+    }
+
+    @Test
+    public void testPushPop() throws Exception {
+        List<String> optimized = optimize("SET PUSH [Z]", "SET A 0x0003", "SET Y POP", "SET [Y] A", "SET PC POP");
+        assertEquals(ImmutableList.of("SET PUSH [Z]", "SET A 0x0003", "SET Y POP", "SET [Y] A", "SET PC POP"), optimized);
+
+        optimized = optimize("SET PUSH [Z]", "SET B POP", "ADD A B", "SET B 0x0000", "SET PC POP");
+        assertEquals(ImmutableList.of("ADD A [Z]", "SET B 0x0000", "SET PC POP"), optimized);
+
+        optimized = optimize("SET PUSH A", "SET EX POP", "SET PUSH C", "ADD SP 0x0003", "SET PC POP");
+        assertEquals(ImmutableList.of("ADD SP 0x0002", "SET PC POP"), optimized);
+    }
+
+    @Test
+    public void testGuardedInstructions() throws Exception {
+        List<String> optimized = optimize("IFE A 0x0000", "SET B B", "SET PC POP");
+        assertEquals(ImmutableList.of("IFE A 0x0000", "SET B B", "SET PC POP"), optimized);
+
+        optimized = optimize("IFE A 0x0000", "SET PC skip", "SET A 0x0001", ":skip", "SET PC POP");
+        assertEquals(ImmutableList.of("IFE A 0x0000", "SET PC POP", "SET A 0x0001", "SET PC POP"), optimized);
+    }
+
+    @Test
+    public void testJumps() throws Exception {
+        List<String> optimized = optimize("JSR first", "SET PC next", "SET A 0x0001", ":next", "BRK",
+                ":first", "SET PC second", ":unused", ":second", "SET PC POP");
+        assertEquals(ImmutableList.of("JSR second", "BRK", ":second", "SET PC POP"), optimized);
+
+        optimized = optimize("JSR main", "BRK", "SUB PC 0x0001", "SET A 0x0001", "SET PC POP", ":main", "SET PC POP");
+        assertEquals(ImmutableList.of("JSR main", "BRK", "SUB PC 0x0001", ":main", "SET PC POP"), optimized);
+    }
+
+    @Test
+    public void testOpaqueRegions() throws Exception {
+        List<String> program = ImmutableList.of("JSR native_start", "BRK", ":native_start", "SET A B", "SET A A",
+                "ADD PC 0x0001", "SET PC POP", ":native_end", "SET PC POP", "SET A A");
+        List<String> optimized = new PeepholeOptimizer(program, ImmutableMap.of("native_start", "native_end"),
+                ImmutableList.of("JSR native_end")).optimize();
+        assertEquals(program.subList(0, 9), optimized);
+    }
+}
@@ -6,6 +6,8 @@
 
 package com.prealpha.diamond.compiler;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.CharStreams;
 import com.prealpha.dcputil.emulator.testing.MachineTest;
 
@@ -13,6 +15,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 abstract class PipelineTest extends MachineTest {
     private static final String PIPELINE_DECLARATION = "include Device;\n" +
@@ -32,8 +36,15 @@ abstract class PipelineTest extends MachineTest {
             "\tpipeline.interrupt(0U, value);\n" +
             "}\n";
 
+    private static final Pattern FUNCTION_LABEL =
+            Pattern.compile(":start_A(Function|VoidFunction|Constructor|Cast)Declaration_\\d+");
+
+    protected List<String> compileWithPipeline(String sourceCode) throws Exception {
+        return Compiler.getStrictCompiler().compile(sourceCode + PIPELINE_DECLARATION);
+    }
+
     protected void testWithPipeline(String sourceCode) throws Exception {
-        test(Compiler.getStrictCompiler().compile(sourceCode + PIPELINE_DECLARATION));
+        test(compileWithPipeline(sourceCode));
     }
 
     protected void testWithPipeline(File file) throws Exception {
@@ -45,4 +56,59 @@ abstract class PipelineTest extends MachineTest {
         }
         test(Compiler.getStandardCompiler().compile(sourceCode));
     }
+
+    /**
+     * Splits a compiled program into its functions, keyed by the label at the start of each. A function runs from its
+     * label up to the label of the next function, or up to the first comment, which begins the memory manager.
+     *
+     * @param code the compiled program
+     * @return the code of each function, in order
+     */
+    protected static Map<String, List<String>> getFunctions(List<String> code) {
+        Map<String, List<String>> functions = Maps.newLinkedHashMap();
+        List<String> function = null;
+        for (String line : code) {
+            if (line.startsWith(";")) {
+                break;
+            } else if (FUNCTION_LABEL.matcher(line).matches()) {
+                function = Lists.newArrayList();
+                functions.put(line.substring(1), function);
+            }
+            if (function != null) {
+                function.add(line);
+            }
+        }
+        return functions;
+    }
+
+    /**
+     * Returns the code of the main function of a compiled program, which is the first to be invoked after the heap
+     * has been set up.
+     *
+     * @param code the compiled program
+     * @return the code of the main function
+     */
+    protected static List<String> getMainFunction(List<String> code) {
+        String main = code.get(code.indexOf("JSR heapsetup") + 1);
+        return getFunctions(code).get(main.substring("JSR ".length()));
+    }
+
+    /**
+     * Returns each loop in the specified code, as the lines from a label up to the last jump back to it.
+     *
+     * @param code some code, such as a single function
+     * @return the code of each loop, in the order of their labels
+     */
+    protected static List<List<String>> getLoops(List<String> code) {
+        List<List<String>> loops = Lists.newArrayList();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).startsWith(":")) {
+                int end = code.lastIndexOf("SET PC " + code.get(i).substring(1));
+                if (end > i) {
+                    loops.add(code.subList(i, end + 1));
+                }
+            }
+        }
+        return loops;
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * RegisterAllocationTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class RegisterAllocationTest extends PipelineTest {
+    @Test
+    public void testLiveAcrossInvocation() throws Exception {
+        String diamond = "int clobber(int x) { int a = x * 2; int b = a + 1; return b; } " +
+                "class G { static int a; static int b; } " +
+                "void main() { G::a = 3; G::b = 4; int a = G::a; int b = G::b; int c = clobber(a); pipeline(a + b + c); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(14, (char) getPipeline().remove());
+        assertNoStackLocals(getMainFunction(code));
+    }
+
+    @Test
+    public void testSpilledLocals() throws Exception {
+        String diamond = "class G { static int[] v; } " +
+                "void main() { G::v = int[]::new(7U); for (uint k = 0U; k < 7U; k += 1U) { G::v[k] = int::cast(k) + 1; } " +
+                "int a = G::v[0U]; int b = G::v[1U]; int c = G::v[2U]; int d = G::v[3U]; int e = G::v[4U]; " +
+                "int f = G::v[5U]; int g = G::v[6U]; pipeline(a + b + c + d + e + f + g); pipeline(g - a); " +
+                "pipeline(a * b + c * d + e * f + g); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(28, (char) getPipeline().remove());
+        assertEquals(6, (char) getPipeline().remove());
+        assertEquals(51, (char) getPipeline().remove());
+
+        // only the two locals which do not fit in the five allocatable registers are given a frame slot
+        assertEquals("SUB SP 0x0002", getMainFunction(code).get(1));
+    }
+
+    @Test
+    public void testLoopCarriedLocal() throws Exception {
+        String diamond = "class G { static int n; } " +
+                "void main() { G::n = 5; int n = G::n; int sum = 0; int i = 0; " +
+                "while (i < n) { int square = i * i; sum += square; i += 1; } pipeline(sum); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(30, (char) getPipeline().remove());
+        assertNoStackLocals(getMainFunction(code));
+    }
+
+    @Test
+    public void testAllocationPreservesLocals() throws Exception {
+        String diamond = "class Box { int value; static Box new(int initial) { value = initial; return this; } } " +
+                "class G { static int a; } " +
+                "void main() { G::a = 1; int a = G::a; int b = a + 1; int c = b + 1; int d = c + 1; int e = d + 1; " +
+                "Box box = Box::new(a + b + c + d); pipeline(box.value + e); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(15, (char) getPipeline().remove());
+        assertNoStackLocals(getMainFunction(code));
+    }
+
+    /**
+     * Asserts that the specified code never addresses a local on the stack.
+     *
+     * @param code some code, such as a single function
+     */
+    private static void assertNoStackLocals(List<String> code) {
+        for (String line : code) {
+            assertFalse(line.contains("[SP"));
+        }
+    }
+}
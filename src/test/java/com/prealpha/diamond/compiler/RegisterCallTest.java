@@ -0,0 +1,85 @@
+/*
+ * RegisterCallTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public final class RegisterCallTest extends PipelineTest {
+    @Test
+    public void testSwappedArguments() throws Exception {
+        String diamond = "noinline int sub(int a, int b) { return a - b; } class G { static int x; static int y; } " +
+                "void main() { G::x = 10; G::y = 3; int x = G::x; int y = G::y; int first = sub(x, y); " +
+                "int third = sub(x - 1, y * 2); int second = sub(y, x); " +
+                "pipeline(first); pipeline(second); pipeline(third); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(7, (char) getPipeline().remove());
+        assertEquals((char) -7, (char) getPipeline().remove());
+        assertEquals(3, (char) getPipeline().remove());
+        assertEquals(3, countRegisterCalls(code));
+    }
+
+    @Test
+    public void testThisArgument() throws Exception {
+        String diamond = "class Accumulator { int total; static Accumulator new(int start) { total = start; return this; } " +
+                "noinline int add(int a, int b) { total = total + a * b; return total; } } class G { static int k; } " +
+                "void main() { Accumulator acc = Accumulator::new(1); G::k = 2; int k = G::k; " +
+                "int first = acc.add(k, k + 1); int second = acc.add(3, k); " +
+                "pipeline(first); pipeline(second); pipeline(acc.total); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(7, (char) getPipeline().remove());
+        assertEquals(13, (char) getPipeline().remove());
+        assertEquals(13, (char) getPipeline().remove());
+        // the constructor takes its argument in a register too
+        assertEquals(3, countRegisterCalls(code));
+    }
+
+    /**
+     * Counts the calls in the main function to leaf functions which take their arguments in registers, asserting
+     * that none of their arguments passed through the stack; registers saved around a call are popped right after it.
+     *
+     * @param code the compiled program
+     * @return the number of such calls
+     */
+    private static int countRegisterCalls(List<String> code) {
+        Map<String, List<String>> functions = getFunctions(code);
+        int calls = 0;
+        boolean popped = false;
+        boolean restoring = false;
+        for (String line : getMainFunction(code)) {
+            if (line.startsWith("JSR ")) {
+                List<String> callee = functions.get(line.substring("JSR ".length()));
+                if (callee != null && isRegisterLeaf(callee)) {
+                    assertFalse(popped);
+                    calls++;
+                }
+                popped = false;
+                restoring = true;
+            } else if (line.endsWith(" POP")) {
+                popped |= !restoring;
+            } else {
+                restoring = false;
+            }
+        }
+        return calls;
+    }
+
+    private static boolean isRegisterLeaf(List<String> function) {
+        for (String line : function) {
+            if (line.contains("SP") || line.startsWith("JSR ")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * SpecializationTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public final class SpecializationTest extends PipelineTest {
+    @Test
+    public void testModeArguments() throws Exception {
+        String diamond = "noinline int apply(int mode, int x) { if (mode == 0) { return x + 1; } " +
+                "if (mode == 1) { return x * 2; } return -x; } class G { static int z; } " +
+                "void main() { G::z = 5; pipeline(apply(0, G::z)); pipeline(apply(1, G::z)); " +
+                "pipeline(apply(2, G::z)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(6, (char) getPipeline().remove());
+        assertEquals(10, (char) getPipeline().remove());
+        assertEquals((char) -5, (char) getPipeline().remove());
+
+        // each invocation calls a copy of its own, which no longer tests the mode
+        Map<String, List<String>> functions = getFunctions(code);
+        Multiset<String> callees = getCallees(getMainFunction(code));
+        assertEquals(4, callees.elementSet().size());
+        for (Multiset.Entry<String> callee : callees.entrySet()) {
+            if (callee.getCount() == 1) {
+                for (String line : functions.get(callee.getElement())) {
+                    assertFalse(line.startsWith("IF"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCopyBudget() throws Exception {
+        String diamond = "noinline int mix(int mode, int x) { int r = x; int i = 0; " +
+                "while (i < mode) { r = r * 3 + x; r = r - i * mode; i += 1; } return r + mode; } " +
+                "class G { static int z; } " +
+                "void main() { G::z = 5; pipeline(mix(1, G::z)); pipeline(mix(2, G::z)); pipeline(mix(3, G::z)); " +
+                "pipeline(mix(4, G::z)); pipeline(mix(5, G::z)); pipeline(mix(6, G::z)); pipeline(mix(7, G::z)); " +
+                "pipeline(mix(8, G::z)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        int[] expected = { 21, 65, 188, 537, 1535, 4397, 12606, 36125 };
+        for (int value : expected) {
+            assertEquals((char) value, (char) getPipeline().remove());
+        }
+
+        // only the first copy fits in the default budget, and the other seven invocations call the original
+        Multiset<String> callees = getCallees(getMainFunction(code));
+        List<Integer> counts = Lists.newArrayList();
+        for (Multiset.Entry<String> callee : callees.entrySet()) {
+            counts.add(callee.getCount());
+        }
+        Collections.sort(counts);
+        assertEquals(Arrays.asList(1, 7, 8), counts);
+    }
+
+    @Test
+    public void testRecursivePassThrough() throws Exception {
+        String diamond = "noinline int sum(int n, int step) { if (n <= 0) { return 0; } return n + sum(n - step, step); } " +
+                "void main() { pipeline(sum(10, 2)); pipeline(sum(9, 2)); }";
+        testWithPipeline(diamond);
+        assertEquals(30, (char) getPipeline().remove());
+        assertEquals(25, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testBooleanFlag() throws Exception {
+        String diamond = "noinline boolean odd(int n) { return n % 2 == 1; } " +
+                "noinline uint scale(uint v, boolean twice) { if (twice) { return v * 2U; } return v; } " +
+                "void main() { pipeline(scale(7U, true)); pipeline(scale(7U, false)); pipeline(scale(3U, odd(5))); }";
+        testWithPipeline(diamond);
+        assertEquals(14, (char) getPipeline().remove());
+        assertEquals(7, (char) getPipeline().remove());
+        assertEquals(6, (char) getPipeline().remove());
+    }
+
+    private static Multiset<String> getCallees(List<String> function) {
+        Multiset<String> callees = HashMultiset.create();
+        for (String line : function) {
+            if (line.startsWith("JSR ")) {
+                callees.add(line.substring("JSR ".length()));
+            }
+        }
+        return callees;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * StackFrameTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class StackFrameTest extends PipelineTest {
+    @Test
+    public void testEarlyExits() throws Exception {
+        String diamond = "noinline int search(int[] a, uint n, int key) { int misses = 0; int position = -1; " +
+                "for (uint i = 0U; i < n; i += 1U) { position += 1; int v = a[i]; int w = v * 2; int u = w + 1; int t = u - v; " +
+                "int s = t + key; int r = s * 3; if (r == 0) { continue; } " +
+                "if (v == key) { int found = position * 100 + misses + r + s + t + u + w; return found; } " +
+                "misses += 1; } return -1; } " +
+                "void main() { int[] a = int[]::new(5U); a[0U] = 4; a[1U] = -8; a[2U] = 7; a[3U] = 1; a[4U] = 3; " +
+                "pipeline(search(a, 5U, 7)); pipeline(search(a, 5U, 8)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(298, (char) getPipeline().remove());
+        assertEquals((char) -1, (char) getPipeline().remove());
+        assertSingleFrame(getFirstCallee(code));
+    }
+
+    @Test
+    public void testSiblingScopes() throws Exception {
+        String diamond = "noinline int mix(int x) { int result = 0; " +
+                "if (x > 0) { int a = x + 1; int b = a * 2; int c = b - x; int d = c + a; int e = d * b; " +
+                "result = a + b + c + d + e; } else { int f = 1 - x; int g = f * f; int h = g + f; int k = h - 2; " +
+                "int m = k * 3; result = f + g + h + k + m; } " +
+                "while (result > 100) { int q = result / 2; int p = q - 1; int o = p + q; int l = o - p; int j = l + 1; " +
+                "result = j; } return result; } " +
+                "class G { static int z; } " +
+                "void main() { G::z = 3; pipeline(mix(G::z)); G::z = -2; pipeline(mix(G::z)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(98, (char) getPipeline().remove());
+        assertEquals(64, (char) getPipeline().remove());
+        assertSingleFrame(getFirstCallee(code));
+    }
+
+    private static List<String> getFirstCallee(List<String> code) {
+        for (String line : getMainFunction(code)) {
+            if (line.startsWith("JSR ")) {
+                return getFunctions(code).get(line.substring("JSR ".length()));
+            }
+        }
+        throw new AssertionError("main calls no function");
+    }
+
+    /**
+     * Asserts that the specified function reserves the space for all of its locals on entry, and releases the same
+     * amount at each exit, without pushing or popping anything within its body.
+     */
+    private static void assertSingleFrame(List<String> function) {
+        String reserve = function.get(1);
+        assertTrue(reserve.startsWith("SUB SP "));
+        String release = "ADD SP " + reserve.substring("SUB SP ".length());
+        int exits = 0;
+        for (int i = 2; i < function.size(); i++) {
+            String line = function.get(i);
+            assertFalse(line.startsWith("SUB SP "));
+            assertTrue(!line.startsWith("ADD SP ") || line.equals(release));
+            assertFalse(line.contains("PUSH") || (line.contains("POP") && !line.equals("SET PC POP")));
+            if (line.equals("SET PC POP")) {
+                assertEquals(release, function.get(i - 1));
+                exits++;
+            }
+        }
+        assertTrue(exits > 0);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * StrengthReductionTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class StrengthReductionTest extends PipelineTest {
+    @Test
+    public void testMultiply() throws Exception {
+        String diamond = "void check(int a, uint b) { pipeline(a * 8); pipeline(16 * a); pipeline(a * 1); " +
+                "pipeline((b * 4U) > 60000U ? 1 : 0); } " +
+                "void main() { check(-3, 16000U); check(5, 3U); }";
+        testWithPipeline(diamond);
+        assertEquals((char) -24, (char) getPipeline().remove());
+        assertEquals((char) -48, (char) getPipeline().remove());
+        assertEquals((char) -3, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(40, (char) getPipeline().remove());
+        assertEquals(80, (char) getPipeline().remove());
+        assertEquals(5, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testDivideAndModulus() throws Exception {
+        String diamond = "void check(int a, uint b) { pipeline(a / 4); pipeline(a % 4); pipeline(a / 1); pipeline(a % 1); " +
+                "pipeline((b / 8U) == 8191U ? 1 : 0); pipeline((b % 16U) == 15U ? 1 : 0); pipeline(a % 7); } " +
+                "void main() { check(-7, 65535U); check(9, 24U); }";
+        testWithPipeline(diamond);
+        assertEquals((char) -1, (char) getPipeline().remove());
+        assertEquals((char) -3, (char) getPipeline().remove());
+        assertEquals((char) -7, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(2, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+        assertEquals(9, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(2, (char) getPipeline().remove());
+    }
+
+    @Test
+    public void testNoMultiplyOrDivideEmitted() throws Exception {
+        String diamond = "noinline int times8(int a) { return a * 8; } noinline uint quarter(uint b) { return b / 4U; } " +
+                "noinline uint low(uint b) { return b % 16U; } " +
+                "void main() { G::z = 5; pipeline(times8(G::z)); pipeline(quarter(uint::cast(G::z) + 99U)); " +
+                "pipeline(low(uint::cast(G::z) + 30U)); } " +
+                "class G { static int z; }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(40, (char) getPipeline().remove());
+        assertEquals(26, (char) getPipeline().remove());
+        assertEquals(3, (char) getPipeline().remove());
+        for (String line : code) {
+            assertFalse(line, line.matches("(MUL|MLI|DIV|DVI|MOD|MDI) .*"));
+        }
+        assertTrue(code.contains("SHL A 0x0003"));
+        assertTrue(code.contains("SHR A 0x0002"));
+        assertTrue(code.contains("AND A 0x000f"));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * SwitchTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class SwitchTest extends PipelineTest {
+    @Test
+    public void testLinearDispatch() throws Exception {
+        String diamond = "int classify(int x) { int result = 0; switch (x) { case 1: result = 10; break; " +
+                "case 5: result = 50; default: result += 1; } return result; } " +
+                "void main() { int[] values = int[]::new(3U); values[0U] = 1; values[1U] = 5; values[2U] = 7; " +
+                "uint i = 0U; while (i < 3U) { pipeline(classify(values[i])); i += 1U; } }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(10, (char) getPipeline().remove());
+        assertEquals(51, (char) getPipeline().remove());
+        assertEquals(1, (char) getPipeline().remove());
+
+        assertTrue(code.contains("IFE A 0x0001"));
+        assertTrue(code.contains("IFE A 0x0005"));
+        assertFalse(containsPrefix(code, ":table_"));
+        assertFalse(containsPrefix(code, ":search_"));
+    }
+
+    @Test
+    public void testTableDispatch() throws Exception {
+        String diamond = "int classify(int x) { switch (x) { case 3: return 30; case 4: case 5: return 45; " +
+                "case 7: return 70; case 8: return 80; case 10: return 100; default: return -1; } return 0; } " +
+                "void main() { int x = -2; while (x < 13) { pipeline(classify(x)); x += 1; } }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        int[] expected = { -1, -1, -1, -1, -1, 30, 45, 45, -1, 70, 80, -1, 100, -1, -1 };
+        for (int value : expected) {
+            assertEquals((char) value, (char) getPipeline().remove());
+        }
+
+        // one bounds check covers the eight values from 3 to 10
+        assertTrue(code.contains("IFL A 0x0008"));
+        assertTrue(containsPrefix(code, "SET PC [A+table_"));
+        assertTrue(containsPrefix(code, ":table_"));
+        assertFalse(containsPrefix(code, ":search_"));
+    }
+
+    @Test
+    public void testSearchDispatch() throws Exception {
+        String diamond = "uint classify(uint x) { uint result = 0U; switch (x) { case 2U: result = 1U; break; " +
+                "case 40U: result = 2U; break; case 100U: result = 3U; break; case 1000U: result = 4U; break; " +
+                "case 5000U: result = 5U; break; case 40000U: result = 6U; break; case 65535U: result = 7U; break; } " +
+                "return result; } " +
+                "void main() { uint[] values = uint[]::new(10U); values[0U] = 2U; values[1U] = 40U; " +
+                "values[2U] = 100U; values[3U] = 1000U; values[4U] = 5000U; values[5U] = 40000U; " +
+                "values[6U] = 65535U; values[7U] = 0U; values[8U] = 39U; values[9U] = 50000U; " +
+                "uint i = 0U; while (i < 10U) { pipeline(classify(values[i])); i += 1U; } }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        for (int i = 1; i <= 7; i++) {
+            assertEquals(i, (char) getPipeline().remove());
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, (char) getPipeline().remove());
+        }
+
+        // the search splits around 1000, then around 40000
+        assertTrue(code.contains("IFL A 0x03e8"));
+        assertTrue(code.contains("IFL A 0x9c40"));
+        assertTrue(containsPrefix(code, ":search_"));
+        assertFalse(containsPrefix(code, ":table_"));
+    }
+
+    private static boolean containsPrefix(List<String> code, String prefix) {
+        for (String line : code) {
+            if (line.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * TailCallTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public final class TailCallTest extends PipelineTest {
+    @Test
+    public void testSelfRecursion() throws Exception {
+        String diamond = "int fact(int n, int acc) { if (n == 0) { return acc; } return fact(n - 1, acc * n); } " +
+                "uint count(uint n, uint acc) { if (n == 0U) { return acc; } uint next = acc + 3U; " +
+                "return (count(n - 1U, next)); } " +
+                "void main() { pipeline(fact(7, 1)); pipeline(count(30000U, 0U)); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(5040, (char) getPipeline().remove());
+        assertEquals((char) 90000, (char) getPipeline().remove());
+        boolean jumpsToItself = false;
+        for (Map.Entry<String, List<String>> function : getFunctions(code).entrySet()) {
+            assertFalse(function.getValue().contains("JSR " + function.getKey()));
+            jumpsToItself |= function.getValue().contains("SET PC " + function.getKey());
+        }
+        assertTrue(jumpsToItself);
+    }
+
+    @Test
+    public void testMutualRecursion() throws Exception {
+        String diamond = "class Parity { int calls; static Parity new() { calls = 0; return this; } " +
+                "boolean isEven(int n) { calls += 1; if (n == 0) { return true; } return isOdd(n - 1); } " +
+                "boolean isOdd(int n) { calls += 1; if (n == 0) { return false; } return isEven(n - 1); } } " +
+                "void main() { Parity parity = Parity::new(); " +
+                "if (parity.isEven(25001)) { pipeline(1); } else { pipeline(0); } pipeline(parity.calls); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(25002, (char) getPipeline().remove());
+        Map<String, List<String>> functions = getFunctions(code);
+        boolean jumpsToFunction = false;
+        for (String line : code) {
+            jumpsToFunction |= line.startsWith("SET PC ") && functions.containsKey(line.substring("SET PC ".length()));
+        }
+        assertTrue(jumpsToFunction);
+    }
+}
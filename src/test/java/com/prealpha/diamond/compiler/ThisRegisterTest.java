@@ -0,0 +1,65 @@
+/*
+ * ThisRegisterTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public final class ThisRegisterTest extends PipelineTest {
+    @Test
+    public void testFieldsAcrossCalls() throws Exception {
+        String diamond = "class Counter { int count; int step; int calls; " +
+                "static Counter new(int s) { count = 0; step = s; calls = 0; return this; } " +
+                "noinline void bump() { count = count + step; calls = calls + 1; } " +
+                "noinline int run(int n) { int total = 0; for (int i = 0; i < n; i += 1) { bump(); " +
+                "total = total + count * step + calls; step = step + 1; } return total + count; } } " +
+                "void main() { Counter c = Counter::new(2); pipeline(c.run(3)); pipeline(c.count); pipeline(c.calls); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(70, (char) getPipeline().remove());
+        assertEquals(9, (char) getPipeline().remove());
+        assertEquals(3, (char) getPipeline().remove());
+
+        // run loads this from the stack once, and then reaches the fields through its register
+        Map<String, List<String>> functions = getFunctions(code);
+        List<String> run = null;
+        for (String line : getMainFunction(code)) {
+            if (line.startsWith("JSR ") && functions.containsKey(line.substring("JSR ".length()))) {
+                List<String> callee = functions.get(line.substring("JSR ".length()));
+                if (!getLoops(callee).isEmpty()) {
+                    run = callee;
+                }
+            }
+        }
+        assertNotNull(run);
+        String load = run.get(1);
+        assertTrue(load.matches("SET [A-Z] \\[SP\\+0x0001\\]"));
+        String register = load.substring("SET ".length(), "SET ".length() + 1);
+        List<String> loop = getLoops(run).get(0);
+        assertTrue(loop.contains("SET A [" + register + "]"));
+        assertTrue(loop.contains("MLI A [" + register + "+0x0001]"));
+        assertTrue(loop.contains("ADD A [" + register + "+0x0002]"));
+        String bump = null;
+        for (String line : run.subList(2, run.size())) {
+            assertFalse(line.startsWith("SET " + register + " ") || line.contains("SP"));
+            if (line.startsWith("JSR ")) {
+                bump = line.substring("JSR ".length());
+            }
+        }
+
+        // and passes it to bump in the same register, which uses it in place
+        assertNotNull(bump);
+        for (String line : functions.get(bump)) {
+            assertFalse(line.contains("SP"));
+        }
+        assertTrue(functions.get(bump).contains("ADD [" + register + "+0x0002] 0x0001"));
+    }
+}
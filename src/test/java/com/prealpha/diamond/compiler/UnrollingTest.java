@@ -0,0 +1,63 @@
+/*
+ * UnrollingTest.java
+ * Copyright (C) 2012 Pre-Alpha Software
+ * All rights reserved.
+ */
+
+package com.prealpha.diamond.compiler;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public final class UnrollingTest extends PipelineTest {
+    @Test
+    public void testFullUnrollingWithBreakAndContinue() throws Exception {
+        String diamond = "void main() { int s = 0; for (int i = 0; i < 4; i += 1) { if (i == 2) continue; s += i; } " +
+                "int t = 0; for (int j = 0; j < 4; j++) { if (j == 3) break; t += 10; } " +
+                "pipeline(s); pipeline(t); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(4, (char) getPipeline().remove());
+        assertEquals(30, (char) getPipeline().remove());
+        assertTrue(getLoops(getMainFunction(code)).isEmpty());
+    }
+
+    @Test
+    public void testPartialUnrollingWithRemainder() throws Exception {
+        String diamond = "void main() { int[] a = int[]::new(11U); for (uint k = 0U; k < 11U; k++) { a[k] = 0; } " +
+                "uint sum = 0U; for (uint k = 30U; k > 0U; k -= 3U) { sum += k; a[k / 3U] = 1; } " +
+                "int count = 0; for (uint m = 0U; m < 11U; m += 1U) { count += a[m]; } " +
+                "int odd = 0; for (int n = 0; n != 99; n += 1) { if (n % 2 == 0) { continue; } odd += 1; } " +
+                "pipeline(sum); pipeline(count); pipeline(odd); }";
+        List<String> code = compileWithPipeline(diamond);
+        test(code);
+        assertEquals(165, (char) getPipeline().remove());
+        assertEquals(10, (char) getPipeline().remove());
+        assertEquals(49, (char) getPipeline().remove());
+        List<List<String>> loops = getLoops(getMainFunction(code));
+        assertEquals(4, loops.size());
+        int continueTargets = 0;
+        for (String line : loops.get(3)) {
+            if (line.startsWith(":next_")) {
+                continueTargets++;
+            }
+        }
+        assertTrue(continueTargets > 1);
+    }
+
+    @Test
+    public void testSignedAndWrappingBounds() throws Exception {
+        String diamond = "void main() { int s = 0; int c = 0; for (int j = -4; j <= 4; j += 2) { s += j; c += 1; } " +
+                "uint w = 0U; for (uint u = 0xfffeU; u != 2U; u++) { w += 1U; } " +
+                "int none = 0; for (int z = 3; z < 3; z += 1) { none += 1; } " +
+                "pipeline(s); pipeline(c); pipeline(w); pipeline(none); }";
+        testWithPipeline(diamond);
+        assertEquals(0, (char) getPipeline().remove());
+        assertEquals(5, (char) getPipeline().remove());
+        assertEquals(4, (char) getPipeline().remove());
+        assertEquals(0, (char) getPipeline().remove());
+    }
+}